@@ -183,6 +183,30 @@ public class Cache{
         parser.update(this,xml);
     }
     
+    /** Load a cache from the bytes received from other MSD.
+     * The cache can be in XML or binary encoding.
+     * @param data The cache received.
+     * @throws java.lang.Exception If any error occurs */
+    public void load(byte[] data) throws Exception{
+        if(BinaryDecoder.isBinary(data)){
+            BinaryDecoder.load(this,data);
+        }else{
+            parser.load(this,new String(data));
+        }
+    }
+
+    /** Join a cache received from other MSD with this.
+     * The cache can be in XML or binary encoding.
+     * @param data The cache received.
+     * @throws java.lang.Exception If any error occurs */
+    public void update(byte[] data) throws Exception{
+        if(BinaryDecoder.isBinary(data)){
+            BinaryDecoder.update(this,data);
+        }else{
+            parser.update(this,new String(data));
+        }
+    }
+
     /** Join  the elements of a cache to this one.
      * @param c The cache to be joined */
     public void join(Cache c){
@@ -0,0 +1,198 @@
+package org.msd.cache.xml;
+
+import org.msd.cache.*;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/** Reads caches in the binary encoding of the MSD.
+ *
+ * The binary encoding writes each string just once and the numbers as
+ * varints, so the caches are several times smaller than in XML. Read the
+ * documentation of org.msd.cache.CacheCodec in the MSD for the format.
+ *
+ * Only services, networks and classes are read: other elements are skipped.
+ * The modes of the caches are ignored, as in MiniXMLParser, but the elements
+ * marked as removed are removed from the cache. */
+public class BinaryDecoder{
+    /** First byte of a binary cache */
+    public static final int MAGIC=0xCA;
+    /** Version of the encoding */
+    public static final int VERSION=1;
+    /** Maximum number of strings in the table */
+    private static final int MAX_STRINGS=1024;
+    /** Strings known from the beginning. The same as the MSD's. */
+    private static final String[] WELL_KNOWN={Cache.CACHE_NAME,
+            "complete","update","summary","gw","hops","confidence","main",
+            Cache.URL_NAME,"port",Cache.TYPE_NAME,"MSD","internet",
+            "bluetooth"};
+    /** Codes of the strings */
+    private static final int LITERAL=0,NULL=2;
+
+    /** Table of strings read */
+    private Vector strings=new Vector();
+    /** The strings of the table, to avoid duplicates */
+    private Hashtable known=new Hashtable();
+    /** The stream being read */
+    private DataInputStream in;
+
+    /** @param data The binary cache */
+    private BinaryDecoder(byte[] data){
+        in=new DataInputStream(new ByteArrayInputStream(data));
+        for(int i=0;i<WELL_KNOWN.length;i++){
+            add(WELL_KNOWN[i]);
+        }
+    }
+
+    /** @param data Some bytes received
+     * @return Wether data is a cache in binary encoding */
+    public static boolean isBinary(byte[] data){
+        return data!=null&&data.length>0&&(data[0]&0xFF)==MAGIC;
+    }
+
+    /** Load a cache from its binary encoding.
+     * The content of the cache is deleted before loading.
+     * @param cache The cache to be loaded.
+     * @param data The binary cache.
+     * @throws Exception If the cache can not be loaded */
+    public static void load(Cache cache,byte[] data) throws Exception{
+        cache.reset();
+        new BinaryDecoder(data).read(cache,true);
+    }
+
+    /** Updates a cache from its binary encoding.
+     * @param cache The cache to be updated.
+     * @param data The binary cache.
+     * @throws Exception If the cache can not be updated. */
+    public static void update(Cache cache,byte[] data) throws Exception{
+        new BinaryDecoder(data).read(cache,false);
+    }
+
+    /** Reads the cache. If setID, set the identifier of the cache */
+    private void read(Cache cache,boolean setID) throws Exception{
+        if(in.read()!=MAGIC||in.read()!=VERSION){
+            throw new Exception("Not a binary cache");
+        }
+        String idcache=readString();
+        if(setID){
+            cache.setID(idcache);
+        }
+        // mode and version. Summaries have a digest after the version.
+        String mode=readString();
+        readString();
+        if("summary".equals(mode)){
+            readString();
+        }
+        // removed elements
+        int n=readCount();
+        for(int i=0;i<n;i++){
+            Element e=cache.getElement(readString(),readString());
+            if(e!=null){
+                cache.deleteElement(e);
+            }
+        }
+        n=readCount();
+        for(int i=0;i<n;i++){
+            Element e=readElement(cache);
+            if(e!=null){
+                cache.addElement(e);
+            }
+        }
+    }
+
+    /** @return The element read, or null if the type is not known */
+    private Element readElement(Cache cache) throws Exception{
+        Element e;
+        switch(readCount()){
+            case Element.SERVICE: e=new Service(cache,false); break;
+            case Element.NETWORK: e=new Network(cache,false); break;
+            case Element.CLASSTYPE: e=new ClassType(cache,false); break;
+            default: e=null;
+        }
+        String name=readString();
+        String idcache=readString();
+        String id=readString();
+        if(e!=null){
+            e.setName(name);
+            e.setIDCache(idcache);
+            e.setID(id);
+        }
+        int n=readCount();
+        for(int i=0;i<n;i++){
+            String k=readString();
+            String v=readString();
+            if(e!=null){
+                e.setSpecialAttr(k,v);
+            }
+        }
+        n=readCount();
+        for(int i=0;i<n;i++){
+            String k=readString();
+            String v=readString();
+            if(e!=null){
+                e.setAttrStr(k,v);
+            }
+        }
+        n=readCount();
+        for(int i=0;i<n;i++){
+            Element c=readElement(cache);
+            if(e!=null&&c!=null){
+                e.appendChild(c);
+            }
+        }
+        return e;
+    }
+
+    /** Reads a string: a reference to the table, a number or a literal */
+    private String readString() throws IOException{
+        long code=readVarint();
+        if(code==NULL){
+            return null;
+        } else if((code&1)==1){
+            return Long.toString(code>>>1);
+        } else if(code==LITERAL){
+            byte[] b=new byte[readCount()];
+            in.readFully(b);
+            String s=new String(b,"UTF-8");
+            add(s);
+            return s;
+        }
+        long pos=(code>>>1)-2;
+        if(pos>=strings.size()){
+            throw new IOException("String not in the table: "+pos);
+        }
+        return(String)strings.elementAt((int)pos);
+    }
+
+    /** Adds a string to the table, if it is not full */
+    private void add(String s){
+        if(strings.size()<MAX_STRINGS&&known.get(s)==null){
+            known.put(s,s);
+            strings.addElement(s);
+        }
+    }
+
+    /** Reads a varint */
+    private long readVarint() throws IOException{
+        long v=0;
+        for(int shift=0;shift<64;shift+=7){
+            int b=in.readUnsignedByte();
+            v|=(long)(b&0x7F)<<shift;
+            if((b&0x80)==0){
+                return v;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /** Reads a varint used as a count or a length */
+    private int readCount() throws IOException{
+        long v=readVarint();
+        if(v>Integer.MAX_VALUE){
+            throw new IOException("Count too big: "+v);
+        }
+        return(int)v;
+    }
+}
@@ -224,12 +224,14 @@ public abstract class MSDManager extends SDManager{
                         msdMain.getNetwork(net.getGenericName()).getAddress());
                 Message m=new Message(template.toString().getBytes(),getID(),
                         msdMain.getIDCache(),Connection.GET);
+                // we understand binary caches
+                m.setAttribute("accept","binary");
                 c.send(m);
                 m=c.receive();
                 c.close();
                 // create a cache
                 Cache cc=new Cache();
-                cc.load(new String(m.getData()));
+                cc.load(m.getData());
                 // set the gateway of services
                 for(Enumeration e=cc.getChilds().elements(); e.hasMoreElements();){
                     ((Service)(e.nextElement())).setGateway(cc.getID());
@@ -23,6 +23,7 @@ import org.apache.log4j.*; //@@l
  *<tr><td>-msdconf conf</td><td>String</td><td></td><td>conf.msd</td></tr>
  *<tr><td>-cache file</td><td>String</td><td>conf.cache</td></tr>
  *<tr><td>-local file</td><td>LocalFile=String</td><td>null</td></tr>
+ *<tr><td>-journal file</td><td>Journal=String</td><td>null</td></tr>
  *<tr><td>-gui</td><td>GUI=boolean</td><td>true</td></tr>
  *</table>
  *
@@ -49,6 +50,8 @@ class BrowserProperties {
                     i=i+1;
                 } else if(args[i].equals("-local")){
                     localFile=args[i+1]; i++;
+                } else if(args[i].equals("-journal")){
+                    journal=args[i+1]; i++;
                 } else if(args[i].equals("-cache")){
                     cache=args[i++];
                 } else if(args[i].equals("-msdconf")){
@@ -88,6 +91,7 @@ class BrowserProperties {
             String cadena="";
             cadena+="Log4J="+log4jConf;
             cadena+="\nLocalFile="+localFile;
+            cadena+="\nJournal="+journal;
             cadena+="\nCache="+cache;
             cadena+="\nMSDConf="+msdconf;
             cadena+="\nGUI="+gui;
@@ -111,6 +115,11 @@ class BrowserProperties {
             cache=res.getString("Cache");
             cachexml=res.getString("CacheXML");
             msdconf=res.getString("MSDConf");
+            try{
+                journal=res.getString("Journal");
+            } catch(java.util.MissingResourceException e){
+                // optional property: do not use a journal
+            }
 
         } catch(Exception e){
             System.err.println("Error while reading properties: "+e.toString());
@@ -123,6 +132,10 @@ class BrowserProperties {
     /** Filename to save the cache. If null, do not save. */
     public static String localFile=null;
 
+    /** Path of the journal of the cache, without extension. If null or
+     * empty, do not use a journal. */
+    public static String journal=null;
+
     /** Wether or not use a graphical interface */
     public static boolean gui=true;
 
@@ -34,6 +34,8 @@ public class BrowserSD extends javax.swing.JFrame implements MSDListener{
     private ResourceBundle resource;
     /** The manager MSD of the system */
     private MSDManager msdmanager=null;
+    /** The journal of the cache, or null */
+    private CacheJournal journal=null;
 
     /** Start the browser.
      * @param args Command line arguments. */
@@ -74,7 +76,15 @@ public class BrowserSD extends javax.swing.JFrame implements MSDListener{
         try{
             cache=new Cache(""+id);
             String cacheFile=BrowserProperties.cache;
-            if(cacheFile==null||cacheFile.length()==0){
+            String journalFile=BrowserProperties.journal;
+            boolean restored=false;
+            if(journalFile!=null&&journalFile.length()>0){
+                journal=new CacheJournal(journalFile);
+                restored=journal.open(cache);
+            }
+            if(restored){
+                logger.info("Cache restored from "+journalFile);
+            } else if(cacheFile==null||cacheFile.length()==0){
                 cache.load(new ByteArrayInputStream(BrowserProperties.cachexml.
                         getBytes()));
             } else{
@@ -167,10 +177,10 @@ public class BrowserSD extends javax.swing.JFrame implements MSDListener{
 
     /** @param cache Show the cache and store in a file */
     private void updateCache(Cache cache){
-        String cachestr=null;
-        // log the cache
-        cachestr=cache.toString();
-        logger.debug("Using cache: "+cachestr);
+        // log the cache: writing it is expensive, only if it is logged
+        if(logger2.isDebugEnabled()){ //@@l
+            logger2.debug("Using cache: "+cache.toString()); //@@l
+        } //@@l
 
         setTitle("MSD: "+cache.getID());
 
@@ -191,11 +201,8 @@ public class BrowserSD extends javax.swing.JFrame implements MSDListener{
             try{
                 // Transform to HTML code before showing
                 ByteArrayOutputStream out=new ByteArrayOutputStream();
-                ByteArrayInputStream c2=new ByteArrayInputStream(cachestr.
-                        getBytes());
-                FileInputStream filexsl=new FileInputStream(resource.getString(
-                        "cache2html"));
-                XMLTools.transformXML(c2,filexsl,out);
+                XMLTools.transformCache(cache,resource.getString("cache2html"),
+                                        out);
                 html.setText(out.toString());
             } catch(Exception ex){
                 logger.error("View not created: "+ex.toString());
@@ -227,6 +234,9 @@ public class BrowserSD extends javax.swing.JFrame implements MSDListener{
         if(msdmanager!=null){
             msdmanager.finish();
         }
+        if(journal!=null){
+            journal.close();
+        }
     }
 
 }
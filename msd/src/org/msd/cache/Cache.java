@@ -4,10 +4,12 @@ package org.msd.cache;
 
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.PushbackInputStream;
 import org.w3c.dom.*;
 import java.util.Collection;
+import java.util.Hashtable;
+import java.util.LinkedHashSet;
 import java.util.Vector;
-import javax.xml.parsers.*;
 import org.apache.log4j.Level; //@@l
 import org.apache.log4j.Logger; //@@l
 
@@ -31,19 +33,75 @@ public class Cache{
      * extremely verbose. Set this level independly of the default level
      * of the whole system */
     public final static Level LOGLEVEL=(Level)Level.INFO; //@@l
-    /** DOM document storing the cache XML */
-    private Document doc;
-    /** Root node inside the document. Corresponds to doc.getFirstChild() */
-    private org.w3c.dom.Element rootNode;
+    /** Mode of the cache: complete, update or summary. Read the DTD. */
+    private String mode="complete";
     /** Identifier of the next element which will be created */
     private long idNext;
     /** Cache's identifier */
     private String idCache;
-    /** XML document builder */
-    private static DocumentBuilder db=null;
-    /** vector storing the childs of the cache */
-//    private Vector<Element> childs;   //@@1.5
-    private Vector childs; //@@1.4
+    /** set storing the childs of the cache, in order of insertion */
+//    private LinkedHashSet<Element> childs=new LinkedHashSet<Element>();   //@@1.5
+    private LinkedHashSet childs=new LinkedHashSet(); //@@1.4
+    /** Names and short values shared by the elements of the cache */
+    final Symbols symbols=new Symbols();
+    /** Secondary indexes of the childs of the cache */
+    private CacheIndex index=new CacheIndex();
+    /** The last snapshot of the childs and indexes published for readers */
+    private volatile CacheSnapshot snapshot=CacheSnapshot.EMPTY;
+    /** If the cache changed after the last snapshot. The next reader
+     * publishes a new one. */
+    private volatile boolean stale=false;
+    /** Number of nested writes in progress. Use with the lock of the cache */
+    private int writing=0;
+    /** Number of slots of the expiration wheel */
+    public static final int WHEEL_SIZE=512;
+    /** Seconds covered by each slot of the expiration wheel */
+    public static final int WHEEL_RESOLUTION=1;
+    /** Expiration times of the elements with a lifetime. Created when
+     * the first lifetime is set. */
+    private ExpirationWheel wheel=null;
+    /** Listeners of the cache */
+    private Vector listeners=new Vector();
+    /** Events to send to the listeners after the current write */
+    private Vector events=new Vector();
+    /** If the subscriptions must be updated after the current write */
+    private boolean updated=false;
+    /** Lock held while informing the listeners and subscriptions, so they
+     * receive the changes in order */
+    private final Object firing=new Object();
+    /** Number of changes remembered by the change log */
+    public static final int CHANGELOG_SIZE=512;
+    /** Version and last changes of the cache */
+    private ChangeLog log=new ChangeLog(CHANGELOG_SIZE);
+    /** In update mode, identifiers {idcache,id} of the elements removed
+     * from the original cache */
+    private Vector removed=new Vector();
+    /** In summary mode, the digest of the original cache */
+    private CacheDigest digest=null;
+    /** Digests of the summaries joined. Key: idcache. Object: CacheDigest */
+    private Hashtable summaries=new Hashtable();
+    /** The journal saving the changes of the cache, or null */
+    private CacheJournal journal=null;
+    /** Subscriptions to the elements of the cache */
+    private Vector subscriptions=new Vector();
+    /** Maximum number of childs of the cache, or 0 for no limit */
+    private int maxElements=0;
+    /** Maximum estimated bytes of the childs of the cache, or 0 for no
+     * limit */
+    private long maxBytes=0;
+    /** Estimated bytes of the childs of the cache */
+    private long bytes=0;
+    /** Number of elements evicted since the cache was created */
+    private long evictions=0;
+    /** Identifiers of the elements never evicted. Key and object:
+     * idcache+"\n"+id */
+    private Hashtable pinned=new Hashtable();
+    /** Weights of the eviction score: a point of confidence or a hop are
+     * worth these seconds without accesses. See score() */
+    public static final int CONFIDENCE_WEIGHT=60,HOPS_WEIGHT=60;
+    /** Percentage of the capacity the cache is left with after evicting:
+     * the elements are scored and sorted once for many insertions */
+    public static final int EVICT_LOW=90;
 
     /** Name of the cache for XML */
     public static final String CACHE_NAME="cache";
@@ -64,6 +122,17 @@ public class Cache{
     /** Name of 'mode' attribute.
      * The meaning of this attribute depends of the mode. Read the DTD. */
     public static final String MODE_NAME="mode";
+    /** Name of 'version' attribute of the cache. */
+    public static final String VERSION_NAME="version";
+    /** Name of 'digest' attribute of the cache, in summary mode */
+    public static final String DIGEST_NAME="digest";
+    /** Name of the nodes of removed elements in update mode */
+    public static final String REMOVED_NAME="removed";
+    /** Name of the XML encoding of caches */
+    public static final String ENCODING_XML="xml";
+    /** Name of the binary encoding of caches
+     * @see CacheCodec */
+    public static final String ENCODING_BINARY="binary";
 
     /** Construct a new cache.
      * The identifier is set to '' (empty string).
@@ -95,17 +164,8 @@ public class Cache{
             idNext=(long)(1000*Math.random());
         }
         logger.debug("ID seed set to: "+idNext); //@@l
-
-        // Create a new XML document builder. This classes could throw exceptions
-        if(db==null){
-            DocumentBuilderFactory dbf=DocumentBuilderFactory.newInstance();
-            db=dbf.newDocumentBuilder();
-        }
         // Clean the cache
         reset();
-
-        // set the complete mode
-        rootNode.setAttribute(MODE_NAME,"complete");
     }
 
     /** @return Collection of elements that descend from this cache. */
@@ -132,10 +192,28 @@ public class Cache{
      * @param id The identifier of the element in the cache
      * @return The element idenfied by (idcache-id) or null */
     public Element getElement(String idcache,String id){
-        Element e=new Service(this,false);
-        e.setIDCache(idcache);
-        e.setID(id);
-        Collection c=getElements(e,getChilds());
+        if(inWrite()){
+            return touch(getElement(index,idcache,id));
+        }
+        return touch(getElement(getSnapshot().index,idcache,id));
+    }
+
+    /** Returns an element from the current indexes, not from the snapshot:
+     * use this method inside writes. Use with the lock of the cache.
+     * @return The element idenfied by (idcache-id) or null */
+    Element getCurrentElement(String idcache,String id){
+        return getElement(index,idcache,id);
+    }
+
+    /** @return The current childs of the cache, not the ones of the
+     * snapshot. Use with the lock of the cache. */
+    Object[] getCurrentChilds(){
+        return childs.toArray();
+    }
+
+    /** @return The element idenfied by (idcache-id) in the indexes, or null */
+    private Element getElement(CacheIndex index,String idcache,String id){
+        Collection c=index.getByID(idcache,id);
         if(c.size()>1){
             logger.warn("There is more than one element with ("+idcache+","+id+ //@@l
                         ")"); //@@l
@@ -159,23 +237,63 @@ public class Cache{
      * @param col Collection of elements to try matching. The normal usage
      * is getElements(template,getChilds()): it will search in the childs of
      * the cache, i.e., services. You can also chain this method and
-     * getElementNot.
+     * getElementNot. If col are the childs of the cache, only the candidates
+     * from the indexes are tested.
      * @return A collection of elements matching the template.
      */
     //    public Collection<Element> getElements(Element template,Collection<Element> col){ //@@1.5
     public Collection getElements(Element template,Collection col){
+        return getElements(ElementMatcher.compile(template),col);
+    }
+
+    /** @param m A compiled template to look for in the cache
+     * @return A collection with the elements in the cache matching m */
+    //    public Collection<Element> getElements(ElementMatcher m){ //@@1.5
+    public Collection getElements(ElementMatcher m){ //@@1.4
+        return getElements(m,getDescendants());
+    }
+
+    /** Return a collection of elements matching a compiled template.
+     * Use this method instead of getElements(Element,Collection) if the same
+     * template is looked for several times.
+     * @param m Compiled template to use.
+     * @param col Collection of elements to try matching. If col are the
+     * childs of the cache, only the candidates from the indexes are tested.
+     * @return A collection of elements matching the template.
+     */
+    //    public Collection<Element> getElements(ElementMatcher m,Collection<Element> col){ //@@1.5
+    public Collection getElements(ElementMatcher m,Collection col){
 //        Collection<Element> coinciden=new Vector<Element>();  //@@1.5
         Collection coinciden=new Vector(); //@@1.4
-        Object o[]=col.toArray();
+        Object o[];
+        CacheIndex idx=CacheSnapshot.indexOf(col);
+        if(idx!=null){
+            o=idx.getCandidates(m).toArray();
+        } else{
+            o=col.toArray();
+        }
         for(int i=0;i<o.length;i++){
             Element el=(Element)o[i];
-            if(el.match(template)){
-                coinciden.add(el);
+            if(m.matches(el)){
+                coinciden.add(idx!=null?touch(el):el);
             }
         }
         return coinciden;
     }
 
+    /** Executes a query over the childs of the cache.
+     * @param q The query
+     * @return A collection with the results, in the order of the query
+     * @see CacheQuery */
+//    public Collection<Element> query(CacheQuery q){ //@@1.5
+    public Collection query(CacheQuery q){ //@@1.4
+        Collection c=q.execute(this);
+        for(java.util.Iterator i=c.iterator();i.hasNext();){
+            touch((Element)i.next());
+        }
+        return c;
+    }
+
     /** @param template Template to NOT look for in the cache.
      * @return A collection with the elements not matching the template.
      */
@@ -193,10 +311,11 @@ public class Cache{
     public Collection getElementsNot(Element template,Collection col){
 //        Collection<Element> coinciden=new Vector<Element>();  //@@1.5
         Collection coinciden=new Vector(); //@@1.4
+        ElementMatcher m=ElementMatcher.compile(template);
         Object o[]=col.toArray();
         for(int i=0;i<o.length;i++){
             Element el=(Element)o[i];
-            if(!el.match(template)){
+            if(!m.matches(el)){
                 coinciden.add(el);
             }
         }
@@ -213,7 +332,7 @@ public class Cache{
      * @throws java.lang.Exception If any error occurs */
     public void save(OutputStream out) throws Exception{
         // We save with XMLTools
-        XMLTools.saveDOMToStream(rootNode,out);
+        XMLTools.saveCacheToStream(this,out);
     }
 
     /** Load a cache from the stream.
@@ -221,69 +340,98 @@ public class Cache{
      * a well defined complete cache. In other case the cache will be
      * corrupted. The identifier of the cache is loaded
      * from source. This method equals reset(); uptade(out);
+     *
+     * The elements are joined while the stream is read, without loading
+     * the whole stream in memory. The stream is not closed. The cache can
+     * be in XML or binary encoding.
      * @param in The input stream to read the cache from
      * @throws java.lang.Exception If any error occurs */
     public void load(InputStream in) throws Exception{
         logger.debug("Loading cache from stream"); //@@l
-        // reset the cache
-        reset();
-        org.w3c.dom.Document d=getDocFromStream(in);
-        String newID=((org.w3c.dom.Element)d.getFirstChild()).getAttribute(
-                IDCACHE_NAME);
-        if(newID==null){
-            throw new Exception("Document doesn't contain an idcache attribute");
-        }
-        // update it
-        join(d);
-        setID(newID);
+        read(in,CacheParser.LOAD);
     }
 
     /** Join a cache in a stream with this.
      * The stream should contains a properly defined cache. If not,
      * this cache can be corrupted.
+     *
+     * The elements are joined while the stream is read, without loading
+     * the whole stream in memory. The stream is not closed. The cache can
+     * be in XML or binary encoding.
      * @param in The input stream to read the cache from
      * @throws java.lang.Exception If any error occurs */
     public void update(InputStream in) throws Exception{
         logger.debug("Loading cache from stream"); //@@l
         // join the new cache
-        join(getDocFromStream(in));
+        read(in,CacheParser.UPDATE);
     }
 
-    /** @param in A input stream to read
-     * @return A DOM object readed from stream
-     * @throws java.lang.Exception If any error occrus during reading. */
-    private org.w3c.dom.Document getDocFromStream(InputStream in) throws
-            Exception{
-        // Save the cache in a byte array. It seems the parse method is not able
-        // to block for new bytes in caches loaded from networks, so we should
-        // use this runaround.
-        byte[] newCache=XMLTools.toByteArray(in);
-        //logger.debug("Received cache: "+new String(newCache)); //@@l
-        // Parse the document
-        Document newDoc=db.parse(new java.io.ByteArrayInputStream(newCache));
-
-        // Take info from cache
-        org.w3c.dom.Element newRootNode=(org.w3c.dom.Element)newDoc.
-                                        getFirstChild();
-        if(!newRootNode.getNodeName().equals(Cache.CACHE_NAME)){
-            throw new Exception("Doesn't seem a cache at all");
-        }
-        String newIDCache=newRootNode.getAttribute(Cache.IDCACHE_NAME);
-        if(newIDCache==null||newIDCache.length()==0){
-            throw new Exception("Doesn't seem a cache: wrong cache id");
+    /** Reads a cache from a stream, guessing its encoding from the first
+     * byte.
+     * @param in The input stream to read the cache from
+     * @param mode CacheParser.LOAD or CacheParser.UPDATE
+     * @throws java.lang.Exception If any error occurs */
+    private void read(InputStream in,int mode) throws Exception{
+        try{
+            synchronized(this){
+                beginWrite();
+                try{
+                    PushbackInputStream p=new PushbackInputStream(in,1);
+                    int b=p.read();
+                    if(b<0){
+                        throw new Exception("Empty cache");
+                    }
+                    p.unread(b);
+                    if(b==CacheCodec.MAGIC){
+                        CacheCodec.decode(this,p,mode);
+                    } else{
+                        CacheParser.parse(this,p,mode);
+                    }
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
         }
-
-        return newDoc;
     }
 
-    /** Equivalente to join(c.getDocument());
-     * @param c Join cache c to this one.
-     * @throws java.lang.Ex */
+    /** Join a cache to this one.
+     * If a cache with the same identifier was joined before, and the
+     * new cache is mode=complete, removes the services from
+     * previously cache. Do nothing if the new cache is a summary.
+     * The elements of c are cloned before joining.
+     * @param c Join cache c to this one. */
     public void join(Cache c){
         try{
-            join(c.getDocument());
-        } catch(Exception e){
-            logger.warn("Error while joining cache: "+e); //@@l
+            synchronized(this){
+                beginWrite();
+                try{
+                    Object o[]=c.getChilds().toArray();
+                    if("summary".equals(c.getMode())){
+                        joinSummary(c.getID(),c.getDigest());
+                    }
+                    if(!prepareJoin(c.getID(),c.getMode())){
+                        return;
+                    }
+                    // remove the elements removed from the cache, if update mode
+                    Object r[]=c.getRemoved().toArray();
+                    for(int i=0;i<r.length;i++){
+                        String[] ids=(String[])r[i];
+                        deleteRemoved(ids[0],ids[1]);
+                    }
+                    // join elements one by one
+                    for(int i=0;i<o.length;i++){
+                        addElement((Element)o[i]);
+                    }
+                } catch(Exception e){
+                    logger.warn("Error while joining cache: "+e); //@@l
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
         }
     }
 
@@ -293,86 +441,189 @@ public class Cache{
      * previously cache. Do nothing if the new cache is a summary.
      * @param newDoc Document representing the cache to be joined
      * @throws Exception If the document does not describe a cache. */
-    public void join(org.w3c.dom.Document newDoc) throws Exception{
-        // take info from elements
-        org.w3c.dom.Element newRootNode=(org.w3c.dom.Element)newDoc.
-                                        getFirstChild();
-        Vector newChilds=new Vector();
-        org.w3c.dom.Element node;
-        node=(org.w3c.dom.Element)newRootNode.getFirstChild();
-
-        // take the identifier of the input cache
-        String newID=newRootNode.getAttribute(IDCACHE_NAME);
-        if(newID==null||newID.length()==0){
-            logger.warn("IDCache is empty!"); //@@l
-        }
-        // take the mode of the input cache
-        String mode=newRootNode.getAttribute(MODE_NAME);
-        if(mode.length()==0||mode==null){
-            mode="complete";
-        }
-        logger.info("Joining cache "+newID+" mode "+mode); //@@l
-        // if mode is 'summary', return
-        if(mode.equals("summary")){
-            logger.warn("Ignoring the summary: cache not joinable"); //@@l
-            return;
+    public void join(org.w3c.dom.Document newDoc) throws
+            Exception{
+        try{
+            synchronized(this){
+                beginWrite();
+                try{
+                    // take info from elements
+                    org.w3c.dom.Element newRootNode=(org.w3c.dom.Element)newDoc.
+                                                    getFirstChild();
+                    if(!prepareJoin(newRootNode.getAttribute(IDCACHE_NAME),
+                                    newRootNode.getAttribute(MODE_NAME))){
+                        return;
+                    }
+
+                    // join elements one by one
+                    org.w3c.dom.Element node;
+                    node=(org.w3c.dom.Element)newRootNode.getFirstChild();
+                    while(node!=null){
+                        addElement(createElementFromDOM(node));
+                        node=(org.w3c.dom.Element)node.getNextSibling();
+                    }
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
         }
-        // if mode is 'complete', remove every element of the local cache
-        // with idcache==idremotecache
-        if(mode==null||mode.equals("complete")){
-            deleteElementsFromCache(newID);
+    }
+
+    /** Prepares the cache to join the elements of other cache.
+     * @param newID The identifier of the cache to join
+     * @param mode The mode of the cache to join
+     * @return If the elements of the cache must be joined */
+    synchronized boolean prepareJoin(String newID,String mode){
+        beginWrite();
+        try{
+            if(newID==null||newID.length()==0){
+                logger.warn("IDCache is empty!"); //@@l
+            }
+            // take the mode of the input cache
+            if(mode==null||mode.length()==0){
+                mode="complete";
+            }
+            logger.info("Joining cache "+newID+" mode "+mode); //@@l
+            // if mode is 'summary', there are no elements to join: just
+            // the digest, joined with joinSummary()
+            if(mode.equals("summary")){
+                logger.debug("Summary: no elements to join"); //@@l
+                return false;
+            }
+            // if mode is 'complete', remove every element of the local cache
+            // with idcache==idremotecache
+            if(mode.equals("complete")){
+                deleteElementsFromCache(newID);
+            }
+            // if the mode is 'update', just join the services
+            // (this overwrites the ones previosly defined)
+            return true;
+        } finally{
+            endWrite();
+        }
+    }
+
+    /** Joins the digest of a cache in summary mode. Summaries have no
+     * elements to join: the digest is remembered to be asked with
+     * getSummary().
+     * @param idcache The identifier of the cache summarized
+     * @param d The digest. If null, do nothing. */
+    public void joinSummary(String idcache,CacheDigest d){
+        if(idcache==null||d==null){
+            return;
         }
-        // if the mode is 'update', just join the services
-        // (this overwrites the ones previosly defined)
+        logger.debug("Joining the summary of "+idcache); //@@l
+        summaries.put(idcache,d);
+    }
 
-        // join elements one by one
-        while(node!=null){
-            addElement(createElementFromDOM(node));
-            node=(org.w3c.dom.Element)node.getNextSibling();
+    /** Reads the digest of a cache in summary mode.
+     * @param idcache The identifier of the cache summarized
+     * @param d The digest
+     * @param load If the cache is being loaded: this cache becomes the
+     * summary. Else, the summary is joined. */
+    void readSummary(String idcache,CacheDigest d,boolean load){
+        if(load){
+            setMode("summary");
+            setDigest(d);
+        } else{
+            joinSummary(idcache,d);
         }
     }
 
+    /** @param idcache The identifier of a cache
+     * @return The digest of the last summary joined from this cache, or null */
+    public CacheDigest getSummary(String idcache){
+        return(CacheDigest)summaries.get(idcache);
+    }
+
     /** @param newID Delete elements from or gatewayed by this cache identifier */
     public void deleteElementsFromCache(String newID){
-        Service s=new Service(this,false);
-        s.setIDCache(newID);
-        Object[] o=getElements(s,getChilds()).toArray();
-        logger.debug("Deleting "+o.length+" elements out-of-date idcache="+ //@@l
-                     newID); //@@l
-        for(int i=0;i<o.length;i++){
-            deleteElement((Element)o[i]);
+        synchronized(this){
+            beginWrite();
+            try{
+                Service s=new Service(this,false);
+                s.setIDCache(newID);
+                Object[] o=getElements(s,index.getByIDCache(newID)).toArray();
+                logger.debug("Deleting "+o.length+" elements out-of-date idcache="+ //@@l
+                             newID); //@@l
+                for(int i=0;i<o.length;i++){
+                    deleteElement((Element)o[i]);
+                }
+                s.setIDCache("");
+                s.setGateway(newID);
+                o=getElements(s,index.getByGateway(newID)).toArray();
+                logger.debug("Deleting "+o.length+" elements out-of-date gateway="+ //@@l
+                             newID); //@@l
+                for(int i=0;i<o.length;i++){
+                    deleteElement((Element)o[i]);
+                }
+            } finally{
+                endWrite();
+            }
         }
-        s.setIDCache("");
-        s.setGateway(newID);
-        o=getElements(s,getChilds()).toArray();
-        logger.debug("Deleting "+o.length+" elements out-of-date gateway="+ //@@l
-                     newID); //@@l
-        for(int i=0;i<o.length;i++){
-            deleteElement((Element)o[i]);
+        fire();
+    }
+
+    /** Removes an element removed from its original cache.
+     * The elements created by this cache are never removed.
+     * @param idcache Identifier of the cache of the element
+     * @param id Identifier of the element */
+    synchronized void deleteRemoved(String idcache,String id){
+        beginWrite();
+        try{
+            if(idcache==null||idcache.equals(getID())){
+                return;
+            }
+            deleteElement(getElement(index,idcache,id));
+        } finally{
+            endWrite();
         }
     }
 
     /** @param e Removes element from the cache. If null, do nothing. */
     public void deleteElement(Element e){
+        removeElement(e,CacheListener.REMOVED);
+    }
+
+    /** Removes an element from the cache.
+     * @param e The element. If null, do nothing.
+     * @param code The cause to inform the listeners, as in CacheListener */
+    private void removeElement(Element e,int code){
         if(e==null){
             return;
         }
-        logger.debug("Removing element with ID: "+e.getID()); //@@l
-        // First remove every child
+        synchronized(this){
+            beginWrite();
+            try{
+                logger.debug("Removing element with ID: "+e.getID()); //@@l
+                // First remove every child
 //        for(Element h:e.getChilds()) deleteElement(h);          //@@1.5
-        Object o[]=e.getChilds().toArray(); //@@1.4
-        for(int i=0;i<o.length;i++){ //@@1.4
-            deleteElement((Element)o[i]); //@@1.4
-        } //@@1.4
+                Object o[]=e.getChilds().toArray(); //@@1.4
+                for(int i=0;i<o.length;i++){ //@@1.4
+                    deleteElement((Element)o[i]); //@@1.4
+                } //@@1.4
 
-        // remove from XML structure
-        org.w3c.dom.Node delnode=e.getElementDOM();
-        Node parent=delnode.getParentNode();
-        if(parent!=null){
-            parent.removeChild(delnode);
+                // remove from childs set and indexes
+                String[] ids=index.getIDs(e);
+                childs.remove(e);
+                index.remove(e);
+                if(ids!=null){
+                    log.add(ids[0],ids[1]);
+                    bytes-=e.weight;
+                    if(wheel!=null){
+                        wheel.cancel(e);
+                    }
+                    if(!listeners.isEmpty()){
+                        events.add(new CacheEvent(this,e,code));
+                    }
+                }
+            } finally{
+                endWrite();
+            }
         }
-        // remove from childs vector
-        childs.remove(e);
+        fire();
     }
 
     /** Create an element from XML source.
@@ -382,13 +633,58 @@ public class Cache{
      * @return The element created from XML
      * @throws java.lang.Exception exception if the string is not well formed XML*/
     public Element createElementFromXML(String xml) throws Exception{
-        Document doc2=db.parse(new java.io.ByteArrayInputStream(xml.getBytes()));
-        if(doc2==null||doc2.getFirstChild()==null){
-            throw new Exception("XML not valid: "+xml);
+        try{
+            return CacheParser.parseElement(this,
+                    new java.io.ByteArrayInputStream(xml.getBytes()));
+        } catch(org.xml.sax.SAXException e){
+            throw new Exception("XML not valid: "+xml+": "+e.getMessage());
+        }
+    }
+
+    /** Create an empty element of a type, not joined to the cache.
+     * @param type Type of the element, as returned by Element.getType()
+     * @return A new element of this type
+     * @throws java.lang.Exception If the type is unknown */
+    public Element createElement(int type) throws Exception{
+        switch(type){
+        case Element.NETWORK:
+            return new Network(this,false);
+        case Element.PROXY:
+            return new Proxy(this,false);
+        case Element.SERVICE:
+            return new Service(this,false);
+        case Element.CLASSTYPE:
+            return new ClassType(this,false);
+        case Element.USER:
+            return new User(this,false);
+        default:
+            throw new Exception("Unknown type element: "+type);
+        }
+    }
+
+    /** Guess the type of an element from its XML.
+     * @param nodeName The name of the XML node
+     * @param typeAttr The value of the type attribute, or null
+     * @return The type of the element, Element.ELEMENT if unknown */
+    static int getType(String nodeName,String typeAttr){
+        try{
+            // take the type of element
+            return Integer.valueOf(typeAttr).intValue();
+        } catch(Exception e){
+            // we can not guess the type: try the name. It is not recommended, but...
+            if(nodeName.equals("classtype")){
+                return Element.CLASSTYPE;
+            } else if(nodeName.equals("service")){
+                return Element.SERVICE;
+            } else if(nodeName.equals("proxy")){
+                return Element.PROXY;
+            } else if(nodeName.equals("user")){
+                return Element.USER;
+            } else if(nodeName.equals("network")){
+                return Element.NETWORK;
+            }
+            return Element.ELEMENT;
         }
-        org.w3c.dom.Element e=(org.w3c.dom.Element)doc2.getFirstChild();
-        Element e2=createElementFromDOM(e);
-        return e2;
     }
 
     /** Create an element from a DOM node.
@@ -400,64 +696,20 @@ public class Cache{
             Exception{
 
         // Create the elemente from its type or name.
-        int tipo=Element.ELEMENT;
+        int tipo=getType(node.getNodeName(),node.getAttribute(Cache.TYPE_NAME));
+        Element elem;
         try{
-            // take the type of element
-            tipo=Integer.valueOf(node.getAttribute(Cache.TYPE_NAME)).intValue();
+            elem=createElement(tipo);
         } catch(Exception e){
-            // we can not guess the type: try the name. It is not recommended, but...
-            String name=node.getNodeName();
-            if(name.equals("classtype")){
-                tipo=Element.CLASSTYPE;
-            } else if(name.equals("service")){
-                tipo=Element.SERVICE;
-            } else if(name.equals("proxy")){
-                tipo=Element.PROXY;
-            } else if(name.equals("user")){
-                tipo=Element.USER;
-            } else if(name.equals("network")){
-                tipo=Element.NETWORK;
-            }
-        }
-        Element elem;
-        switch(tipo){
-        case Element.NETWORK:
-            elem=new Network(this,false);
-            break;
-        case Element.PROXY:
-            elem=new Proxy(this,false);
-            break;
-        case Element.SERVICE:
-            elem=new Service(this,false);
-            break;
-        case Element.CLASSTYPE:
-            elem=new ClassType(this,false);
-            break;
-        case Element.USER:
-            elem=new User(this,false);
-            break;
-        default:
-            throw new Exception("Unknown type element: "+tipo+" ("+
-                                node.getNodeName()+")");
+            throw new Exception(e.getMessage()+" ("+node.getNodeName()+")");
         }
         // Here we have a new element in elem, or an exception was thrown.
 
-        // copy attributes to the node (including id)
+        // copy XML attributes to the element (including id, idcache and name)
         NamedNodeMap nnm=node.getAttributes();
-        org.w3c.dom.Element node2=elem.getElementDOM();
         for(int i=0;i<nnm.getLength();i++){
             Node n=nnm.item(i);
-            node2.setAttribute(n.getNodeName(),n.getNodeValue());
-        }
-        // if element defines an idcache, set it.
-        String idCache=node2.getAttribute(Cache.IDCACHE_NAME);
-        if(idCache!=null&&idCache.length()>0){
-            elem.setIDCache(idCache);
-        }
-        // if element defines a name, set it
-        String name=node2.getAttribute(Cache.NAME_NAME);
-        if(name!=null&&name.length()>0){
-            elem.setName(name);
+            elem.setProperty(n.getNodeName(),n.getNodeValue());
         }
 
         // take the rest of childs
@@ -483,30 +735,53 @@ public class Cache{
      *  before adding the new childs. */
 //    public void setElements(Collection<Element> elements){    //@@1.5
     public void setElements(Collection elements){ //@@1.4
-        reset();
-        Object o[]=elements.toArray();
-        for(int i=0;i<o.length;i++){
-            Element e=(Element)o[i];
-            // We join a clon of the element, not the original one.
-            addElement((Element)e.clone(this));
+        synchronized(this){
+            beginWrite();
+            try{
+                reset();
+                Object o[]=elements.toArray();
+                for(int i=0;i<o.length;i++){
+                    Element e=(Element)o[i];
+                    // We join a clon of the element, not the original one.
+                    addElement((Element)e.clone(this));
+                }
+            } finally{
+                endWrite();
+            }
         }
+        fire();
     }
 
     /** Remove every child from this cache. */
-    public synchronized void reset(){
-        logger.debug("Reset on cache"); //@@l
-        // Create a new Xml document
-        doc=db.newDocument();
-        // Create a new root node
-        rootNode=doc.createElement(CACHE_NAME);
-        rootNode.setAttribute(IDCACHE_NAME,idCache);
-//        rootNode.setIdAttribute("id",true); //@@1.5
-        doc.appendChild(rootNode);
-        // decimos que no tenemos hijos
-        childs=new Vector(); //@@1.4
-//	childs=new Vector<Element>();                     //@@1.5
+    public void reset(){
+        synchronized(this){
+            beginWrite();
+            try{
+                logger.debug("Reset on cache"); //@@l
+                if(!listeners.isEmpty()){
+                    Object o[]=childs.toArray();
+                    for(int i=0;i<o.length;i++){
+                        events.add(new CacheEvent(this,(Element)o[i],
+                                                  CacheListener.REMOVED));
+                    }
+                }
+                if(wheel!=null){
+                    wheel.clear();
+                }
+                // decimos que no tenemos hijos
+                childs=new LinkedHashSet(); //@@1.4
+//	childs=new LinkedHashSet<Element>();              //@@1.5
+                index.clear();
+                log.clear();
+                removed.clear();
+                bytes=0;
 //	elementsByIDs=new Hashtable<String,Element>();    //@@1.5
-        // We will continue use the old seed for new identifiers
+                // We will continue use the old seed for new identifiers
+            } finally{
+                endWrite();
+            }
+        }
+        fire();
     }
 
     /** @param e Add this element to the cache. If the element has nor idcache
@@ -514,24 +789,141 @@ public class Cache{
      * with this cache, makes a clone before joining. If the elements was
      * yet joined, remove it. */
     public void addElement(Element e){
-        logger.debug("Adding element: "+e); //@@l
-        Element e2=e;
-        if(e.getElementDOM().getOwnerDocument()!=getDocument()){
-            logger.debug("Cloning element before joining"); //@@l
-            e2=(Element)e.clone(this);
+        synchronized(this){
+            beginWrite();
+            try{
+                logger.debug("Adding element: "+e); //@@l
+                Element e2=e;
+                if(e.getCache()!=this){
+                    logger.debug("Cloning element before joining"); //@@l
+                    e2=(Element)e.clone(this);
+                }
+                if(e2.getID()==null||e2.getIDCache()==null){
+                    e2.setIDCache(getID());
+                    e2.setID(getNewID());
+                }else{
+                    deleteElement(getElement(index,e.getIDCache(),e.getID()));
+                    keepSeed(e2);
+                }
+                // add the child to our structure and indexes
+                childs.add(e2);
+                index.add(e2);
+                e2.weight=e2.estimateSize();
+                e2.accessed=System.currentTimeMillis();
+                bytes+=e2.weight;
+                log.add(e2.getIDCache(),e2.getID());
+
+                childAppended(e2);
+            } finally{
+                endWrite();
+            }
+        }
+        fire();
+    }
+
+    /** Keeps the seed of the identifiers above the identifier of an element
+     * created by this cache, as the ones restored from a journal. */
+    private void keepSeed(Element e){
+        if(!getID().equals(e.getIDCache())){
+            return;
+        }
+        try{
+            long id=Long.parseLong(e.getID());
+            if(id>=idNext){
+                idNext=id+1;
+            }
+        } catch(NumberFormatException ex){
+            // not a number: it can not be a new identifier
+        }
+    }
+
+    /** Updates the indexes of an element after its identifiers, name or
+     * gateway changed. Elements call this method when they are joined.
+     * @param e The element whose keys have changed. */
+    void reindex(Element e){
+        try{
+            synchronized(this){
+                beginWrite();
+                try{
+                    String[] ids=index.getIDs(e);
+                    if(ids==null){
+                        elementChanged(e);
+                        return;
+                    }
+                    index.update(e);
+                    log.add(ids[0],ids[1]);
+                    log.add(e.getIDCache(),e.getID());
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
         }
-        if(e2.getID()==null||e2.getIDCache()==null){
-            e2.setIDCache(getID());
-            e2.setID(getNewID());
-        }else{
-            deleteElement(getElement(e.getIDCache(),e.getID()));
+    }
+
+    /** Updates the version of the cache after an element changed, as a
+     * write: the change is journaled and the subscriptions informed.
+     * Elements call this method when they are joined.
+     * @param e The changed element, or one of its descendants. */
+    void elementChanged(Element e){
+        synchronized(this){
+            Element root=e.getRoot();
+            if(!index.contains(root)){
+                return;
+            }
+            beginWrite();
+            try{
+                log.add(root.getIDCache(),root.getID());
+            } finally{
+                endWrite();
+            }
         }
-        // add the child to our structure...
-        childs.add(e2);
-        // ... and XML's
-        rootNode.appendChild(e2.getElementDOM());
+        fire();
+    }
+
+    /** Returns the version of the cache. The version changes every time an
+     * element is added, removed or changed. If this cache was read from
+     * other one, the version of the original cache.
+     * @return The version as a string: epoch/number */
+    public String getVersion(){
+        return log.getVersion();
+    }
+
+    /** Sets the version of the cache. Use this method when the cache is a
+     * copy or a filter of other cache to send, in order to remember the
+     * version of the original cache.
+     * @param version A version returned by getVersion()
+     * @throws IllegalArgumentException If the version is not valid */
+    public void setVersion(String version){
+        log.setVersion(version);
+    }
+
+    /** Returns the elements changed since a version of this cache.
+     * @param version A version returned by getVersion() in the past.
+     * @return A collection of String[]{idcache,id} with the identifiers of
+     * the elements added, removed or changed since this version. Elements
+     * still in the cache can be taken with getElement(). Null if the
+     * changes since version are not known: the whole cache must be used
+     * instead.*/
+//    public Collection<String[]> getChanges(String version){ //@@1.5
+    public Collection getChanges(String version){ //@@1.4
+        return log.since(version);
+    }
+
+    /** In update mode, returns the elements removed from the original cache.
+     * @return A collection of String[]{idcache,id}. Do not modify. */
+//    public Collection<String[]> getRemoved(){ //@@1.5
+    public Collection getRemoved(){ //@@1.4
+        return removed;
+    }
 
-        childAppended(e2);
+    /** In update mode, marks an element as removed from the original cache.
+     * The element will be removed from the caches joining this one.
+     * @param idcache Identifier of the cache of the element
+     * @param id Identifier of the element */
+    public void addRemoved(String idcache,String id){
+        removed.add(new String[]{idcache,id});
     }
 
     /** @param child Say to the cache a new child has been appended.
@@ -547,17 +939,425 @@ public class Cache{
         }
     }
 
-    /** @return The document storing the cache. */
+    /** Returns a DOM document describing the cache.
+     * The cache is not stored as DOM: the document returned is a copy,
+     * and changes in the document are not seen in the cache.
+     * @return The document, or null if it can not be created. */
     public org.w3c.dom.Document getDocument(){
-        return doc;
+        try{
+            return XMLTools.toDOM(this);
+        } catch(Exception e){
+            logger.warn("Error creating DOM: "+e); //@@l
+            return null;
+        }
+    }
+
+    /** @return The mode of the cache: complete, update or summary */
+    public String getMode(){
+        return mode;
+    }
+
+    /** @param mode The mode of the cache: complete, update or summary.
+     * Read the DTD. */
+    public void setMode(String mode){
+        this.mode=mode;
+    }
+
+    /** @return In summary mode, the digest of the original cache. Else, null */
+    public CacheDigest getDigest(){
+        return digest;
+    }
+
+    /** Sets the digest of a cache in summary mode. Summaries have no
+     * elements: use setMode("summary") and this method.
+     * @param digest The digest of the original cache */
+    public void setDigest(CacheDigest digest){
+        this.digest=digest;
     }
 
-    /** @return A collection with the elements of the cache */
-//    public Collection<Element> getChilds(){ return childs; } //@@1.5
+    /** Returns the elements of the cache. The collection is a snapshot:
+     * it does not change if the cache changes, and it can be used without
+     * locking the cache.
+     * @return An unmodifiable collection with the elements of the cache */
+//    public Collection<Element> getChilds(){ return getSnapshot().childs; } //@@1.5
     public Collection getChilds(){ //@@1.4
-        return childs; //@@1.4
+        return getSnapshot().childs; //@@1.4
     } //@@1.4
 
+    /** Returns the last snapshot. Snapshots are published when first read
+     * after a write, not at the end of every write: many writes without
+     * readers in the middle copy the childs and indexes once. A reader
+     * finding the cache changed takes the lock to publish the snapshot,
+     * and so it waits for a write in progress. The thread writing reads
+     * its own changes: inside a write, a snapshot of the current childs
+     * with the current indexes, valid until the next change.
+     * @return The snapshot of the last write */
+    CacheSnapshot getSnapshot(){
+        if(inWrite()){
+            Element[] e=new Element[childs.size()];
+            return new CacheSnapshot((Element[])childs.toArray(e),index);
+        }
+        if(!stale){
+            return snapshot;
+        }
+        synchronized(this){
+            if(stale&&writing==0){
+                Element[] e=new Element[childs.size()];
+                snapshot=new CacheSnapshot((Element[])childs.toArray(e),
+                                           index.copy());
+                stale=false;
+            }
+            return snapshot;
+        }
+    }
+
+    /** Makes many changes in the cache as a single write.
+     *
+     * The changes are made with the lock of the cache: other threads do not
+     * see them until every change is done. Then the journal is written once
+     * and the listeners and subscriptions are informed of every change
+     * together. Changes made directly with addElement(), deleteElement()
+     * and the other methods are written and informed each. Inside the
+     * changes, the reads of the cache see the changes already made.
+     * @param changes The changes. They must be made in the thread calling
+     * this method. */
+    public void batch(Runnable changes){
+        synchronized(this){
+            beginWrite();
+            try{
+                changes.run();
+            } finally{
+                endWrite();
+            }
+        }
+        fire();
+    }
+
+    /** @return If the current thread is writing in the cache. The counter
+     * is read without the lock: only the thread holding it can find a
+     * write in progress and the lock. */
+    private boolean inWrite(){
+        return writing>0&&Thread.holdsLock(this);
+    }
+
+    /** Starts a write in the cache. Use with the lock of the cache, and call
+     * endWrite() after the write, even if it fails. */
+    private void beginWrite(){
+        writing++;
+    }
+
+    /** Ends a write in the cache. If this was the outermost write, the
+     * snapshot of the readers is stale: see getSnapshot(). */
+    private void endWrite(){
+        if(writing==1&&isFull()){
+            evict();
+        }
+        writing--;
+        if(writing==0){
+            stale=true;
+            updated=true;
+            if(journal!=null){
+                journal.written();
+            }
+        }
+    }
+
+    /** @return If the cache has more elements or bytes than allowed */
+    private boolean isFull(){
+        return isAbove(100);
+    }
+
+    /** @param percent A percentage of the capacity
+     * @return If the cache has more elements or bytes than the percentage
+     * of the capacity */
+    private boolean isAbove(int percent){
+        return(maxElements>0&&childs.size()>(long)maxElements*percent/100)||
+                (maxBytes>0&&bytes>maxBytes/100*percent);
+    }
+
+    /** Removes elements until the cache is EVICT_LOW percent full. The
+     * elements with the lowest score go first. Pinned elements are never
+     * evicted. Use inside a write. */
+    private void evict(){
+        final long now=System.currentTimeMillis();
+        Vector v=new Vector();
+        Object o[]=childs.toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(pinned.get(e.getIDCache()+"\n"+e.getID())==null){
+                v.add(e);
+            }
+        }
+        o=v.toArray();
+        java.util.Arrays.sort(o,new java.util.Comparator(){
+            public int compare(Object a,Object b){
+                long sa=score((Element)a,now),sb=score((Element)b,now);
+                return sa<sb?-1:(sa==sb?0:1);
+            }
+        });
+        int n=0;
+        for(int i=0;i<o.length&&isAbove(EVICT_LOW);i++){
+            removeElement((Element)o[i],CacheListener.EVICTED);
+            n++;
+        }
+        evictions+=n;
+        logger.info("Evicted "+n+" elements: "+childs.size()+" elements, "+ //@@l
+                    bytes+" bytes"); //@@l
+    }
+
+    /** Returns the score of an element to stay in the cache: its confidence
+     * minus its hops, weighted in seconds, minus the seconds since it was
+     * joined or found.
+     * @param e An element
+     * @param now The current time in milliseconds
+     * @return The score. The lowest, the first evicted */
+    static long score(Element e,long now){
+        long s=-(now-e.accessed)/1000;
+        if(e instanceof Service){
+            Service sv=(Service)e;
+            s+=(long)CONFIDENCE_WEIGHT*sv.getConfidence()-
+                    (long)HOPS_WEIGHT*sv.getHops();
+        }
+        return s;
+    }
+
+    /** @return e, marked as accessed now. If null, null */
+    private static Element touch(Element e){
+        if(e!=null){
+            e.accessed=System.currentTimeMillis();
+        }
+        return e;
+    }
+
+    /** Sets the capacity of the cache. If the cache gets full, the
+     * elements with lowest confidence, most hops and longest time without
+     * being found are evicted until the cache is EVICT_LOW percent full,
+     * and the listeners are informed with an EVICTED event.
+     * @param maxElements Maximum number of childs of the cache. If not
+     * positive, no limit.
+     * @param maxBytes Maximum estimated bytes of the childs of the cache.
+     * If not positive, no limit. */
+    public void setCapacity(int maxElements,long maxBytes){
+        synchronized(this){
+            beginWrite();
+            try{
+                this.maxElements=Math.max(0,maxElements);
+                this.maxBytes=Math.max(0,maxBytes);
+            } finally{
+                endWrite();
+            }
+        }
+        fire();
+    }
+
+    /** @return The maximum number of childs of the cache, or 0 if no limit */
+    public int getMaxElements(){
+        return maxElements;
+    }
+
+    /** @return The maximum estimated bytes of the childs of the cache, or
+     * 0 if no limit */
+    public long getMaxBytes(){
+        return maxBytes;
+    }
+
+    /** @return The estimated bytes of the childs of the cache, as they were
+     * joined */
+    public synchronized long getBytes(){
+        return bytes;
+    }
+
+    /** @return The number of elements evicted since the cache was created */
+    public synchronized long getEvictions(){
+        return evictions;
+    }
+
+    /** Pins an element: it will never be evicted, even if it is replaced
+     * by other version.
+     * @param idcache Identifier of the cache of the element
+     * @param id Identifier of the element
+     * @param pin Wether the element is pinned */
+    public synchronized void setPinned(String idcache,String id,boolean pin){
+        String k=idcache+"\n"+id;
+        if(pin){
+            pinned.put(k,k);
+        } else{
+            pinned.remove(k);
+        }
+    }
+
+    /** Informs the listeners and the subscriptions about the writes ended.
+     * The writes call this method after releasing the lock of the cache, so
+     * a slow listener does not stop the other threads and listeners can use
+     * the cache. Inside an outer write, or with the lock of the cache, does
+     * nothing: the outermost write informs them. */
+    private void fire(){
+        if(Thread.holdsLock(this)){
+            return;
+        }
+        synchronized(firing){
+            Object ev[],l[],s[];
+            synchronized(this){
+                ev=events.toArray();
+                events.clear();
+                l=listeners.toArray();
+                s=updated?subscriptions.toArray():new Object[0];
+                updated=false;
+            }
+            for(int i=0;i<ev.length;i++){
+                CacheEvent e=(CacheEvent)ev[i];
+                for(int j=0;j<l.length;j++){
+                    try{
+                        ((CacheListener)l[j]).elementRemoved(e);
+                    } catch(RuntimeException ex){
+                        logger.warn("Error in a cache listener: "+ex); //@@l
+                    }
+                }
+            }
+            for(int i=0;i<s.length;i++){
+                CacheSubscription sub=(CacheSubscription)s[i];
+                try{
+                    sub.fire(sub.update(this));
+                } catch(RuntimeException ex){
+                    logger.warn("Error in a subscription listener: "+ex); //@@l
+                }
+            }
+        }
+    }
+
+    /** Subscribes to the elements of the cache matching a query. After every
+     * change of the cache, the listener is informed about the elements
+     * added, changed or removed from the matches.
+     * @param q The query. Its order, offset and limit are ignored.
+     * @param l The listener
+     * @return The subscription, with the current matches */
+    public synchronized CacheSubscription subscribe(CacheQuery q,
+            SubscriptionListener l){
+        CacheSubscription s=new CacheSubscription(this,q,l);
+        subscriptions.add(s);
+        return s;
+    }
+
+    /** @param s A subscription to cancel. Its listener is not informed
+     * anymore. */
+    public synchronized void unsubscribe(CacheSubscription s){
+        subscriptions.remove(s);
+    }
+
+    /** @param l A listener to inform about the changes in the cache */
+    public void addCacheListener(CacheListener l){
+        listeners.add(l);
+    }
+
+    /** @param l A listener to remove. If not registered, do nothing. */
+    public void removeCacheListener(CacheListener l){
+        listeners.remove(l);
+    }
+
+    /** Sets the lifetime of an element of the cache. After this time, the
+     * element is removed from the cache with the next call to expire(),
+     * and the listeners are informed with an EXPIRED event. Setting the
+     * lifetime again replaces the previous one.
+     * @param e An element joined to the cache. Only the childs of the
+     * cache (services) can expire.
+     * @param seconds The lifetime in seconds. If not positive, the element
+     * never expires. */
+    public synchronized void setLifetime(Element e,int seconds){
+        if(!index.contains(e)){
+            logger.warn("Setting the lifetime of an element not joined: "+ //@@l
+                        e.getID()); //@@l
+            return;
+        }
+        long now=System.currentTimeMillis();
+        if(seconds<=0){
+            if(wheel!=null){
+                wheel.cancel(e);
+            }
+            if(journal!=null){
+                journal.lifetimeChanged(e);
+            }
+            return;
+        }
+        if(wheel==null){
+            wheel=new ExpirationWheel(WHEEL_SIZE,WHEEL_RESOLUTION*1000L,now);
+        }
+        wheel.schedule(e,now+seconds*1000L,now);
+        if(journal!=null){
+            journal.lifetimeChanged(e);
+        }
+    }
+
+    /** @param e An element of the cache
+     * @return The time in milliseconds when the element expires, or -1
+     * if it never expires. Use with the lock of the cache. */
+    long getExpiration(Element e){
+        return wheel==null?-1:wheel.getExpiration(e);
+    }
+
+    /** @param e An element of the cache
+     * @return The seconds until the element expires, 0 if it has expired
+     * but it has not been removed yet, or -1 if the element never expires */
+    public synchronized int getLifetime(Element e){
+        long t=wheel==null?-1:wheel.getExpiration(e);
+        if(t<0){
+            return -1;
+        }
+        return(int)Math.max(0,(t-System.currentTimeMillis()+999)/1000);
+    }
+
+    /** Removes the elements whose lifetime has expired. Call this method
+     * periodically: the cost depends on the elements expiring and the time
+     * since the last call, not on the size of the cache. */
+    public void expire(){
+        try{
+            synchronized(this){
+                if(wheel==null){
+                    return;
+                }
+                beginWrite();
+                try{
+                    Object o[]=wheel.advance(System.currentTimeMillis()).toArray();
+                    if(o.length>0){
+                        logger.debug("Removing "+o.length+" elements expired"); //@@l
+                    }
+                    for(int i=0;i<o.length;i++){
+                        removeElement((Element)o[i],CacheListener.EXPIRED);
+                    }
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
+        }
+    }
+
+    /** Sets the journal of the cache. The journal is informed of the
+     * changes at the end of each write.
+     * @param journal The journal, or null to stop journaling */
+    synchronized void setJournal(CacheJournal journal){
+        this.journal=journal;
+    }
+
+    /** Restores the cache from a journal in a single write: readers see
+     * the cache before or after the restoring, never in the middle.
+     * @param journal The journal to read from
+     * @throws Exception If the journal can not be read */
+    void restore(CacheJournal journal) throws Exception{
+        try{
+            synchronized(this){
+                beginWrite();
+                try{
+                    journal.restore(this);
+                } finally{
+                    endWrite();
+                }
+            }
+        } finally{
+            fire();
+        }
+    }
+
     /** @return The cache identifier */
     public String getID(){
         return idCache;
@@ -568,23 +1368,26 @@ public class Cache{
      * by this cache.
      */
     public void setID(String id){
-        logger.info("Setting idcache="+id); //@@l
-        String oldID=this.idCache;
-        if(oldID!=null&&oldID.length()>0){
-            synchronized(idCache){
-                Object o[]=getChilds().toArray();
-                for(int i=0;i<o.length;i++){
-                    Element e=(Element)o[i];
-                    if(e.getIDCache().equals(oldID)){
-                        e.setIDCache(id);
+        synchronized(this){
+            beginWrite();
+            try{
+                logger.info("Setting idcache="+id); //@@l
+                String oldID=this.idCache;
+                if(oldID!=null&&oldID.length()>0){
+                    Object o[]=index.getByIDCache(oldID).toArray();
+                    for(int i=0;i<o.length;i++){
+                        Element e=(Element)o[i];
+                        if(e.getIDCache().equals(oldID)){
+                            e.setIDCache(id);
+                        }
                     }
                 }
+                idCache=id;
+            } finally{
+                endWrite();
             }
         }
-        idCache=id;
-        if(rootNode!=null){
-            rootNode.setAttribute(IDCACHE_NAME,idCache);
-        }
+        fire();
     }
 
     /** @return String with the XML code */
@@ -603,14 +1406,36 @@ public class Cache{
     /** @param out Save the cache in this stream.
      * @throws java.lang.Exception If any error occurs */
     public void toStream(OutputStream out) throws Exception{
-        org.msd.cache.XMLTools.saveDOMToStream(doc,out);
+        XMLTools.saveCacheToStream(this,out);
+    }
+
+    /** @param out Save the cache in this stream, in binary encoding.
+     * @throws java.lang.Exception If any error occurs
+     * @see CacheCodec */
+    public void toBinaryStream(OutputStream out) throws Exception{
+        CacheCodec.encode(this,out);
+    }
+
+    /** @param encoding ENCODING_BINARY or ENCODING_XML. Any other value
+     * means XML.
+     * @return The cache in the encoding
+     * @throws java.lang.Exception If any error occurs */
+    public byte[] toBytes(String encoding) throws Exception{
+        java.io.ByteArrayOutputStream out=new java.io.ByteArrayOutputStream();
+        if(ENCODING_BINARY.equals(encoding)){
+            toBinaryStream(out);
+        } else{
+            toStream(out);
+        }
+        return out.toByteArray();
     }
 
     /** @return A new cache exactly the same that this one */
     public Object clone(){
         try{
             Cache c=new Cache(idCache);
-            c.setElements(childs);
+            c.setMode(mode);
+            c.setElements(getChilds());
             return c;
         }catch(Exception e){
             return null;
@@ -0,0 +1,341 @@
+package org.msd.cache;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Hashtable;
+import java.util.Vector;
+import org.apache.log4j.Logger; //@@l
+
+/** Compact binary encoding of caches.
+ *
+ * XML spends most of the bytes of a cache repeating the same names: the
+ * names of the attributes, of the networks, of the MSDs... This encoding
+ * writes each string once: the next times the string is a reference to a
+ * table of strings both sides build while writing and reading. Non negative
+ * integers (identifiers, hops, ports...) are written as varints.
+ *
+ * <pre>
+ * cache   := MAGIC VERSION str(idcache) str(mode) str(version)
+ *            [str(digest)]                         -- only in summary mode
+ *            varint(n) (str(idcache) str(id))*n    -- removed elements
+ *            varint(n) element*n
+ * element := varint(type) str(name) str(idcache) str(id)
+ *            varint(n) (str(name) str(value))*n    -- XML attributes
+ *            varint(n) (str(name) str(value))*n    -- attributes
+ *            varint(n) element*n                   -- childs
+ * str     := varint(code)
+ *            code=0: literal: varint(length) UTF-8 bytes. Added to the table
+ *            code=2: null
+ *            code odd: the decimal representation of code&gt;&gt;&gt;1
+ *            other: the string (code&gt;&gt;&gt;1)-2 of the table
+ * varint  := 7 bits per byte, least significant first, high bit set if
+ *            more bytes follow
+ * </pre>
+ *
+ * The table starts with some well known names and is bounded to MAX_STRINGS
+ * entries: once full, literals are not added.
+ *
+ * The first byte of an XML cache is never MAGIC, so the readers can
+ * tell the encoding of a cache from its first byte.
+ * @version $Revision: 1.1 $ */
+class CacheCodec{
+    private static final Logger logger=Logger.getLogger(CacheCodec.class); //@@l
+    /** First byte of a binary cache */
+    static final int MAGIC=0xCA;
+    /** Version of the encoding */
+    static final int VERSION=1;
+    /** Maximum number of strings in the table */
+    static final int MAX_STRINGS=1024;
+    /** Strings known by both sides from the beginning */
+    private static final String[] WELL_KNOWN={Cache.CACHE_NAME,
+            "complete","update","summary","gw","hops","confidence","main",
+            Cache.URL_NAME,"port",Cache.TYPE_NAME,"MSD","internet",
+            "bluetooth"};
+    /** Codes of the strings */
+    private static final int LITERAL=0,NULL=2;
+
+    /** Table of strings: the strings written or read, in order */
+    private Vector strings=new Vector();
+    /** While writing, key: a string. Object: its position in the table */
+    private Hashtable positions=new Hashtable();
+
+    /** A codec with the table of the well known strings. Use the static
+     * methods to read and write whole caches. */
+    CacheCodec(){
+        for(int i=0;i<WELL_KNOWN.length;i++){
+            add(WELL_KNOWN[i]);
+        }
+    }
+
+    /** Writes a cache in binary format. The stream is not closed.
+     * @param cache The cache to write
+     * @param out The stream to write to
+     * @throws IOException If the cache can not be written */
+    static void encode(Cache cache,OutputStream out) throws IOException{
+        encode(cache,cache.getVersion(),cache.getRemoved().toArray(),
+               cache.getChilds().toArray(),out);
+    }
+
+    /** Encodes a cache as it was in a version.
+     * @param cache The cache, for its identifier, mode and digest
+     * @param version The version of the cache
+     * @param r The identifiers {idcache,id} removed in this version
+     * @param e The childs of the cache in this version
+     * @param out The stream to write to
+     * @throws IOException If the stream can not be written */
+    static void encode(Cache cache,String version,Object[] r,Object[] e,
+                       OutputStream out) throws IOException{
+        CacheCodec c=new CacheCodec();
+        DataOutputStream o=new DataOutputStream(
+                new java.io.BufferedOutputStream(out));
+        o.write(MAGIC);
+        o.write(VERSION);
+        c.writeString(o,cache.getID());
+        c.writeString(o,cache.getMode());
+        c.writeString(o,version);
+        if("summary".equals(cache.getMode())){
+            CacheDigest d=cache.getDigest();
+            c.writeString(o,d==null?null:d.toString());
+        }
+        writeVarint(o,r.length);
+        for(int i=0;i<r.length;i++){
+            String[] ids=(String[])r[i];
+            c.writeString(o,ids[0]);
+            c.writeString(o,ids[1]);
+        }
+        writeVarint(o,e.length);
+        for(int i=0;i<e.length;i++){
+            c.writeElement(o,(Element)e[i]);
+        }
+        o.flush();
+    }
+
+    /** Reads a cache in binary format. The stream is not closed.
+     * @param cache The cache to read into
+     * @param in The stream to read from
+     * @param mode CacheParser.LOAD to reset the cache before joining the
+     * elements and set its identifier, CacheParser.UPDATE to join the elements.
+     * @throws Exception If the stream does not contain a binary cache */
+    static void decode(Cache cache,InputStream in,int mode) throws Exception{
+        CacheCodec c=new CacheCodec();
+        DataInputStream i=new DataInputStream(in);
+        if(i.read()!=MAGIC){
+            throw new Exception("Doesn't seem a binary cache");
+        }
+        int v=i.read();
+        if(v!=VERSION){
+            throw new Exception("Unknown version of binary cache: "+v);
+        }
+        String idcache=c.readString(i);
+        if(idcache==null||idcache.length()==0){
+            throw new Exception("Doesn't seem a cache: wrong cache id");
+        }
+        if(mode==CacheParser.LOAD){
+            cache.reset();
+        }
+        String m=c.readString(i);
+        String version=c.readString(i);
+        if(mode==CacheParser.LOAD){
+            // the loaded cache keeps its mode: it is joined later
+            cache.setMode(m==null||m.length()==0?"complete":m);
+        }
+        boolean ignore=!cache.prepareJoin(idcache,m);
+        if("summary".equals(m)){
+            String d=c.readString(i);
+            try{
+                if(d!=null){
+                    cache.readSummary(idcache,CacheDigest.parse(d),
+                                      mode==CacheParser.LOAD);
+                }
+            } catch(IllegalArgumentException e){
+                logger.warn("Ignoring digest: "+e.getMessage()); //@@l
+            }
+        }
+        int n=readCount(i);
+        for(int j=0;j<n;j++){
+            String idc=c.readString(i);
+            String id=c.readString(i);
+            if(ignore){
+                continue;
+            }
+            if(mode==CacheParser.LOAD){
+                cache.addRemoved(idc,id);
+            } else{
+                cache.deleteRemoved(idc,id);
+            }
+        }
+        n=readCount(i);
+        for(int j=0;j<n;j++){
+            Element e=c.readElement(i,cache);
+            if(!ignore){
+                cache.addElement(e);
+            }
+        }
+        if(mode==CacheParser.LOAD){
+            cache.setID(idcache);
+            try{
+                if(version!=null){
+                    cache.setVersion(version);
+                }
+            } catch(IllegalArgumentException e){
+                logger.warn("Ignoring version: "+e.getMessage()); //@@l
+            }
+        }
+    }
+
+    /** Writes an element and its childs */
+    void writeElement(DataOutputStream o,Element e) throws IOException{
+        writeVarint(o,e.getType());
+        writeString(o,e.getName());
+        writeString(o,e.getProperty(Cache.IDCACHE_NAME));
+        writeString(o,e.getProperty(Cache.ID_NAME));
+        Object n[]=e.getPropertyNames().toArray();
+        writeVarint(o,n.length);
+        for(int i=0;i<n.length;i++){
+            writeString(o,(String)n[i]);
+            writeString(o,e.getProperty((String)n[i]));
+        }
+        n=e.getAttribNames().toArray();
+        writeVarint(o,n.length);
+        for(int i=0;i<n.length;i++){
+            writeString(o,(String)n[i]);
+            writeString(o,e.getAttrStr((String)n[i]));
+        }
+        int count=e.countChilds();
+        writeVarint(o,count);
+        for(int i=0;i<count;i++){
+            writeElement(o,e.childAt(i));
+        }
+    }
+
+    /** Reads an element and its childs. The element is not joined. */
+    Element readElement(DataInputStream i,Cache cache) throws
+            Exception{
+        Element e=cache.createElement(readCount(i));
+        String[] keys={Cache.NAME_NAME,Cache.IDCACHE_NAME,Cache.ID_NAME};
+        for(int j=0;j<keys.length;j++){
+            String v=readString(i);
+            if(v!=null){
+                e.setProperty(keys[j],v);
+            }
+        }
+        int n=readCount(i);
+        for(int j=0;j<n;j++){
+            e.setProperty(readString(i),readString(i));
+        }
+        n=readCount(i);
+        for(int j=0;j<n;j++){
+            e.setAttrStr(readString(i),readString(i));
+        }
+        n=readCount(i);
+        for(int j=0;j<n;j++){
+            e.adopt(readElement(i,cache));
+        }
+        return e;
+    }
+
+    /** Writes a string: a reference to the table, a number or a literal */
+    void writeString(DataOutputStream o,String s) throws IOException{
+        if(s==null){
+            writeVarint(o,NULL);
+            return;
+        }
+        long number=toNumber(s);
+        if(number>=0){
+            writeVarint(o,(number<<1)|1);
+            return;
+        }
+        Integer pos=(Integer)positions.get(s);
+        if(pos!=null){
+            writeVarint(o,((long)pos.intValue()+2)<<1);
+            return;
+        }
+        writeVarint(o,LITERAL);
+        byte[] b=s.getBytes("UTF-8");
+        writeVarint(o,b.length);
+        o.write(b);
+        add(s);
+    }
+
+    /** Reads a string written with writeString() */
+    String readString(DataInputStream i) throws IOException{
+        long code=readVarint(i);
+        if(code==NULL){
+            return null;
+        } else if((code&1)==1){
+            return Long.toString(code>>>1);
+        } else if(code==LITERAL){
+            byte[] b=new byte[readCount(i)];
+            i.readFully(b);
+            String s=new String(b,"UTF-8");
+            add(s);
+            return s;
+        }
+        long pos=(code>>>1)-2;
+        if(pos>=strings.size()){
+            throw new IOException("String not in the table: "+pos);
+        }
+        return(String)strings.elementAt((int)pos);
+    }
+
+    /** Adds a string to the table, if it is not full */
+    private void add(String s){
+        if(strings.size()<MAX_STRINGS&&positions.get(s)==null){
+            positions.put(s,new Integer(strings.size()));
+            strings.add(s);
+        }
+    }
+
+    /** @return The value of s if s is the decimal representation of a
+     * non negative number, written as Long.toString() would. Else, -1. */
+    private static long toNumber(String s){
+        int l=s.length();
+        if(l==0||l>18||(l>1&&s.charAt(0)=='0')){
+            return -1;
+        }
+        long n=0;
+        for(int i=0;i<l;i++){
+            char c=s.charAt(i);
+            if(c<'0'||c>'9'){
+                return -1;
+            }
+            n=n*10+(c-'0');
+        }
+        return n;
+    }
+
+    /** Writes a non negative number as a varint */
+    static void writeVarint(DataOutputStream o,long v) throws
+            IOException{
+        while((v&~0x7FL)!=0){
+            o.write((int)((v&0x7F)|0x80));
+            v>>>=7;
+        }
+        o.write((int)v);
+    }
+
+    /** Reads a varint */
+    static long readVarint(DataInputStream i) throws IOException{
+        long v=0;
+        for(int shift=0;shift<64;shift+=7){
+            int b=i.readUnsignedByte();
+            v|=(long)(b&0x7F)<<shift;
+            if((b&0x80)==0){
+                return v;
+            }
+        }
+        throw new IOException("Varint too long");
+    }
+
+    /** Reads a varint used as a count or a length */
+    static int readCount(DataInputStream i) throws IOException{
+        long v=readVarint(i);
+        if(v>Integer.MAX_VALUE){
+            throw new IOException("Count too big: "+v);
+        }
+        return(int)v;
+    }
+}
@@ -0,0 +1,198 @@
+package org.msd.cache;
+
+/** A digest of the services of a cache: a Bloom filter over the names of
+ * the services and of their classes.
+ *
+ * Digests are the content of the caches in summary mode. An MSD can test a
+ * template against the digest of other MSD before asking it: if the digest
+ * proves the other cache has no service with the name or the classes of
+ * the template, the question is not sent. The test can fail positively
+ * (about 1% of the names not in the cache pass the test) but never
+ * negatively, unless the digest is old.
+ *
+ * The string representation of a digest is hashes.bits, with bits in
+ * hexadecimal. It does not include ':', so it can be a message attribute.
+ * @version $Revision: 1.1 $ */
+public class CacheDigest{
+    /** Bits used for each name in the digests created from caches. With
+     * HASHES, about 1% of false positives. */
+    public static final int BITS_PER_NAME=10;
+    /** Number of hash functions of the digests created from caches */
+    public static final int HASHES=7;
+    /** Prefixes of the names of services and classes in the filter */
+    private static final String SERVICE="s",CLASS="c";
+
+    /** The filter */
+    private long[] bits;
+    /** Number of hash functions */
+    private int hashes;
+    /** Time this digest was created or read */
+    private long created=System.currentTimeMillis();
+
+    /** @param size Number of bits of the filter. Rounded up to 64.
+     * @param hashes Number of hash functions */
+    public CacheDigest(int size,int hashes){
+        if(hashes<1){
+            throw new IllegalArgumentException("Wrong number of hashes: "+
+                                               hashes);
+        }
+        bits=new long[Math.max(1,(size+63)/64)];
+        this.hashes=hashes;
+    }
+
+    /** Creates the digest of the services of a cache.
+     * @param c The cache
+     * @return The digest */
+    public static CacheDigest create(Cache c){
+        Object o[]=c.getChilds().toArray();
+        java.util.Vector names=new java.util.Vector();
+        for(int i=0;i<o.length;i++){
+            if(!(o[i] instanceof Service)){
+                continue;
+            }
+            Service s=(Service)o[i];
+            if(s.getName()!=null){
+                names.add(SERVICE+s.getName());
+            }
+            Object cl[]=s.getClasses().toArray();
+            for(int j=0;j<cl.length;j++){
+                String n=((Element)cl[j]).getName();
+                if(n!=null){
+                    names.add(CLASS+n);
+                }
+            }
+        }
+        CacheDigest d=new CacheDigest(names.size()*BITS_PER_NAME,HASHES);
+        for(int i=0;i<names.size();i++){
+            d.add((String)names.elementAt(i));
+        }
+        return d;
+    }
+
+    /** Reads a digest from its string representation.
+     * @param s The digest as returned by toString()
+     * @return The digest
+     * @throws IllegalArgumentException If s is not a digest */
+    public static CacheDigest parse(String s){
+        int p=s==null?-1:s.indexOf('.');
+        if(p<0||(s.length()-p-1)%16!=0){
+            throw new IllegalArgumentException("Not a digest: "+s);
+        }
+        try{
+            CacheDigest d=new CacheDigest((s.length()-p-1)/16*64,
+                                          Integer.parseInt(s.substring(0,p)));
+            for(int i=0;i<d.bits.length;i++){
+                int start=p+1+i*16;
+                // two halves: parseLong does not read 64 unsigned bits
+                d.bits[i]=Long.parseLong(s.substring(start,start+8),16)<<32|
+                          Long.parseLong(s.substring(start+8,start+16),16);
+            }
+            return d;
+        } catch(NumberFormatException e){
+            throw new IllegalArgumentException("Not a digest: "+s);
+        }
+    }
+
+    /** @param name The name of a service to add to the digest */
+    public void addService(String name){
+        add(SERVICE+name);
+    }
+
+    /** @param name The name of a class to add to the digest */
+    public void addClass(String name){
+        add(CLASS+name);
+    }
+
+    /** @param name The name of a service
+     * @return False if the cache has no service with this name. True if
+     * it may have one. */
+    public boolean mayContainService(String name){
+        return mayContain(SERVICE+name);
+    }
+
+    /** @param name The name of a class
+     * @return False if the cache has no service of this class. True if
+     * it may have one. */
+    public boolean mayContainClass(String name){
+        return mayContain(CLASS+name);
+    }
+
+    /** Tests if a cache may have services matching a template.
+     * @param m A compiled template
+     * @return False if the cache has no service with the name or the
+     * classes of the template. True if it may have. Templates of other
+     * elements than services always pass. */
+    public boolean mayMatch(ElementMatcher m){
+        if(m.getType()!=Element.SERVICE){
+            return true;
+        }
+        if(!empty(m.getName())&&!mayContainService(m.getName())){
+            return false;
+        }
+        for(int i=0;i<m.countChilds();i++){
+            ElementMatcher c=m.childAt(i);
+            if(c.getType()==Element.CLASSTYPE&&!empty(c.getName())&&
+               !mayContainClass(c.getName())){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return Milliseconds since this digest was created or read */
+    public long getAge(){
+        return System.currentTimeMillis()-created;
+    }
+
+    /** @return The digest as hashes.bits */
+    public String toString(){
+        StringBuffer b=new StringBuffer(bits.length*16+4);
+        b.append(hashes).append('.');
+        for(int i=0;i<bits.length;i++){
+            String h=Long.toHexString(bits[i]);
+            for(int j=h.length();j<16;j++){
+                b.append('0');
+            }
+            b.append(h);
+        }
+        return b.toString();
+    }
+
+    /** Adds a string to the filter */
+    private void add(String s){
+        int h1=s.hashCode(),h2=hash2(s);
+        long size=bits.length*64L;
+        for(int i=0;i<hashes;i++){
+            int pos=(int)(((h1+(long)i*h2)&0x7FFFFFFFL)%size);
+            bits[pos>>>6]|=1L<<(pos&63);
+        }
+    }
+
+    /** @return If the string may have been added to the filter */
+    private boolean mayContain(String s){
+        int h1=s.hashCode(),h2=hash2(s);
+        long size=bits.length*64L;
+        for(int i=0;i<hashes;i++){
+            int pos=(int)(((h1+(long)i*h2)&0x7FFFFFFFL)%size);
+            if((bits[pos>>>6]&(1L<<(pos&63)))==0){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** @return A second hash of a string (FNV-1a), odd */
+    private static int hash2(String s){
+        int h=0x811C9DC5;
+        for(int i=0;i<s.length();i++){
+            h^=s.charAt(i);
+            h*=0x01000193;
+        }
+        return h|1;
+    }
+
+    /** @return If s is null or empty */
+    private static boolean empty(String s){
+        return s==null||s.length()==0;
+    }
+}
@@ -0,0 +1,33 @@
+package org.msd.cache;
+
+/** An event of a cache.
+ * @version $Revision: 1.1 $ */
+public class CacheEvent extends java.util.EventObject{
+    private Element element;
+    private int code;
+
+    /** @param cache The cache sending the event
+     * @param element The element of the event
+     * @param code Code of the event according to CacheListener values */
+    public CacheEvent(Cache cache,Element element,int code){
+        super(cache);
+        this.element=element;
+        this.code=code;
+    }
+
+    /** @return The cache sending the event. This method is equivalent to
+     * (Cache)getSource() */
+    public Cache getCache(){
+        return(Cache)getSource();
+    }
+
+    /** @return The element of the event */
+    public Element getElement(){
+        return element;
+    }
+
+    /** @return The code of the event according to CacheListener values */
+    public int getCode(){
+        return code;
+    }
+}
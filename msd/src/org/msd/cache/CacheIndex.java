@@ -0,0 +1,259 @@
+package org.msd.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Vector;
+
+/** Secondary indexes of the elements of a cache.
+ *
+ * The cache looks for elements by identifier (idcache and id), name, type
+ * and gateway very often: every insertion looks for a previous version of
+ * the element, and every joining of a complete cache purges the services
+ * from the remote idcache or gatewayed by it. This class maps these keys
+ * to the elements, so the cache does not walk every child for each lookup.
+ *
+ * Only the first level childs of the cache (i.e., services) are indexed.
+ * The cache is in charge of calling update() after the keys of an
+ * indexed element change. The elements of each key are kept in a set in
+ * order of insertion: Element does not override equals(), so removing an
+ * element compares identities and does not walk the elements of the key.
+ *
+ * This class is not synchronized: the cache modifies its indexes holding
+ * its lock, and publishes copies that are never modified in snapshots.
+ * @see CacheSnapshot
+ * @version $Revision: 1.1 $ */
+class CacheIndex{
+    /** Separator between idcache and id in the keys of byID */
+    private static final String SEP="\n";
+    /** Key: idcache+SEP+id. Object: LinkedHashSet of elements */
+    private HashMap byID=new HashMap();
+    /** Key: idcache. Object: LinkedHashSet of elements */
+    private HashMap byIDCache=new HashMap();
+    /** Key: name. Object: LinkedHashSet of elements */
+    private HashMap byName=new HashMap();
+    /** Key: Integer with the type. Object: LinkedHashSet of elements */
+    private HashMap byType=new HashMap();
+    /** Key: gateway. Object: LinkedHashSet of elements */
+    private HashMap byGateway=new HashMap();
+    /** Key: an indexed element. Object: Keys the element was indexed with,
+     * in order to remove it after its keys changed. */
+    private HashMap entries=new HashMap();
+    /** An empty collection to return when nothing is found */
+    private static final Collection EMPTY=new Vector(0);
+
+    /** @return A copy of the indexes, independent of this one */
+    public CacheIndex copy(){
+        CacheIndex c=new CacheIndex();
+        copy(byID,c.byID);
+        copy(byIDCache,c.byIDCache);
+        copy(byName,c.byName);
+        copy(byType,c.byType);
+        copy(byGateway,c.byGateway);
+        c.entries.putAll(entries);
+        return c;
+    }
+
+    /** Copies the sets of an index into other one */
+    private static void copy(HashMap from,HashMap to){
+        for(Iterator i=from.entrySet().iterator();i.hasNext();){
+            Map.Entry e=(Map.Entry)i.next();
+            to.put(e.getKey(),new LinkedHashSet((LinkedHashSet)e.getValue()));
+        }
+    }
+
+    /** @param e Index this element. If it was indexed, update its keys. */
+    public void add(Element e){
+        if(entries.get(e)!=null){
+            remove(e);
+        }
+        Keys k=new Keys(e);
+        put(byID,k.id,e);
+        put(byIDCache,k.idcache,e);
+        put(byName,k.name,e);
+        put(byType,k.type,e);
+        put(byGateway,k.gateway,e);
+        entries.put(e,k);
+    }
+
+    /** @param e Remove this element from the indexes. If it was not
+     * indexed, do nothing. */
+    public void remove(Element e){
+        Keys k=(Keys)entries.remove(e);
+        if(k==null){
+            return;
+        }
+        take(byID,k.id,e);
+        take(byIDCache,k.idcache,e);
+        take(byName,k.name,e);
+        take(byType,k.type,e);
+        take(byGateway,k.gateway,e);
+    }
+
+    /** Updates the keys of an element. Does nothing if the element was not
+     * indexed, as the childs of the services.
+     * @param e The element whose keys have changed. */
+    public void update(Element e){
+        if(entries.get(e)!=null){
+            add(e);
+        }
+    }
+
+    /** @param e An element
+     * @return {idcache,id} of the element when it was indexed, or null
+     * if the element is not indexed */
+    public String[] getIDs(Element e){
+        Keys k=(Keys)entries.get(e);
+        return k==null?null:new String[]{k.idcache,k.rawID};
+    }
+
+    /** @param e An element
+     * @return Wether the element is indexed */
+    public boolean contains(Element e){
+        return entries.get(e)!=null;
+    }
+
+    /** Removes every element from the indexes. */
+    public void clear(){
+        byID.clear();
+        byIDCache.clear();
+        byName.clear();
+        byType.clear();
+        byGateway.clear();
+        entries.clear();
+    }
+
+    /** @param idcache Identifier of the original cache
+     * @param id Identifier of the element in its cache
+     * @return The elements identified by (idcache,id). Do not modify. */
+    public Collection getByID(String idcache,String id){
+        return get(byID,idKey(idcache,id));
+    }
+
+    /** @param idcache Identifier of a cache
+     * @return The elements from this cache. Do not modify. */
+    public Collection getByIDCache(String idcache){
+        return get(byIDCache,idcache);
+    }
+
+    /** @param gw Identifier of a gateway
+     * @return The elements gatewayed by this MSD. Do not modify. */
+    public Collection getByGateway(String gw){
+        return get(byGateway,gw);
+    }
+
+    /** Returns the smallest set of indexed elements that can match a
+     * template, looking at its identifiers, name, gateway and type.
+     * The elements returned are just candidates: they must be tested with
+     * Element.match() anyway.
+     * @param template A template to look for.
+     * @return The candidates to match the template. Do not modify. */
+    public Collection getCandidates(Element template){
+        Keys k=new Keys(template);
+        return getCandidates(k.type.intValue(),k.idcache,k.id,k.name,
+                             k.gateway);
+    }
+
+    /** Returns the smallest set of indexed elements that can match a
+     * compiled template. The elements returned must be tested with
+     * the matcher anyway.
+     * @param m A compiled template.
+     * @return The candidates to match the template. Do not modify. */
+    public Collection getCandidates(ElementMatcher m){
+        return getCandidates(m.getType(),m.getIDCache(),
+                             idKey(m.getIDCache(),m.getID()),m.getName(),
+                             m.getGateway());
+    }
+
+    /** @return The candidates to match a template with these keys */
+    private Collection getCandidates(int type,String idcache,String id,
+                                     String name,String gateway){
+        if(id!=null){
+            return get(byID,id);
+        }
+        Collection best=get(byType,new Integer(type));
+        best=smaller(best,byIDCache,idcache);
+        best=smaller(best,byName,name);
+        best=smaller(best,byGateway,gateway);
+        return best;
+    }
+
+    /** @return c, or the collection of elements with the given key
+     * in the index if it is smaller than c. */
+    private Collection smaller(Collection c,HashMap index,String key){
+        if(key==null){
+            return c;
+        }
+        Collection c2=get(index,key);
+        return c2.size()<c.size()?c2:c;
+    }
+
+    /** @return The key of the byID index */
+    private static String idKey(String idcache,String id){
+        if(idcache==null||id==null){
+            return null;
+        }
+        return idcache+SEP+id;
+    }
+
+    /** @return The collection of elements of the index with this key,
+     * or an empty collection. */
+    private Collection get(HashMap index,Object key){
+        if(key==null){
+            return EMPTY;
+        }
+        Collection c=(Collection)index.get(key);
+        return c==null?EMPTY:c;
+    }
+
+    /** Puts an element in the index under the key. If key is null, do nothing */
+    private void put(HashMap index,Object key,Element e){
+        if(key==null){
+            return;
+        }
+        LinkedHashSet v=(LinkedHashSet)index.get(key);
+        if(v==null){
+            v=new LinkedHashSet(2);
+            index.put(key,v);
+        }
+        v.add(e);
+    }
+
+    /** Removes an element of the index from the key. */
+    private void take(HashMap index,Object key,Element e){
+        if(key==null){
+            return;
+        }
+        LinkedHashSet v=(LinkedHashSet)index.get(key);
+        if(v==null){
+            return;
+        }
+        v.remove(e);
+        if(v.isEmpty()){
+            index.remove(key);
+        }
+    }
+
+    /** Keys of an element in the indexes. A null value means "not defined" */
+    private static class Keys{
+        String id,rawID,idcache,name,gateway;
+        Integer type;
+        Keys(Element e){
+            idcache=empty(e.getIDCache());
+            rawID=empty(e.getID());
+            id=idKey(idcache,rawID);
+            name=empty(e.getName());
+            type=new Integer(e.getType());
+            if(e instanceof Service){
+                gateway=empty(((Service)e).getGateway());
+            }
+        }
+
+        /** @return null if s is null or empty, s otherwise */
+        private static String empty(String s){
+            return (s==null||s.length()==0)?null:s;
+        }
+    }
+}
@@ -0,0 +1,629 @@
+package org.msd.cache;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Collection;
+import java.util.Vector;
+import java.util.zip.CRC32;
+import org.apache.log4j.Logger; //@@l
+
+/** Persistent journal of a cache, for warm startups.
+ *
+ * The journal is made of two files: a snapshot of the whole cache
+ * (file.snap) and a log of the changes after the snapshot (file.log).
+ * At the end of each write in the cache, the elements changed are appended
+ * to the log: the cost of a change is the size of the element, not of the
+ * cache. When the log grows bigger than the snapshot, the cache is
+ * compacted in a new snapshot and the log starts again. The compaction
+ * runs in background, on an image of the cache taken at the end of a
+ * write: the records written meanwhile are moved to the new log. After
+ * unknown changes, as a reset, the log does not follow the last snapshot
+ * and the new records wait in memory for the new snapshot.
+ *
+ * When the MSD starts again, the snapshot is mapped in memory and read, and
+ * the log replayed over it. The cache recovers its elements, their lifetimes
+ * and its version, so the MSDs knowing this version only ask for the
+ * changes since it.
+ *
+ * <pre>
+ * snapshot := cache varint(n) (str(idcache) str(id) varint(expires))*n
+ * log      := MAGIC LOG_VERSION utf(version of the snapshot) record*
+ * record   := int(length) int(crc32) payload
+ * payload  := varint(ADD) str(version) element varint(expires)
+ *           | varint(REMOVE) str(version) str(idcache) str(id)
+ *           | varint(LIFETIME) str(version) str(idcache) str(id) varint(expires)
+ * </pre>
+ * The cache, elements and strings are written as in CacheCodec. Expiration
+ * times are in milliseconds, 0 if the element never expires. A record
+ * partially written or corrupted ends the log.
+ *
+ * The log is written without forcing it to the disk: a crash of the MSD
+ * loses nothing, a crash of the system may lose the last changes.
+ * @see CacheCodec
+ * @version $Revision: 1.1 $ */
+public class CacheJournal{
+    private static final Logger logger=Logger.getLogger(CacheJournal.class); //@@l
+    /** Version of the format of the log */
+    static final int LOG_VERSION=1;
+    /** Operations of the records */
+    private static final int ADD=1,REMOVE=2,LIFETIME=3;
+    /** Maximum length of a record. Longer records mean a corrupted log. */
+    private static final int MAX_RECORD=16*1024*1024;
+    /** The log is never compacted while it is smaller than this size */
+    public static final long MIN_COMPACT=64*1024;
+
+    /** File of the snapshot */
+    private File snapFile;
+    /** File of the log */
+    private File logFile;
+    /** The cache being journaled, or null if the journal is not open */
+    private Cache cache=null;
+    /** The log, open to append records */
+    private RandomAccessFile log=null;
+    /** Length of the valid part of the log after restoring, or -1 if the
+     * log can not be used */
+    private long logEnd=-1;
+    /** Size of the last snapshot */
+    private long snapSize=0;
+    /** Version and identifier of the cache in the last record */
+    private String lastVersion=null,lastID=null;
+    /** If the log could not be written: compact in the next write */
+    private boolean broken=false;
+    /** The compaction running in background, or null */
+    private Compaction compacting=null;
+
+    /** @param file Path of the journal, without extension. The files
+     * file.snap and file.log will be used. */
+    public CacheJournal(String file){
+        snapFile=new File(file+".snap");
+        logFile=new File(file+".log");
+    }
+
+    /** Opens the journal and starts saving the changes of a cache.
+     * If the journal has a snapshot, the cache is restored from it.
+     * Else, or if the snapshot can not be read, the cache is left empty
+     * and journaled from now on.
+     * @param cache The cache to journal.
+     * @return Wether the cache was restored from the journal
+     * @throws IOException If the journal can not be written */
+    public boolean open(Cache cache) throws IOException{
+        if(this.cache!=null){
+            throw new IllegalStateException("Journal already open");
+        }
+        boolean restored=false;
+        if(snapFile.exists()){
+            long t=System.currentTimeMillis();
+            try{
+                cache.restore(this);
+                restored=true;
+                logger.info("Cache restored from "+snapFile+" in "+ //@@l
+                            (System.currentTimeMillis()-t)+" ms"); //@@l
+            } catch(Exception e){
+                logger.warn("Cache not restored from the journal: "+e); //@@l
+                cache.reset();
+                logEnd=-1;
+            }
+        }
+        synchronized(cache){
+            this.cache=cache;
+            if(logEnd<0){
+                compact();
+            } else{
+                log=new RandomAccessFile(logFile,"rw");
+                log.setLength(logEnd);
+                log.seek(logEnd);
+                lastVersion=cache.getVersion();
+                lastID=cache.getID();
+            }
+            cache.setJournal(this);
+        }
+        return restored;
+    }
+
+    /** Saves the whole cache in a new snapshot and empties the log. The
+     * cache is locked until the snapshot is written: a compaction running in
+     * background is discarded.
+     * @throws IOException If the snapshot can not be written */
+    public void compact() throws IOException{
+        Cache c=cache;
+        if(c==null){
+            throw new IllegalStateException("Journal not open");
+        }
+        synchronized(c){
+            compacting=null;
+            Image im=new Image(c);
+            install(im,im.write());
+            broken=false;
+            logger.debug("Journal compacted: "+snapSize+" bytes"); //@@l
+        }
+    }
+
+    /** Starts compacting the journal in background, if it is not being
+     * compacted yet. Use with the lock of the cache. */
+    private void compactLater() throws IOException{
+        if(compacting!=null){
+            return;
+        }
+        compacting=new Compaction(new Image(cache));
+        // the image has every change: the log may miss some
+        broken=false;
+        compacting.start();
+    }
+
+    /** Replaces the snapshot with a new one and starts a new log with the
+     * records written after the image of the new snapshot was taken. Use
+     * with the lock of the cache.
+     * @param im The image of the new snapshot
+     * @param tmp The file of the new snapshot */
+    private void install(Image im,File tmp) throws IOException{
+        File ltmp=File.createTempFile("log",".tmp",dir());
+        RandomAccessFile l=new RandomAccessFile(ltmp,"rw");
+        try{
+            l.write(header(im.version));
+            if(log!=null&&im.logEnd>=0){
+                byte[] b=new byte[(int)(log.length()-im.logEnd)];
+                log.seek(im.logEnd);
+                log.readFully(b);
+                l.write(b);
+            }
+            if(im.held!=null){
+                l.write(im.held.toByteArray());
+            }
+        } finally{
+            l.close();
+        }
+        rename(tmp,snapFile);
+        snapSize=snapFile.length();
+        if(log!=null){
+            log.close();
+        }
+        rename(ltmp,logFile);
+        log=new RandomAccessFile(logFile,"rw");
+        log.seek(log.length());
+    }
+
+    /** Renames a file, replacing the destination */
+    private static void rename(File from,File to) throws IOException{
+        if(!from.renameTo(to)){
+            to.delete();
+            if(!from.renameTo(to)){
+                from.delete();
+                throw new IOException("File not renamed to "+to);
+            }
+        }
+    }
+
+    /** @return The directory of the journal */
+    private File dir(){
+        File d=snapFile.getAbsoluteFile().getParentFile();
+        return d==null?new File("."):d;
+    }
+
+    /** Compacts the journal and stops saving the changes of the cache.
+     * Call this method while finishing the MSD. */
+    public void close(){
+        Cache c=cache;
+        if(c==null){
+            return;
+        }
+        synchronized(c){
+            try{
+                compact();
+            } catch(IOException e){
+                logger.warn("Journal not compacted: "+e); //@@l
+            }
+            c.setJournal(null);
+            try{
+                if(log!=null){
+                    log.close();
+                }
+            } catch(IOException e){
+                logger.warn("Error closing the journal: "+e); //@@l
+            }
+            log=null;
+            cache=null;
+        }
+    }
+
+    /** Appends the changes of the last write to the log, and starts a
+     * compaction if the log is too big or the changes are unknown. The cache
+     * calls this method with its lock, after the write. */
+    void written(){
+        String version=cache.getVersion();
+        boolean sameID=cache.getID().equals(lastID);
+        if(version.equals(lastVersion)&&sameID&&!broken){
+            return;
+        }
+        try{
+            // unknown changes: the cache was reset, read or changed a lot
+            Collection changes=sameID&&!broken?cache.getChanges(lastVersion):
+                               null;
+            if(changes==null){
+                if(compacting!=null){
+                    // compact again after the running compaction
+                    broken=true;
+                }
+                compactLater();
+                return;
+            }
+            ByteArrayOutputStream buf=new ByteArrayOutputStream();
+            DataOutputStream o=new DataOutputStream(buf);
+            Object ch[]=changes.toArray();
+            for(int i=0;i<ch.length;i++){
+                String[] ids=(String[])ch[i];
+                Element e=cache.getCurrentElement(ids[0],ids[1]);
+                writeRecord(o,e==null?REMOVE:ADD,version,ids[0],ids[1],e);
+            }
+            append(buf.toByteArray());
+            lastVersion=version;
+            if(log.length()>Math.max(MIN_COMPACT,snapSize)){
+                compactLater();
+            }
+        } catch(IOException e){
+            logger.warn("Error writing the journal: "+e); //@@l
+            broken=true;
+        }
+    }
+
+    /** Appends the new lifetime of an element to the log. The cache calls
+     * this method with its lock.
+     * @param e An element of the cache */
+    void lifetimeChanged(Element e){
+        try{
+            if(broken){
+                compactLater();
+                return;
+            }
+            ByteArrayOutputStream buf=new ByteArrayOutputStream();
+            writeRecord(new DataOutputStream(buf),LIFETIME,lastVersion,
+                        e.getIDCache(),e.getID(),e);
+            append(buf.toByteArray());
+        } catch(IOException ex){
+            logger.warn("Error writing the journal: "+ex); //@@l
+            broken=true;
+        }
+    }
+
+    /** Reads the snapshot and replays the log into a cache. The cache calls
+     * this method inside a write.
+     * @param c The cache to restore
+     * @throws Exception If the snapshot can not be read */
+    void restore(Cache c) throws Exception{
+        FileInputStream fin=new FileInputStream(snapFile);
+        try{
+            FileChannel ch=fin.getChannel();
+            snapSize=ch.size();
+            DataInputStream in=new DataInputStream(new BufferInputStream(
+                    ch.map(FileChannel.MapMode.READ_ONLY,0,snapSize)));
+            CacheCodec.decode(c,in,CacheParser.LOAD);
+            CacheCodec codec=new CacheCodec();
+            int n=CacheCodec.readCount(in);
+            for(int i=0;i<n;i++){
+                Element e=c.getCurrentElement(codec.readString(in),
+                                              codec.readString(in));
+                setExpiration(c,e,CacheCodec.readVarint(in));
+            }
+        } finally{
+            fin.close();
+        }
+        logEnd=replay(c);
+    }
+
+    /** Replays the log over the snapshot just read.
+     * @return The length of the valid part of the log, or -1 if the log
+     * does not follow the snapshot */
+    private long replay(Cache c) throws IOException{
+        if(!logFile.exists()){
+            return -1;
+        }
+        DataInputStream in=new DataInputStream(new BufferedInputStream(
+                new FileInputStream(logFile)));
+        long pos;
+        int count=0;
+        String version=null;
+        try{
+            String base;
+            try{
+                if(in.read()!=CacheCodec.MAGIC||in.read()!=LOG_VERSION){
+                    throw new IOException("Unknown format");
+                }
+                base=in.readUTF();
+            } catch(IOException e){
+                // the snapshot is still good
+                logger.warn("Wrong header of the log: ignored"); //@@l
+                return -1;
+            }
+            if(!base.equals(c.getVersion())){
+                logger.warn("The log does not follow the snapshot: ignored"); //@@l
+                return -1;
+            }
+            pos=header(base).length;
+            CRC32 crc=new CRC32();
+            while(true){
+                try{
+                    int length=in.readInt();
+                    if(length<=0||length>MAX_RECORD){
+                        throw new IOException("Wrong length "+length);
+                    }
+                    int sum=in.readInt();
+                    byte[] b=new byte[length];
+                    in.readFully(b);
+                    crc.reset();
+                    crc.update(b);
+                    if((int)crc.getValue()!=sum){
+                        throw new IOException("Wrong checksum");
+                    }
+                    version=apply(c,b);
+                    pos+=8+length;
+                    count++;
+                } catch(java.io.EOFException e){
+                    if(pos<logFile.length()){
+                        logger.warn("Last record of the log incomplete"); //@@l
+                    }
+                    break;
+                } catch(IOException e){
+                    logger.warn("Log corrupted after "+pos+" bytes: "+e); //@@l
+                    break;
+                }
+            }
+        } finally{
+            in.close();
+        }
+        if(version!=null){
+            try{
+                c.setVersion(version);
+            } catch(IllegalArgumentException e){
+                logger.warn("Ignoring version: "+e.getMessage()); //@@l
+            }
+        }
+        logger.debug("Replayed "+count+" records of the log"); //@@l
+        return pos;
+    }
+
+    /** Applies a record of the log to a cache.
+     * @return The version of the cache after the record */
+    private String apply(Cache c,byte[] b) throws IOException{
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(b));
+        CacheCodec codec=new CacheCodec();
+        int op=CacheCodec.readCount(in);
+        String version=codec.readString(in);
+        Element e;
+        switch(op){
+        case ADD:
+            try{
+                e=codec.readElement(in,c);
+            } catch(Exception ex){
+                throw new IOException("Wrong element: "+ex);
+            }
+            long expires=CacheCodec.readVarint(in);
+            c.addElement(e);
+            setExpiration(c,e,expires);
+            break;
+        case REMOVE:
+            c.deleteElement(c.getCurrentElement(codec.readString(in),
+                                                codec.readString(in)));
+            break;
+        case LIFETIME:
+            e=c.getCurrentElement(codec.readString(in),codec.readString(in));
+            setExpiration(c,e,CacheCodec.readVarint(in));
+            break;
+        default:
+            throw new IOException("Unknown record: "+op);
+        }
+        return version;
+    }
+
+    /** Appends records to the log. While a compaction is running after
+     * unknown changes, the records do not follow the log: they are held
+     * until the new log is written. */
+    private void append(byte[] b) throws IOException{
+        Image im=compacting==null?null:compacting.image;
+        if(im!=null&&im.held!=null){
+            im.held.write(b);
+        } else{
+            log.write(b);
+        }
+    }
+
+    /** Writes a record of the log */
+    private void writeRecord(DataOutputStream o,int op,String version,
+                             String idcache,String id,Element e) throws
+            IOException{
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream p=new DataOutputStream(buf);
+        CacheCodec codec=new CacheCodec();
+        CacheCodec.writeVarint(p,op);
+        codec.writeString(p,version);
+        if(op==ADD){
+            codec.writeElement(p,e);
+        } else{
+            codec.writeString(p,idcache);
+            codec.writeString(p,id);
+        }
+        if(op!=REMOVE){
+            CacheCodec.writeVarint(p,Math.max(0,cache.getExpiration(e)));
+        }
+        byte[] b=buf.toByteArray();
+        CRC32 crc=new CRC32();
+        crc.update(b);
+        o.writeInt(b.length);
+        o.writeInt((int)crc.getValue());
+        o.write(b);
+    }
+
+    /** Sets the expiration time of an element read from the journal.
+     * Elements expired while the MSD was down expire in the next second. */
+    private static void setExpiration(Cache c,Element e,long expires){
+        if(e==null){
+            return;
+        }
+        if(expires<=0){
+            c.setLifetime(e,0);
+            return;
+        }
+        long left=(expires-System.currentTimeMillis()+999)/1000;
+        c.setLifetime(e,(int)Math.max(1,Math.min(Integer.MAX_VALUE,left)));
+    }
+
+    /** @return The header of a log following a snapshot of this version */
+    private static byte[] header(String version) throws IOException{
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream o=new DataOutputStream(buf);
+        o.write(CacheCodec.MAGIC);
+        o.write(LOG_VERSION);
+        o.writeUTF(version);
+        return buf.toByteArray();
+    }
+
+    /** The cache as it was at the end of a write, to be saved in a
+     * snapshot without its lock */
+    private class Image{
+        Cache c;
+        String version;
+        Object[] removed,childs;
+        /** Expiration times of the childs, 0 if they never expire */
+        long[] expires;
+        /** Length of the log when the image was taken, or -1 if the log
+         * does not follow the last snapshot */
+        long logEnd=-1;
+        /** The records written after the image, if the log does not
+         * follow the last snapshot */
+        ByteArrayOutputStream held=null;
+
+        /** Takes the image of a cache. Use with the lock of the cache. */
+        Image(Cache c) throws IOException{
+            this.c=c;
+            version=c.getVersion();
+            removed=c.getRemoved().toArray();
+            childs=c.getCurrentChilds();
+            expires=new long[childs.length];
+            for(int i=0;i<childs.length;i++){
+                expires[i]=Math.max(0,c.getExpiration((Element)childs[i]));
+            }
+            if(log!=null&&!broken&&c.getID().equals(lastID)&&
+               version.equals(lastVersion)){
+                logEnd=log.length();
+            } else{
+                held=new ByteArrayOutputStream();
+            }
+            lastVersion=version;
+            lastID=c.getID();
+        }
+
+        /** Writes the image in a temporary file of the snapshot.
+         * @return The file */
+        File write() throws IOException{
+            File tmp=File.createTempFile("snap",".tmp",dir());
+            FileOutputStream fout=new FileOutputStream(tmp);
+            try{
+                BufferedOutputStream out=new BufferedOutputStream(fout);
+                CacheCodec.encode(c,version,removed,childs,out);
+                DataOutputStream o=new DataOutputStream(out);
+                int n=0;
+                for(int i=0;i<expires.length;i++){
+                    if(expires[i]>0){
+                        n++;
+                    }
+                }
+                CacheCodec codec=new CacheCodec();
+                CacheCodec.writeVarint(o,n);
+                for(int i=0;i<childs.length;i++){
+                    if(expires[i]>0){
+                        Element el=(Element)childs[i];
+                        codec.writeString(o,el.getIDCache());
+                        codec.writeString(o,el.getID());
+                        CacheCodec.writeVarint(o,expires[i]);
+                    }
+                }
+                o.flush();
+                fout.getFD().sync();
+            } catch(IOException e){
+                fout.close();
+                tmp.delete();
+                throw e;
+            }
+            fout.close();
+            return tmp;
+        }
+    }
+
+    /** Writes a snapshot in background and installs it, unless the journal
+     * was compacted or closed meanwhile */
+    private class Compaction extends Thread{
+        Image image;
+
+        Compaction(Image image){
+            super("Journal compaction");
+            setDaemon(true);
+            this.image=image;
+        }
+
+        public void run(){
+            File tmp=null;
+            try{
+                tmp=image.write();
+            } catch(IOException e){
+                logger.warn("Journal not compacted: "+e); //@@l
+            }
+            synchronized(image.c){
+                try{
+                    if(compacting!=this){
+                        if(tmp!=null){
+                            tmp.delete();
+                        }
+                    } else if(tmp==null){
+                        broken=true;
+                    } else{
+                        install(image,tmp);
+                        logger.debug("Journal compacted: "+snapSize+ //@@l
+                                     " bytes"); //@@l
+                        compacting=null;
+                        if(broken){
+                            compactLater();
+                        }
+                    }
+                } catch(IOException e){
+                    logger.warn("Journal not compacted: "+e); //@@l
+                    broken=true;
+                } finally{
+                    if(compacting==this){
+                        compacting=null;
+                    }
+                }
+            }
+        }
+    }
+
+    /** Reads a buffer, as the snapshot mapped in memory */
+    private static class BufferInputStream extends InputStream{
+        private ByteBuffer buf;
+        BufferInputStream(ByteBuffer buf){
+            this.buf=buf;
+        }
+
+        public int read(){
+            return buf.hasRemaining()?buf.get()&0xFF:-1;
+        }
+
+        public int read(byte[] b,int off,int len){
+            if(!buf.hasRemaining()){
+                return -1;
+            }
+            len=Math.min(len,buf.remaining());
+            buf.get(b,off,len);
+            return len;
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.msd.cache;
+
+/** A listener for changes in a cache.
+ *
+ * The cache calls its listeners after the write is done and the cache is
+ * unlocked, in the thread that made the write. The events of the writes
+ * arrive in order, one listener call at a time: listeners may use the
+ * cache, but a slow listener delays the events of the other writes.
+ * @version $Revision: 1.1 $ */
+public interface CacheListener{
+    /** The element was removed from the cache */
+    public static final int REMOVED=0;
+    /** The lifetime of the element expired */
+    public static final int EXPIRED=1;
+    /** The element was added to the cache. Only for subscriptions */
+    public static final int ADDED=2;
+    /** The element changed. Only for subscriptions */
+    public static final int CHANGED=3;
+    /** The element was evicted because the cache was full */
+    public static final int EVICTED=4;
+
+    /** An element has been removed from the cache.
+     * @param e The event, with the element removed and the cause. */
+    public void elementRemoved(CacheEvent e);
+}
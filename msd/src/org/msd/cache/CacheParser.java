@@ -0,0 +1,213 @@
+package org.msd.cache;
+
+import java.io.InputStream;
+import java.io.FilterInputStream;
+import java.util.Vector;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+import org.xml.sax.Attributes;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+import org.apache.log4j.Logger; //@@l
+
+/** Reads caches and elements from XML as the bytes arrive.
+ *
+ * The parser creates the elements of the cache directly from the SAX
+ * events, without loading the whole document in memory nor creating a DOM
+ * structure. Each first level element is joined to the cache as soon as it
+ * is complete, so the memory used while reading is bounded by the size
+ * of an element.
+ * @version $Revision: 1.1 $ */
+class CacheParser extends DefaultHandler{
+    private static final Logger logger=Logger.getLogger(CacheParser.class); //@@l
+    /** Modes of the parser */
+    static final int LOAD=0,UPDATE=1,ELEMENT=2;
+    /** Factory of SAX parsers */
+    private static SAXParserFactory factory=SAXParserFactory.newInstance();
+
+    /** The cache creating the elements */
+    private Cache cache;
+    /** Mode of the parser: LOAD, UPDATE or ELEMENT */
+    private int mode;
+    /** Elements being read, from the first level to the current one */
+    private Vector stack=new Vector();
+    /** Depth of the current XML element inside the document */
+    private int depth=0;
+    /** If the elements must be ignored (the cache is a summary) */
+    private boolean ignore=false;
+    /** If a removed element is being read */
+    private boolean removedNode=false;
+    /** Version of the cache read */
+    private String version=null;
+    /** If an attribute is being read */
+    private boolean inAttr=false;
+    /** Name of the attribute being read */
+    private String attrName=null;
+    /** Value of the attribute being read */
+    private StringBuffer attrValue=new StringBuffer();
+    /** Identifier of the cache read */
+    private String idcache=null;
+    /** In ELEMENT mode, the element read */
+    private Element result=null;
+
+    /** @param cache The cache creating the elements
+     * @param mode LOAD, UPDATE or ELEMENT */
+    private CacheParser(Cache cache,int mode){
+        this.cache=cache;
+        this.mode=mode;
+    }
+
+    /** Reads a cache from a stream. The stream is not closed.
+     * @param cache The cache to read into.
+     * @param in The stream to read the XML from.
+     * @param mode LOAD to reset the cache before joining the elements and
+     * set its identifier, UPDATE to join the elements.
+     * @throws Exception If the stream does not contain a cache. */
+    static void parse(Cache cache,InputStream in,int mode) throws Exception{
+        CacheParser p=new CacheParser(cache,mode);
+        p.parse(in);
+        if(mode==LOAD){
+            cache.setID(p.idcache);
+            try{
+                if(p.version!=null){
+                    cache.setVersion(p.version);
+                }
+            } catch(IllegalArgumentException e){
+                logger.warn("Ignoring version: "+e.getMessage()); //@@l
+            }
+        }
+    }
+
+    /** Reads an element from a stream. The stream is not closed.
+     * @param cache The cache of the element. The element is not joined.
+     * @param in The stream to read the XML from.
+     * @return The element read
+     * @throws Exception If the stream does not contain an element. */
+    static Element parseElement(Cache cache,InputStream in) throws Exception{
+        CacheParser p=new CacheParser(cache,ELEMENT);
+        p.parse(in);
+        if(p.result==null){
+            throw new Exception("XML not valid: no element");
+        }
+        return p.result;
+    }
+
+    /** Parses the stream, without closing it */
+    private void parse(InputStream in) throws Exception{
+        SAXParser parser;
+        synchronized(factory){
+            parser=factory.newSAXParser();
+        }
+        parser.parse(new InputSource(new FilterInputStream(in){
+            public void close(){
+                // the stream belongs to the caller
+            }
+        }),this);
+    }
+
+    public void startElement(String uri,String localName,String qName,
+                             Attributes atts) throws SAXException{
+        depth++;
+        if(depth==1&&mode!=ELEMENT){
+            startCache(qName,atts);
+            return;
+        }
+        if(ignore){
+            return;
+        }
+        if(qName.equals(Cache.REMOVED_NAME)&&stack.isEmpty()&&mode!=ELEMENT){
+            String idc=atts.getValue(Cache.IDCACHE_NAME);
+            String id=atts.getValue(Cache.ID_NAME);
+            if(mode==LOAD){
+                cache.addRemoved(idc,id);
+            } else{
+                cache.deleteRemoved(idc,id);
+            }
+            removedNode=true;
+            return;
+        }
+        if(qName.equals(Cache.ATTR_NAME)&&!stack.isEmpty()){
+            inAttr=true;
+            attrName=atts.getValue(Cache.NAME_NAME);
+            attrValue.setLength(0);
+            return;
+        }
+        try{
+            Element e=cache.createElement(Cache.getType(qName,
+                    atts.getValue(Cache.TYPE_NAME)));
+            for(int i=0;i<atts.getLength();i++){
+                e.setProperty(atts.getQName(i),atts.getValue(i));
+            }
+            stack.add(e);
+        } catch(Exception ex){
+            throw new SAXException(ex.getMessage()+" ("+qName+")");
+        }
+    }
+
+    /** Reads the root of a cache */
+    private void startCache(String qName,Attributes atts) throws SAXException{
+        if(!qName.equals(Cache.CACHE_NAME)){
+            throw new SAXException("Doesn't seem a cache at all");
+        }
+        idcache=atts.getValue(Cache.IDCACHE_NAME);
+        if(idcache==null||idcache.length()==0){
+            throw new SAXException("Doesn't seem a cache: wrong cache id");
+        }
+        if(mode==LOAD){
+            cache.reset();
+        }
+        version=atts.getValue(Cache.VERSION_NAME);
+        String m=atts.getValue(Cache.MODE_NAME);
+        if(mode==LOAD){
+            // the loaded cache keeps its mode: it is joined later
+            cache.setMode(m==null||m.length()==0?"complete":m);
+        }
+        ignore=!cache.prepareJoin(idcache,m);
+        if("summary".equals(m)&&atts.getValue(Cache.DIGEST_NAME)!=null){
+            try{
+                cache.readSummary(idcache,CacheDigest.parse(atts.getValue(
+                        Cache.DIGEST_NAME)),mode==LOAD);
+            } catch(IllegalArgumentException e){
+                logger.warn("Ignoring digest: "+e.getMessage()); //@@l
+            }
+        }
+    }
+
+    public void characters(char[] ch,int start,int length){
+        if(inAttr){
+            attrValue.append(ch,start,length);
+        }
+    }
+
+    public void endElement(String uri,String localName,String qName) throws
+            SAXException{
+        depth--;
+        if(ignore||(depth==0&&mode!=ELEMENT)){
+            return;
+        }
+        if(removedNode){
+            removedNode=false;
+            return;
+        }
+        try{
+            if(inAttr){
+                Element e=(Element)stack.lastElement();
+                e.setAttrStr(attrName,attrValue.toString());
+                inAttr=false;
+                return;
+            }
+            Element e=(Element)stack.remove(stack.size()-1);
+            if(!stack.isEmpty()){
+                ((Element)stack.lastElement()).adopt(e);
+            } else if(mode==ELEMENT){
+                result=e;
+            } else{
+                cache.addElement(e);
+            }
+        } catch(Exception ex){
+            logger.warn("Error while reading element: "+ex); //@@l
+            throw new SAXException(ex.toString());
+        }
+    }
+}
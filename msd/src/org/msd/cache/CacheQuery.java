@@ -0,0 +1,448 @@
+package org.msd.cache;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Vector;
+
+/** A query over the childs of a cache.
+ *
+ * A query is a template, as in Cache.getElements(), plus some predicates
+ * the template can not express: the value of a field starts with a prefix,
+ * is a number in a range, or just exists. The results can be ordered by
+ * hops or confidence, and paged with an offset and a limit.
+ *
+ * The value of a field is the XML attribute with this name or, if the
+ * element does not have it, the attribute. Hops and confidence of services
+ * are 0 when not defined.
+ *
+ * Queries are planned against the indexes of the last snapshot of the
+ * cache: the candidates are taken from the smallest of the identifier,
+ * name and type indexes, the name prefix and the ranges of hops or
+ * confidence. When the results are ordered and limited, and the indexes
+ * do not narrow the candidates, the elements are walked in order until
+ * the limit is reached. So "the best 5 printers by hops" neither scans
+ * nor copies the whole cache.
+ *
+ * A query can be executed many times. Do not change it while executing.
+ * <pre>
+ * CacheQuery q=new CacheQuery(printer);
+ * q.setOrder(CacheQuery.BY_HOPS);
+ * q.setLimit(5);
+ * Collection best=cache.query(q);
+ * </pre>
+ * @version $Revision: 1.1 $ */
+public class CacheQuery{
+    /** Orders of the results: insertion order, fewest hops first and
+     * highest confidence first */
+    public static final int NONE=0,BY_HOPS=1,BY_CONFIDENCE=2;
+    /** Order by name, used to plan prefixes of names */
+    static final int BY_NAME=3;
+    /** Number of orders the snapshots can index */
+    static final int ORDERS=4;
+    /** If the results are limited and the indexes leave more candidates
+     * than this, walk the elements in order instead of sorting them */
+    public static final int SORT_LIMIT=256;
+    /** Kinds of predicates */
+    private static final int PREFIX=0,RANGE=1,EXISTS=2;
+    /** Names of the fields of services with an order */
+    private static final String HOPS="hops",CONFIDENCE="confidence";
+
+    /** The template of the results */
+    private ElementMatcher matcher;
+    /** Predicates of the results */
+    private Vector predicates=new Vector();
+    /** Order of the results */
+    private int order=NONE;
+    /** Number of results to skip */
+    private int offset=0;
+    /** Maximum number of results, or -1 for no limit */
+    private int limit=-1;
+
+    /** @param template The template of the results, as in
+     * Cache.getElements(). */
+    public CacheQuery(Element template){
+        this(ElementMatcher.compile(template));
+    }
+
+    /** @param matcher The compiled template of the results */
+    public CacheQuery(ElementMatcher matcher){
+        if(matcher==null){
+            throw new NullPointerException("The template is null");
+        }
+        this.matcher=matcher;
+    }
+
+    /** The value of a field must start with a prefix.
+     * @param field Name of the XML attribute or attribute
+     * @param prefix The prefix */
+    public void addPrefix(String field,String prefix){
+        predicates.add(new Predicate(PREFIX,field,prefix,0,0));
+    }
+
+    /** The value of a field must be a number between min and max, both
+     * included.
+     * @param field Name of the XML attribute or attribute
+     * @param min Minimum value
+     * @param max Maximum value */
+    public void addRange(String field,long min,long max){
+        predicates.add(new Predicate(RANGE,field,null,min,max));
+    }
+
+    /** The field must be defined.
+     * @param field Name of the XML attribute or attribute */
+    public void addExists(String field){
+        predicates.add(new Predicate(EXISTS,field,null,0,0));
+    }
+
+    /** @param order NONE, BY_HOPS or BY_CONFIDENCE */
+    public void setOrder(int order){
+        if(order<NONE||order>BY_CONFIDENCE){
+            throw new IllegalArgumentException("Unknown order: "+order);
+        }
+        this.order=order;
+    }
+
+    /** @return The order of the results */
+    public int getOrder(){
+        return order;
+    }
+
+    /** @param offset Number of results to skip, for paging */
+    public void setOffset(int offset){
+        this.offset=Math.max(0,offset);
+    }
+
+    /** @return The number of results to skip */
+    public int getOffset(){
+        return offset;
+    }
+
+    /** @param limit Maximum number of results. If negative, no limit */
+    public void setLimit(int limit){
+        this.limit=limit<0?-1:limit;
+    }
+
+    /** @return The maximum number of results, or -1 if there is no limit */
+    public int getLimit(){
+        return limit;
+    }
+
+    /** @return The compiled template of the results, without the
+     * predicates */
+    public ElementMatcher getMatcher(){
+        return matcher;
+    }
+
+    /** @param e An element
+     * @return Wether the element matches the template and every predicate */
+    public boolean matches(Element e){
+        if(!matcher.matches(e)){
+            return false;
+        }
+        for(int i=0;i<predicates.size();i++){
+            if(!((Predicate)predicates.elementAt(i)).test(e)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Executes the query over the childs of a cache.
+     * @param cache The cache
+     * @return A collection with the results, in order */
+    public Collection execute(Cache cache){
+        Vector v=new Vector();
+        for(Iterator i=iterator(cache);i.hasNext();){
+            v.add(i.next());
+        }
+        return v;
+    }
+
+    /** Executes the query over the childs of a cache, finding the results
+     * while iterating. The iterator works on the snapshot of the cache
+     * when this method is called, so it does not see later changes.
+     * @param cache The cache
+     * @return An iterator over the results, in order. It does not support
+     * remove(). */
+    public Iterator iterator(Cache cache){
+        CacheSnapshot s=cache.getSnapshot();
+        Candidates c=plan(s);
+        if(order!=NONE&&!c.ordered){
+            // sort the matches: just the candidates are tested and copied
+            Vector v=new Vector();
+            for(Iterator i=c.iterator();i.hasNext();){
+                Element e=(Element)i.next();
+                if(matches(e)){
+                    v.add(e);
+                }
+            }
+            Object[] o=v.toArray();
+            Arrays.sort(o,comparator(order));
+            c=new Candidates(o,0,o.length,true);
+        }
+        return new Results(c.iterator());
+    }
+
+    /** Chooses the candidates of the query in a snapshot */
+    private Candidates plan(CacheSnapshot s){
+        Candidates best=new Candidates(s.index.getCandidates(matcher));
+        Candidates inOrder=null;
+        for(int i=0;i<predicates.size();i++){
+            Predicate p=(Predicate)predicates.elementAt(i);
+            Candidates c=null;
+            if(p.kind==PREFIX&&p.field.equals(Cache.NAME_NAME)){
+                if(worth(s,BY_NAME,best)){
+                    c=range(s,BY_NAME,p.prefix,null);
+                }
+            } else if(p.kind==RANGE&&p.field.equals(HOPS)){
+                if(worth(s,BY_HOPS,best)){
+                    c=range(s,BY_HOPS,new Long(p.min),new Long(p.max));
+                }
+            } else if(p.kind==RANGE&&p.field.equals(CONFIDENCE)){
+                if(worth(s,BY_CONFIDENCE,best)){
+                    c=range(s,BY_CONFIDENCE,new Long(p.max),new Long(p.min));
+                }
+            }
+            if(c==null){
+                continue;
+            }
+            if(c.ordered&&(inOrder==null||c.size()<inOrder.size())){
+                inOrder=c;
+            }
+            if(c.size()<best.size()){
+                best=c;
+            }
+        }
+        if(best.ordered||order==NONE||limit<0||best.size()<=SORT_LIMIT){
+            return best;
+        }
+        if(inOrder==null){
+            Element[] o=s.getOrdered(order);
+            inOrder=new Candidates(o,0,o.length,true);
+        }
+        return inOrder;
+    }
+
+    /** Tells if a range of an order may be used as candidates. Sorting the
+     * snapshot costs more than testing a few candidates, so an order not
+     * sorted yet is only sorted if the best candidates are many.
+     * @param s The snapshot
+     * @param o The order of the range
+     * @param best The best candidates found
+     * @return True if the range should be found */
+    private static boolean worth(CacheSnapshot s,int o,Candidates best){
+        return s.isOrdered(o)||best.size()>SORT_LIMIT;
+    }
+
+    /** Returns the elements of a snapshot between two keys of an order.
+     * @param s The snapshot
+     * @param o The order
+     * @param from The first key, included.
+     * @param to The last key, included. If null, the elements whose key
+     * starts with from (only for BY_NAME).
+     * @return The candidates */
+    private Candidates range(CacheSnapshot s,int o,Object from,Object to){
+        Element[] e=s.getOrdered(o);
+        int first=lowerBound(e,o,from);
+        int last=first;
+        if(to==null){
+            String prefix=(String)from;
+            while(last<e.length&&((String)key(e[last],o)).startsWith(prefix)){
+                last++;
+            }
+        } else{
+            Comparator c=keyComparator(o);
+            while(last<e.length&&c.compare(key(e[last],o),to)<=0){
+                last++;
+            }
+        }
+        return new Candidates(e,first,last,o==order);
+    }
+
+    /** @return The position of the first element whose key is not lesser
+     * than k in the order */
+    private static int lowerBound(Element[] e,int o,Object k){
+        Comparator c=keyComparator(o);
+        int lo=0,hi=e.length;
+        while(lo<hi){
+            int mid=(lo+hi)>>>1;
+            if(c.compare(key(e[mid],o),k)<0){
+                lo=mid+1;
+            } else{
+                hi=mid;
+            }
+        }
+        return lo;
+    }
+
+    /** @param o An order other than NONE
+     * @return A comparator of elements in this order */
+    static Comparator comparator(final int o){
+        final Comparator c=keyComparator(o);
+        return new Comparator(){
+            public int compare(Object a,Object b){
+                return c.compare(key((Element)a,o),key((Element)b,o));
+            }
+        };
+    }
+
+    /** @return A comparator of the keys of an order */
+    private static Comparator keyComparator(final int o){
+        return new Comparator(){
+            public int compare(Object a,Object b){
+                int r=((Comparable)a).compareTo(b);
+                return o==BY_CONFIDENCE?-r:r;
+            }
+        };
+    }
+
+    /** @return The key of an element in an order: a String for BY_NAME,
+     * a Long for the others */
+    private static Object key(Element e,int o){
+        if(o==BY_NAME){
+            String n=e.getName();
+            return n==null?"":n;
+        }
+        return new Long(number(e,o==BY_HOPS?HOPS:CONFIDENCE));
+    }
+
+    /** @return The value of a field of an element, or null */
+    private static String value(Element e,String field){
+        String v=e.getProperty(field);
+        return v!=null?v:e.getAttrStr(field);
+    }
+
+    /** @return The numeric value of a field of an element, or -1 if it is
+     * not defined or not a number */
+    private static long number(Element e,String field){
+        if(e instanceof Service){
+            if(field.equals(HOPS)){
+                return((Service)e).getHops();
+            } else if(field.equals(CONFIDENCE)){
+                return((Service)e).getConfidence();
+            }
+        }
+        String v=value(e,field);
+        if(v==null){
+            return -1;
+        }
+        try{
+            return Long.parseLong(v.trim());
+        } catch(NumberFormatException ex){
+            return -1;
+        }
+    }
+
+    /** A predicate over a field */
+    private static class Predicate{
+        int kind;
+        String field,prefix;
+        long min,max;
+        Predicate(int kind,String field,String prefix,long min,long max){
+            if(field==null){
+                throw new NullPointerException("The field is null");
+            }
+            this.kind=kind;
+            this.field=field;
+            this.prefix=prefix==null?"":prefix;
+            this.min=min;
+            this.max=max;
+        }
+
+        boolean test(Element e){
+            switch(kind){
+            case PREFIX:
+                String v=value(e,field);
+                return v!=null&&v.startsWith(prefix);
+            case RANGE:
+                long n=number(e,field);
+                return n>=0&&n>=min&&n<=max;
+            default:
+                return value(e,field)!=null||
+                        (e instanceof Service&&number(e,field)>0);
+            }
+        }
+    }
+
+    /** Candidates of a query: a range of an array, or a collection */
+    private static class Candidates{
+        Object[] array;
+        int from,to;
+        Collection col;
+        /** If the candidates are in the order of the query */
+        boolean ordered;
+
+        Candidates(Object[] array,int from,int to,boolean ordered){
+            this.array=array;
+            this.from=from;
+            this.to=to;
+            this.ordered=ordered;
+        }
+
+        Candidates(Collection col){
+            this.col=col;
+        }
+
+        int size(){
+            return col!=null?col.size():to-from;
+        }
+
+        Iterator iterator(){
+            if(col!=null){
+                return col.iterator();
+            }
+            return Arrays.asList(array).subList(from,to).iterator();
+        }
+    }
+
+    /** Iterator over the candidates matching the query, with the offset
+     * and the limit applied */
+    private class Results implements Iterator{
+        private Iterator candidates;
+        private Element next=null;
+        private int skipped=0,returned=0;
+
+        Results(Iterator candidates){
+            this.candidates=candidates;
+        }
+
+        public boolean hasNext(){
+            if(next!=null){
+                return true;
+            }
+            if(limit>=0&&returned>=limit){
+                return false;
+            }
+            while(candidates.hasNext()){
+                Element e=(Element)candidates.next();
+                if(!matches(e)){
+                    continue;
+                }
+                if(skipped<offset){
+                    skipped++;
+                    continue;
+                }
+                next=e;
+                return true;
+            }
+            return false;
+        }
+
+        public Object next(){
+            if(!hasNext()){
+                throw new NoSuchElementException();
+            }
+            Element e=next;
+            next=null;
+            returned++;
+            return e;
+        }
+
+        public void remove(){
+            throw new UnsupportedOperationException();
+        }
+    }
+}
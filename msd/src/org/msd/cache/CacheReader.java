@@ -0,0 +1,176 @@
+package org.msd.cache;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.DTDHandler;
+import org.xml.sax.EntityResolver;
+import org.xml.sax.ErrorHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.AttributesImpl;
+
+/** Writes a cache as SAX events, the reverse of CacheParser.
+ *
+ * The events are the same as parsing the XML written by
+ * XMLTools.saveCacheToStream(), but they are created directly from the
+ * elements of the cache: the cache is neither written to bytes nor
+ * converted to a DOM structure. Use it as the source of a transformation:
+ * <pre>
+ * new SAXSource(new CacheReader(cache),new InputSource())
+ * </pre>
+ * The input source is ignored: the reader always writes its cache.
+ * @version $Revision: 1.1 $ */
+class CacheReader implements XMLReader{
+    /** The cache to write */
+    private Cache cache;
+    private ContentHandler content=null;
+    private DTDHandler dtd=null;
+    private EntityResolver resolver=null;
+    private ErrorHandler errors=null;
+    /** Features set by the users. The reader ignores them. */
+    private Hashtable features=new Hashtable();
+    /** Properties set by the users. The reader ignores them. */
+    private Hashtable properties=new Hashtable();
+
+    /** @param cache The cache to write */
+    CacheReader(Cache cache){
+        this.cache=cache;
+    }
+
+    public void parse(InputSource input) throws SAXException{
+        if(content==null){
+            return;
+        }
+        AttributesImpl a=new AttributesImpl();
+        content.startDocument();
+        addAttribute(a,Cache.IDCACHE_NAME,cache.getID());
+        addAttribute(a,Cache.MODE_NAME,cache.getMode());
+        addAttribute(a,Cache.VERSION_NAME,cache.getVersion());
+        if(cache.getDigest()!=null){
+            addAttribute(a,Cache.DIGEST_NAME,cache.getDigest().toString());
+        }
+        startElement(Cache.CACHE_NAME,a);
+        Object r[]=cache.getRemoved().toArray();
+        for(int i=0;i<r.length;i++){
+            String[] ids=(String[])r[i];
+            a.clear();
+            addAttribute(a,Cache.IDCACHE_NAME,ids[0]);
+            addAttribute(a,Cache.ID_NAME,ids[1]);
+            startElement(Cache.REMOVED_NAME,a);
+            endElement(Cache.REMOVED_NAME);
+        }
+        Object o[]=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            writeElement((Element)o[i],a);
+        }
+        endElement(Cache.CACHE_NAME);
+        content.endDocument();
+    }
+
+    public void parse(String systemId) throws SAXException{
+        parse((InputSource)null);
+    }
+
+    /** Writes the events of an element and its childs.
+     * @param e The element
+     * @param a Attributes to reuse */
+    private void writeElement(Element e,AttributesImpl a) throws SAXException{
+        a.clear();
+        addAttribute(a,Cache.NAME_NAME,e.getName());
+        addAttribute(a,Cache.IDCACHE_NAME,e.getProperty(Cache.IDCACHE_NAME));
+        addAttribute(a,Cache.ID_NAME,e.getProperty(Cache.ID_NAME));
+        for(Iterator i=e.getPropertyNames().iterator();i.hasNext();){
+            String k=(String)i.next();
+            addAttribute(a,k,e.getProperty(k));
+        }
+        String type=e.getTypeName();
+        startElement(type,a);
+        Object attrs[]=e.getAttribNames().toArray();
+        for(int i=0;i<attrs.length;i++){
+            a.clear();
+            addAttribute(a,Cache.NAME_NAME,(String)attrs[i]);
+            startElement(Cache.ATTR_NAME,a);
+            String v=e.getAttrStr((String)attrs[i]);
+            if(v!=null){
+                content.characters(v.toCharArray(),0,v.length());
+            }
+            endElement(Cache.ATTR_NAME);
+        }
+        Object childs[]=e.getChilds().toArray();
+        for(int i=0;i<childs.length;i++){
+            writeElement((Element)childs[i],a);
+        }
+        endElement(type);
+    }
+
+    /** Adds an attribute. If value is null, adds nothing. */
+    private static void addAttribute(AttributesImpl a,String name,String value){
+        if(value!=null){
+            a.addAttribute("",name,name,"CDATA",value);
+        }
+    }
+
+    private void startElement(String name,AttributesImpl a) throws
+            SAXException{
+        content.startElement("",name,name,a);
+    }
+
+    private void endElement(String name) throws SAXException{
+        content.endElement("",name,name);
+    }
+
+    public boolean getFeature(String name){
+        Boolean b=(Boolean)features.get(name);
+        return b!=null&&b.booleanValue();
+    }
+
+    public void setFeature(String name,boolean value){
+        features.put(name,value?Boolean.TRUE:Boolean.FALSE);
+    }
+
+    public Object getProperty(String name){
+        return properties.get(name);
+    }
+
+    public void setProperty(String name,Object value){
+        if(value==null){
+            properties.remove(name);
+        } else{
+            properties.put(name,value);
+        }
+    }
+
+    public void setEntityResolver(EntityResolver resolver){
+        this.resolver=resolver;
+    }
+
+    public EntityResolver getEntityResolver(){
+        return resolver;
+    }
+
+    public void setDTDHandler(DTDHandler handler){
+        this.dtd=handler;
+    }
+
+    public DTDHandler getDTDHandler(){
+        return dtd;
+    }
+
+    public void setContentHandler(ContentHandler handler){
+        this.content=handler;
+    }
+
+    public ContentHandler getContentHandler(){
+        return content;
+    }
+
+    public void setErrorHandler(ErrorHandler handler){
+        this.errors=handler;
+    }
+
+    public ErrorHandler getErrorHandler(){
+        return errors;
+    }
+}
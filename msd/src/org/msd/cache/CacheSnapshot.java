@@ -0,0 +1,91 @@
+package org.msd.cache;
+
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.Collection;
+
+/** An immutable view of the childs of a cache and their indexes.
+ *
+ * The cache is shared by the threads managing the connections, the
+ * service discovery managers and the browsers. Writers change the cache
+ * holding its lock, and the first reader after a write publishes a new
+ * snapshot. Readers take the last snapshot published and work on it
+ * without locking: they never see a half joined cache, and a writer never
+ * waits for them.
+ *
+ * The snapshot fixes the set of elements and the indexes, not the elements
+ * themselves: an element changed in the cache is changed in every snapshot.
+ * @version $Revision: 1.1 $ */
+class CacheSnapshot{
+    /** An empty snapshot */
+    static final CacheSnapshot EMPTY=new CacheSnapshot(new Element[0],
+            new CacheIndex());
+    /** The childs of the cache, in order of insertion */
+    private final Element[] elements;
+    /** Indexes of the childs. Never modified */
+    final CacheIndex index;
+    /** The childs as an unmodifiable collection */
+    final Collection childs=new Childs();
+    /** The childs in the orders of CacheQuery, sorted when first needed */
+    private Element[][] ordered=new Element[CacheQuery.ORDERS][];
+
+    /** @param elements The childs of the cache. Not copied.
+     * @param index A copy of the indexes of the childs. Not copied. */
+    CacheSnapshot(Element[] elements,CacheIndex index){
+        this.elements=elements;
+        this.index=index;
+    }
+
+    /** @param col A collection of elements
+     * @return The indexes of col if col are the childs of a snapshot.
+     * Else, null */
+    static CacheIndex indexOf(Collection col){
+        if(col instanceof Childs){
+            return((Childs)col).getIndex();
+        }
+        return null;
+    }
+
+    /** @param order An order of CacheQuery other than NONE
+     * @return True if the childs are already sorted in the order */
+    synchronized boolean isOrdered(int order){
+        return ordered[order]!=null;
+    }
+
+    /** Returns the childs sorted in an order. The childs are sorted the
+     * first time an order is asked for, and then shared by every query on
+     * this snapshot.
+     * @param order An order of CacheQuery other than NONE
+     * @return The childs in order. Do not modify. */
+    synchronized Element[] getOrdered(int order){
+        if(ordered[order]==null){
+            Element[] e=new Element[elements.length];
+            System.arraycopy(elements,0,e,0,elements.length);
+            Arrays.sort(e,CacheQuery.comparator(order));
+            ordered[order]=e;
+        }
+        return ordered[order];
+    }
+
+    /** The childs of a snapshot. Any attempt to modify it throws an
+     * UnsupportedOperationException. */
+    private class Childs extends AbstractList{
+        public Object get(int i){
+            return elements[i];
+        }
+
+        public int size(){
+            return elements.length;
+        }
+
+        public Object[] toArray(){
+            Object[] o=new Object[elements.length];
+            System.arraycopy(elements,0,o,0,elements.length);
+            return o;
+        }
+
+        CacheIndex getIndex(){
+            return index;
+        }
+    }
+}
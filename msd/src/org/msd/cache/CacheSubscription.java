@@ -0,0 +1,123 @@
+package org.msd.cache;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Vector;
+
+/** A subscription to the elements of a cache matching a query.
+ *
+ * After every change of the cache, the subscription tests the elements
+ * changed since its last test and informs its listener about the elements
+ * added, changed or removed from the matches. The elements not changed are
+ * not tested again. The order, offset and limit of the query are ignored.
+ * <pre>
+ * CacheSubscription s=cache.subscribe(new CacheQuery(printer),listener);
+ * Collection printers=s.getElements();
+ * ...
+ * cache.unsubscribe(s);
+ * </pre>
+ * @see Cache#subscribe(CacheQuery,SubscriptionListener)
+ * @version $Revision: 1.1 $ */
+public class CacheSubscription{
+    /** Separator between idcache and id in the keys of matches */
+    private static final String SEP="\n";
+    private CacheQuery query;
+    private SubscriptionListener listener;
+    /** Elements matching the query. Key: idcache+SEP+id. Object: Element */
+    private HashMap matches=new HashMap();
+    /** Version of the cache the matches were tested against */
+    private String version;
+
+    /** Creates a subscription with the current matches of the cache */
+    CacheSubscription(Cache cache,CacheQuery query,
+                      SubscriptionListener listener){
+        if(query==null||listener==null){
+            throw new NullPointerException("Null query or listener");
+        }
+        this.query=query;
+        this.listener=listener;
+        version=cache.getVersion();
+        Object o[]=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(query.matches(e)){
+                matches.put(key(e.getIDCache(),e.getID()),e);
+            }
+        }
+    }
+
+    /** @return The query of this subscription */
+    public CacheQuery getQuery(){
+        return query;
+    }
+
+    /** @return The elements matching the query after the last change of
+     * the cache, in no order. */
+    public synchronized Collection getElements(){
+        return new Vector(matches.values());
+    }
+
+    /** Tests the elements changed since the last test.
+     * @param cache The cache, after a write
+     * @return The events to send to the listener */
+    synchronized Collection update(Cache cache){
+        Vector events=new Vector();
+        String v=cache.getVersion();
+        if(v.equals(version)){
+            return events;
+        }
+        Collection changes=cache.getChanges(version);
+        version=v;
+        if(changes==null){
+            // the changes are unknown: test every element
+            HashMap old=matches;
+            matches=new HashMap();
+            Object o[]=cache.getChilds().toArray();
+            for(int i=0;i<o.length;i++){
+                Element e=(Element)o[i];
+                String k=key(e.getIDCache(),e.getID());
+                if(query.matches(e)){
+                    matches.put(k,e);
+                    events.add(new CacheEvent(cache,e,old.remove(k)==null?
+                                              CacheListener.ADDED:
+                                              CacheListener.CHANGED));
+                }
+            }
+            for(Iterator i=old.values().iterator();i.hasNext();){
+                events.add(new CacheEvent(cache,(Element)i.next(),
+                                          CacheListener.REMOVED));
+            }
+            return events;
+        }
+        Object o[]=changes.toArray();
+        for(int i=0;i<o.length;i++){
+            String[] ids=(String[])o[i];
+            String k=key(ids[0],ids[1]);
+            Element e=cache.getElement(ids[0],ids[1]);
+            Element before=(Element)matches.get(k);
+            if(e!=null&&query.matches(e)){
+                matches.put(k,e);
+                events.add(new CacheEvent(cache,e,before==null?
+                                          CacheListener.ADDED:
+                                          CacheListener.CHANGED));
+            } else if(before!=null){
+                matches.remove(k);
+                events.add(new CacheEvent(cache,before,CacheListener.REMOVED));
+            }
+        }
+        return events;
+    }
+
+    /** Sends events to the listener */
+    void fire(Collection events){
+        for(Iterator i=events.iterator();i.hasNext();){
+            listener.elementMatched(this,(CacheEvent)i.next());
+        }
+    }
+
+    /** @return The key of an element in matches */
+    private static String key(String idcache,String id){
+        return idcache+SEP+id;
+    }
+}
@@ -0,0 +1,156 @@
+package org.msd.cache;
+
+import java.security.MessageDigest;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Iterator;
+
+/** A hash tree over a collection of elements, for anti-entropy.
+ *
+ * The elements are partitioned in buckets by idcache, and the elements of
+ * each bucket in LEAVES leaves by the hash of their identifier. The hash
+ * of a leaf is the sum of the hashes of its elements, and the hash of a
+ * bucket combines the hashes of its leaves. Two MSDs compare the hashes
+ * of their buckets, then the leaves of the buckets that differ, and then
+ * exchange only the elements of the leaves that differ: the traffic is
+ * proportional to the divergence, not to the size of the caches.
+ *
+ * The hash of an element ignores what changes while the element travels
+ * from MSD to MSD: its networks, gateway, hops and confidence. So an
+ * element has the same hash in its original cache and in every copy.
+ *
+ * A tree is a picture of the elements when it was created: create a new
+ * tree to see later changes.
+ * @version $Revision: 1.1 $ */
+public class CacheTree{
+    /** Number of leaves of each bucket */
+    public static final int LEAVES=16;
+    /** XML attributes ignored by the hashes */
+    private static final String[] IGNORED={"gw","hops","confidence",
+            Cache.IDCACHE_NAME,Cache.ID_NAME,Cache.NAME_NAME};
+
+    /** Key: idcache. Object: long[LEAVES] with the hashes of the leaves */
+    private Hashtable buckets=new Hashtable();
+
+    /** @param elements The elements of the tree, as the childs of a cache
+     * or the result of a query over them */
+    public CacheTree(Collection elements){
+        Object o[]=elements.toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            String idc=e.getIDCache();
+            if(idc==null||e.getID()==null){
+                continue;
+            }
+            long[] l=(long[])buckets.get(idc);
+            if(l==null){
+                l=new long[LEAVES];
+                buckets.put(idc,l);
+            }
+            l[leafOf(e.getID())]+=hash(e);
+        }
+    }
+
+    /** @return The identifiers of the caches with elements in this tree */
+    public Collection getIDCaches(){
+        return buckets.keySet();
+    }
+
+    /** @param idcache The identifier of a cache
+     * @return The hash of its bucket, or 0 if the tree has no elements
+     * from this cache */
+    public long getBucket(String idcache){
+        long[] l=(long[])buckets.get(idcache);
+        if(l==null){
+            return 0;
+        }
+        long h=17;
+        for(int i=0;i<l.length;i++){
+            h=h*31+l[i];
+        }
+        return h;
+    }
+
+    /** @param idcache The identifier of a cache
+     * @return The hashes of the leaves of its bucket. All zero if the tree
+     * has no elements from this cache. */
+    public long[] getLeaves(String idcache){
+        long[] l=(long[])buckets.get(idcache);
+        return l==null?new long[LEAVES]:(long[])l.clone();
+    }
+
+    /** @param id The identifier of an element
+     * @return The leaf of the element in its bucket */
+    public static int leafOf(String id){
+        return(id.hashCode()&0x7FFFFFFF)%LEAVES;
+    }
+
+    /** Returns the hash of an element. The networks, gateway, hops and
+     * confidence of the element are ignored.
+     * @param e The element
+     * @return The first 64 bits of the MD5 of the element */
+    public static long hash(Element e){
+        try{
+            MessageDigest md=MessageDigest.getInstance("MD5");
+            update(md,e);
+            byte[] d=md.digest();
+            long h=0;
+            for(int i=0;i<8;i++){
+                h=h<<8|(d[i]&0xFF);
+            }
+            return h;
+        } catch(java.security.NoSuchAlgorithmException ex){
+            // every Java platform has MD5
+            throw new RuntimeException(ex.toString());
+        }
+    }
+
+    /** Adds an element to a digest, in an order independent of the order
+     * of its XML attributes, attributes and childs */
+    private static void update(MessageDigest md,Element e){
+        StringBuffer b=new StringBuffer();
+        b.append(e.getType()).append('\n');
+        b.append(e.getIDCache()).append('\n');
+        b.append(e.getID()).append('\n');
+        b.append(e.getName()).append('\n');
+        Object n[]=e.getPropertyNames().toArray();
+        Arrays.sort(n);
+        for(int i=0;i<n.length;i++){
+            if(!ignored((String)n[i])){
+                b.append(n[i]).append('=').append(e.getProperty((String)n[i])).
+                        append('\n');
+            }
+        }
+        n=e.getAttribNames().toArray();
+        Arrays.sort(n);
+        for(int i=0;i<n.length;i++){
+            b.append('@').append(n[i]).append('=').
+                    append(e.getAttrStr((String)n[i])).append('\n');
+        }
+        // childs: the sum of their hashes does not depend on their order
+        long childs=0;
+        for(Iterator i=e.getChilds().iterator();i.hasNext();){
+            Element c=(Element)i.next();
+            if(c.getType()!=Element.NETWORK){
+                childs+=hash(c);
+            }
+        }
+        b.append(childs);
+        try{
+            md.update(b.toString().getBytes("UTF-8"));
+        } catch(java.io.UnsupportedEncodingException ex){
+            md.update(b.toString().getBytes());
+        }
+    }
+
+    /** @return If an XML attribute is ignored by the hashes */
+    private static boolean ignored(String name){
+        for(int i=0;i<IGNORED.length;i++){
+            if(IGNORED[i].equals(name)){
+                return true;
+            }
+        }
+        return false;
+    }
+}
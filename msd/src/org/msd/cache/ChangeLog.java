@@ -0,0 +1,139 @@
+package org.msd.cache;
+
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Vector;
+
+/** Version and bounded log of changes of a cache.
+ *
+ * Every time an element of the cache is added, removed or changed the
+ * version of the cache is increased and the identifiers of the element are
+ * logged. Other MSDs can ask for the elements changed since a version
+ * they know, instead of the whole cache. Only the last changes are
+ * remembered: if the version asked for is too old, the whole cache must
+ * be sent.
+ *
+ * Versions are only comparable inside the same epoch. The epoch is chosen
+ * randomly when the cache is created or reset.
+ * @version $Revision: 1.1 $ */
+class ChangeLog{
+    /** Identifiers of the changed elements, in a circular buffer */
+    private String[] idcaches,ids;
+    /** Versions of the changes */
+    private long[] versions;
+    /** Position of the oldest change in the buffer */
+    private int start=0;
+    /** Number of changes in the buffer */
+    private int size=0;
+    /** Epoch of the versions */
+    private long epoch;
+    /** Current version */
+    private long version=0;
+    /** Changes with a version lesser or equal than this one are lost */
+    private long lost=0;
+
+    /** @param capacity Maximum number of changes to remember */
+    ChangeLog(int capacity){
+        idcaches=new String[capacity];
+        ids=new String[capacity];
+        versions=new long[capacity];
+        clear();
+    }
+
+    /** Logs a change in an element and increases the version.
+     * @param idcache Identifier of the cache of the element
+     * @param id Identifier of the element */
+    synchronized void add(String idcache,String id){
+        version++;
+        if(idcaches.length==0){
+            lost=version;
+            return;
+        }
+        int pos=(start+size)%idcaches.length;
+        if(size==idcaches.length){
+            // the buffer is full: forget the oldest change
+            lost=versions[start];
+            start=(start+1)%idcaches.length;
+        } else{
+            size++;
+        }
+        idcaches[pos]=idcache;
+        ids[pos]=id;
+        versions[pos]=version;
+    }
+
+    /** Forgets every change and starts a new epoch. */
+    synchronized void clear(){
+        for(int i=0;i<idcaches.length;i++){
+            idcaches[i]=null;
+            ids[i]=null;
+        }
+        start=0;
+        size=0;
+        epoch=Math.abs(new java.util.Random().nextLong()%1000000000L)+1;
+        version=0;
+        lost=0;
+    }
+
+    /** @return The current version as epoch/version */
+    synchronized String getVersion(){
+        return epoch+"/"+version;
+    }
+
+    /** Sets the version and forgets every change: the changes until
+     * this version are unknown.
+     * @param v A version as returned by getVersion().
+     * @throws IllegalArgumentException If v is not a valid version */
+    synchronized void setVersion(String v){
+        long[] ev=parse(v);
+        if(ev==null){
+            throw new IllegalArgumentException("Not a version: "+v);
+        }
+        clear();
+        epoch=ev[0];
+        version=ev[1];
+        lost=version;
+    }
+
+    /** Returns the elements changed since a version.
+     * @param v A version as returned by getVersion()
+     * @return A collection of String[]{idcache,id} with the identifiers of
+     * every element changed after v, each once. Null if the changes are
+     * unknown: v is from other epoch, not valid or too old. */
+    synchronized Collection since(String v){
+        long[] ev=parse(v);
+        if(ev==null||ev[0]!=epoch||ev[1]>version||ev[1]<lost){
+            return null;
+        }
+        Hashtable seen=new Hashtable();
+        Vector changes=new Vector();
+        for(int i=0;i<size;i++){
+            int pos=(start+i)%idcaches.length;
+            if(versions[pos]<=ev[1]){
+                continue;
+            }
+            String key=idcaches[pos]+"\n"+ids[pos];
+            if(seen.put(key,key)==null){
+                changes.add(new String[]{idcaches[pos],ids[pos]});
+            }
+        }
+        return changes;
+    }
+
+    /** @return {epoch,version} from a version string, or null */
+    private static long[] parse(String v){
+        if(v==null){
+            return null;
+        }
+        int i=v.indexOf('/');
+        if(i<0){
+            return null;
+        }
+        try{
+            return new long[]{Long.parseLong(v.substring(0,i)),
+                    Long.parseLong(v.substring(i+1))};
+        } catch(NumberFormatException e){
+            return null;
+        }
+    }
+}
@@ -5,18 +5,21 @@ import java.util.Vector;
 import java.util.Collection;
 import java.io.*;
 import org.apache.log4j.Logger; //@@l
-import java.util.Hashtable;
 
 /** This class stores an abstract element information in the cache.
- * It works as an interface to the org.w3c.dom.Element class. You
- * must extend this class to provice concrete elements: services,
+ * You must extend this class to provice concrete elements: services,
  * and classes, and nettworks... but using always to store and retrieve
  * informetion the methods of this class. For example, if a service must
  * save and restore the URL of the server, write two methods like this in
  * Service class (extending Element):
  * <pre>public void setURL(String url){ setAttrStr("url",url); }
  * public String getURL(){ return setAttrStr("url"); }</pre>
- * @version $Revision: 1.13 $
+ *
+ * The information is not stored as DOM but in compact arrays of names
+ * and values shared through the table of symbols of the cache (see
+ * Symbols). The XML of the element is only created when it is saved or
+ * sent: see XMLTools.
+ * @version $Revision: 1.14 $
  * @date $Date: 2005-08-24 17:08:50 $ */
 public abstract class Element{
     Logger logger=Logger.getLogger(Element.class); //@@l
@@ -30,25 +33,38 @@ public abstract class Element{
     public final static int PROXY=4;
     public final static int USER=5;
 
+    /** An empty array of names and values */
+    private static final String[] EMPTY=new String[0];
+
     /** Element's name */
     private String name;
-    /** Reference's identifier.
+    /** Identifier of the element in its original cache */
+    private String id=null;
     /** Identifier of the cache which creates this element. */
     private String idcache=null;
-    /** DOM element actualy storing the information */
-    private org.w3c.dom.Element node;
-    /** Names of aatributes of this element.
-     * The key is the names, refering to the DOM attributes */
-//    Hashtable<String,org.w3c.dom.Element> attribs;   //@@1.5
-    Hashtable attribs; //@@1.4
+    /** XML attributes other than name, id and idcache:
+     * name0,value0,name1,value1... Names and short values are symbols.
+     * Never modified: a change replaces the whole array, so readers without
+     * the lock of the cache always see a complete one. */
+    private volatile String[] props=EMPTY;
+    /** Attributes of this element: name0,value0,name1,value1...
+     * Names and short values are symbols. Never modified, as props. */
+    private volatile String[] attrs=EMPTY;
     /** Childs of this element. Includes just the first level childs:
      * classes, proxies, networks... */
 //    private Collection<Element> childs;    //@@1.5
     private Vector childs; //@@1.4
+    /** The element this one is a child of, or null */
+    private Element parent=null;
     /** Reference to the cache that is storing us. */
     private Cache cache;
     /** Wether the element has been joined to the cache. Set by the cache */
     private boolean joined=false;
+    /** Estimated bytes of the element when it was joined. Set by the cache */
+    int weight=0;
+    /** Last time the element was joined or found, in milliseconds. Set by
+     * the cache */
+    volatile long accessed=0;
 
     /** Constructor.
      * Create the element in the cache, maybe appending inmediately.
@@ -66,21 +82,15 @@ public abstract class Element{
         // set the logging level according to the cache
         logger.setLevel(Cache.LOGLEVEL); //@@l
 
-        // Create the XML element
-        node=cache.getDocument().createElement(getTypeName());
-        //node.setAttribute(Cache.TYPE_NAME,""+getType());
-
         // initializes collections
 //        childs=new Vector<Element>(); //@@1.5
-        childs=new Vector(); //@@1.4
-//        attribs=new Hashtable<String,org.w3c.dom.Element>();    //@@1.5
-        attribs=new Hashtable(); //@@1.4
+        childs=new Vector(2); //@@1.4
+        // save cache reference
+        this.cache=cache;
         // append yourself to the cache, if you should
         if(add){
             cache.addElement(this);
         }
-        // save cache reference
-        this.cache=cache;
     }
 
     /** Empty constructor is not allowed */
@@ -95,18 +105,18 @@ public abstract class Element{
      * The name is human readable in English. Set
      * names in other lenaguages in the attributes. */
     public void setName(String n){
-        name=n;
-        node.setAttribute(Cache.NAME_NAME,name);
+        name=cache.symbols.value(n);
         logger.debug("Element id="+getID()+" name="+name); //@@l
+        keysChanged();
     }
 
     /** Returns this element identifier.
      * There is no method to set the identifier: is created during the
      * construction of this elements and not modificable to ensures
      * its unicity.
-     * @return The identifier or null if not set */
+     * @return The identifier or an empty string if not set */
     public String getID(){
-        return node.getAttribute(Cache.ID_NAME);
+        return id==null?"":id;
     }
 
     /** Set the identifier od this element.
@@ -116,10 +126,11 @@ public abstract class Element{
      */
     public void setID(String id){
         if(id==null||id.length()==0){
-            node.removeAttribute(Cache.ID_NAME);
+            this.id=null;
         }else{
-            node.setAttribute(Cache.ID_NAME,id);
+            this.id=id;
         }
+        keysChanged();
     }
 
     /** Set the identifier of the original cache of this element.
@@ -130,15 +141,11 @@ public abstract class Element{
      * If idcache is unsep (null or empty) remove the identifier as well.
      * @param idcache New identifier of the cache */
     public void setIDCache(String idcache){
-        this.idcache=idcache;
-        if(idcache==null||idcache.length()==0){
-            node.removeAttribute(Cache.IDCACHE_NAME);
-        } else{
-            node.setAttribute(Cache.IDCACHE_NAME,idcache);
-        }
+        this.idcache=cache.symbols.value(idcache);
         if(idcache==null){
-            node.removeAttribute(Cache.ID_NAME);
+            id=null;
         }
+        keysChanged();
     }
 
     /** @return The identifier of the cache this elements comes. */
@@ -146,6 +153,68 @@ public abstract class Element{
         return idcache;
     }
 
+    /** Returns the value of an XML attribute of the element.
+     * Name, identifier and idcache are XML attributes as well. Do not
+     * confuse with getAttrStr(): XML attributes are properties of the
+     * element such as the gateway of a service, and attributes
+     * are its description.
+     * @param key Name of the XML attribute.
+     * @return The value of the XML attribute, or null if not defined */
+    public String getProperty(String key){
+        if(key.equals(Cache.NAME_NAME)){
+            return name;
+        } else if(key.equals(Cache.ID_NAME)){
+            return id;
+        } else if(key.equals(Cache.IDCACHE_NAME)){
+            return idcache==null||idcache.length()==0?null:idcache;
+        }
+        String[] p=props;
+        int i=indexOf(p,key);
+        return i<0?null:p[i+1];
+    }
+
+    /** Set an XML attribute of the element.
+     * Extending classes storing XML attributes in their own fields
+     * override this method, getProperty() and getPropertyNames().
+     * @param key Name of the XML attribute.
+     * @param value Value of the XML attribute. If null, remove it. */
+    public void setProperty(String key,String value){
+        if(key.equals(Cache.NAME_NAME)){
+            setName(value);
+        } else if(key.equals(Cache.ID_NAME)){
+            setID(value);
+        } else if(key.equals(Cache.IDCACHE_NAME)){
+            // an empty idcache is not an idcache at all
+            if(value!=null&&value.length()>0){
+                setIDCache(value);
+            }
+        } else{
+            String[] p=props;
+            int i=indexOf(p,key);
+            if(value==null){
+                if(i<0){
+                    return;
+                }
+                props=remove(p,i);
+            } else{
+                props=set(p,i,key,value);
+            }
+            changed();
+        }
+    }
+
+    /** @return A collection with the names of the XML attributes of this
+     * element other than name, id and idcache, in order of insertion. */
+//    public Collection<String> getPropertyNames(){ //@@1.5
+    public Collection getPropertyNames(){ //@@1.4
+        String[] p=props;
+        Vector v=new Vector(p.length/2+2);
+        for(int i=0;i<p.length;i+=2){
+            v.add(p[i]);
+        }
+        return v;
+    }
+
     /** Set an attribute to a String.
      *
      * Use this methid when a attribute can be represented by a String.
@@ -159,55 +228,29 @@ public abstract class Element{
         if(value==null||name==null){
             return;
         }
-        if(name==null){
-            return;
-        }
-        // if the attribute was set, delete it
-        removeAttr(name);
-
-        // new node for the attribute
-        org.w3c.dom.Element a=cache.getDocument().createElement(Cache.ATTR_NAME);
-        // set the name
-        a.setAttribute(Cache.NAME_NAME,name);
-        // set "we are a string"
-        //a.setAttribute(Cache.STRING_NAME,"true");
-        // set the value
-        a.appendChild(cache.getDocument().createTextNode(value));
-        // append the attribute to the node
-        node.appendChild(a);
-        // save the attribute in the attributes collection
-        attribs.put(name,a);
+        String[] a=attrs;
+        attrs=set(a,indexOf(a,name),name,value);
+        changed();
     }
 
     /** Remove an attribute from the attribute list of the element.
      * @param name Name of the attribute to remove. If not found, do nothing. */
     public void removeAttr(String name){
-        org.w3c.dom.Element a=(org.w3c.dom.Element)attribs.get(name);
-        if(a==null){
-            return;
+        String[] a=attrs;
+        int i=indexOf(a,name);
+        if(i>=0){
+            attrs=remove(a,i);
+            changed();
         }
-        node.removeChild(a);
-        attribs.remove(name);
     }
 
     /** Returns the value of an attribute as a String.
      * @param name Case-sensitive name of the attribute.
      * @returns Attribute value, or null if not found. */
     public String getAttrStr(String name){
-        // take the attribute (DOM element)
-        org.w3c.dom.Element a=(org.w3c.dom.Element)attribs.get(name);
-        // if not found, return null
-        if(a==null){
-            return null;
-        }
-        // if found, return its text
-        try{
-            return a.getFirstChild().getNodeValue();
-        } catch(Exception e){
-            logger.warn("Error while reading attrib: "+e.toString()); //@@l
-            return null;
-        }
-        //note we do not look if istring="true". Should we?
+        String[] a=attrs;
+        int i=indexOf(a,name);
+        return i<0?null:a[i+1];
     }
 
     /** Append an element to this one.
@@ -220,41 +263,72 @@ public abstract class Element{
      * After appendinf, this class call to cache.childAppended(child) */
     public void appendChild(Element child){
         // clone the element
-        Element newChild=(Element)child.clone();
-        // remove the cache identifier: it is not useful any more
-        newChild.setIDCache("");
+        adopt((Element)child.clone());
+    }
+
+    /** Append an element to this one, without cloning.
+     * @param newChild The element to append. If null, do nothing. */
+    void adopt(Element newChild){
         // if there was an error, returns
         if(newChild==null){
             return;
         }
+        // remove the cache identifier: it is not useful any more
+        newChild.setIDCache("");
         // append to this node
-        node.appendChild(newChild.getElementDOM());
         childs.add(newChild);
+        newChild.parent=this;
         // inform to the cache a new child has been appended... if joined
         if(joined){
             cache.childAppended(newChild);
+            changed();
         }
     }
 
     /** Remove a child from this element. */
     public void deleteChild(Element e) throws Exception{
-        node.removeChild(e.getElementDOM());
-        childs.remove(e);
+        if(childs.remove(e)){
+            e.parent=null;
+        }
         if(joined){
             cache.deleteElement(e);
+            changed();
+        }
+    }
+
+    /** @return The first level element this element is a descendant of, or
+     * this element if it has not parent. */
+    public Element getRoot(){
+        Element e=this;
+        while(e.parent!=null){
+            e=e.parent;
         }
+        return e;
     }
 
-    /** Returns the node actually having this element */
+    /** Returns a DOM node describing this element.
+     * The element is not stored as DOM: the node returned is a copy
+     * created in a new document, and changes in the node are not seen in
+     * the element. */
     public org.w3c.dom.Element getElementDOM(){
-        return node;
+        try{
+            return XMLTools.toDOM(this,XMLTools.newDocument());
+        } catch(Exception e){
+            logger.warn("Error creating DOM: "+e); //@@l
+            return null;
+        }
     }
 
     /** Returns a collection with the names of the elements of this node. */
-//    public Collection<String> getAttribNames() { return attribs.keySet(); }  //@@1.5
-    public Collection getAttribNames(){
-        return attribs.keySet();
-    } //@@1.4
+//    public Collection<String> getAttribNames(){ //@@1.5
+    public Collection getAttribNames(){ //@@1.4
+        String[] a=attrs;
+        Vector v=new Vector(a.length/2+1);
+        for(int i=0;i<a.length;i+=2){
+            v.add(a[i]);
+        }
+        return v;
+    }
 
 
     /** Returns a collection with the childs of this element */
@@ -284,72 +358,18 @@ public abstract class Element{
      * Keep in mind the element can have attributes and childs not listed in
      * the template, and match it. */
     public boolean match(Element template){
-        try{
-            // same type?
-            if(getType()!=template.getType()){
-                return false;
-            }
-
-            // test every XML attribute... except identifier and idcache if empty
-            org.w3c.dom.NamedNodeMap nnm=template.getElementDOM().getAttributes();
-            for(int i=0;i<nnm.getLength();i++){
-                org.w3c.dom.Node n=nnm.item(i);
-                String attrName=n.getNodeName();
-                String attrValue=n.getNodeValue();
-                if(attrName.equals(Cache.IDCACHE_NAME)||
-                   attrName.equals(Cache.ID_NAME)){
-                    if(attrValue.length()==0){
-                        continue;
-                    }
-                }
-                if(!node.hasAttribute(attrName)){
-                    return false;
-                }
-                if(!node.getAttribute(attrName).equals(attrValue)){
-                    return false;
-                }
-            }
-
-            // test all attributes matching
-//            for(String attr: template.getAttribNames()){                          //@@1.5
-            Object o[]=template.getAttribNames().toArray(); //@@1.4
-            for(int i=0; i<o.length; i++){ //@@1.4
-                String attr=(String)o[i]; //@@1.4
-                String tempAttr=template.getAttrStr(attr);
-                String origAttr=getAttrStr(attr);
-                boolean same=tempAttr.equals(origAttr);
-                if(!same){
-                    return false;
-                }
-            }
-            //test all child matching
-//            for(Element e: template.getChilds()){                           //@@1.5
-            o=template.getChilds().toArray(); //@@1.4
-            for(int i=0; i<o.length; i++){ //@@1.4
-                Element e=(Element)o[i]; //@@1.4
-                boolean anyMatch=false;
-//                for(Element ec: childs){                          //@@1.5
-                Object o2[]=childs.toArray(); //@@1.4
-                for(int j=0; j<o2.length; j++){ //@@1.4
-                    Element ec=(Element)o2[j]; //@@1.4
-                    if(ec.match(e)){
-                        anyMatch=true;
-                        break;
-                    }
-                }
+        return ElementMatcher.compile(template).matches(this);
+    }
 
-                if(!anyMatch){
-                    return false;
-                }
-            }
+    /** @return The number of childs of this element */
+    int countChilds(){
+        return childs.size();
+    }
 
-            return true;
-        } catch(Exception ex){
-            // if there was any error, not match
-            logger.warn("Error while matching (likely not important): "+ //@@l
-                        ex.toString()); //@@l
-            return false;
-        }
+    /** @param i Index of a child
+     * @return The child in position i */
+    Element childAt(int i){
+        return(Element)childs.get(i);
     }
 
     /** Returns a clon of this element using the same cache */
@@ -361,13 +381,31 @@ public abstract class Element{
      * A clone has the same attributes including identifiers. */
     public Object clone(Cache cache){
         try{
-            return cache.createElementFromDOM(this.node);
+            Element e=cache.createElement(getType());
+            e.copy(this);
+            for(int i=0;i<childs.size();i++){
+                e.adopt((Element)((Element)childs.get(i)).clone(cache));
+            }
+            return e;
         } catch(Exception e){
             logger.warn("Error clonning an object: "+e.toString()); //@@l
             return null;
         }
     }
 
+    /** Copy the identifiers, name, XML attributes and attributes of other
+     * element. Extending classes storing attributes in their own fields
+     * override this method.
+     * @param e The element to copy from. It is of the same type. */
+    protected void copy(Element e){
+        name=e.name;
+        id=e.id;
+        idcache=e.idcache;
+        // the arrays are never modified: share them
+        props=e.props;
+        attrs=e.attrs;
+    }
+
     /** Returns a XML description of the element. */
     public String toString(){
         try{
@@ -381,7 +419,98 @@ public abstract class Element{
 
     /** Save the XML desription of this element in a stream */
     public void toStream(OutputStream out) throws Exception{
-        org.msd.cache.XMLTools.saveDOMToStream(node,out);
+        XMLTools.saveElementToStream(this,out);
+    }
+
+    /** Informs the cache the identifiers, name or gateway of this element
+     * have changed, in order to update its indexes and version. Does nothing
+     * if the element is not joined to the cache. */
+    protected void keysChanged(){
+        if(joined&&cache!=null){
+            cache.reindex(this);
+        }
+    }
+
+    /** Informs the cache this element has changed, in order to update its
+     * version. Extending classes call this method after changing the
+     * fields they store. Does nothing if the element is not joined to
+     * the cache. */
+    protected void changed(){
+        if(joined&&cache!=null){
+            cache.elementChanged(this);
+        }
+    }
+
+    /** @return The index of the name key in the array a of names and
+     * values, or -1. If key is null, -1 */
+    private static int indexOf(String[] a,String key){
+        if(key==null){
+            return -1;
+        }
+        for(int i=0;i<a.length;i+=2){
+            if(a[i]==key){
+                return i;
+            }
+        }
+        for(int i=0;i<a.length;i+=2){
+            if(key.equals(a[i])){
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** @param a An array of names and values. Not modified.
+     * @param i The position of the pair of key in a, or -1 if not in a
+     * @return A new array of names and values with the pair set, at the end
+     * if it was not in a */
+    private String[] set(String[] a,int i,String key,String value){
+        String[] b;
+        if(i<0){
+            i=a.length;
+            b=new String[a.length+2];
+            System.arraycopy(a,0,b,0,a.length);
+            b[i]=cache.symbols.name(key);
+        } else{
+            b=(String[])a.clone();
+        }
+        b[i+1]=cache.symbols.value(value);
+        return b;
+    }
+
+    /** @param a An array of names and values. Not modified.
+     * @return A new array without the pair in position i */
+    private static String[] remove(String[] a,int i){
+        if(a.length==2){
+            return EMPTY;
+        }
+        String[] b=new String[a.length-2];
+        System.arraycopy(a,0,b,0,i);
+        System.arraycopy(a,i+2,b,i,a.length-i-2);
+        return b;
+    }
+
+    /** @return An estimation of the bytes used by this element and its
+     * childs. Symbols shared with other elements are counted as well. */
+    int estimateSize(){
+        String[] p=props,a=attrs;
+        int s=64+size(name)+size(id)+size(idcache)+
+              4*(p.length+a.length+childs.size());
+        for(int i=0;i<p.length;i++){
+            s+=size(p[i]);
+        }
+        for(int i=0;i<a.length;i++){
+            s+=size(a[i]);
+        }
+        for(int i=0;i<childs.size();i++){
+            s+=((Element)childs.get(i)).estimateSize();
+        }
+        return s;
+    }
+
+    /** @return The estimated bytes of a string */
+    private static int size(String s){
+        return s==null?0:40+2*s.length();
     }
 
     /** If the element have been joined to the cache */
@@ -0,0 +1,220 @@
+package org.msd.cache;
+
+import org.apache.log4j.Logger; //@@l
+
+/** A template compiled for matching elements.
+ *
+ * Matching a template walks its XML attributes, attributes and childs for
+ * every element tested.
+ * This class extracts once the type, the XML attributes, the attributes and
+ * the childs of a template, so the same template can be tested against many
+ * elements without walking the template nor allocating any object. A matcher
+ * is immutable: changes in the template after compiling are not seen by
+ * the matcher.
+ *
+ * The semantic of matching is the one of Element.match().
+ * @see Element#match
+ * @version $Revision: 1.1 $ */
+public final class ElementMatcher{
+    private static final Logger logger=Logger.getLogger(ElementMatcher.class); //@@l
+    /** The type of the elements to match */
+    private final int type;
+    /** Names and values of the XML attributes of the template */
+    private final String[] xmlNames,xmlValues;
+    /** Names and values of the attributes of the template */
+    private final String[] attrNames,attrValues;
+    /** Matchers of the childs of the template */
+    private final ElementMatcher[] childs;
+    /** Keys of the template, to look for candidates in the cache indexes.
+     * Null means 'not defined in the template' */
+    private final String idcache,id,name,gateway;
+
+    /** Compiles a template.
+     * @param template The template to compile
+     * @return A matcher for the template
+     * @throws NullPointerException If template is null */
+    public static ElementMatcher compile(Element template){
+        // XML attributes
+        Object o[]=template.getPropertyNames().toArray();
+        String[] names=new String[o.length];
+        String[] values=new String[o.length];
+        for(int i=0;i<o.length;i++){
+            names[i]=(String)o[i];
+            values[i]=template.getProperty(names[i]);
+        }
+        // attributes
+        o=template.getAttribNames().toArray();
+        String[] anames=new String[o.length];
+        String[] avalues=new String[o.length];
+        for(int i=0;i<o.length;i++){
+            anames[i]=(String)o[i];
+            avalues[i]=template.getAttrStr(anames[i]);
+        }
+        // childs
+        o=template.getChilds().toArray();
+        ElementMatcher[] c=new ElementMatcher[o.length];
+        for(int i=0;i<o.length;i++){
+            c[i]=compile((Element)o[i]);
+        }
+        return new ElementMatcher(template.getType(),
+                                  template.getProperty(Cache.IDCACHE_NAME),
+                                  template.getProperty(Cache.ID_NAME),
+                                  template.getName(),names,values,anames,
+                                  avalues,c);
+    }
+
+    /** Private constructor: use compile() */
+    private ElementMatcher(int type,String idcache,String id,String name,
+                           String[] xmlNames,String[] xmlValues,
+                           String[] attrNames,String[] attrValues,
+                           ElementMatcher[] childs){
+        this.type=type;
+        this.idcache=idcache;
+        this.id=id;
+        this.name=name;
+        this.xmlNames=xmlNames;
+        this.xmlValues=xmlValues;
+        this.attrNames=attrNames;
+        this.attrValues=attrValues;
+        this.childs=childs;
+        gateway=type==Element.SERVICE?lookup("gw"):null;
+    }
+
+    /** @param e An element to test
+     * @return If the element matches the compiled template */
+    public boolean matches(Element e){
+        try{
+            // same type?
+            if(e.getType()!=type){
+                return false;
+            }
+            // test identifiers and name
+            if(idcache!=null&&!idcache.equals(e.getIDCache())){
+                return false;
+            }
+            if(id!=null&&!id.equals(e.getID())){
+                return false;
+            }
+            if(name!=null&&!name.equals(e.getName())){
+                return false;
+            }
+            // test every XML attribute
+            for(int i=0;i<xmlNames.length;i++){
+                if(!xmlValues[i].equals(e.getProperty(xmlNames[i]))){
+                    return false;
+                }
+            }
+            // test every attribute
+            for(int i=0;i<attrNames.length;i++){
+                if(!attrValues[i].equals(e.getAttrStr(attrNames[i]))){
+                    return false;
+                }
+            }
+            // test every child: any child of the element must match it
+            int count=e.countChilds();
+            for(int i=0;i<childs.length;i++){
+                boolean anyMatch=false;
+                for(int j=0;j<count&&!anyMatch;j++){
+                    anyMatch=childs[i].matches(e.childAt(j));
+                }
+                if(!anyMatch){
+                    return false;
+                }
+            }
+            return true;
+        } catch(Exception ex){
+            // if there was any error, not match
+            logger.warn("Error while matching (likely not important): "+ //@@l
+                        ex.toString()); //@@l
+            return false;
+        }
+    }
+
+    /** Returns a new matcher matching the elements this one matches and
+     * having also a child matching another matcher.
+     * @param child The matcher for the child
+     * @return The new matcher */
+    public ElementMatcher withChild(ElementMatcher child){
+        ElementMatcher[] c=new ElementMatcher[childs.length+1];
+        System.arraycopy(childs,0,c,0,childs.length);
+        c[childs.length]=child;
+        return new ElementMatcher(type,idcache,id,name,xmlNames,xmlValues,
+                                  attrNames,attrValues,c);
+    }
+
+    /** Creates a template equivalent to the one compiled.
+     * Useful to send the template to other MSDs.
+     * @param cache The cache of the template.
+     * @return A new template not joined to the cache
+     * @throws Exception If the template can not be created */
+    public Element toElement(Cache cache) throws Exception{
+        Element e=cache.createElement(type);
+        for(int i=0;i<xmlNames.length;i++){
+            e.setProperty(xmlNames[i],xmlValues[i]);
+        }
+        if(idcache!=null){
+            e.setIDCache(idcache);
+        }
+        if(id!=null){
+            e.setID(id);
+        }
+        if(name!=null){
+            e.setName(name);
+        }
+        for(int i=0;i<attrNames.length;i++){
+            e.setAttrStr(attrNames[i],attrValues[i]);
+        }
+        for(int i=0;i<childs.length;i++){
+            e.appendChild(childs[i].toElement(cache));
+        }
+        return e;
+    }
+
+    /** @return The number of matchers of childs */
+    public int countChilds(){
+        return childs.length;
+    }
+
+    /** @param i Position of the matcher of a child
+     * @return The matcher of the child */
+    public ElementMatcher childAt(int i){
+        return childs[i];
+    }
+
+    /** @return The type of the elements this matcher matches */
+    public int getType(){
+        return type;
+    }
+
+    /** @return The idcache the elements must have, or null if any */
+    public String getIDCache(){
+        return idcache;
+    }
+
+    /** @return The identifier the elements must have, or null if any */
+    public String getID(){
+        return id;
+    }
+
+    /** @return The name the elements must have, or null if any */
+    public String getName(){
+        return name;
+    }
+
+    /** @return The gateway the services must have, or null if any */
+    public String getGateway(){
+        return gateway;
+    }
+
+    /** @return The value of a not empty XML attribute of the template,
+     * or null */
+    private String lookup(String attr){
+        for(int i=0;i<xmlNames.length;i++){
+            if(xmlNames[i].equals(attr)){
+                return xmlValues[i].length()==0?null:xmlValues[i];
+            }
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,147 @@
+package org.msd.cache;
+
+import java.util.HashMap;
+import java.util.Vector;
+
+/** A hashed timing wheel with the expiration times of the elements of a
+ * cache.
+ *
+ * The wheel is a circular array of slots, each one covering the same
+ * interval of time. An element expiring after t intervals is put in the
+ * slot t positions after the current one, with the number of whole turns
+ * the wheel must give before it expires. Scheduling and canceling an
+ * element costs O(1), and advancing the wheel one slot costs the number of
+ * elements in the slot, not the number of elements in the wheel.
+ *
+ * This class is not synchronized: the cache uses it holding its lock.
+ * @version $Revision: 1.1 $ */
+class ExpirationWheel{
+    /** Slots of the wheel. Vectors of Entry, created when needed. */
+    private Vector[] slots;
+    /** Milliseconds covered by a slot */
+    private long resolution;
+    /** Index of the current slot */
+    private int current=0;
+    /** Time the current slot started, in milliseconds */
+    private long time;
+    /** Key: an element. Object: its Entry */
+    private HashMap entries=new HashMap();
+
+    /** @param size Number of slots of the wheel
+     * @param resolution Milliseconds covered by a slot
+     * @param now The current time in milliseconds */
+    ExpirationWheel(int size,long resolution,long now){
+        slots=new Vector[size];
+        this.resolution=resolution;
+        time=now;
+    }
+
+    /** Schedules the expiration of an element. If the element was
+     * scheduled, the previous expiration is canceled.
+     * @param e The element
+     * @param expires Time to expire the element, in milliseconds
+     * @param now The current time in milliseconds */
+    void schedule(Element e,long expires,long now){
+        cancel(e);
+        advanceTime(now);
+        long ticks=(expires-time+resolution-1)/resolution;
+        if(ticks<1){
+            ticks=1;
+        }
+        Entry entry=new Entry(e,expires,(ticks-1)/slots.length);
+        int slot=(int)((current+ticks)%slots.length);
+        if(slots[slot]==null){
+            slots[slot]=new Vector();
+        }
+        slots[slot].add(entry);
+        entries.put(e,entry);
+    }
+
+    /** Cancels the expiration of an element. If it was not scheduled,
+     * do nothing.
+     * @param e The element */
+    void cancel(Element e){
+        Entry entry=(Entry)entries.remove(e);
+        if(entry!=null){
+            // the entry is removed from its slot when the slot is reached
+            entry.element=null;
+        }
+    }
+
+    /** @param e An element
+     * @return The time the element expires in milliseconds, or -1 if
+     * the element is not scheduled */
+    long getExpiration(Element e){
+        Entry entry=(Entry)entries.get(e);
+        return entry==null?-1:entry.expires;
+    }
+
+    /** Advances the wheel until the current time.
+     * @param now The current time in milliseconds
+     * @return The elements expired, maybe empty */
+    Vector advance(long now){
+        Vector expired=new Vector();
+        while(now-time>=resolution){
+            time+=resolution;
+            current=(current+1)%slots.length;
+            Vector slot=slots[current];
+            if(slot==null){
+                continue;
+            }
+            for(int i=slot.size()-1;i>=0;i--){
+                Entry entry=(Entry)slot.get(i);
+                if(entry.element==null){
+                    slot.remove(i);
+                } else if(entry.rounds==0){
+                    slot.remove(i);
+                    entries.remove(entry.element);
+                    expired.add(entry.element);
+                } else{
+                    entry.rounds--;
+                }
+            }
+            if(slot.isEmpty()){
+                slots[current]=null;
+            }
+        }
+        return expired;
+    }
+
+    /** Forgets every element */
+    void clear(){
+        for(int i=0;i<slots.length;i++){
+            slots[i]=null;
+        }
+        entries.clear();
+    }
+
+    /** @return If there are not elements scheduled */
+    boolean isEmpty(){
+        return entries.isEmpty();
+    }
+
+    /** Moves the current slot until now if the wheel is empty, to avoid
+     * walking empty slots later. */
+    private void advanceTime(long now){
+        if(entries.isEmpty()&&now-time>=resolution){
+            long ticks=(now-time)/resolution;
+            time+=ticks*resolution;
+            current=(int)((current+ticks)%slots.length);
+        }
+    }
+
+    /** An element scheduled in a slot */
+    private static class Entry{
+        /** The element. Null if canceled */
+        Element element;
+        /** Time of expiration */
+        long expires;
+        /** Turns of the wheel before expiring */
+        long rounds;
+        Entry(Element element,long expires,long rounds){
+            this.element=element;
+            this.expires=expires;
+            this.rounds=rounds;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package org.msd.cache;
 
 import org.msd.cache.Element;
+import java.util.Collection;
 
 /** Represents a network.
  * This class stores the information related to a specific network of a service.
@@ -9,6 +10,13 @@ import org.msd.cache.Element;
  * @version $Revision: 1.6 $
  * @date $Date: 2005-08-24 17:08:51 $ */
 public class Network extends Element{
+    /** Names of the XML attributes and attributes stored in fields */
+    private static final String MAIN="main",PORT="port";
+    /** Wether this network is main */
+    private boolean main=false;
+    /** Port of the service, -1 if not defined */
+    private int port=-1;
+
     public Network(Cache c,boolean add){
         super(c,add);
     }
@@ -23,25 +31,13 @@ public class Network extends Element{
 
     /** Set wether this network is main or not */
     public void setMain(boolean m){
-        try{
-            if(m){
-                getElementDOM().setAttribute("main","");
-            } else{
-                getElementDOM().removeAttribute("main");
-            }
-        } catch(Exception e){
-            logger.warn("Error storing main: "+e); //@@l
-        }
+        main=m;
+        changed();
     }
 
     /** Get wether this network is main */
     public boolean isMain(){
-        try{
-            return getElementDOM().hasAttribute("main");
-        } catch(Exception e){
-            logger.warn("Error gettin main attribute: "+e); //@@l
-            return false;
-        }
+        return main;
     }
 
     /** @return Return URL of contact of a service.
@@ -55,18 +51,94 @@ public class Network extends Element{
     }
     /** Set the port of the service */
     public void setPort(int p) throws Exception{
-        setAttrStr("port",""+p);
+        setAttrStr(PORT,Integer.toString(p));
     }
     /** Returns the port of the service.
      * @return If the port is not defined (as in Bluetooth networks) returns -1 */
     public int getPort(){
+        if(port>=0){
+            return port;
+        }
         try{
-            return Integer.valueOf(getAttrStr("port")).intValue();
+            return Integer.valueOf(super.getAttrStr(PORT)).intValue();
         } catch(Exception e){
             return -1;
         }
     }
 
+    public void setAttrStr(String name,String value) throws Exception{
+        if(value!=null&&PORT.equals(name)){
+            try{
+                int p=Integer.parseInt(value);
+                // store the port as a number, if it is written back equals
+                if(p>=0&&Integer.toString(p).equals(value)){
+                    super.removeAttr(PORT);
+                    port=p;
+                    changed();
+                    return;
+                }
+            } catch(NumberFormatException e){
+                // not a number: store as any other attribute
+            }
+            port=-1;
+        }
+        super.setAttrStr(name,value);
+    }
+
+    public String getAttrStr(String name){
+        if(port>=0&&PORT.equals(name)){
+            return Integer.toString(port);
+        }
+        return super.getAttrStr(name);
+    }
+
+    public void removeAttr(String name){
+        if(PORT.equals(name)&&port>=0){
+            port=-1;
+            changed();
+        }
+        super.removeAttr(name);
+    }
+
+//    public Collection<String> getAttribNames(){ //@@1.5
+    public Collection getAttribNames(){ //@@1.4
+        Collection c=super.getAttribNames();
+        if(port>=0){
+            c.add(PORT);
+        }
+        return c;
+    }
+
+    public String getProperty(String key){
+        if(key.equals(MAIN)){
+            return main?"":null;
+        }
+        return super.getProperty(key);
+    }
+
+    public void setProperty(String key,String value){
+        if(key.equals(MAIN)){
+            setMain(value!=null);
+        } else{
+            super.setProperty(key,value);
+        }
+    }
+
+//    public Collection<String> getPropertyNames(){ //@@1.5
+    public Collection getPropertyNames(){ //@@1.4
+        Collection c=super.getPropertyNames();
+        if(main){
+            c.add(MAIN);
+        }
+        return c;
+    }
+
+    protected void copy(Element e){
+        super.copy(e);
+        main=((Network)e).main;
+        port=((Network)e).port;
+    }
+
     /** Returns the address of this network listener */
     public org.msd.comm.Address getAddress(){
         return new org.msd.comm.Address(getURL(),getPort(),getName());
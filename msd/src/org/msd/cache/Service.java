@@ -8,6 +8,15 @@ import java.util.Vector;
  * @version $Revision: 1.9 $
  * @date $Date: 2005-06-10 10:48:23 $ */
 public class Service extends Element{
+    /** Name of the XML attributes stored in fields */
+    private static final String GW="gw",HOPS="hops",CONFIDENCE="confidence";
+    /** Identifier of the MSD gateway, or null */
+    private String gateway=null;
+    /** Number of hops to reach this service, 0 if not defined */
+    private int hops=0;
+    /** Confidence level of this service, 0 if not defined */
+    private int confidence=0;
+
     /** Construct a service to a cache. */
     public Service(Cache c,boolean add){
         super(c,add);
@@ -47,24 +56,17 @@ public class Service extends Element{
      * in the same gateway as this network. */
     public void setGateway(String gw){
         if(gw!=null&&gw.length()>0){
-            getElementDOM().setAttribute("gw",gw);
+            gateway=getCache().symbols.value(gw);
         } else{
-            getElementDOM().removeAttribute("gw");
+            gateway=null;
         }
+        keysChanged();
     }
 
     /** Get the gateway to connect with the service. Is no gateway
      * defined, return null. */
     public String getGateway(){
-        try{
-            String gw=getElementDOM().getAttribute("gw");
-            if(gw==null||gw.length()==0){
-                gw=null;
-            }
-            return gw;
-        } catch(Exception e){
-            return null;
-        }
+        return gateway;
     }
 
     /** Get the network description of a service.
@@ -98,40 +100,75 @@ public class Service extends Element{
      * @param h Not-negative number of hops.
      */
     public void setHops(int h){
-        if(h<1){
-            this.getElementDOM().removeAttribute("hops");
-        } else{
-            this.getElementDOM().setAttribute("hops",""+h);
-        }
+        hops=h<1?0:h;
+        changed();
     }
 
     /** @returns The number of hops to reach the service */
     public int getHops(){
-        try{
-            return Integer.valueOf(getElementDOM().getAttribute("hops")).
-                    intValue();
-        } catch(Exception e){
-            return 0;
-        }
+        return hops;
     }
 
     /** @return The confidence level of this service */
     public int getConfidence(){
-        try{
-            return Integer.valueOf(getElementDOM().getAttribute("confidence")).
-                    intValue();
-        } catch(Exception e){
-            return 0;
-        }
-
+        return confidence;
     }
 
     /** @param c The conficende level of this service */
     public void setConfidence(int c){
-        if(c<1){
-            this.getElementDOM().removeAttribute("confidence");
-        } else{
-            this.getElementDOM().setAttribute("confidence",""+c);
+        confidence=c<1?0:c;
+        changed();
+    }
+
+    public String getProperty(String key){
+        if(key.equals(GW)){
+            return gateway;
+        } else if(key.equals(HOPS)){
+            return hops==0?null:Integer.toString(hops);
+        } else if(key.equals(CONFIDENCE)){
+            return confidence==0?null:Integer.toString(confidence);
         }
+        return super.getProperty(key);
+    }
+
+    public void setProperty(String key,String value){
+        try{
+            if(key.equals(GW)){
+                setGateway(value);
+                return;
+            } else if(key.equals(HOPS)){
+                setHops(value==null?0:Integer.parseInt(value));
+                return;
+            } else if(key.equals(CONFIDENCE)){
+                setConfidence(value==null?0:Integer.parseInt(value));
+                return;
+            }
+        } catch(NumberFormatException e){
+            // not a number: store as any other XML attribute
+        }
+        super.setProperty(key,value);
+    }
+
+//    public Collection<String> getPropertyNames(){ //@@1.5
+    public Collection getPropertyNames(){ //@@1.4
+        Collection c=super.getPropertyNames();
+        if(gateway!=null){
+            c.add(GW);
+        }
+        if(hops!=0){
+            c.add(HOPS);
+        }
+        if(confidence!=0){
+            c.add(CONFIDENCE);
+        }
+        return c;
+    }
+
+    protected void copy(Element e){
+        super.copy(e);
+        Service s=(Service)e;
+        gateway=s.gateway;
+        hops=s.hops;
+        confidence=s.confidence;
     }
 }
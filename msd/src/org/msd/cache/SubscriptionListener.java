@@ -0,0 +1,19 @@
+package org.msd.cache;
+
+/** A listener of the elements matching a subscription.
+ *
+ * As the listeners of the cache, subscription listeners are called after
+ * the write is done and the cache is unlocked, in order and one at a
+ * time.
+ * @see CacheSubscription
+ * @version $Revision: 1.1 $ */
+public interface SubscriptionListener{
+    /** The elements matching a subscription changed.
+     * @param s The subscription
+     * @param e The event. The code is CacheListener.ADDED if the element
+     * was added or changed to match, CacheListener.CHANGED if it changed
+     * and still matches, or CacheListener.REMOVED if it was removed or
+     * changed to not match. In this case, the element is the last version
+     * that matched. */
+    public void elementMatched(CacheSubscription s,CacheEvent e);
+}
@@ -0,0 +1,57 @@
+package org.msd.cache;
+
+import java.lang.ref.WeakReference;
+import java.util.WeakHashMap;
+
+/** A table of symbols shared by the elements of a cache.
+ *
+ * Names of XML attributes and attributes, names of elements, identifiers
+ * of caches and short values such as ports or the names of networks repeat
+ * in every element: "url", "port", "MSD", "ethernet", "bluetooth"... The
+ * elements keep just the instance of the table of such strings, whatever
+ * the XML, binary or DOM source they were read from. So the strings are
+ * stored once, and comparing two symbols is comparing two references.
+ *
+ * Each cache has its own table, and the table only keeps the strings used
+ * by some element: a symbol no longer used is forgotten by the garbage
+ * collector. Names are interned by the JVM, as the constants naming them
+ * in the code.
+ * @version $Revision: 1.1 $ */
+final class Symbols{
+    /** Maximum length of the values shared */
+    static final int MAX_VALUE=32;
+
+    /** Key: a string. Object: WeakReference to its shared instance */
+    private final WeakHashMap table=new WeakHashMap();
+
+    /** @param s The name of an XML attribute or attribute, or null
+     * @return The shared instance of the name */
+    String name(String s){
+        if(s==null){
+            return null;
+        }
+        return get(s,true);
+    }
+
+    /** @param s A value, or null
+     * @return The shared instance of the value, or the value if it is long */
+    String value(String s){
+        if(s==null||s.length()>MAX_VALUE){
+            return s;
+        }
+        return get(s,false);
+    }
+
+    /** @param s A string
+     * @param intern If a new symbol must be the instance of the JVM
+     * @return The shared instance of s */
+    private synchronized String get(String s,boolean intern){
+        WeakReference r=(WeakReference)table.get(s);
+        String sym=r==null?null:(String)r.get();
+        if(sym==null){
+            sym=intern?s.intern():s;
+            table.put(sym,new WeakReference(sym));
+        }
+        return sym;
+    }
+}
@@ -10,11 +10,18 @@ import org.w3c.dom.*;
 import org.msd.cache.Cache;
 import javax.xml.transform.*;
 import javax.xml.transform.dom.DOMSource;
+import javax.xml.transform.sax.SAXSource;
 import javax.xml.transform.stream.StreamSource;
 import javax.xml.transform.stream.StreamResult;
 import java.io.OutputStream;
 import java.io.InputStream;
+import java.io.Writer;
+import java.io.OutputStreamWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.util.Iterator;
 import javax.swing.tree.*;
+import org.xml.sax.InputSource;
 
 /**
  * This class provides methos to manage XML code.
@@ -37,6 +44,196 @@ public class XMLTools {
         // transform and save the DOM
         trans.transform(new DOMSource(node),new StreamResult(out));
     }
+    /** The XML declaration written before caches and elements */
+    private static final String DECLARATION=
+            "<?xml version=\"1.0\" encoding=\"UTF-8\"?>";
+    /** Builder of new DOM documents */
+    private static javax.xml.parsers.DocumentBuilder db=null;
+
+    /**
+     * Save a cache into a stream in XML format.
+     * The cache is written directly, without creating any DOM structure.
+     * @param cache The cache to save in the stream
+     * @param out The output stream to save the cache
+     * @throws java.lang.Exception After any error during saving
+     */
+    public static void saveCacheToStream(Cache cache, OutputStream out) throws Exception{
+        Writer w=new BufferedWriter(new OutputStreamWriter(out,"UTF-8"));
+        w.write(DECLARATION);
+        w.write("<"+Cache.CACHE_NAME);
+        writeAttribute(w,Cache.IDCACHE_NAME,cache.getID());
+        writeAttribute(w,Cache.MODE_NAME,cache.getMode());
+        writeAttribute(w,Cache.VERSION_NAME,cache.getVersion());
+        if(cache.getDigest()!=null){
+            writeAttribute(w,Cache.DIGEST_NAME,cache.getDigest().toString());
+        }
+        Object o[]=cache.getChilds().toArray();
+        Object r[]=cache.getRemoved().toArray();
+        if(o.length==0&&r.length==0){
+            w.write("/>");
+        } else{
+            w.write(">");
+            for(int i=0;i<r.length;i++){
+                String[] ids=(String[])r[i];
+                w.write("<"+Cache.REMOVED_NAME);
+                writeAttribute(w,Cache.IDCACHE_NAME,ids[0]);
+                writeAttribute(w,Cache.ID_NAME,ids[1]);
+                w.write("/>");
+            }
+            for(int i=0;i<o.length;i++){
+                writeElement(w,(Element)o[i]);
+            }
+            w.write("</"+Cache.CACHE_NAME+">");
+        }
+        w.flush();
+    }
+
+    /**
+     * Save an element into a stream in XML format.
+     * The element is written directly, without creating any DOM structure.
+     * @param e The element to save in the stream
+     * @param out The output stream to save the element
+     * @throws java.lang.Exception After any error during saving
+     */
+    public static void saveElementToStream(Element e, OutputStream out) throws Exception{
+        Writer w=new BufferedWriter(new OutputStreamWriter(out,"UTF-8"));
+        w.write(DECLARATION);
+        writeElement(w,e);
+        w.flush();
+    }
+
+    /** Writes the XML of an element and its childs. */
+    private static void writeElement(Writer w, Element e) throws IOException{
+        w.write('<');
+        w.write(e.getTypeName());
+        writeAttribute(w,Cache.NAME_NAME,e.getName());
+        writeAttribute(w,Cache.IDCACHE_NAME,e.getProperty(Cache.IDCACHE_NAME));
+        writeAttribute(w,Cache.ID_NAME,e.getProperty(Cache.ID_NAME));
+        for(Iterator i=e.getPropertyNames().iterator();i.hasNext();){
+            String k=(String)i.next();
+            writeAttribute(w,k,e.getProperty(k));
+        }
+        Object attrs[]=e.getAttribNames().toArray();
+        Object childs[]=e.getChilds().toArray();
+        if(attrs.length==0&&childs.length==0){
+            w.write("/>");
+            return;
+        }
+        w.write('>');
+        for(int i=0;i<attrs.length;i++){
+            w.write("<"+Cache.ATTR_NAME);
+            writeAttribute(w,Cache.NAME_NAME,(String)attrs[i]);
+            w.write('>');
+            writeEscaped(w,e.getAttrStr((String)attrs[i]));
+            w.write("</"+Cache.ATTR_NAME+">");
+        }
+        for(int i=0;i<childs.length;i++){
+            writeElement(w,(Element)childs[i]);
+        }
+        w.write("</");
+        w.write(e.getTypeName());
+        w.write('>');
+    }
+
+    /** Writes ' name="value"'. If value is null, writes nothing. */
+    private static void writeAttribute(Writer w, String name, String value) throws IOException{
+        if(value==null){
+            return;
+        }
+        w.write(' ');
+        w.write(name);
+        w.write("=\"");
+        writeEscaped(w,value);
+        w.write('"');
+    }
+
+    /** Writes a text escaping the XML special characters. */
+    private static void writeEscaped(Writer w, String s) throws IOException{
+        int last=0;
+        for(int i=0;i<s.length();i++){
+            String r;
+            switch(s.charAt(i)){
+                case '&': r="&amp;"; break;
+                case '<': r="&lt;"; break;
+                case '>': r="&gt;"; break;
+                case '"': r="&quot;"; break;
+                default: continue;
+            }
+            w.write(s,last,i-last);
+            w.write(r);
+            last=i+1;
+        }
+        w.write(s,last,s.length()-last);
+    }
+
+    /** @return A new empty DOM document
+     * @throws java.lang.Exception If the document can not be created */
+    public static synchronized Document newDocument() throws Exception{
+        if(db==null){
+            db=javax.xml.parsers.DocumentBuilderFactory.newInstance().
+               newDocumentBuilder();
+        }
+        return db.newDocument();
+    }
+
+    /**
+     * Creates a DOM document describing a cache.
+     * @param cache The cache to describe
+     * @return A new DOM document
+     * @throws java.lang.Exception If the document can not be created
+     */
+    public static Document toDOM(Cache cache) throws Exception{
+        Document doc=newDocument();
+        org.w3c.dom.Element root=doc.createElement(Cache.CACHE_NAME);
+        root.setAttribute(Cache.IDCACHE_NAME,cache.getID());
+        root.setAttribute(Cache.MODE_NAME,cache.getMode());
+        root.setAttribute(Cache.VERSION_NAME,cache.getVersion());
+        if(cache.getDigest()!=null){
+            root.setAttribute(Cache.DIGEST_NAME,cache.getDigest().toString());
+        }
+        doc.appendChild(root);
+        Object o[]=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            root.appendChild(toDOM((Element)o[i],doc));
+        }
+        return doc;
+    }
+
+    /**
+     * Creates a DOM node describing an element and its childs.
+     * @param e The element to describe
+     * @param doc The document creating the node. The node is not appended.
+     * @return A new DOM node
+     * @throws java.lang.Exception If the node can not be created
+     */
+    public static org.w3c.dom.Element toDOM(Element e, Document doc) throws Exception{
+        org.w3c.dom.Element node=doc.createElement(e.getTypeName());
+        if(e.getName()!=null){
+            node.setAttribute(Cache.NAME_NAME,e.getName());
+        }
+        if(e.getProperty(Cache.IDCACHE_NAME)!=null){
+            node.setAttribute(Cache.IDCACHE_NAME,e.getProperty(Cache.IDCACHE_NAME));
+        }
+        if(e.getProperty(Cache.ID_NAME)!=null){
+            node.setAttribute(Cache.ID_NAME,e.getProperty(Cache.ID_NAME));
+        }
+        for(Iterator i=e.getPropertyNames().iterator();i.hasNext();){
+            String k=(String)i.next();
+            node.setAttribute(k,e.getProperty(k));
+        }
+        for(Iterator i=e.getAttribNames().iterator();i.hasNext();){
+            String k=(String)i.next();
+            org.w3c.dom.Element a=doc.createElement(Cache.ATTR_NAME);
+            a.setAttribute(Cache.NAME_NAME,k);
+            a.appendChild(doc.createTextNode(e.getAttrStr(k)));
+            node.appendChild(a);
+        }
+        for(Iterator i=e.getChilds().iterator();i.hasNext();){
+            node.appendChild(toDOM((Element)i.next(),doc));
+        }
+        return node;
+    }
+
     /**
      * Save a DOM structure into a file.
      * @param node The node to be saved in a file
@@ -105,6 +302,88 @@ public class XMLTools {
         t.transform(new StreamSource(xml),new StreamResult(out));
     }
 
+    /**
+     * Transforms the XML with XSLT. The stylesheet is compiled only once:
+     * use this method instead of the one reading the XSLT from a stream if
+     * the same stylesheet is used many times.
+     * @param xml An input stream containing the original XML code
+     * @param xslt The file name or the URL of the XSLT code
+     * @param out An output stream to write the transformed code
+     * @throws java.lang.Exception If the XML code can not be transformed with the XSLT supplied
+     * @see #getTemplates
+     */
+    public static void transformXML(InputStream xml,String xslt,OutputStream out) throws Exception{
+        Transformer t=getTemplates(xslt).newTransformer();
+        t.transform(new StreamSource(xml),new StreamResult(out));
+    }
+
+    /**
+     * Transforms a cache with XSLT. The XSLT reads the cache as the XML
+     * written by saveCacheToStream(), but the cache is read directly from
+     * its elements: it is never written to bytes nor to a DOM structure.
+     * @param cache The cache to transform
+     * @param xslt The file name or the URL of the XSLT code
+     * @param out An output stream to write the transformed code
+     * @throws java.lang.Exception If the cache can not be transformed with the XSLT supplied
+     * @see #getTemplates
+     */
+    public static void transformCache(Cache cache,String xslt,OutputStream out) throws Exception{
+        Transformer t=getTemplates(xslt).newTransformer();
+        t.transform(new SAXSource(new CacheReader(cache),new InputSource()),
+                    new StreamResult(out));
+    }
+
+    /**
+     * Returns a stylesheet compiled. Each stylesheet is compiled once and
+     * shared by every thread: compiled templates are thread safe, although
+     * the transformers created from them are not. If the stylesheet is a
+     * file, it is compiled again when the file changes.
+     * @param xslt The file name or the URL of the XSLT code
+     * @return The stylesheet compiled
+     * @throws java.lang.Exception If the stylesheet can not be read or compiled
+     */
+    public static Templates getTemplates(String xslt) throws Exception{
+        java.io.File f=new java.io.File(xslt);
+        long modified=f.isFile()?f.lastModified():0;
+        CompiledStylesheet c=(CompiledStylesheet)stylesheets.get(xslt);
+        if(c==null||c.modified!=modified){
+            StreamSource src=f.isFile()?new StreamSource(f):new StreamSource(xslt);
+            Templates t;
+            synchronized(XMLTools.class){
+                // factories are not thread safe
+                if(tfactory==null){
+                    tfactory=TransformerFactory.newInstance();
+                }
+                t=tfactory.newTemplates(src);
+            }
+            c=new CompiledStylesheet(t,modified);
+            synchronized(stylesheets){
+                if(stylesheets.size()>=MAX_STYLESHEETS){
+                    stylesheets.clear();
+                }
+                stylesheets.put(xslt,c);
+            }
+        }
+        return c.templates;
+    }
+
+    /** Maximum number of compiled stylesheets to remember */
+    private static final int MAX_STYLESHEETS=16;
+    /** Compiled stylesheets. Key: file name or URL. Object: CompiledStylesheet */
+    private static java.util.Hashtable stylesheets=new java.util.Hashtable();
+    /** Factory compiling the stylesheets */
+    private static TransformerFactory tfactory=null;
+
+    /** A stylesheet compiled, and when its file was modified */
+    private static class CompiledStylesheet{
+        final Templates templates;
+        final long modified;
+        CompiledStylesheet(Templates templates,long modified){
+            this.templates=templates;
+            this.modified=modified;
+        }
+    }
+
     /**
      * Save a whole stream in a byte array. This method blocks until the input stream
      * is closed.
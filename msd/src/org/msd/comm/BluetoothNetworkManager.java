@@ -25,20 +25,17 @@ import java.io.IOException;
  * will be used in the future (very certainly). We use the URL as the
  * key of this special Bluetooth connections. Every message between two MSDs
  * are sent through this Bluetooth connections: single mesages are directly passed
- * to the router, but connected messages are pased to a VirtualConnection. */
+ * to the router, but connected messages are pased to a VirtualConnection.
+ * @see Multiplexer */
 public class BluetoothNetworkManager extends NetworkManager implements TimeListener{
     private static Logger logger=Logger.getLogger(BluetoothNetworkManager.class); //@@l
     private Server server=null;
     private String uuid=null;
-    /** Hashtable of connections. In special connections, the key is the
-     * url of the remote device. In virtual connections, the key is the
-     * virtual identifier set by this manager or the remote one.
+    /** Hashtable of special connections. The key is the url of the remote
+     * device, the object the Multiplexer sharing the connection. The virtual
+     * connections are kept by the multiplexers.
      */
     private Hashtable connections=null;
-    /** Next identifier for a virtual connection. In order to ensure
-     * unicity of this identifiers the actual virtual identifier is
-     * <pre>identifier of the msd +"-" + nextVirtual</pre> */
-    private long nextVirtual=0;
 
     /** Initialize this network manager. The local address will be the
      * address to connect to this MSD, and the multicast includes UUID and
@@ -94,8 +91,7 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
             Connection c=s.openConnection(commManager,Connection.CONN_BT,
                                           m.getIDFrom(),m.getIDTo());
             logger.debug("Bluetooth connection from: "+s.getURL()); //@@l
-            connections.put(key,c);
-            new BTConnectionThread(c,this);
+            connections.put(key,share(c));
         } else{
             // if it was a single message...
             logger.warn("Single message through BluetoothNetworkManager."); //@@l
@@ -107,108 +103,6 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
         }
     }
 
-    /** Class used to receive messages from a special Bluetooth
-     * connection and send them to the router or virtual connections.
-     * @todo This thread is very similar to the one in Connection. Can we
-     * convert this one in an event listener?
-     */
-    private class BTConnectionThread extends Thread{
-        private Connection c=null;
-        private NetworkManager net;
-        public BTConnectionThread(Connection c,NetworkManager n){
-            super("Special connection manager");
-            this.c=c;
-            net=n;
-            start();
-        }
-
-        public void run(){
-            boolean next=true;
-            VirtualConnection vc=null;
-            while(next&&!c.closed()){
-                try{
-                    Message m=c.receive();
-                    // if the message was null, the connection is closed:
-                    // break the loop
-                    if(m==null){
-                        next=false;
-                        continue;
-                    }
-
-                    setNeighbor(c.getIDFrom());
-
-                    logger.debug("Message from "+m.getIDFrom()+" virtual="+ //@@l
-                                 m.getVirtual()); //@@l
-                    switch(m.getType()){
-                    case Message.CLOSE:
-                        if(m.getVirtual()==null){
-                            logger.warn("Unexpected CLOSE message"); //@@l
-                            continue;
-                        } else{
-                            // try to close the virtual connection
-                            vc=(VirtualConnection)connections.get(m.getVirtual());
-                            if(vc==null){
-                                logger.warn( //@@l
-                                        "Trying to close an unknown virtual connection: "+ //@@l
-                                        m.getVirtual()); //@@l
-                            } else{
-                                vc.closeConnection();
-                            }
-                        }
-                        break;
-                    case Message.CONN:
-
-                        // make a new virtual connection
-                        logger.debug("Virtual connection from "+m.getIDFrom()+ //@@l
-                                     " to "+m.getIDTo()); //@@l
-                        ByteArrayInputStream in=new ByteArrayInputStream(m.
-                                getData());
-                        int type=Integer.valueOf(CommManager.readLine(in,16)).
-                                 intValue();
-                        if(type==Connection.CONN_BT){
-                            logger.warn( //@@l
-                                    "Special connection inside antoher one: ignoring"); //@@l
-                            break;
-                        }
-                        String key=CommManager.readLine(in,128);
-                        vc=new VirtualConnection(type,m.getIDFrom(),m.getIDTo(),
-                                                 net,c,key);
-                        connections.put(key,vc);
-                        msdManager.getRouter().receive(vc,net);
-                        break;
-                    default:
-
-                        // other messages: look if they are from virtual
-                        // connections or single
-                        if(m.getVirtual()!=null){
-                            // virtual: inform to the virtual connection
-                            vc=(VirtualConnection)connections.get(m.getVirtual());
-                            if(vc==null){
-                                logger.warn("Message for virtual="+ //@@l
-                                            m.getVirtual()+ //@@l
-                                            " but connection not found"); //@@l
-                                break;
-                            }
-                            logger.debug("New message "+m.getType()+" virtual="+ //@@l
-                                         m.getVirtual()); //@@l
-                            vc.newMessage(m);
-                        } else{
-                            // else, send the single message to the router
-                            logger.debug("New single message for "+m.getIDTo()); //@@l
-                            msdManager.getRouter().receive(m,net);
-                        }
-                    }
-                } catch(Exception e){
-                    logger.error("Error while receiving message: "+e); //@@l
-                    e.printStackTrace(); //@@l
-                    c.closeConnection();
-                    next=false;
-                }
-            }
-        }
-    }
-
-
     public void sendU(Message m,String gw) throws Exception{
         logger.debug("Sending "+new String(m.getData())); //@@l
         Network net=getMSDNetwork(getMSD(gw));
@@ -219,19 +113,9 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
     }
 
     public void sendU(Message m,Address address) throws Exception{
-        String url=address.getURL();
         logger.debug("Sending "+new String(m.getData())); //@@l
-        Connection con;
         // if the connection was not yet stablished, place one
-        con=(Connection)connections.get(leaveUrlAlone(url));
-        if(con==null||con.closed()){
-            con=getSpecialConnection(m.getIDFrom(),m.getIDTo(),
-                                     address);
-            con.send(m);
-        } else{
-            // else send the message through the connection
-            con.send(m);
-        }
+        getSpecialConnection(m.getIDFrom(),m.getIDTo(),address).send(m);
     }
 
     public void sendM(Message m) throws Exception{
@@ -308,11 +192,7 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
         if(net==null){
             throw new Exception("Unreachable host");
         }
-        if(type==Connection.CONN_BT){
-            return getSpecialConnection(from,to,net.getAddress());
-        } else{
-            return getConnection(type,from,to,net.getAddress());
-        }
+        return getConnection(type,from,to,net.getAddress());
     }
 
     public ConnectionStreams getConnection(Address address) throws IOException{
@@ -340,23 +220,19 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
      */
     public Connection getConnection(int type,String from,String to,
                                     Address address) throws Exception{
-        String url=address.getURL();
-        logger.debug("Opening virtual connection to "+url); //@@l
-        Connection conn=(Connection)connections.get(leaveUrlAlone(url));
-        if(conn==null||conn.closed()){
-            logger.debug("No preexistent normal connection"); //@@l
-            // if we haven't got a special connection, place one
-            conn=getSpecialConnection(from,to,address);
+        logger.debug("Opening virtual connection to "+address.getURL()); //@@l
+        // place a virtual connection on the special connection
+        Multiplexer mux=getSpecialConnection(from,to,address);
+        VirtualConnection vc;
+        try{
+            vc=mux.open(type,from,to);
+        } catch(Exception e){
+            if(!mux.closed()){
+                throw e;
+            }
+            // closed meanwhile by the other party: try a new one
+            vc=getSpecialConnection(from,to,address).open(type,from,to);
         }
-        // place a virtual connection on this connection
-        String virtual=msdManager.getID()+"-"+(nextVirtual++);
-        VirtualConnection vc=new VirtualConnection(type,from,to,this,conn,
-                virtual);
-        String r=type+CommManager.EOL+virtual;
-        Message m=new Message(r.getBytes(),from,to,Message.CONN);
-        m.setEncode(false);
-        vc.send(m);
-        connections.put(virtual,vc);
         logger.debug("Virtual connection placed"); //@@l
         return vc;
     }
@@ -369,28 +245,34 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
      * @param to The identifier of the remote MSD.
      * @param address The Address of the remote MSD.
      * @throws java.lang.Exception If the connection is not possible.
-     * @return The special connection place. */
-    public Connection getSpecialConnection(String from,String to,
-                                           Address address) throws Exception{
+     * @return The multiplexer sharing the special connection. */
+    private Multiplexer getSpecialConnection(String from,String to,
+                                             Address address) throws Exception{
         String url=address.getURL();
-        logger.debug("Opening special connection to "+url); //@@l
-        Connection conn=(Connection)connections.get(leaveUrlAlone(url));
-        if(conn!=null){
-            if(!conn.closed()){
-                return conn;
+        synchronized(connections){
+            Multiplexer mux=(Multiplexer)connections.get(leaveUrlAlone(url));
+            if(mux!=null&&!mux.closed()){
+                return mux;
             }
+            logger.debug("Opening special connection to "+url); //@@l
+            ConnectionStreams c=getConnection(new Address(url,-1,
+                    getGenericName()));
+            Connection conn=new Connection(commManager,Connection.CONN_BT,from,
+                                           to,this,c);
+            String msg=Connection.CONN_BT+CommManager.EOL+server.getURL();
+            Message m=new Message(msg.getBytes(),from,to,Message.CONN);
+            m.setEncode(false);
+            try{
+                conn.send(m);
+            } catch(Exception e){
+                conn.closeConnection();
+                throw e;
+            }
+            mux=share(conn);
+            connections.put(leaveUrlAlone(url),mux);
+            logger.debug("Special connection placed"); //@@l
+            return mux;
         }
-        ConnectionStreams c=getConnection(new Address(url,-1,getGenericName()));
-        conn=new Connection(commManager,Connection.CONN_BT,from,to,this,c);
-        connections.put(leaveUrlAlone(url),conn);
-        new BTConnectionThread(conn,this);
-
-        String msg=Connection.CONN_BT+CommManager.EOL+server.getURL();
-        Message m=new Message(msg.getBytes(),from,to,Message.CONN);
-        m.setEncode(false);
-        conn.send(m);
-        logger.debug("Special connection placed"); //@@l
-        return conn;
     }
 
     /** Get the MSD defined with the identifier in the network, or null
@@ -448,42 +330,28 @@ public class BluetoothNetworkManager extends NetworkManager implements TimeListe
             }
         }
         synchronized(connections){
-            // close all connections
-            for(Iterator i=connections.values().iterator();i.hasNext();){
-                try{
-                    Connection c=(Connection)i.next();
-                    if(!c.closed()){
-                        c.close();
-                    }
-                } catch(Exception e){
-                    logger.warn("Error while closing connection: "+e); //@@l
-                }
-            }
+            // the special connections are closed by super.finish()
             connections.clear();
         }
         super.finish();
     }
 
-    /** Every 60 seconds look up the connections and close the ones
-     * not used. Also clean up closed connections from hashtable.
+    /** Every 60 seconds look up the special connections and close the ones
+     * without virtual connections. Also clean up closed connections from
+     * hashtable.
      * @param type The type of the signal
      * @param data The data of the signal
      * @return Wether this signal is periodic or not */
     public boolean signal(int type,Object data){
         synchronized(connections){
-            for(java.util.Enumeration e=connections.elements();
-                                        e.hasMoreElements();){
-                Connection c=(Connection)e.nextElement();
-                try{
-                    if(c.closed()){
-                        connections.remove(c);
-                    } else if(c.lastUsed()>60){
-                        c.close();
-                        connections.remove(c);
-                        logger.warn("Connection automatically closed"); //@@l
-                    }
-                } catch(Exception ex){
-                    logger.error("Error while closing connection: "+ex); //@@l
+            for(Iterator i=connections.values().iterator();i.hasNext();){
+                Multiplexer mux=(Multiplexer)i.next();
+                if(mux.closed()){
+                    i.remove();
+                } else if(mux.idle()>60000){
+                    mux.close();
+                    i.remove();
+                    logger.warn("Connection automatically closed"); //@@l
                 }
             }
         }
@@ -48,6 +48,9 @@ public class Connection{
     protected Date lastUsed=null;
     /** Wether the connection is closed or not */
     boolean closed=false;
+    /** If a CLOSE has been sent or received. When both, the exchange ended
+     * cleanly and reusable streams can be used by other connections. */
+    private boolean closeSent=false,closeReceived=false;
     /** The network manager this connection uses */
     protected NetworkManager net;
     /** The thread to manage the connection through listeners.
@@ -55,6 +58,13 @@ public class Connection{
     protected Thread thread=null;
     /** List of listeners of this connection */
     protected Vector listeners=new Vector();
+    /** Default maximum number of threads running events */
+    public static final int EVENT_THREADS=8;
+    /** Default maximum number of events waiting for a thread */
+    public static final int EVENT_QUEUE=1024;
+    /** Runs the events of every connection */
+    private static EventDispatcher events=new EventDispatcher(
+            "ConnectionEvent",EVENT_THREADS,EVENT_QUEUE);
 
     /** @param comm CommManager to cypher/decypher
      * @param type Type of connection
@@ -92,33 +102,44 @@ public class Connection{
         if(type==ConnectionEvent.CLOSED){
             m=null;
         }
-        new TriggerEvent(this,m,type,listeners);
+        if(listeners.isEmpty()){
+            return;
+        }
+        events.dispatch(this,new TriggerEvent(this,m,type,listeners.toArray()));
     }
 
-    /** Trigger events in a new thread not to block execution.
-     * @todo This thread seems not useful, but we keep them in case
-     * the system down not work without...*/
-    private class TriggerEvent extends Thread{
+    /** Sets the dispatcher of the events of every connection. The events
+     * already triggered are run by the previous one.
+     * @param d The dispatcher */
+    public static void setEventDispatcher(EventDispatcher d){
+        events=d;
+    }
+
+    /** @return The dispatcher of the events of every connection */
+    public static EventDispatcher getEventDispatcher(){
+        return events;
+    }
+
+    /** Trigger events in the dispatcher not to block execution. The events
+     * of a connection reach the listeners in order. */
+    private class TriggerEvent implements Runnable{
         private Message m;
         private int type;
         private Connection c;
-        private Vector listeners;
-        public TriggerEvent(Connection c,Message m,int type,Vector l){
+        private Object[] listeners;
+        public TriggerEvent(Connection c,Message m,int type,Object[] l){
             this.m=m;
             this.type=type;
             this.c=c;
-            listeners=(Vector)l.clone();
-            start();
+            listeners=l;
         }
 
         public void run(){
             ConnectionEvent e=new ConnectionEvent(c,m,type);
-            Object o[]=listeners.toArray();
-            for(int i=0;i<o.length;i++){
-                ConnectionListener l=(ConnectionListener)o[i];
+            for(int i=0;i<listeners.length;i++){
+                ConnectionListener l=(ConnectionListener)listeners[i];
                 l.event(e);
             }
-            listeners.clear();
         }
     }
 
@@ -176,7 +197,15 @@ public class Connection{
      * @param b Thearray to send
      * @throws Exception If the array can not be sent */
     public void sendBytes(byte[] b) throws Exception{
-        send(new Message(b,idto,idfrom,type));
+        send(createMessage(b));
+    }
+
+    /** Creates the message sendBytes() would send, in order to set
+     * its attributes before sending it with send().
+     * @param b The array to send
+     * @return A message for this connection */
+    public Message createMessage(byte[] b){
+        return new Message(b,idto,idfrom,type);
     }
 
     /** Receives a message from the connection. Blocks until received.
@@ -194,8 +223,15 @@ public class Connection{
         if(closed){
             return null;
         }
-        Message m=comm.receive(s.getInputStream(),net);
+        Message m;
+        EventDispatcher.beginBlocking();
+        try{
+            m=comm.receive(s.getInputStream(),net);
+        } finally{
+            EventDispatcher.endBlocking();
+        }
         if(m.getType()==Message.CLOSE&&m.getVirtual()==null){
+            closeReceived=true;
             closeConnection();
             m=null;
         } else if(m.getType()==Message.ERROR){
@@ -266,6 +302,7 @@ public class Connection{
         m.setEncode(false);
         try{
             send(m);
+            closeSent=true;
         } catch(Throwable t){
             t.printStackTrace();
             logger.warn("Error while closing: "+t); //@@l
@@ -274,6 +311,32 @@ public class Connection{
         closed=true;
     }
 
+    /** @return If the streams can be used by other connections after this
+     * one: they are reusable and no thread is reading them */
+    private boolean reusable(){
+        return s!=null&&s.isReusable()&&thread==null;
+    }
+
+    /** Checks the data read from reusable streams after this connection
+     * sent its CLOSE, discarding the messages up to the CLOSE of the other
+     * party. The streams of this connection are not used.
+     * @param in The data read, without waiting
+     * @return If the data ends with the CLOSE of the other party: the
+     * streams can be used by other connections */
+    boolean closeArrived(java.io.InputStream in){
+        try{
+            while(in.available()>0){
+                Message m=comm.receive(in,net);
+                if(m.getType()==Message.CLOSE&&m.getVirtual()==null){
+                    return in.available()==0;
+                }
+            }
+        } catch(Exception e){
+            logger.debug("Wrong data after closing: "+e); //@@l
+        }
+        return false;
+    }
+
     /** Close the connection for the network. Call this method to close
      * the connection in case you receive a CLOSE message from the other party,
      * or after any error in connection.
@@ -285,8 +348,27 @@ public class Connection{
         }
         try{
             logger.debug("Closing ConnectionStream "+net.getGenericName()); //@@l
+            if(closeReceived&&!closeSent&&reusable()){
+                // answer the CLOSE, so the other party can reuse the streams
+                Message m=new Message(null,getIDFrom(),getIDTo(),Message.CLOSE);
+                m.setEncode(false);
+                try{
+                    comm.send(m,s.getOutputStream(),net);
+                    closeSent=true;
+                } catch(Exception e){
+                    logger.debug("CLOSE not answered: "+e); //@@l
+                }
+            }
             s.getOutputStream().flush();
-            s.close();
+            if(closeSent&&closeReceived&&reusable()){
+                s.release();
+            } else if(closeSent&&reusable()){
+                // do not wait for the CLOSE of the other party: the next
+                // connection using the streams checks it
+                s.release(this);
+            } else{
+                s.close();
+            }
         } catch(java.io.IOException e){
             logger.error("Error while closing ConnectionStream: "+e); //@@l
         }
@@ -387,8 +469,13 @@ class LocalConnection extends Connection{
             return null;
         }
         if(messages[indexMessage]==null){
-            synchronized(newMessage){
-                newMessage.wait();
+            EventDispatcher.beginBlocking();
+            try{
+                synchronized(newMessage){
+                    newMessage.wait();
+                }
+            } finally{
+                EventDispatcher.endBlocking();
             }
         }
         Message m=messages[indexMessage];
@@ -441,26 +528,19 @@ class LocalConnection extends Connection{
 
 
 /** This class represent a virtual connection inside another connection.
- * Useful for reusing a connection for other connections. */
+ * Useful for reusing a connection for other connections.
+ * @see Multiplexer */
 class VirtualConnection extends Connection{
-    /** Actual connection to send the messages through */
-    private Connection con;
+    /** Shares the actual connection to send the messages through */
+    private Multiplexer mux;
     /** Identifier of this virtual connection */
     private String virtual;
-    /** The queue of the incoming messages of this connection */
-    private Message[] messages;
-    /** Object to be notified when a new message arrives */
-    private Object newMessage;
-    /** indexMessage is next index inside the queue of the message to return
-     * when someone calls to receive().
-     * nextMessage is the index inside the queue where save a message when
-     * someone calls to newMessage().
-     */
-    private int indexMessage,nextMessage;
+    /** The queue of the incoming messages of this connection. It grows
+     * up to Multiplexer.MAX_QUEUE messages if the stream is controlled. */
+    private Vector messages=new Vector(4);
 
-    /** Constructs a new virtual connection. The queue of incoming
-     * messages is set to 5.
-     * @param con Actual connection to send messages (not receiving!)
+    /** Constructs a new virtual connection.
+     * @param mux Shares the actual connection to send messages
      * @param idto Identifier of the sender
      * @param idfrom Identifier of the receiver
      * @param type Type of this virtual connection
@@ -468,21 +548,20 @@ class VirtualConnection extends Connection{
      * @param net The network of this connection.
      */
     public VirtualConnection(int type,String idfrom,String idto,
-                             NetworkManager net,Connection con,String id){
+                             NetworkManager net,Multiplexer mux,String id){
         super(null,type,idfrom,idto,net,null);
         virtual=id;
-        this.con=con;
-        messages=new Message[5];
-        for(int i=0;i<5;i++){
-            messages[i]=null;
-        }
-        newMessage=new Object();
-        indexMessage=0;
-        nextMessage=0;
+        this.mux=mux;
+    }
+
+    /** @return The identifier of this virtual connection */
+    public String getVirtual(){
+        return virtual;
     }
 
     /** Sends the messages through the actual connection.
-     * Also sets the virtual parameter of the message.
+     * Also sets the virtual parameter of the message. Blocks while the
+     * other party has not read the previous messages.
      * @param m The message to send.
      * @throws java.lang.Exception If the message can not be sent.
      */
@@ -492,7 +571,7 @@ class VirtualConnection extends Connection{
         }
         lastUsed=new Date();
         m.setVirtual(virtual);
-        con.send(m);
+        mux.send(this,m);
         triggerEvent(m,ConnectionEvent.SENT);
     }
 
@@ -502,23 +581,31 @@ class VirtualConnection extends Connection{
      * @throws java.lang.Exception After any error.
      */
     public Message receive() throws Exception{
-        if(closed){
-            return null;
-        }
-        if(messages[indexMessage]==null){
-            synchronized(newMessage){
-                newMessage.wait();
+        Message m;
+        synchronized(messages){
+            if(messages.isEmpty()&&!closed){
+                EventDispatcher.beginBlocking();
+                try{
+                    while(messages.isEmpty()&&!closed){
+                        messages.wait();
+                    }
+                } finally{
+                    EventDispatcher.endBlocking();
+                }
+            }
+            if(closed){
+                return null;
             }
+            m=(Message)messages.remove(0);
         }
-        Message m=messages[indexMessage];
-        messages[indexMessage]=null;
-        indexMessage=(indexMessage+1)%messages.length;
         lastUsed=new Date();
 
         if(m.getType()==Message.CLOSE){
             closeConnection();
             return null;
-        } else if(m.getType()==Message.ERROR){
+        }
+        mux.read(this);
+        if(m.getType()==Message.ERROR){
             triggerEvent(m,ConnectionEvent.ERROR);
         } else{
             triggerEvent(m,ConnectionEvent.RECEIVED);
@@ -535,17 +622,21 @@ class VirtualConnection extends Connection{
 
     /** Save a new message in the queue of incoming messages.
      * @param m A new message arrived, will be returned by receive()
-     * @throws java.lang.Exception If the incoming queue is full.
+     * @param controlled If the other party uses flow control: the queue
+     * is bounded
+     * @return False if the incoming queue is full: the other party
+     * ignored the flow control.
      */
-    public void newMessage(Message m) throws Exception{
-        if(messages[nextMessage]!=null){
-            throw new Exception("Messages queue is full");
-        }
-        messages[nextMessage]=m;
-        nextMessage=(nextMessage+1)%messages.length;
-        synchronized(newMessage){
-            newMessage.notify();
+    boolean deliver(Message m,boolean controlled){
+        synchronized(messages){
+            if(controlled&&m.getType()!=Message.CLOSE&&
+               messages.size()>=Multiplexer.MAX_QUEUE){
+                return false;
+            }
+            messages.add(m);
+            messages.notifyAll();
         }
+        return true;
     }
 
     /** Closes the connection.
@@ -573,16 +664,20 @@ class VirtualConnection extends Connection{
     /** Actually close the connection, no matter of the consequences.
      * Use this method only after an error. */
     public void closeConnection(){
-        if(closed){
-            return;
+        synchronized(messages){
+            if(closed){
+                return;
+            }
+            closed=true;
+            messages.notifyAll();
         }
         logger.debug("Closing virtual connection "+virtual); //@@l
+        mux.remove(this);
         if(thread!=null){
             synchronized(thread){
                 thread.interrupt();
             }
         }
-        closed=true;
         triggerEvent(null,ConnectionEvent.CLOSED);
         listeners.clear();
     }
@@ -0,0 +1,245 @@
+package org.msd.comm;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+import org.apache.log4j.Logger; //@@l
+
+/** Pool of TCP sockets to other MSDs.
+ *
+ * Connections lease a socket to a peer instead of opening a new one. When
+ * a connection ends cleanly (both parties sent CLOSE) the socket returns
+ * to the pool, and the next connection to the same peer uses it without a
+ * new TCP handshake. A connection closing does not wait for the CLOSE of
+ * the peer: the socket returns to the pool as closing, and the CLOSE is
+ * checked when the socket is leased again. Idle sockets are closed after
+ * IDLE_TIMEOUT, and checked before leasing them: a socket closed by the
+ * peer or with unexpected data is discarded.
+ *
+ * At most MAX_PER_PEER sockets of the pool are leased to each peer. More
+ * connections to the same peer get sockets outside the pool, closed when
+ * the connection ends, so leasing never waits.
+ * @version $Revision: 1.1 $ */
+class ConnectionPool{
+    private static final Logger logger=Logger.getLogger(ConnectionPool.class); //@@l
+    /** Maximum number of sockets of the pool leased to a peer */
+    public static final int MAX_PER_PEER=4;
+    /** Milliseconds an idle socket is kept. Lower than the time the
+     * servers wait for a new connection in an idle socket. */
+    public static final long IDLE_TIMEOUT=20000;
+
+    /** Idle sockets. Key: url:port. Object: Vector of Idle */
+    private Hashtable idle=new Hashtable();
+    /** Sockets leased. Key: url:port. Object: Integer */
+    private Hashtable leased=new Hashtable();
+    /** If the pool has been closed */
+    private boolean closed=false;
+
+    /** Leases the streams of a socket to a peer.
+     * @param url The host of the peer
+     * @param port The port of the peer
+     * @return The streams. Reusable if the socket belongs to the pool.
+     * @throws IOException If the peer can not be connected */
+    ConnectionStreams lease(String url,int port) throws IOException{
+        String key=url+":"+port;
+        SocketChannel c=null;
+        boolean pooled;
+        synchronized(this){
+            expire(System.currentTimeMillis());
+            Vector v=(Vector)idle.get(key);
+            while(c==null&&v!=null&&!v.isEmpty()){
+                Idle i=(Idle)v.remove(v.size()-1);
+                c=i.channel;
+                if(!(i.closing==null?healthy(c):closed(c,i.closing))){
+                    close(c);
+                    c=null;
+                }
+            }
+            int n=leased(key);
+            pooled=!closed&&(c!=null||n<MAX_PER_PEER);
+            if(pooled){
+                leased.put(key,new Integer(n+1));
+            }
+        }
+        if(c==null){
+            try{
+                c=SocketChannel.open(new InetSocketAddress(url,port));
+                // messages are small and answered: do not delay them
+                c.socket().setTcpNoDelay(true);
+            } catch(IOException e){
+                if(pooled){
+                    forget(key);
+                }
+                throw e;
+            }
+            if(!pooled){
+                return new IConnectionStreams(c.socket());
+            }
+        } else{
+            logger.debug("Reusing socket to "+key); //@@l
+        }
+        return new PooledStreams(key,c);
+    }
+
+    /** Closes every idle socket. The sockets leased are closed when
+     * their connections end. */
+    synchronized void close(){
+        closed=true;
+        for(Iterator i=idle.values().iterator();i.hasNext();){
+            Vector v=(Vector)i.next();
+            for(int j=0;j<v.size();j++){
+                close(((Idle)v.elementAt(j)).channel);
+            }
+        }
+        idle.clear();
+    }
+
+    /** A leased socket returns to the pool.
+     * @param closing The connection waiting for the CLOSE of the peer, or
+     * null if the peer closed */
+    private synchronized void release(String key,SocketChannel c,
+                                      Connection closing){
+        forget(key);
+        if(closed){
+            close(c);
+            return;
+        }
+        Vector v=(Vector)idle.get(key);
+        if(v==null){
+            v=new Vector();
+            idle.put(key,v);
+        }
+        v.add(new Idle(c,closing));
+    }
+
+    /** A leased socket no longer belongs to the pool */
+    private synchronized void forget(String key){
+        int n=leased(key)-1;
+        if(n>0){
+            leased.put(key,new Integer(n));
+        } else{
+            leased.remove(key);
+        }
+    }
+
+    /** @return The number of sockets leased to a peer */
+    private int leased(String key){
+        Integer n=(Integer)leased.get(key);
+        return n==null?0:n.intValue();
+    }
+
+    /** Closes the sockets idle for longer than IDLE_TIMEOUT */
+    private void expire(long now){
+        for(Iterator i=idle.values().iterator();i.hasNext();){
+            Vector v=(Vector)i.next();
+            for(int j=v.size()-1;j>=0;j--){
+                Idle s=(Idle)v.elementAt(j);
+                if(now-s.since>IDLE_TIMEOUT){
+                    close(s.channel);
+                    v.removeElementAt(j);
+                }
+            }
+            if(v.isEmpty()){
+                i.remove();
+            }
+        }
+    }
+
+    /** @return If an idle socket is still open and has nothing to read */
+    private static boolean healthy(SocketChannel c){
+        try{
+            c.configureBlocking(false);
+            int r=c.read(ByteBuffer.allocate(1));
+            c.configureBlocking(true);
+            return r==0;
+        } catch(IOException e){
+            return false;
+        }
+    }
+
+    /** Reads without waiting the data of a socket returned to the pool
+     * before the peer closed.
+     * @param c The socket
+     * @param closing The connection waiting for the CLOSE of the peer
+     * @return If the data ends with the CLOSE of the peer */
+    private static boolean closed(SocketChannel c,Connection closing){
+        try{
+            java.io.ByteArrayOutputStream read=
+                    new java.io.ByteArrayOutputStream();
+            ByteBuffer b=ByteBuffer.allocate(1024);
+            c.configureBlocking(false);
+            int r;
+            while((r=c.read(b))>0){
+                read.write(b.array(),0,r);
+                b.clear();
+            }
+            c.configureBlocking(true);
+            return r==0&&closing.closeArrived(
+                    new java.io.ByteArrayInputStream(read.toByteArray()));
+        } catch(IOException e){
+            return false;
+        }
+    }
+
+    /** Closes a socket, ignoring errors */
+    private static void close(SocketChannel c){
+        try{
+            c.close();
+        } catch(IOException e){}
+    }
+
+    /** An idle socket */
+    private static class Idle{
+        SocketChannel channel;
+        /** The connection waiting for the CLOSE of the peer, or null */
+        Connection closing;
+        long since=System.currentTimeMillis();
+        Idle(SocketChannel channel,Connection closing){
+            this.channel=channel;
+            this.closing=closing;
+        }
+    }
+
+    /** The streams of a socket leased from the pool */
+    private class PooledStreams extends IConnectionStreams{
+        private String key;
+        private SocketChannel channel;
+        /** If the socket has been released or closed */
+        private boolean done=false;
+
+        PooledStreams(String key,SocketChannel channel) throws IOException{
+            super(channel.socket());
+            this.key=key;
+            this.channel=channel;
+        }
+
+        public boolean isReusable(){
+            return true;
+        }
+
+        public void release() throws IOException{
+            release(null);
+        }
+
+        public void release(Connection c) throws IOException{
+            if(done){
+                return;
+            }
+            done=true;
+            getOutputStream().flush();
+            ConnectionPool.this.release(key,channel,c);
+        }
+
+        public void close() throws IOException{
+            if(!done){
+                done=true;
+                forget(key);
+            }
+            super.close();
+        }
+    }
+}
@@ -39,6 +39,36 @@ public class ConnectionStreams{
         return in;
     }
 
+    /** @return If the streams can be used by another connection once a
+     * connection ends cleanly. By default, false. */
+    public boolean isReusable(){
+        return false;
+    }
+
+    /** Gives the streams back after a connection ended cleanly, for other
+     * connections. By default, the streams are closed.
+     * @throws IOException If the streams can not be given back */
+    public void release() throws IOException{
+        close();
+    }
+
+    /** Gives the streams back after a connection sent its CLOSE, before
+     * the CLOSE of the other party arrives. The streams are not used again
+     * until Connection.closeArrived() finds that CLOSE. By default, the
+     * streams are closed.
+     * @param c The connection that sent the CLOSE
+     * @throws IOException If the streams can not be given back */
+    public void release(Connection c) throws IOException{
+        close();
+    }
+
+    /** Sets the time to wait for data when reading.
+     * By default, the streams wait forever and this method does nothing.
+     * @param ms Milliseconds to wait, or 0 to wait forever
+     * @throws IOException If the time can not be set */
+    public void setTimeout(int ms) throws IOException{
+    }
+
     /** Close both streams (and connection, if it is associated).
      * This method is preferred to only close an stream with its inner
      * method.
@@ -86,8 +116,24 @@ class IConnectionStreams extends ConnectionStreams{
         this.s=s;
     }
 
+    /** @param s The socket connection to get the input and putput streams.
+     * @param read Bytes read from the socket before the streams were
+     * taken. The input stream returns them first.
+     * @throws IOException If the streams couldn't be taken.
+     */
+    public IConnectionStreams(java.net.Socket s,InputStream read) throws
+            IOException{
+        super(new java.io.SequenceInputStream(read,s.getInputStream()),
+              s.getOutputStream());
+        this.s=s;
+    }
+
     public void close() throws IOException{
         super.close();
         s.close();
     }
+
+    public void setTimeout(int ms) throws IOException{
+        s.setSoTimeout(ms);
+    }
 }
@@ -0,0 +1,288 @@
+package org.msd.comm;
+
+import java.util.Hashtable;
+import java.util.Vector;
+import org.apache.log4j.Logger; //@@l
+
+/** Runs tasks in a bounded number of threads.
+ *
+ * Tasks with the same key run one after another, in the order they were
+ * given: the events of a connection use the connection as key. Tasks with
+ * different keys run in parallel and take turns, so a key with many tasks
+ * does not delay the others.
+ *
+ * Threads are started when needed, up to a maximum, and end after IDLE
+ * milliseconds without tasks. A task waiting for a peer calls
+ * beginBlocking() and endBlocking(): while it is blocked, the dispatcher may
+ * start some spare threads over the maximum, so the tasks the peer needs
+ * still run. A maximum number of tasks wait for a thread:
+ * execute() rejects the tasks beyond, and dispatch() waits until there is
+ * room. The tasks waiting, the highest number of them and the tasks
+ * rejected are available to monitor the load.
+ * @version $Revision: 1.1 $ */
+public class EventDispatcher{
+    private static final Logger logger=Logger.getLogger(EventDispatcher.class); //@@l
+    /** Milliseconds a thread without tasks waits before ending */
+    public static final long IDLE=60000;
+
+    /** Name of the threads */
+    private String name;
+    /** Maximum number of threads, 0 for no limit */
+    private int threads;
+    /** Maximum number of threads started over threads while others are
+     * blocked */
+    private int spare=0;
+    /** Maximum number of tasks waiting */
+    private int max;
+    /** Tasks waiting. Key: key of the tasks. Object: Vector of Runnable.
+     * A key is here while it has a task waiting or running. */
+    private Hashtable pending=new Hashtable();
+    /** Keys with tasks waiting and no task running, in turns */
+    private Vector ready=new Vector();
+    /** Threads started, threads waiting for a task and threads blocked
+     * waiting for a peer */
+    private int workers=0,idle=0,blocked=0;
+    /** Tasks waiting, and the highest number of them */
+    private int queued=0,peak=0;
+    /** Tasks run and tasks rejected */
+    private long executed=0,rejected=0;
+    /** If the last task was rejected */
+    private boolean rejecting=false;
+
+    /** @param name Name of the threads
+     * @param threads Maximum number of threads. 0 for no limit: a thread for
+     * each key with tasks, as starting a thread for every task did.
+     * @param max Maximum number of tasks waiting for a thread */
+    public EventDispatcher(String name,int threads,int max){
+        if(threads<0||max<1){
+            throw new IllegalArgumentException("Wrong size of dispatcher: "+
+                                               threads+"/"+max);
+        }
+        this.name=name;
+        this.threads=threads;
+        this.max=max;
+    }
+
+    /** Queues a task, or rejects it if there are too many tasks waiting.
+     * @param key Tasks with the same key run in order. If null, the task
+     * does not wait for any other.
+     * @param r The task
+     * @return False if the task was rejected */
+    public synchronized boolean execute(Object key,Runnable r){
+        if(queued>=max){
+            rejected++;
+            if(!rejecting){
+                logger.warn(name+" is full: rejecting tasks"); //@@l
+                rejecting=true;
+            }
+            return false;
+        }
+        add(key,r);
+        return true;
+    }
+
+    /** Queues a task, waiting while there are too many tasks waiting. The
+     * threads of this dispatcher do not wait: their tasks are queued over
+     * the maximum, or they could wait for themselves. An interrupted
+     * thread stops waiting and queues the task as well.
+     * @param key Tasks with the same key run in order. If null, the task
+     * does not wait for any other.
+     * @param r The task */
+    public synchronized void dispatch(Object key,Runnable r){
+        Thread t=Thread.currentThread();
+        boolean mine=t instanceof Worker&&((Worker)t).getDispatcher()==this;
+        while(queued>=max&&!mine){
+            try{
+                wait();
+            } catch(InterruptedException e){
+                t.interrupt();
+                break;
+            }
+        }
+        add(key,r);
+    }
+
+    /** @param spare Maximum number of threads started over the maximum
+     * while other threads are blocked. 0 by default.
+     * @throws IllegalArgumentException If spare is negative */
+    public synchronized void setSpareThreads(int spare){
+        if(spare<0){
+            throw new IllegalArgumentException("Wrong spare threads: "+spare);
+        }
+        this.spare=spare;
+    }
+
+    /** The current thread is going to block waiting for a peer, which may
+     * need other task of the same dispatcher. If the thread belongs to a
+     * dispatcher, it does not count in the maximum of threads of the
+     * dispatcher until endBlocking(). Does nothing in other threads. */
+    public static void beginBlocking(){
+        Thread t=Thread.currentThread();
+        if(t instanceof Worker){
+            ((Worker)t).getDispatcher().block((Worker)t,true);
+        }
+    }
+
+    /** The current thread is not blocked anymore.
+     * @see #beginBlocking() */
+    public static void endBlocking(){
+        Thread t=Thread.currentThread();
+        if(t instanceof Worker){
+            ((Worker)t).getDispatcher().block((Worker)t,false);
+        }
+    }
+
+    /** @return The number of tasks waiting for a thread */
+    public synchronized int getQueued(){
+        return queued;
+    }
+
+    /** @return The highest number of tasks that have waited at the same
+     * time */
+    public synchronized int getPeak(){
+        return peak;
+    }
+
+    /** @return The number of tasks rejected by execute() */
+    public synchronized long getRejected(){
+        return rejected;
+    }
+
+    /** @return The number of tasks run */
+    public synchronized long getExecuted(){
+        return executed;
+    }
+
+    /** @return The number of threads running */
+    public synchronized int getThreads(){
+        return workers;
+    }
+
+    /** @return The number of threads blocked waiting for a peer */
+    public synchronized int getBlocked(){
+        return blocked;
+    }
+
+    /** Marks a thread as blocked or not, and starts other thread if
+     * needed */
+    private synchronized void block(Worker w,boolean b){
+        if(w.blocked==b){
+            return;
+        }
+        w.blocked=b;
+        if(b){
+            blocked++;
+            start();
+        } else{
+            blocked--;
+        }
+    }
+
+    /** Starts a thread if there are more keys ready to run than threads
+     * waiting for them, and the limits allow it */
+    private void start(){
+        if(ready.size()>idle&&(threads==0||(workers-blocked<threads&&
+                                            workers<threads+spare))){
+            workers++;
+            new Worker().start();
+        }
+    }
+
+    /** Queues a task and wakes up or starts a thread for it */
+    private void add(Object key,Runnable r){
+        if(key==null){
+            key=r;
+        }
+        Vector v=(Vector)pending.get(key);
+        if(v==null){
+            v=new Vector(2);
+            pending.put(key,v);
+            ready.add(key);
+        }
+        v.add(r);
+        queued++;
+        rejecting=false;
+        if(queued>peak){
+            peak=queued;
+        }
+        if(idle>0){
+            notifyAll();
+        }
+        start();
+    }
+
+    /** @param w A thread wanting a task
+     * @return The next task, or null if the thread must end */
+    private synchronized Runnable next(Worker w){
+        // a thread not blocked anymore may leave too many threads
+        if(threads>0&&workers-blocked>threads){
+            workers--;
+            return null;
+        }
+        long since=System.currentTimeMillis();
+        while(ready.isEmpty()){
+            long left=IDLE-(System.currentTimeMillis()-since);
+            if(left<=0){
+                workers--;
+                return null;
+            }
+            idle++;
+            try{
+                wait(left);
+            } catch(InterruptedException e){
+                workers--;
+                return null;
+            } finally{
+                idle--;
+            }
+        }
+        w.key=ready.remove(0);
+        Runnable r=(Runnable)((Vector)pending.get(w.key)).remove(0);
+        queued--;
+        // there is room for the threads in dispatch()
+        notifyAll();
+        return r;
+    }
+
+    /** A task has run: the next task of the key can run */
+    private synchronized void done(Worker w){
+        executed++;
+        Vector v=(Vector)pending.get(w.key);
+        if(v.isEmpty()){
+            pending.remove(w.key);
+        } else{
+            ready.add(w.key);
+        }
+        w.key=null;
+    }
+
+    /** A thread of the dispatcher */
+    private class Worker extends Thread{
+        /** Key of the task running */
+        Object key=null;
+        /** If the thread is blocked waiting for a peer */
+        boolean blocked=false;
+
+        Worker(){
+            super(name);
+            setDaemon(true);
+        }
+
+        EventDispatcher getDispatcher(){
+            return EventDispatcher.this;
+        }
+
+        public void run(){
+            Runnable r;
+            while((r=next(this))!=null){
+                try{
+                    r.run();
+                } catch(Throwable t){
+                    logger.warn("Error in "+name+": "+t); //@@l
+                }
+                block(this,false);
+                done(this);
+            }
+        }
+    }
+}
@@ -0,0 +1,177 @@
+package org.msd.comm;
+
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.StringTokenizer;
+import org.apache.log4j.Logger; //@@l
+
+/** Fragments of the messages bigger than a datagram.
+ *
+ * A message too big for a datagram is sent in fragments. Each fragment is
+ * a datagram with a line "MSDF id index count" followed by a piece of the
+ * message: id identifies the message among the messages of the sender, and
+ * index goes from 0 to count-1. The fragments can arrive in any order.
+ *
+ * The receiver keeps the fragments of each message until every fragment
+ * arrives. The memory used is bounded: messages are forgotten if they are
+ * not complete in TIMEOUT milliseconds, and the oldest ones if there are
+ * more than MAX_MESSAGES incomplete messages or MAX_BYTES bytes waiting.
+ * A lost fragment loses the whole message, as a lost datagram did.
+ * @version $Revision: 1.1 $ */
+class Fragments{
+    private static final Logger logger=Logger.getLogger(Fragments.class); //@@l
+    /** First bytes of a fragment */
+    static final String PREFIX="MSDF ";
+    /** Maximum size of the header line of a fragment */
+    static final int HEADER=64;
+    /** Maximum number of fragments of a message */
+    static final int MAX_FRAGMENTS=1024;
+    /** Maximum number of incomplete messages */
+    static final int MAX_MESSAGES=64;
+    /** Maximum number of bytes of incomplete messages */
+    static final int MAX_BYTES=1<<20;
+    /** Milliseconds to wait for the fragments of a message */
+    static final long TIMEOUT=10000;
+
+    /** Incomplete messages. Key: sender/id. Object: Pending */
+    private Hashtable pending=new Hashtable();
+    /** Bytes of the incomplete messages */
+    private int bytes=0;
+    /** Incomplete messages started, to know the oldest one */
+    private long started=0;
+
+    /** @return The header line of a fragment */
+    static byte[] header(String id,int index,int count){
+        return(PREFIX+id+" "+index+" "+count+CommManager.EOL).getBytes();
+    }
+
+    /** @param b A datagram
+     * @param length The length of the datagram
+     * @return If the datagram is a fragment */
+    static boolean isFragment(byte[] b,int length){
+        if(length<PREFIX.length()){
+            return false;
+        }
+        for(int i=0;i<PREFIX.length();i++){
+            if(b[i]!=PREFIX.charAt(i)){
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Adds a fragment.
+     * @param from The sender of the fragment
+     * @param b The fragment. It is copied.
+     * @param length The length of the fragment
+     * @return The whole message if this fragment completes it, or null
+     * @throws Exception If the fragment is not valid */
+    synchronized byte[] add(Object from,byte[] b,int length) throws Exception{
+        // read the header line
+        int end=-1;
+        for(int i=1;i<Math.min(length,HEADER);i++){
+            if(b[i]=='\n'&&b[i-1]=='\r'){
+                end=i+1;
+                break;
+            }
+        }
+        if(end<0){
+            throw new Exception("Fragment without header");
+        }
+        StringTokenizer st=new StringTokenizer(new String(b,PREFIX.length(),
+                end-2-PREFIX.length()));
+        String id=st.nextToken();
+        int index=Integer.parseInt(st.nextToken());
+        int count=Integer.parseInt(st.nextToken());
+        if(count<1||count>MAX_FRAGMENTS||index<0||index>=count){
+            throw new Exception("Wrong fragment: "+index+"/"+count);
+        }
+
+        long now=System.currentTimeMillis();
+        expire(now);
+        String key=from+"/"+id;
+        Pending p=(Pending)pending.get(key);
+        if(p==null){
+            if(count==1){
+                return copy(b,end,length);
+            }
+            p=new Pending(count,now,started++);
+            pending.put(key,p);
+        } else if(p.chunks.length!=count){
+            throw new Exception("Wrong fragment: "+index+"/"+count);
+        }
+        if(p.chunks[index]!=null){
+            return null; // duplicated
+        }
+        p.chunks[index]=copy(b,end,length);
+        p.received++;
+        p.bytes+=length-end;
+        bytes+=length-end;
+        if(p.received<count){
+            while(bytes>MAX_BYTES||pending.size()>MAX_MESSAGES){
+                forgetOldest();
+            }
+            return null;
+        }
+
+        // the message is complete
+        pending.remove(key);
+        bytes-=p.bytes;
+        byte[] m=new byte[p.bytes];
+        int pos=0;
+        for(int i=0;i<count;i++){
+            System.arraycopy(p.chunks[i],0,m,pos,p.chunks[i].length);
+            pos+=p.chunks[i].length;
+        }
+        return m;
+    }
+
+    /** Forgets the messages waiting longer than TIMEOUT */
+    private void expire(long now){
+        for(Iterator i=pending.values().iterator();i.hasNext();){
+            Pending p=(Pending)i.next();
+            if(now-p.started>TIMEOUT){
+                logger.debug("Fragmented message timed out"); //@@l
+                i.remove();
+                bytes-=p.bytes;
+            }
+        }
+    }
+
+    /** Forgets the incomplete message waiting for longer */
+    private void forgetOldest(){
+        Object oldest=null;
+        long order=Long.MAX_VALUE;
+        for(Iterator i=pending.keySet().iterator();i.hasNext();){
+            Object k=i.next();
+            Pending p=(Pending)pending.get(k);
+            if(p.order<order){
+                order=p.order;
+                oldest=k;
+            }
+        }
+        Pending p=(Pending)pending.remove(oldest);
+        bytes-=p.bytes;
+        logger.warn("Too many fragments waiting: forgetting a message"); //@@l
+    }
+
+    /** @return A copy of a range of an array */
+    private static byte[] copy(byte[] b,int from,int to){
+        byte[] c=new byte[to-from];
+        System.arraycopy(b,from,c,0,c.length);
+        return c;
+    }
+
+    /** The fragments received of a message */
+    private static class Pending{
+        byte[][] chunks;
+        int received=0,bytes=0;
+        /** When the message started, and in which order */
+        long started,order;
+        Pending(int count,long started,long order){
+            chunks=new byte[count][];
+            this.started=started;
+            this.order=order;
+        }
+    }
+}
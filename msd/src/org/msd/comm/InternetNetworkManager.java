@@ -10,6 +10,10 @@ import org.msd.cache.*;
 import org.msd.proxy.*;
 import java.io.*;
 import java.net.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Hashtable;
+import java.util.Vector;
 
 /** A manager for internet/ethernet networks.
  * @version $Revision: 1.23 $ */
@@ -18,6 +22,86 @@ public class InternetNetworkManager extends NetworkManager{
      * If the UDP and TCP servers does not share the port,
      * starts another UDP server (serverU2) in the TCP port*/
     private Server serverM=null,serverU=null,serverU2=null;
+    /** Maximum number of unicast addresses to remember */
+    private static final int MAX_ADDRESSES=256;
+    /** Maximum number of buffers to keep for sending */
+    private static final int MAX_BUFFERS=8;
+    /** Channels sending the multicast and the unicast messages. They are
+     * opened once and shared by every thread. */
+    private DatagramChannel channelM=null,channelU=null;
+    /** The multicast group, resolved */
+    private InetSocketAddress group=null;
+    /** Unicast addresses, resolved. Key: url:port. Object: InetSocketAddress */
+    private Hashtable addresses=new Hashtable();
+    /** Direct buffers free for sending messages */
+    private Vector buffers=new Vector();
+    /** Sockets to other MSDs, reused by the connections */
+    private ConnectionPool pool=new ConnectionPool();
+    /** If the connections to each MSD share a single socket */
+    private boolean multiplex=false;
+    /** Sockets shared by the connections to other MSDs.
+     * Key: url:port. Object: Multiplexer */
+    private Hashtable links=new Hashtable();
+    /** Addresses whose shared socket is being opened. Key: url:port.
+     * Locked with links */
+    private java.util.HashSet connecting=new java.util.HashSet();
+    /** Milliseconds a shared socket without connections is kept */
+    private static final long IDLE_LINK=60000;
+    /** Maximum size of the datagrams sent */
+    private int mtu=InternetMServer.SIZE;
+    /** Receives the unicast connections. If null, the default of
+     * InternetUServer */
+    private EventDispatcher serverDispatcher=null;
+    /** Identifies the fragmented messages of this manager */
+    private String fragmentID=Long.toHexString(new java.util.Random().nextLong());
+    /** Number of messages fragmented */
+    private int fragmented=0;
+
+    /** Sets the maximum size of the datagrams sent. Bigger messages are
+     * sent in fragments. Use before init(). The default is
+     * InternetMServer.SIZE, that every MSD receives.
+     * @param mtu The maximum size of a datagram, in bytes
+     * @throws IllegalArgumentException If the size is too small or too big
+     * for a datagram */
+    public void setMTU(int mtu){
+        if(mtu<2*Fragments.HEADER||mtu>InternetMServer.MAX_DATAGRAM){
+            throw new IllegalArgumentException("Wrong MTU: "+mtu);
+        }
+        this.mtu=mtu;
+        synchronized(buffers){
+            buffers.clear();
+        }
+    }
+
+    /** @return The maximum size of the datagrams sent */
+    public int getMTU(){
+        return mtu;
+    }
+
+    /** Sets the limits of the threads receiving the unicast connections.
+     * Use before init(). The defaults are InternetUServer.WORKERS and
+     * InternetUServer.QUEUE.
+     * @param threads Maximum number of threads. 0 for no limit
+     * @param queue Maximum number of connections waiting for a thread:
+     * more are closed
+     * @throws IllegalArgumentException If a limit is wrong */
+    public void setServerLimits(int threads,int queue){
+        serverDispatcher=new EventDispatcher("UnicastWorker",threads,queue);
+    }
+
+    /** Sets if the connections to each MSD share a single socket, as
+     * virtual connections. Else each connection uses its own socket,
+     * reused by the next connections after it ends. The other MSDs must
+     * understand virtual connections.
+     * @param multiplex If the connections share a socket */
+    public void setMultiplex(boolean multiplex){
+        this.multiplex=multiplex;
+    }
+
+    /** @return If the connections to each MSD share a single socket */
+    public boolean getMultiplex(){
+        return multiplex;
+    }
 
     /** Initializer.
      * This method initializes the NetworkManager and starts, at least, 
@@ -47,6 +131,17 @@ public class InternetNetworkManager extends NetworkManager{
 
         super.init(name,local,multicast,msd,comm);
 
+        /** Open the channels to send messages */
+        try{
+            group=new InetSocketAddress(InetAddress.getByName(multicast.getURL()),
+                                        multicast.getPort());
+            channelM=DatagramChannel.open();
+            channelU=DatagramChannel.open();
+        } catch(Exception e){
+            logger.warn("Sending channels not opened: "+e); //@@l
+            closeChannels();
+            throw e;
+        }
         /** Initialize multicast server: */
         try{
             serverM=new InternetMServer();
@@ -62,6 +157,9 @@ public class InternetNetworkManager extends NetworkManager{
         try{
             serverU=new InternetUServer();
             serverU.setManager(this);
+            if(serverDispatcher!=null){
+                ((InternetUServer)serverU).setDispatcher(serverDispatcher);
+            }
             serverU.start(local.getURL(),local.getPort());
             network.setAttrStr("url",serverU.getURL());
             network.setAttrStr("port",""+serverU.getPort());
@@ -86,11 +184,6 @@ public class InternetNetworkManager extends NetworkManager{
      * @param gw The identifier of the MSD-Gateway (bridge) to use
      * @throws java.lang.Exception After any error */
     public void sendU(Message m,String gw) throws Exception{
-        // wrap the message into HTTP
-        ByteArrayOutputStream out=new ByteArrayOutputStream();
-        commManager.send(m,out,this);
-        byte msg[]=out.toByteArray();
-
         Network n=getMSDNetwork(getMSD(gw));
         if(n==null){
             throw new Exception("Receiver unkown: "+m.getIDTo());
@@ -106,22 +199,7 @@ public class InternetNetworkManager extends NetworkManager{
      * @param address The address of the remote MSD
      * @throws java.lang.Exception After any error */
     public void sendU(Message m,Address address) throws Exception{
-        String url=address.getURL();
-        int port=address.getPort();
-        // wrap the message into HTTP
-        ByteArrayOutputStream out=new ByteArrayOutputStream();
-        commManager.send(m,out,this);
-        byte msg[]=out.toByteArray();
-
-        // send the message
-        if(msg.length>InternetMServer.SIZE){
-            throw new Exception("Message too big");
-        }
-        DatagramSocket ds=new DatagramSocket();
-        // send to url
-        DatagramPacket dp=new DatagramPacket(msg,msg.length,
-                                             InetAddress.getByName(url),port);
-        ds.send(dp);
+        send(m,channelU,resolve(address.getURL(),address.getPort()));
     }
 
     /** Get a TCP connection to send and receive messages inside this network.
@@ -147,9 +225,26 @@ public class InternetNetworkManager extends NetworkManager{
         return new IConnectionStreams(s);
     }
 
+    /** Get a TCP connection to a well known address. The socket is leased
+     * from the pool of this manager: if the connection ends cleanly, the
+     * socket is used again by the next connection to the same address.
+     * If multiplexing, the connection is a virtual connection inside the
+     * socket shared with the address. */
     public Connection getConnection(int type,String from,String to,
                                     Address address) throws Exception{
-        ConnectionStreams s=getConnection(address);
+        if(multiplex){
+            Multiplexer mux=link(from,to,address);
+            try{
+                return mux.open(type,from,to);
+            } catch(Exception e){
+                if(!mux.closed()){
+                    throw e;
+                }
+                // closed meanwhile by the other party: try a new one
+                return link(from,to,address).open(type,from,to);
+            }
+        }
+        ConnectionStreams s=pool.lease(address.getURL(),address.getPort());
         Connection conn=new Connection(commManager,type,from,to,this,s);
         Message m=new Message((""+type).getBytes(),from,to,Message.CONN);
         m.setEncode(false);
@@ -157,26 +252,172 @@ public class InternetNetworkManager extends NetworkManager{
         return conn;
     }
 
+    /** Gets the socket shared with an address, opening it if needed.
+     * Closes the shared sockets idle for longer than IDLE_LINK. The socket
+     * is opened without locking the other links: only the connections to
+     * the same address wait for it.
+     * @param from Identifier of the local MSD
+     * @param to Identifier of the remote MSD
+     * @param address The address
+     * @return The multiplexer of the shared socket
+     * @throws Exception If the socket can not be opened */
+    private Multiplexer link(String from,String to,Address address) throws
+            Exception{
+        String key=address.getURL()+":"+address.getPort();
+        synchronized(links){
+            for(java.util.Iterator i=links.values().iterator();i.hasNext();){
+                Multiplexer mux=(Multiplexer)i.next();
+                if(mux.closed()||mux.idle()>IDLE_LINK){
+                    mux.close();
+                    i.remove();
+                }
+            }
+            // wait for other thread opening the same socket
+            while(connecting.contains(key)){
+                links.wait();
+            }
+            Multiplexer mux=(Multiplexer)links.get(key);
+            if(mux!=null){
+                return mux;
+            }
+            connecting.add(key);
+        }
+        Multiplexer mux=null;
+        try{
+            Socket s=new Socket(address.getURL(),address.getPort());
+            s.setTcpNoDelay(true);
+            Connection c=new Connection(commManager,Connection.CONN_BT,from,
+                                        to,this,new IConnectionStreams(s));
+            Message m=new Message((""+Connection.CONN_BT).getBytes(),from,to,
+                                  Message.CONN);
+            m.setEncode(false);
+            try{
+                c.send(m);
+            } catch(Exception e){
+                c.closeConnection();
+                throw e;
+            }
+            mux=share(c);
+            return mux;
+        } finally{
+            synchronized(links){
+                if(mux!=null){
+                    links.put(key,mux);
+                }
+                connecting.remove(key);
+                links.notifyAll();
+            }
+        }
+    }
+
     /** Send a multicast message with UDP protocol.
      * @param m The message to multicast
      * @throws java.lang.Exception If the message can not be sent */
     public void sendM(Message m) throws Exception{
-        // wrap the message into HTTP
-        ByteArrayOutputStream out=new ByteArrayOutputStream();
-        commManager.send(m,out,this);
-        byte msg[]=out.toByteArray();
+        send(m,channelM,group);
+    }
+
+    /** Sends a message in a datagram, or in fragments if it is bigger
+     * than the MTU.
+     * The message is wrapped into HTTP directly in a direct buffer, and
+     * sent through a channel shared by every thread.
+     * @param m The message to send
+     * @param channel The channel to send the message through
+     * @param to The address of the receiver
+     * @throws java.lang.Exception If the message is too big or it can not
+     * be sent */
+    private void send(Message m,DatagramChannel channel,InetSocketAddress to) throws
+            Exception{
+        if(channel==null){
+            throw new Exception("Network finished");
+        }
+        ByteBuffer b=takeBuffer();
+        try{
+            // wrap the message into HTTP
+            BufferOutputStream out=new BufferOutputStream(b);
+            commManager.send(m,out,this);
+            byte[] big=out.getOverflow();
+            if(big==null){
+                b.flip();
+                channel.send(b,to);
+                return;
+            }
+            // fragment the message
+            int chunk=mtu-Fragments.HEADER;
+            int count=(big.length+chunk-1)/chunk;
+            if(count>Fragments.MAX_FRAGMENTS){
+                throw new Exception("Message too big");
+            }
+            String id;
+            synchronized(this){
+                id=fragmentID+"."+(fragmented++);
+            }
+            for(int i=0;i<count;i++){
+                b.clear();
+                b.put(Fragments.header(id,i,count));
+                b.put(big,i*chunk,Math.min(chunk,big.length-i*chunk));
+                b.flip();
+                channel.send(b,to);
+            }
+        } finally{
+            putBuffer(b);
+        }
+    }
 
-        InetAddress url=InetAddress.getByName(multicast.getURL());
-        int port=multicast.getPort();
+    /** @return The address of a host and port. The names are resolved just
+     * once.
+     * @throws UnknownHostException If the name can not be resolved */
+    private InetSocketAddress resolve(String url,int port) throws
+            UnknownHostException{
+        String key=url+":"+port;
+        InetSocketAddress a=(InetSocketAddress)addresses.get(key);
+        if(a==null){
+            a=new InetSocketAddress(InetAddress.getByName(url),port);
+            synchronized(addresses){
+                if(addresses.size()>=MAX_ADDRESSES){
+                    addresses.clear();
+                }
+                addresses.put(key,a);
+            }
+        }
+        return a;
+    }
 
-        // send the message
-        if(msg.length>InternetMServer.SIZE){
-            throw new Exception("Message too big");
+    /** @return A buffer for a datagram, cleared */
+    private ByteBuffer takeBuffer(){
+        synchronized(buffers){
+            if(!buffers.isEmpty()){
+                ByteBuffer b=(ByteBuffer)buffers.remove(buffers.size()-1);
+                b.clear();
+                return b;
+            }
+        }
+        return ByteBuffer.allocateDirect(mtu);
+    }
+
+    /** @param b A buffer taken with takeBuffer() and no longer used */
+    private void putBuffer(ByteBuffer b){
+        synchronized(buffers){
+            if(buffers.size()<MAX_BUFFERS){
+                buffers.add(b);
+            }
+        }
+    }
+
+    /** Closes the channels sending messages */
+    private void closeChannels(){
+        DatagramChannel c[]={channelM,channelU};
+        channelM=null;
+        channelU=null;
+        for(int i=0;i<c.length;i++){
+            try{
+                if(c[i]!=null){
+                    c[i].close();
+                }
+            } catch(IOException e){
+                logger.warn("Channel not closed: "+e); //@@l
+            }
         }
-        DatagramSocket ds=new DatagramSocket();
-        // send to url multicast
-        DatagramPacket dp=new DatagramPacket(msg,msg.length,url,port);
-        ds.send(dp);
     }
 
     /** @return This managers local address */
@@ -200,6 +441,52 @@ public class InternetNetworkManager extends NetworkManager{
         if(serverU2!=null){
             serverU2.stop();
         }
+        closeChannels();
+        pool.close();
+        // the shared sockets are closed by super.finish()
+        links.clear();
         super.finish();
     }
 }
+
+
+/** An output stream writing to a buffer. If the buffer is full, the bytes
+ * written and the following ones go to an array: the message does not fit
+ * in a datagram, and it will be fragmented. */
+class BufferOutputStream extends OutputStream{
+    private ByteBuffer b;
+    /** The bytes written, if they do not fit in the buffer */
+    private ByteArrayOutputStream overflow=null;
+
+    /** @param b The buffer to write to, from its position */
+    public BufferOutputStream(ByteBuffer b){
+        this.b=b;
+    }
+
+    public void write(int i) throws IOException{
+        write(new byte[]{(byte)i},0,1);
+    }
+
+    public void write(byte[] a,int off,int len) throws IOException{
+        if(overflow==null&&b.remaining()<len){
+            // move the bytes written to the array
+            b.flip();
+            byte[] c=new byte[b.remaining()];
+            b.get(c);
+            b.clear();
+            overflow=new ByteArrayOutputStream(2*(c.length+len));
+            overflow.write(c);
+        }
+        if(overflow!=null){
+            overflow.write(a,off,len);
+        } else{
+            b.put(a,off,len);
+        }
+    }
+
+    /** @return The bytes written if they did not fit in the buffer, or
+     * null if they are in the buffer */
+    public byte[] getOverflow(){
+        return overflow==null?null:overflow.toByteArray();
+    }
+}
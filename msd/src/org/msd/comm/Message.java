@@ -23,6 +23,8 @@ public class Message{
     public static final int USE=13;
     public static final int LEFT=14;
     public static final int CREDENTIAL=15;
+    /** Credit returned to the sender of a virtual connection */
+    public static final int CREDIT=16;
 
     public Message(){
         attributes=new Hashtable();
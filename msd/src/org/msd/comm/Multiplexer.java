@@ -0,0 +1,445 @@
+package org.msd.comm;
+
+import java.io.ByteArrayInputStream;
+import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.Vector;
+import org.apache.log4j.Logger; //@@l
+
+/** Virtual connections sharing a single connection between two MSDs.
+ *
+ * Each virtual connection is a stream identified by the "virtual" attribute
+ * of its messages. A stream is opened with a CONN message whose data is its
+ * type and identifier, and it ends with a CLOSE message with its
+ * identifier. Messages without identifier are single messages, passed to
+ * the router.
+ *
+ * Flow control is per stream: a party sends at most WINDOW messages of a
+ * stream not yet read by the other party, which returns credit with CREDIT
+ * messages as it reads them. So a slow reader only stops its own stream:
+ * the shared connection is always read, and the other streams go on. A
+ * single thread writes to the shared connection, taking in turns a message
+ * of each stream with credit. Control and single messages go first.
+ *
+ * Flow control is negotiated, since the MSDs of msd-mini know nothing
+ * about credit. The party opening a stream adds CREDIT_FLAG to its CONN
+ * message, and a party supporting it answers with a CREDIT of 0 messages.
+ * Until then, the stream is not controlled: the opener counts its credit,
+ * but sends without waiting and returns no CREDIT.
+ * @version $Revision: 1.1 $ */
+class Multiplexer{
+    private static final Logger logger=Logger.getLogger(Multiplexer.class); //@@l
+    /** Messages of a stream sent before the other party returns credit */
+    static final int WINDOW=16;
+    /** Maximum number of messages queued in a stream. A party sending more
+     * ignores the flow control, and its stream is closed. */
+    static final int MAX_QUEUE=2*WINDOW;
+    /** Last line of the CONN messages of the parties supporting flow
+     * control */
+    static final String CREDIT_FLAG="credit";
+
+    /** The shared connection */
+    private Connection link;
+    /** The network of the shared connection */
+    private NetworkManager net;
+    /** Prefix of the identifiers of the streams opened by this party */
+    private String prefix;
+    /** Next identifier of the streams opened by this party */
+    private long nextStream=0;
+    /** Streams open. Key: identifier. Object: Stream */
+    private Hashtable streams=new Hashtable();
+    /** Streams in the order they take turns to write */
+    private Vector turns=new Vector();
+    /** Index in turns of the next stream to write */
+    private int turn=0;
+    /** Control and single messages waiting to be written: Pending */
+    private Vector control=new Vector();
+    /** Since when there is no stream open */
+    private long idleSince=System.currentTimeMillis();
+    /** If the shared connection is closed */
+    private boolean closed=false;
+
+    /** Starts reading and writing a connection. The CONN message of the
+     * connection must have been exchanged.
+     * @param link The connection to share
+     * @param net The network of the connection
+     * @param prefix Prefix of the identifiers of the streams opened by this
+     * party. Use the identifier of the MSD: the identifiers of the other
+     * party use its own one. */
+    Multiplexer(Connection link,NetworkManager net,String prefix){
+        this.link=link;
+        this.net=net;
+        this.prefix=prefix;
+        new Reader().start();
+        new Writer().start();
+    }
+
+    /** Opens a stream.
+     * @param type Type of the connection
+     * @param from Identifier of the local MSD
+     * @param to Identifier of the remote MSD
+     * @return The connection of the stream
+     * @throws Exception If the shared connection is closed */
+    VirtualConnection open(int type,String from,String to) throws Exception{
+        String id;
+        synchronized(this){
+            id=prefix+"-"+(nextStream++);
+        }
+        VirtualConnection vc=new VirtualConnection(type,from,to,net,this,id);
+        add(vc,false);
+        Message m=new Message((type+CommManager.EOL+id+CommManager.EOL+
+                               CREDIT_FLAG).getBytes(),from,to,Message.CONN);
+        m.setEncode(false);
+        try{
+            vc.send(m);
+        } catch(Exception e){
+            vc.closeConnection();
+            throw e;
+        }
+        return vc;
+    }
+
+    /** Sends a single message.
+     * @param m The message, without virtual identifier
+     * @throws Exception If the message can not be sent */
+    void send(Message m) throws Exception{
+        send(null,m);
+    }
+
+    /** Sends a message of a stream, waiting until it is written. Data
+     * messages wait for the credit of the stream.
+     * @param vc The connection of the stream, or null for single messages
+     * @param m The message
+     * @throws Exception If the message can not be sent */
+    void send(VirtualConnection vc,Message m) throws Exception{
+        Pending p=new Pending(m);
+        synchronized(this){
+            if(closed){
+                throw new Exception("Connection is closed");
+            }
+            int t=m.getType();
+            if(vc==null||t==Message.CONN||t==Message.CLOSE){
+                control.add(p);
+            } else{
+                Stream s=(Stream)streams.get(vc.getVirtual());
+                if(s==null||s.ended){
+                    throw new Exception("Connection is closed");
+                }
+                s.out.add(p);
+            }
+            notifyAll();
+            // do not stop the wait when interrupted: the message could be
+            // half written
+            boolean interrupted=false;
+            while(!p.done){
+                try{
+                    wait();
+                } catch(InterruptedException e){
+                    interrupted=true;
+                }
+            }
+            if(interrupted){
+                Thread.currentThread().interrupt();
+            }
+        }
+        if(p.error!=null){
+            throw p.error;
+        }
+    }
+
+    /** A message of a stream has been read: return credit to the other
+     * party when half the window has been read, if the stream is
+     * controlled.
+     * @param vc The connection of the stream */
+    synchronized void read(VirtualConnection vc){
+        Stream s=(Stream)streams.get(vc.getVirtual());
+        if(closed||s==null){
+            return;
+        }
+        s.read++;
+        if(s.controlled&&s.read>=WINDOW/2){
+            grant(s,s.read);
+            s.read=0;
+        }
+    }
+
+    /** Sends credit for a stream to the other party. Use with the lock.
+     * @param s The stream
+     * @param n The number of messages the other party can send more */
+    private void grant(Stream s,int n){
+        Message m=new Message((""+n).getBytes(),s.vc.getIDFrom(),
+                              s.vc.getIDTo(),Message.CREDIT);
+        m.setEncode(false);
+        m.setVirtual(s.vc.getVirtual());
+        control.add(new Pending(m));
+        notifyAll();
+    }
+
+    /** Adds a stream.
+     * @param vc The connection of the stream
+     * @param controlled If the other party supports flow control
+     * @return The stream */
+    private synchronized Stream add(VirtualConnection vc,boolean controlled)
+            throws Exception{
+        if(closed){
+            throw new Exception("Connection is closed");
+        }
+        Stream s=new Stream(vc);
+        s.controlled=controlled;
+        streams.put(vc.getVirtual(),s);
+        turns.add(s);
+        return s;
+    }
+
+    /** Removes a stream. Its messages waiting are not sent.
+     * @param vc The connection of the stream */
+    synchronized void remove(VirtualConnection vc){
+        Stream s=(Stream)streams.remove(vc.getVirtual());
+        if(s==null){
+            return;
+        }
+        turns.remove(s);
+        fail(s.out);
+        if(streams.isEmpty()){
+            idleSince=System.currentTimeMillis();
+        }
+    }
+
+    /** @return The number of streams open */
+    synchronized int size(){
+        return streams.size();
+    }
+
+    /** @return Milliseconds without streams, or 0 if there are some */
+    synchronized long idle(){
+        return streams.isEmpty()?System.currentTimeMillis()-idleSince:0;
+    }
+
+    /** @return If the shared connection is closed */
+    synchronized boolean closed(){
+        return closed;
+    }
+
+    /** Closes the streams and the shared connection. */
+    void close(){
+        Vector open;
+        synchronized(this){
+            if(closed){
+                return;
+            }
+            closed=true;
+            fail(control);
+            open=new Vector();
+            for(Iterator i=turns.iterator();i.hasNext();){
+                Stream s=(Stream)i.next();
+                fail(s.out);
+                open.add(s.vc);
+            }
+            streams.clear();
+            turns.clear();
+            notifyAll();
+        }
+        for(int i=0;i<open.size();i++){
+            ((VirtualConnection)open.elementAt(i)).closeConnection();
+        }
+    }
+
+    /** A stream has been opened by the other party: route it.
+     * @param c The connection of the stream */
+    void incoming(Connection c) throws Exception{
+        net.msdManager.getRouter().receive(c,net);
+    }
+
+    /** A single message has arrived: route it.
+     * @param m The message */
+    void incoming(Message m) throws Exception{
+        net.msdManager.getRouter().receive(m,net);
+    }
+
+    /** Marks the messages waiting as not sent */
+    private void fail(Vector v){
+        for(int i=0;i<v.size();i++){
+            Pending p=(Pending)v.elementAt(i);
+            p.error=new Exception("Connection is closed");
+            p.done=true;
+        }
+        v.clear();
+        notifyAll();
+    }
+
+    /** @return The next message to write, waiting until there is one, or
+     * null if the shared connection is closed */
+    private synchronized Pending next(){
+        while(!closed){
+            if(!control.isEmpty()){
+                return(Pending)control.remove(0);
+            }
+            int n=turns.size();
+            for(int i=0;i<n;i++){
+                Stream s=(Stream)turns.elementAt((turn+i)%n);
+                if((s.credit>0||!s.controlled)&&!s.out.isEmpty()){
+                    s.credit--;
+                    turn=(turn+i+1)%n;
+                    return(Pending)s.out.remove(0);
+                }
+            }
+            try{
+                wait();
+            } catch(InterruptedException e){
+                return null;
+            }
+        }
+        return null;
+    }
+
+    /** A message has been written, or not */
+    private synchronized void written(Pending p,Exception e){
+        p.error=e;
+        p.done=true;
+        notifyAll();
+    }
+
+    /** Passes a message read from the shared connection to its stream */
+    private void dispatch(Message m) throws Exception{
+        net.setNeighbor(m.getIDFrom());
+        String id=m.getVirtual();
+        logger.debug("Message from "+m.getIDFrom()+" virtual="+id); //@@l
+        if(m.getType()==Message.CONN){
+            ByteArrayInputStream in=new ByteArrayInputStream(m.getData());
+            int type=Integer.valueOf(CommManager.readLine(in,16)).intValue();
+            if(type==Connection.CONN_BT){
+                logger.warn("Shared connection inside another one: ignoring"); //@@l
+                return;
+            }
+            VirtualConnection vc=new VirtualConnection(type,m.getIDFrom(),
+                    m.getIDTo(),net,this,CommManager.readLine(in,128));
+            // the CONN of msd-mini has no flag
+            boolean controlled=CREDIT_FLAG.equals(CommManager.readLine(in,16));
+            synchronized(this){
+                Stream s=add(vc,controlled);
+                if(controlled){
+                    // tell the other party we support flow control
+                    grant(s,0);
+                }
+            }
+            incoming(vc);
+            return;
+        }
+        if(id==null){
+            incoming(m);
+            return;
+        }
+        Stream s;
+        synchronized(this){
+            s=(Stream)streams.get(id);
+            if(s!=null){
+                if(m.getType()==Message.CREDIT){
+                    // the first CREDIT of a stream we opened says the
+                    // other party supports flow control
+                    s.controlled=true;
+                    s.credit+=m.getData()==null?0:
+                            Integer.parseInt(new String(m.getData()));
+                    notifyAll();
+                    return;
+                } else if(m.getType()==Message.CLOSE){
+                    // the other party reads no more: stop sending
+                    s.ended=true;
+                    fail(s.out);
+                }
+            }
+        }
+        if(s==null){
+            // usual after closing a stream: it was being used
+            logger.debug("Message for a closed virtual connection: "+id); //@@l
+        } else if(!s.vc.deliver(m,s.controlled)){
+            logger.warn("Virtual connection "+id+ //@@l
+                        " ignores the flow control: closing"); //@@l
+            s.vc.closeConnection();
+        }
+    }
+
+    /** A stream: a virtual connection and its messages to write */
+    private static class Stream{
+        VirtualConnection vc;
+        /** Messages waiting to be written: Pending */
+        Vector out=new Vector();
+        /** Messages that can be written before the other party reads */
+        int credit=WINDOW;
+        /** Messages read and not yet returned as credit */
+        int read=0;
+        /** If both parties use flow control in this stream */
+        boolean controlled=false;
+        /** If the other party closed the stream */
+        boolean ended=false;
+        Stream(VirtualConnection vc){
+            this.vc=vc;
+        }
+    }
+
+    /** A message waiting to be written */
+    private static class Pending{
+        Message m;
+        boolean done=false;
+        Exception error=null;
+        Pending(Message m){
+            this.m=m;
+        }
+    }
+
+    /** Reads the shared connection until it is closed */
+    private class Reader extends Thread{
+        Reader(){
+            super("Shared connection reader");
+        }
+
+        public void run(){
+            try{
+                Message m;
+                while((m=link.receive())!=null){
+                    dispatch(m);
+                }
+            } catch(Exception e){
+                if(!closed()){
+                    logger.warn("Error reading shared connection: "+e); //@@l
+                }
+            }
+            close();
+        }
+    }
+
+    /** Writes to the shared connection until it is closed, and closes it */
+    private class Writer extends Thread{
+        Writer(){
+            super("Shared connection writer");
+        }
+
+        public void run(){
+            Pending p;
+            while((p=next())!=null){
+                try{
+                    link.send(p.m);
+                    written(p,null);
+                } catch(Exception e){
+                    logger.warn("Error writing shared connection: "+e); //@@l
+                    written(p,e);
+                    link.closeConnection();
+                    Multiplexer.this.close();
+                }
+            }
+            if(link.closed()){
+                return;
+            }
+            // the reader is reading: do not wait for the CLOSE of the other
+            // party as Connection.close() does with reusable streams
+            Message m=new Message(null,link.getIDFrom(),link.getIDTo(),
+                                  Message.CLOSE);
+            m.setEncode(false);
+            try{
+                link.send(m);
+            } catch(Exception e){
+                logger.debug("Error closing shared connection: "+e); //@@l
+            }
+            link.closeConnection();
+        }
+    }
+}
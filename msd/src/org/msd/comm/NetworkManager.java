@@ -6,6 +6,7 @@ import org.msd.proxy.*;
 import java.util.Collection;
 import java.io.*;
 import java.util.Hashtable;
+import java.util.Vector;
 
 /** This class implements the NetworkManager layer in the protocol stack of
  * the MSD. Send messages and connections through a network to the MSDs just
@@ -40,6 +41,8 @@ public abstract class NetworkManager{
     protected Address multicast;
     /** If the network has been finished */
     protected boolean finished=true;
+    /** Connections shared by virtual connections: Multiplexer */
+    protected Vector shared=new Vector();
 
     /** Init this manager.
      * This method performs several common tasks. Classes extending this one must
@@ -127,6 +130,11 @@ public abstract class NetworkManager{
                                           m.getIDTo());
             logger.debug("Get connection from "+m.getIDFrom()+" to "+m.getIDTo()+ //@@l
                          " type "+m.getType()); //@@l
+            if(type==Connection.CONN_BT){
+                // virtual connections will come inside this one
+                share(c);
+                return;
+            }
             msdManager.getRouter().receive(c,this);
             return;
         }
@@ -278,6 +286,22 @@ public abstract class NetworkManager{
         return name;
     }
 
+    /** Shares a connection with virtual connections.
+     * @param c The connection. Its CONN message has been exchanged.
+     * @return The multiplexer reading and writing the connection */
+    Multiplexer share(Connection c){
+        Multiplexer mux=new Multiplexer(c,this,msdManager.getID());
+        synchronized(shared){
+            for(int i=shared.size()-1;i>=0;i--){
+                if(((Multiplexer)shared.elementAt(i)).closed()){
+                    shared.removeElementAt(i);
+                }
+            }
+            shared.add(mux);
+        }
+        return mux;
+    }
+
     /** Stop this manager because it will be no longer used.
      * Removes the network for the MSD. Likely, the classes extending
      * this one must overwrites this method but calling in the last line.
@@ -286,6 +310,12 @@ public abstract class NetworkManager{
         if(finished){
             return;
         }
+        synchronized(shared){
+            for(int i=0;i<shared.size();i++){
+                ((Multiplexer)shared.elementAt(i)).close();
+            }
+            shared.clear();
+        }
         try{
             msdManager.removeNetwork(this);
         } catch(Exception e){
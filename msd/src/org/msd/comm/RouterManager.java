@@ -15,6 +15,16 @@ public class RouterManager{
     private Hashtable nets=null;
     private Cache cache=null;
     private MSDManager msd=null;
+    /** Default maximum number of threads routing */
+    public static final int THREADS=16;
+    /** Default maximum number of messages and connections waiting for a
+     * thread */
+    public static final int QUEUE=1024;
+    /** Default maximum number of threads started over THREADS while others
+     * wait for a peer */
+    public static final int SPARE=48;
+    /** Runs the messages and connections received */
+    private EventDispatcher dispatcher=createDispatcher(THREADS,QUEUE,SPARE);
 
     /**
      * The constructor.
@@ -158,6 +168,8 @@ public class RouterManager{
             LocalConnection other=new LocalConnection(type,to);
             one.setOther(other);
             other.setOther(one);
+            // the caller waiting for the peer is blocked: the dispatcher
+            // starts a spare thread for the peer if needed
             receive(one,null);
             return other;
         }
@@ -182,40 +194,69 @@ public class RouterManager{
         throw new Exception("Unreachable host: "+to);
     }
 
+    /** Creates a dispatcher for the messages and connections received.
+     * The handlers of the connections wait for their peers, which may be
+     * other connections received: spare threads are started while they
+     * are blocked, so they do not wait for themselves.
+     * @param threads Maximum number of threads running. 0 for no limit
+     * @param queue Maximum number of messages and connections waiting
+     * @param spare Maximum number of threads started over threads while
+     * others are blocked
+     * @return The dispatcher */
+    public static EventDispatcher createDispatcher(int threads,int queue,
+            int spare){
+        EventDispatcher d=new EventDispatcher("ManageMessage",threads,queue);
+        d.setSpareThreads(spare);
+        return d;
+    }
+
+    /** Sets the dispatcher running the messages and connections received.
+     * The ones already received are run by the previous one.
+     * @param d The dispatcher. See createDispatcher() */
+    public void setDispatcher(EventDispatcher d){
+        dispatcher=d;
+    }
+
+    /** @return The dispatcher running the messages and connections
+     * received */
+    public EventDispatcher getDispatcher(){
+        return dispatcher;
+    }
+
     /** Receives a message from a NetworkManager.
-     * This method is not blocking and returns inmediately.
+     * This method returns inmediately, unless there are too many messages
+     * waiting: then it waits for room, slowing down the network.
      * @param m The message received.
      * @param n The network the message comes from. If null, the message comes
      * from this MSD (loopback) */
     public void receive(Message m,NetworkManager n){
-        new ConnectionThread(m,n);
+        dispatcher.dispatch(null,new ConnectionThread(m,n));
     }
 
     /** Receives a connection from a NetworkManager.
-     * This method is not blocking and returns inmediately.
+     * This method returns inmediately, unless there are too many messages
+     * and connections waiting: then it waits for room.
      * @param c The connection received.
      * @param n The network the message comes from. If null, the message comes
      * from this MSD (loopback) */
     public void receive(Connection c,NetworkManager n){
-        new ConnectionThread(c,n);
+        dispatcher.dispatch(null,new ConnectionThread(c,n));
     }
 
-    /** Thread to use to receive connections and messages in a non-blockig way */
-    private class ConnectionThread extends Thread{
+    /** Task to use to receive connections and messages in a non-blockig way */
+    private class ConnectionThread implements Runnable{
         private Object data=null;
         private NetworkManager net=null;
-        /** Constructor. The Thread will start inmediately.
+        /** Constructor. The task runs in a dispatcher of the router.
          * @param data The data (Connection or Message) received.
          * @param n The NetworkManager the data comes from.
          */
         public ConnectionThread(Object data,NetworkManager n){
-            super("ManageMessage");
             if(data==null){
                 throw new NullPointerException();
             }
             this.data=data;
             this.net=n;
-            start();
         }
 
         public void run(){
@@ -4,6 +4,10 @@ import java.net.*;
 import org.msd.comm.NetworkManager;
 import org.apache.log4j.Logger; //@@l
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.util.Iterator;
+import java.util.Vector;
 import javax.microedition.io.StreamConnectionNotifier;
 import javax.bluetooth.DiscoveryAgent;
 import javax.microedition.io.Connector;
@@ -50,16 +54,28 @@ interface Server{
 
 
 /** Server in a ethernet network. If makes UDP sockets, so it would be useful
- * for multicasting messages */
+ * for multicasting messages.
+ *
+ * The messages bigger than a datagram arrive in fragments, that are
+ * reassembled before receiving the message. */
 class InternetMServer implements Server,Runnable{
-    /** Maximum size of messages for a UDP network */
+    /** Default maximum size of the datagrams sent to a UDP network. Bigger
+     * messages are fragmented. */
     public final static int SIZE=1024;
+    /** Maximum size of a UDP datagram. The server receives datagrams of
+     * any size, whatever the size configured in the senders. */
+    public final static int MAX_DATAGRAM=65507;
+    /** Size of the receive buffer of the socket: room for the fragments of
+     * the biggest burst of messages waiting to be reassembled */
+    private final static int RECEIVE_BUFFER=Fragments.MAX_BYTES;
     private Logger logger=Logger.getLogger(InternetMServer.class); //@@l
     DatagramSocket server=null;
     private String url=null;
     private int port=-1;
     private NetworkManager manager=null;
     private Thread thread;
+    /** Fragments of the messages being received */
+    private Fragments fragments=new Fragments();
 
     /** @param url URL of the connection. If it is a multicast group,
      * join to them. Otherwise, ignored.
@@ -77,6 +93,11 @@ class InternetMServer implements Server,Runnable{
         } else{
             server=new DatagramSocket(port);
         }
+        try{
+            server.setReceiveBufferSize(RECEIVE_BUFFER);
+        } catch(SocketException e){
+            logger.debug("Receive buffer not set: "+e); //@@l
+        }
         this.url=url;
         this.port=port;
         thread=new Thread(this,"MulticastListener");
@@ -89,15 +110,26 @@ class InternetMServer implements Server,Runnable{
 
     public void run(){
         boolean interrupted=false;
+        // the message is read before receiving the next datagram
+        byte[] b=new byte[MAX_DATAGRAM];
         while(server!=null&&!interrupted){
             interrupted=false;
             try{
                 logger.info("Listening to multicast port "+server.getLocalPort()); //@@l
                 // wait for a message
-                DatagramPacket p=new DatagramPacket(new byte[SIZE],SIZE);
+                DatagramPacket p=new DatagramPacket(b,b.length);
                 server.receive(p);
                 try{
-                    manager.receive(new ByteArrayInputStream(p.getData()),this);
+                    if(Fragments.isFragment(b,p.getLength())){
+                        byte[] m=fragments.add(p.getSocketAddress(),b,
+                                               p.getLength());
+                        if(m!=null){
+                            manager.receive(new ByteArrayInputStream(m),this);
+                        }
+                    } else{
+                        manager.receive(new ByteArrayInputStream(b,0,
+                                p.getLength()),this);
+                    }
                 } catch(Exception e){
                     logger.warn("Error in multicast comm: "+e.toString()); //@@l
                     e.printStackTrace();
@@ -154,14 +186,36 @@ class InternetMServer implements Server,Runnable{
 
 
 /** Server in a ethernet network. It makes TCP sockets, so it would be useful
- * for unicast communications */
+ * for unicast communications.
+ *
+ * A single thread accepts the connections and reads their first message
+ * with a selector, without blocking: a slow peer does not delay the others.
+ * When the first message of a connection is complete, the connection is
+ * given to an EventDispatcher, that receives the message as before. If
+ * every thread is busy and the queue of the dispatcher is full, new
+ * connections are closed. */
 class InternetUServer implements Server,Runnable{
     private Logger logger=Logger.getLogger(InternetUServer.class); //@@l
-    ServerSocket server=null;
+    /** Default maximum number of threads receiving connections */
+    public final static int WORKERS=16;
+    /** Default maximum number of connections waiting for a thread */
+    public final static int QUEUE=256;
+    /** Maximum size of the first message of a connection */
+    public final static int MAX_MESSAGE=65536;
+    /** Milliseconds to wait for the first message of a connection */
+    public final static int TIMEOUT=30000;
+    ServerSocketChannel server=null;
+    private Selector selector=null;
+    /** Receives the connections with their first message */
+    private EventDispatcher workers=null;
     private int port=-1;
     private String url=null;
     private NetworkManager manager=null;
-    private Socket s=null;
+    /** The connection being received by each thread of the dispatcher */
+    private ThreadLocal accepted=new ThreadLocal();
+    /** Sockets given back by ended connections, to wait for the next one:
+     * Request */
+    private Vector kept=new Vector();
     private Thread thread=null;
 
     /** @param url This server claims to be in this url
@@ -171,7 +225,23 @@ class InternetUServer implements Server,Runnable{
         if(manager==null){
             throw new Exception("Manager not defined");
         }
-        server=new ServerSocket(port);
+        ServerSocketChannel s=ServerSocketChannel.open();
+        try{
+            s.socket().bind(new InetSocketAddress(port));
+            s.configureBlocking(false);
+            selector=Selector.open();
+            s.register(selector,SelectionKey.OP_ACCEPT);
+        } catch(IOException e){
+            s.close();
+            if(selector!=null){
+                selector.close();
+            }
+            throw e;
+        }
+        server=s;
+        if(workers==null){
+            workers=new EventDispatcher("UnicastWorker",WORKERS,QUEUE);
+        }
         this.url=url;
         this.port=port;
         thread=new Thread(this,"UnicastListener");
@@ -182,27 +252,157 @@ class InternetUServer implements Server,Runnable{
         manager=m;
     }
 
+    /** Sets the dispatcher receiving the connections. Use before start().
+     * The default has WORKERS threads and QUEUE connections waiting.
+     * @param d The dispatcher. Connections are closed if it rejects them */
+    void setDispatcher(EventDispatcher d){
+        workers=d;
+    }
+
     public void run(){
-        boolean interrupted=false;
-        while(server!=null&&!interrupted){
-            interrupted=false;
-            s=null;
+        logger.info("Listening to unicast port "+port); //@@l
+        long checked=System.currentTimeMillis();
+        ServerSocketChannel s;
+        while((s=server)!=null){
             try{
-                logger.info("Listening to unicast port "+server.getLocalPort()); //@@l
-                s=server.accept();
-                manager.receive(s.getInputStream(),this);
-                logger.debug("Unicast connection from "+s.getInetAddress()); //@@l
+                selector.select(1000);
+                registerKept();
+                Vector ready=new Vector();
+                for(Iterator i=selector.selectedKeys().iterator();i.hasNext();){
+                    SelectionKey k=(SelectionKey)i.next();
+                    i.remove();
+                    if(!k.isValid()){
+                        continue;
+                    }
+                    if(k.isAcceptable()){
+                        accept(s);
+                    } else if(k.isReadable()&&read(k)){
+                        k.cancel();
+                        ready.add(k.attachment());
+                    }
+                }
+                if(!ready.isEmpty()){
+                    // the canceled keys are deregistered in the next
+                    // selection: only then can the channels block
+                    selector.selectNow();
+                    for(int i=0;i<ready.size();i++){
+                        dispatch((Request)ready.elementAt(i));
+                    }
+                }
+                long now=System.currentTimeMillis();
+                if(now-checked>=1000){
+                    expire(now);
+                    checked=now;
+                }
+            } catch(ClosedSelectorException e){
+                break;
             } catch(Exception e){
-                if(!Thread.interrupted()){
+                if(server!=null){
                     logger.warn("Error in unicast conn: "+e.toString()); //@@l
-                } else{
-                    interrupted=true;
                 }
-                try{
-                    s.close();
-                } catch(Exception ex){}
             }
         }
+        // close the connections not received yet
+        try{
+            Object o[]=selector.keys().toArray();
+            for(int i=0;i<o.length;i++){
+                close(((SelectionKey)o[i]).channel());
+            }
+            selector.close();
+        } catch(Exception e){}
+    }
+
+    /** Accepts every pending connection, waiting for their first message */
+    private void accept(ServerSocketChannel s) throws IOException{
+        SocketChannel c;
+        while((c=s.accept())!=null){
+            c.configureBlocking(false);
+            c.socket().setTcpNoDelay(true);
+            c.register(selector,SelectionKey.OP_READ,new Request(c));
+        }
+    }
+
+    /** Reads from a connection waiting for its first message.
+     * @param k The key of the connection
+     * @return If the first message is complete */
+    private boolean read(SelectionKey k){
+        Request r=(Request)k.attachment();
+        try{
+            if(r.channel.read(r.buffer)<0){
+                throw new IOException("Connection closed");
+            }
+            return r.skipClose()&&r.complete();
+        } catch(IOException e){
+            logger.debug("Unicast conn closed: "+e); //@@l
+            k.cancel();
+            close(r.channel);
+            return false;
+        }
+    }
+
+    /** Waits for a new connection in a socket whose last connection ended
+     * cleanly. Called from any thread.
+     * @param c The socket
+     * @param closing If the CLOSE of the peer has not been read yet: the
+     * messages up to it are discarded */
+    void keepAlive(SocketChannel c,boolean closing){
+        if(server==null){
+            close(c);
+            return;
+        }
+        Request r=new Request(c);
+        r.closing=closing;
+        kept.add(r);
+        selector.wakeup();
+    }
+
+    /** Registers the sockets given to keepAlive() */
+    private void registerKept(){
+        while(!kept.isEmpty()){
+            Request r=(Request)kept.remove(0);
+            try{
+                r.channel.configureBlocking(false);
+                r.channel.register(selector,SelectionKey.OP_READ,r);
+            } catch(IOException e){
+                close(r.channel);
+            }
+        }
+    }
+
+    /** Gives a connection with its first message to the dispatcher */
+    private void dispatch(Request r){
+        try{
+            r.channel.configureBlocking(true);
+        } catch(IOException e){
+            logger.warn("Error in unicast conn: "+e.toString()); //@@l
+            close(r.channel);
+            return;
+        }
+        if(!workers.execute(null,r)){
+            logger.warn("Too many unicast connections: closing one"); //@@l
+            close(r.channel);
+        }
+    }
+
+    /** Closes the connections waiting too much for their first message */
+    private void expire(long now){
+        Object o[]=selector.keys().toArray();
+        for(int i=0;i<o.length;i++){
+            SelectionKey k=(SelectionKey)o[i];
+            Object a=k.attachment();
+            if(a instanceof Request&&now-((Request)a).started>TIMEOUT){
+                logger.debug("Unicast conn timed out"); //@@l
+                k.cancel();
+                close(k.channel());
+            }
+        }
+    }
+
+    /** Closes a channel, ignoring errors */
+    private static void close(Channel c){
+        try{
+            c.close();
+        } catch(Exception e){}
     }
 
     public void stop(){
@@ -211,14 +411,12 @@ class InternetUServer implements Server,Runnable{
         }
         logger.debug("Closing InternetUServer"); //@@l
         try{
-            if(server!=null){
-                thread.interrupt();
-                ServerSocket s=server;
-                server=null;
-                if(s!=null){
-                    s.close();
-                }
+            ServerSocketChannel s=server;
+            server=null;
+            if(s!=null){
+                s.close();
             }
+            selector.wakeup();
             logger.info("InternetUServer closed"); //@@l
         } catch(Exception e){
             logger.warn("InternetUServer not closed: "+e); //@@l
@@ -230,14 +428,61 @@ class InternetUServer implements Server,Runnable{
         super.finalize();
     }
 
+    /** Opens a connection from the sender of the message being received in
+     * this thread. Only one connection can be opened for each message. */
     public Connection openConnection(CommManager comm,int type,String idfrom,
                                      String idto) throws Exception{
-        if(s!=null){
-            return new Connection(comm,type,idfrom,idto,manager,
-                                  new IConnectionStreams(s));
-        } else{
+        Request r=(Request)accepted.get();
+        if(r==null){
             throw new Exception("Socket is null");
         }
+        accepted.set(null);
+        // the bytes read after the message belong to the connection
+        byte[] rest=new byte[r.buffer.position()-r.end];
+        System.arraycopy(r.buffer.array(),r.end,rest,0,rest.length);
+        return new Connection(comm,type,idfrom,idto,manager,
+                              new AcceptedStreams(r.channel,rest));
+    }
+
+    /** The streams of an accepted socket. When the connection ends
+     * cleanly, the socket waits for the next connection of the peer. */
+    private class AcceptedStreams extends IConnectionStreams{
+        private SocketChannel channel;
+        private ByteArrayInputStream read;
+        private boolean released=false;
+
+        AcceptedStreams(SocketChannel channel,byte[] read) throws IOException{
+            this(channel,new ByteArrayInputStream(read));
+        }
+
+        private AcceptedStreams(SocketChannel channel,ByteArrayInputStream read) throws
+                IOException{
+            super(channel.socket(),read);
+            this.channel=channel;
+            this.read=read;
+        }
+
+        public boolean isReusable(){
+            return true;
+        }
+
+        public void release() throws IOException{
+            release(null);
+        }
+
+        public void release(Connection c) throws IOException{
+            if(released){
+                return;
+            }
+            released=true;
+            getOutputStream().flush();
+            if(read.available()>0){
+                // bytes after the end of the connection: do not reuse
+                close();
+            } else{
+                keepAlive(channel,c!=null);
+            }
+        }
     }
 
     public String getURL(){
@@ -247,6 +492,131 @@ class InternetUServer implements Server,Runnable{
     public int getPort(){
         return port;
     }
+
+    /** A connection reading its first message. When the message is
+     * complete, the request is run by the dispatcher to receive it. */
+    private class Request implements Runnable{
+        SocketChannel channel;
+        ByteBuffer buffer=ByteBuffer.allocate(512);
+        /** Position of the end of the message, or -1 if the header has not
+         * been read yet */
+        int end=-1;
+        /** Time the connection was accepted */
+        long started=System.currentTimeMillis();
+        /** If the messages up to the CLOSE of the peer must be discarded */
+        boolean closing=false;
+
+        Request(SocketChannel channel){
+            this.channel=channel;
+        }
+
+        /** @return If the message is complete
+         * @throws IOException If the message is not valid or too long */
+        boolean complete() throws IOException{
+            if(end<0){
+                int h=headerEnd();
+                if(h>=0){
+                    end=h+contentLength(h);
+                    if(end>MAX_MESSAGE){
+                        throw new IOException("Message too long: "+end);
+                    }
+                }
+            }
+            if(end>=0&&buffer.position()>=end){
+                return true;
+            }
+            if(!buffer.hasRemaining()){
+                if(buffer.capacity()>=MAX_MESSAGE){
+                    throw new IOException("Message too long");
+                }
+                ByteBuffer b=ByteBuffer.allocate(Math.min(MAX_MESSAGE,
+                        buffer.capacity()*2));
+                buffer.flip();
+                b.put(buffer);
+                buffer=b;
+            }
+            return false;
+        }
+
+        /** Discards the messages read up to the CLOSE of the peer, if the
+         * last connection of the socket did not wait for it.
+         * @return If there is nothing more to discard
+         * @throws IOException If a message is not valid */
+        boolean skipClose() throws IOException{
+            while(closing&&complete()){
+                Message m;
+                try{
+                    m=new CommManager().receive(new ByteArrayInputStream(
+                            buffer.array(),0,end),manager);
+                } catch(Exception e){
+                    throw new IOException("Wrong message: "+e);
+                }
+                closing=m.getType()!=Message.CLOSE||m.getVirtual()!=null;
+                buffer.flip();
+                buffer.position(end);
+                buffer.compact();
+                end=-1;
+            }
+            return !closing;
+        }
+
+        /** @return The position after the empty line ending the header, or
+         * -1 if it has not been read */
+        private int headerEnd(){
+            byte[] b=buffer.array();
+            for(int i=3;i<buffer.position();i++){
+                if(b[i]=='\n'&&b[i-1]=='\r'&&b[i-2]=='\n'&&b[i-3]=='\r'){
+                    return i+1;
+                }
+            }
+            return -1;
+        }
+
+        /** @return The value of the header "length", as read by
+         * CommManager.receive() */
+        private int contentLength(int h) throws IOException{
+            java.util.StringTokenizer st=new java.util.StringTokenizer(
+                    new String(buffer.array(),0,h,"ISO-8859-1"),
+                    CommManager.EOL,false);
+            while(st.hasMoreTokens()){
+                String line=st.nextToken();
+                int p=line.indexOf(':');
+                if(p>0&&line.substring(0,p).toLowerCase().equals("length")){
+                    try{
+                        int l=Integer.parseInt(line.substring(p+1).trim());
+                        if(l>=0){
+                            return l;
+                        }
+                    } catch(NumberFormatException e){}
+                    throw new IOException("Wrong length: "+line);
+                }
+            }
+            throw new IOException("Message without length");
+        }
+
+        public void run(){
+            if(server==null){
+                // the server was stopped while this waited for a thread
+                close(channel);
+                return;
+            }
+            accepted.set(this);
+            try{
+                logger.debug("Unicast connection from "+ //@@l
+                             channel.socket().getInetAddress()); //@@l
+                manager.receive(new ByteArrayInputStream(buffer.array(),0,end),
+                                InternetUServer.this);
+            } catch(Exception e){
+                logger.warn("Error in unicast conn: "+e.toString()); //@@l
+            } finally{
+                // close the socket if no connection was opened with it
+                if(accepted.get()!=null){
+                    close(channel);
+                }
+                accepted.set(null);
+            }
+        }
+    }
 }
 
 
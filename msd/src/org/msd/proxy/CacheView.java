@@ -0,0 +1,167 @@
+package org.msd.proxy;
+
+import java.util.Collection;
+import java.util.Hashtable;
+import java.util.Vector;
+
+import org.msd.cache.*;
+import org.msd.comm.NetworkManager;
+
+/** The local cache as it is sent through a network: every element cloned
+ * and transformed with MessageManager.transformOut(). There is a view for
+ * each network, shared by every MSD in it: the elements of the receiver,
+ * its own MSD and the services it gateways, are left out when sending.
+ *
+ * The view follows the changes of the local cache: when it is used, only
+ * the elements changed since the last use are cloned and transformed again.
+ * The whole view is built again just if the changes are unknown. The view
+ * remembers its encodings until the local cache changes, so sending the
+ * same cache again is just writing a buffer.
+ * @see MessageManager#getView(NetworkManager)
+ * @version $Revision: 1.1 $ */
+class CacheView{
+    private MessageManager mm;
+    private Cache source;
+    private NetworkManager net;
+    /** The elements transformed */
+    private Cache view=null;
+    /** Version of source the view reflects, or null if not built */
+    private String version=null;
+    /** Encodings of the view. Key: encoding, or encoding+"/"+receiver if
+     * some elements are left out for the receiver. Object: byte[] */
+    private Hashtable bytes=new Hashtable();
+    /** Maximum number of encodings remembered for a version */
+    public static final int BYTES_SIZE=32;
+
+    /** @param mm The message manager transforming the elements
+     * @param source The local cache
+     * @param net The network the view is sent through */
+    CacheView(MessageManager mm,Cache source,NetworkManager net){
+        this.mm=mm;
+        this.source=source;
+        this.net=net;
+    }
+
+    /** @return The view of the last version of the source. Do not modify.
+     * @throws Exception If the view can not be built */
+    synchronized Cache getCache() throws Exception{
+        refresh();
+        return view;
+    }
+
+    /** @param encoding An encoding of caches
+     * @param to The identifier of the receiver
+     * @return The view of the last version of the source in this encoding,
+     * without the elements of the receiver
+     * @throws Exception If the view can not be encoded */
+    synchronized byte[] getBytes(String encoding,String to) throws Exception{
+        refresh();
+        Collection d=dropped(view,to);
+        String key=d.isEmpty()?encoding:encoding+"/"+to;
+        byte[] b=(byte[])bytes.get(key);
+        if(b==null){
+            Cache c=view;
+            if(!d.isEmpty()){
+                Vector v=new Vector(view.getChilds());
+                v.removeAll(d);
+                c=new Cache(view.getID());
+                c.setElements(v);
+                c.setVersion(version);
+            }
+            b=c.toBytes(encoding);
+            if(bytes.size()>=BYTES_SIZE){
+                bytes.clear();
+            }
+            bytes.put(key,b);
+        }
+        return b;
+    }
+
+    /** Returns the changes of the view since a version of the source.
+     * @param since A version of the source, or null
+     * @param to The identifier of the receiver
+     * @return A cache in update mode with the elements of the view changed
+     * since this version but the ones of the receiver, or null if the
+     * changes are not known: the whole view must be sent.
+     * @throws Exception If the cache can not be created */
+    synchronized Cache getChanges(String since,String to) throws Exception{
+        refresh();
+        Collection changes=since==null?null:source.getChanges(since);
+        if(changes==null){
+            return null;
+        }
+        Vector v=new Vector(),removed=new Vector();
+        Object o[]=changes.toArray();
+        for(int i=0;i<o.length;i++){
+            String[] ids=(String[])o[i];
+            Element e=view.getElement(ids[0],ids[1]);
+            if(e!=null){
+                v.add(e);
+            } else if(source.getElement(ids[0],ids[1])==null){
+                removed.add(ids);
+            }
+        }
+        v.removeAll(dropped(view,to));
+        Cache c=new Cache(source.getID());
+        c.setElements(v);
+        for(int i=0;i<removed.size();i++){
+            String[] ids=(String[])removed.elementAt(i);
+            c.addRemoved(ids[0],ids[1]);
+        }
+        c.setMode("update");
+        c.setVersion(version);
+        return c;
+    }
+
+    /** Takes the changes of the source since the last refresh */
+    private void refresh() throws Exception{
+        // read the version first: later changes are taken again next time
+        String v=source.getVersion();
+        if(v.equals(version)){
+            return;
+        }
+        Collection changes=version==null?null:source.getChanges(version);
+        if(changes==null){
+            Cache c=(Cache)source.clone();
+            mm.transformOutCache(c,net,null);
+            view=c;
+        } else{
+            Object o[]=changes.toArray();
+            for(int i=0;i<o.length;i++){
+                String[] ids=(String[])o[i];
+                view.deleteElement(view.getElement(ids[0],ids[1]));
+                Element e=source.getElement(ids[0],ids[1]);
+                if(e==null){
+                    continue;
+                }
+                e=(Element)e.clone(view);
+                if(mm.transformOut(e,net,null)){
+                    view.addElement(e);
+                }
+            }
+        }
+        view.setVersion(v);
+        version=v;
+        bytes.clear();
+    }
+
+    /** @param c A view
+     * @param to The identifier of the receiver
+     * @return The elements of the view not sent to the receiver: its own
+     * MSD and the services it gateways. Found in the indexes of the view. */
+    private static Collection dropped(Cache c,String to){
+        Vector v=new Vector();
+        if(to==null){
+            return v;
+        }
+        Service s=new Service(c,false);
+        s.setIDCache(to);
+        s.setName("MSD");
+        v.addAll(c.getElements(s,c.getChilds()));
+        s=new Service(c,false);
+        s.setIDCache("");
+        s.setGateway(to);
+        v.addAll(c.getElements(s,c.getChilds()));
+        return v;
+    }
+}
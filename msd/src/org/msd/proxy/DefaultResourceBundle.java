@@ -13,6 +13,7 @@ public class DefaultResourceBundle extends java.util.ListResourceBundle{
         properties=new Hashtable();
         properties.put("Loj4J","log4j.conf"); //Log4j conf file
         properties.put("LocalFile",""); // local file to store the cache
+        properties.put("Journal",""); // journal of the cache, for warm startups
         properties.put("GUI","false"); // gui interface?
         properties.put("Cache",""); // initial cache file
         properties.put("CacheXML","<cache idcache=\"1000\"><service name=\"MSD\"><network name=\"ethernet\"><attr name=\"url\"></attr><attr name=\"port\">15150</attr></network><network name=\"bluetooth\"/></service></cache>"); // the initial cache
@@ -20,20 +21,36 @@ public class DefaultResourceBundle extends java.util.ListResourceBundle{
         properties.put("MSD.Algorithm","shared"); // algortithm of cache sharing
         properties.put("MSD.IAmHereTime","10"); //time in seconds between I_AM_HERE messages.
         properties.put("MSD.IAmHereFactor","3"); // consider an MSD down if miss this number of I_AM_HERE messages
+        properties.put("MSD.CacheCapacity","0"); // maximum number of services in the cache. 0 for no limit
+        properties.put("MSD.CacheMemory","0"); // maximum estimated bytes of the services in the cache. 0 for no limit
+        properties.put("MSD.RouterThreads","16"); // maximum threads running the messages and connections received. 0 for no limit
+        properties.put("MSD.RouterQueue","1024"); // maximum messages and connections waiting for a thread. More wait for room
+        properties.put("MSD.RouterSpare","48"); // maximum threads started over RouterThreads while connections wait for their peers
+        properties.put("MSD.ServerThreads","16"); // maximum threads receiving the unicast connections of each network. 0 for no limit
+        properties.put("MSD.ServerQueue","256"); // maximum unicast connections waiting for a thread. More are closed
+        properties.put("MSD.EventThreads","8"); // maximum threads running the events of the connections. 0 for no limit
+        properties.put("MSD.EventQueue","1024"); // maximum events waiting for a thread
+        properties.put("MSD.AntiEntropyTime","300"); // time in seconds between reconciliations of the cache with the main. 0 to disable
         properties.put("MSD.UUID","0000111A00001000800000805F9B34FB"); //UUID for Bluetooth MSD
         properties.put("MSD.ethernet.MulticastURL","239.255.255.254"); // IP of the multicast group or broadcast
         properties.put("MSD.ethernet.MulticastPort","15150"); // port of the multicast group
+        properties.put("MSD.ethernet.MTU","1024"); // maximum size of the datagrams sent. Bigger messages are fragmented
+        properties.put("MSD.ethernet.Multiplex","false"); // connections to each MSD share a single socket
         properties.put("MSD.wifi.MulticastURL","192.168.1.255"); // IP2 of the multicast group or broadcast
         properties.put("MSD.wifi.MulticastPort","15151"); // port of the multicast group
+        properties.put("MSD.wifi.MTU","1024"); // maximum size of the datagrams sent
+        properties.put("MSD.wifi.Multiplex","false"); // connections to each MSD share a single socket
         properties.put("MSD.ethernet.proxies","slp"); // Protocols for Internet
         properties.put("MSD.wifi.proxies","slp"); // Protocols for Internet2
         properties.put("MSD.bluetooth.proxies","sdp"); // Protocols for Bluetooth
         properties.put("MSD.proxy.slp","org.msd.proxy.SLPManager"); // class for SLP
         properties.put("MSD.proxy.slp.res",""); // resource for SLP (none)
         properties.put("MSD.proxy.slp.time","600"); // interval for searching (seconds)
+        properties.put("MSD.proxy.slp.lifetime","0"); // default lifetime of the services (seconds)
         properties.put("MSD.proxy.sdp","org.msd.proxy.SDPManager");
         properties.put("MSD.proxy.sdp.res","");
         properties.put("MSD.proxy.sdp.time","300");
+        properties.put("MSD.proxy.sdp.lifetime","0");
     };
 
     public Object[][] getContents(){
@@ -3,15 +3,45 @@ package org.msd.proxy;
 import org.msd.comm.*;
 import org.msd.cache.*;
 import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Hashtable;
+import java.util.Vector;
 
 import org.apache.log4j.Logger; //@@l
 
 /** This class implements the hierarchical algorythm to share the cache
  * in the MSD network.
+ *
+ * The clients do not keep a copy of the cache of the main: they browse it
+ * with GET. The subscriptions of a client are forwarded to the main, that
+ * pushes the changes of the elements matching them with UPDATE
+ * connections, so the client does not poll.
  */
 class HierarchicalMessageManager extends MessageManager{
     private static final Logger logger=Logger.getLogger( //@@l
             HierarchicalMessageManager.class); //@@l
+    /** Template of the main MSDs of a network */
+    private static final String MAIN_MSD=
+            "<service name=\"MSD\"><network main=\"\"/></service>";
+    /** Seconds a summary of other main MSD is used before asking for it
+     * again along with a template */
+    public static final int SUMMARY_TIME=60;
+    /** Maximum number of compiled templates to remember */
+    private static final int MAX_TEMPLATES=64;
+    /** Compiled template of the main MSDs */
+    private ElementMatcher mainMsd=null;
+    /** Compiled templates of the GET connections.
+     * Key: the template as received. Object: a CompiledTemplate */
+    private Hashtable templates=new Hashtable();
+    /** Maximum number of subscriptions of clients a main MSD pushes */
+    public static final int MAX_SUBSCRIPTIONS=256;
+    /** Subscriptions of the local cache forwarded to the main MSDs */
+    private Vector subscriptions=new Vector();
+    /** Subscriptions of the clients. Key: idclient+"\n"+template.
+     * Object: a Pusher */
+    private Hashtable pushers=new Hashtable();
+
     /** The constructor.
      * @param msd The MSDManager to use
      */
@@ -36,8 +66,21 @@ class HierarchicalMessageManager extends MessageManager{
 
         // get the first message from the connection
         Message m=con.receive();
+        if(manageSummary(con,m)||manageTree(con,m,net)){
+            return;
+        }
+        // a client subscribes to a template: answer the current matches
+        String subscribe=m.getAttribute(SUBSCRIBE);
+        if(subscribe!=null&&net.isMain()&&m.getData()!=null&&
+           m.getData().length>0){
+            if(!subscribe.equals("true")){
+                cancel(con.getIDFrom()+"\n"+new String(m.getData()));
+                con.close();
+                return;
+            }
+            push(con.getIDFrom(),new String(m.getData()),net);
+        }
 
-        Element template=null;
         java.util.Vector v=new java.util.Vector();
         if(m.getData()==null||m.getData().length==0){
             // if it is not a main MSD, the main will be pleased to know
@@ -50,47 +93,56 @@ class HierarchicalMessageManager extends MessageManager{
             }
 
             // search for every main MSD in the internal cache.
-            template=(Service)cache.createElementFromXML(
-                    "<service name=\"MSD\"><network main=\"\"/></service>");
-            v.addAll(cache.getElements(template,cache.getChilds()));
+            v.addAll(cache.getElements(getMainMSD(),cache.getChilds()));
         } else{
             // search for the template in the internal cache
-            template=cache.createElementFromXML(new String(m.getData()));
-            v.addAll(cache.getElements(template));
-
-            // if this msd is the main MSD of the network...
-            if(net.isMain()){
-                // if the template has the ask attribute
-                if(template.getAttrStr("ask")!=null){
-                    // remove the attribute
-                    template.removeAttr("ask");
-                    // get the main MSDs in the local cache
-                    Service mainMsd=(Service)cache.createElementFromXML(
-                            "<service name=\"MSD\"><network main=\"\"/></service>");
-                    Object[] o=cache.getElements(mainMsd,cache.getChilds()).
-                               toArray();
-                    // for each known main MSD, ask for the template
-                    for(int i=0;i<o.length;i++){
-                        Element e=(Element)o[i];
-                        // continue if the remote MSD is me or the one connecting to me
-                        if(e.getIDCache().equals(msd.getID())||
-                           e.getIDCache().equals(con.getIDFrom())){
-                            continue;
-                        }
-                        // get the elements matching the template and put them in
-                        // the vector v
-                        if(e.getType()==Element.SERVICE){
-                            try{
-                                // get the services from the remote MSD
-                                Connection c=msd.getConnection(Connection.GET,
-                                        e.getIDCache());
-                                c.sendBytes(template.toString().getBytes());
-                                Cache cc=validateCache(c.receive());
-                                transformInCache(cc,null);
-                                v.addAll(cc.getChilds());
-                            } catch(Exception ex){
-                                logger.debug("Error while getting cache: "+ex); //@@l
+            CompiledTemplate template=getTemplate(new String(m.getData()));
+            v.addAll(cache.getElements(template.matcher));
+
+            // if this msd is the main MSD of the network and the template
+            // has the ask attribute
+            if(net.isMain()&&template.ask!=null){
+                // get the main MSDs in the local cache
+                Object[] o=cache.getElements(getMainMSD(),cache.getChilds()).
+                           toArray();
+                // for each known main MSD, ask for the template
+                for(int i=0;i<o.length;i++){
+                    Element e=(Element)o[i];
+                    // continue if the remote MSD is me or the one connecting to me
+                    if(e.getIDCache().equals(msd.getID())||
+                       e.getIDCache().equals(con.getIDFrom())){
+                        continue;
+                    }
+                    // continue if its summary proves it has no match
+                    CacheDigest d=getDigest(e.getIDCache());
+                    if(d!=null&&!d.mayMatch(template.matcher)){
+                        logger.debug("Not asking "+e.getIDCache()+ //@@l
+                                     ": no match in its summary"); //@@l
+                        continue;
+                    }
+                    // get the elements matching the template and put them in
+                    // the vector v
+                    if(e.getType()==Element.SERVICE){
+                        try{
+                            // get the services from the remote MSD
+                            Connection c=msd.getConnection(Connection.GET,
+                                    e.getIDCache());
+                            Message ask=c.createMessage(template.ask);
+                            ask.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+                            // the summary comes after the answer
+                            if(d==null){
+                                ask.setAttribute(DIGEST,"true");
                             }
+                            c.send(ask);
+                            Cache cc=validateCache(c.receive());
+                            transformInCache(cc,null);
+                            v.addAll(cc.getChilds());
+                            if(d==null){
+                                joinDigest(e.getIDCache(),c);
+                            }
+                            c.close();
+                        } catch(Exception ex){
+                            logger.debug("Error while getting cache: "+ex); //@@l
                         }
                     }
                 }
@@ -102,13 +154,93 @@ class HierarchicalMessageManager extends MessageManager{
         sendCache.setElements(v);
         transformOutCache(sendCache,net,con.getIDFrom());
 
-        // send back the cache
-        con.sendBytes(sendCache.toString().getBytes());
+        // send back the cache, and the summary if asked
+        sendCache(con,sendCache,m);
+        sendDigest(con,m);
 
         // close the connection
         con.close();
     }
 
+    /** The summaries of the main MSDs are never asked for alone: they come
+     * after the answers to the templates sent to them, asked with the
+     * DIGEST attribute when unknown or older than SUMMARY_TIME.
+     * @param id The identifier of a main MSD
+     * @return The summary of its cache, or null if unknown or too old */
+    private CacheDigest getDigest(String id){
+        CacheDigest d=cache.getSummary(id);
+        if(d==null||d.getAge()>SUMMARY_TIME*1000L){
+            return null;
+        }
+        return d;
+    }
+
+    /** Joins the summary of a main MSD sent after an answer. The MSD may
+     * close the connection without sending it.
+     * @param id The identifier of the main MSD
+     * @param c The GET connection, with the answer already received */
+    private void joinDigest(String id,Connection c){
+        try{
+            Message m=c.receive();
+            if(m==null||m.getData()==null){
+                logger.debug("Summary of "+id+" not sent"); //@@l
+                return;
+            }
+            // a summary has no services to validate
+            Cache s=new Cache();
+            s.load(new java.io.ByteArrayInputStream(m.getData()));
+            cache.joinSummary(id,s.getDigest());
+        } catch(Exception ex){
+            logger.debug("Summary of "+id+" not available: "+ex); //@@l
+        }
+    }
+
+    /** @return The compiled template of the main MSDs
+     * @throws Exception If the template can not be compiled */
+    private synchronized ElementMatcher getMainMSD() throws Exception{
+        if(mainMsd==null){
+            mainMsd=ElementMatcher.compile(cache.createElementFromXML(MAIN_MSD));
+        }
+        return mainMsd;
+    }
+
+    /** Compiles a template received in a GET connection. The same templates
+     * are received very often, so they are compiled only once.
+     * @param pattern The template as received
+     * @return The compiled template
+     * @throws Exception If the template is not valid */
+    private CompiledTemplate getTemplate(String pattern) throws Exception{
+        CompiledTemplate t=(CompiledTemplate)templates.get(pattern);
+        if(t==null){
+            t=new CompiledTemplate(cache.createElementFromXML(pattern));
+            synchronized(templates){
+                if(templates.size()>=MAX_TEMPLATES){
+                    templates.clear();
+                }
+                templates.put(pattern,t);
+            }
+        }
+        return t;
+    }
+
+    /** A template received in a GET connection, once compiled. */
+    private static class CompiledTemplate{
+        /** The compiled template */
+        final ElementMatcher matcher;
+        /** If the template has the ask attribute, the template without
+         * it to send to other main MSDs. Else, null */
+        final byte[] ask;
+        CompiledTemplate(Element template){
+            matcher=ElementMatcher.compile(template);
+            if(template.getAttrStr("ask")!=null){
+                template.removeAttr("ask");
+                ask=template.toString().getBytes();
+            } else{
+                ask=null;
+            }
+        }
+    }
+
     /** Does a browsing.
      * If this MSD is main of the network, searches inside the local cache.
      * If it is client, does a GET connection to the main MSD of the network.
@@ -139,6 +271,7 @@ class HierarchicalMessageManager extends MessageManager{
                 template.setAttrStr("ask","");
                 Message m=new Message(template.toString().getBytes(),msd.getID(),
                                       net.getMSDMain(),Connection.GET);
+                m.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
                 con.send(m);
                 m=con.receive();
                 con.close();
@@ -153,6 +286,329 @@ class HierarchicalMessageManager extends MessageManager{
         return c;
     }
 
+    /** Renews the subscriptions forwarded to the main MSD of a network: a
+     * new main, or one that stopped pushing to this MSD, knows them again.
+     * Clients do not keep a copy of the cache of the main, so there is
+     * nothing else to reconcile.
+     * @param net The network */
+    public void doAntiEntropy(NetworkManager net){
+        if(net.isMain()||net.getMSDMain()==null){
+            return;
+        }
+        Object o[]=templates(subscriptions.toArray()).toArray();
+        for(int i=0;i<o.length;i++){
+            forward((String)o[i],net,true);
+        }
+    }
+
+    /** Forwards a subscription to the main MSD of every network where this
+     * MSD is a client, and joins the elements matching it now. Only the
+     * template of the query is forwarded: the local subscription tests the
+     * rest of the query.
+     * @param s The subscription */
+    public void subscribe(CacheSubscription s){
+        subscriptions.add(s);
+        String template=template(s);
+        Object o[]=msd.getNetworks().values().toArray();
+        for(int i=0;i<o.length;i++){
+            NetworkManager net=(NetworkManager)o[i];
+            if(!net.isMain()&&net.getMSDMain()!=null){
+                forward(template,net,true);
+            }
+        }
+    }
+
+    /** Cancels a subscription forwarded to the main MSDs, if no other
+     * subscription has its template.
+     * @param s The subscription */
+    public void unsubscribe(CacheSubscription s){
+        if(!subscriptions.remove(s)){
+            return;
+        }
+        String template=template(s);
+        if(templates(subscriptions.toArray()).contains(template)){
+            return;
+        }
+        Object o[]=msd.getNetworks().values().toArray();
+        for(int i=0;i<o.length;i++){
+            NetworkManager net=(NetworkManager)o[i];
+            if(!net.isMain()&&net.getMSDMain()!=null){
+                forward(template,net,false);
+            }
+        }
+    }
+
+    /** @param s A subscription of the local cache
+     * @return The template of its query, as sent to the main MSDs */
+    private String template(CacheSubscription s){
+        try{
+            return s.getQuery().getMatcher().toElement(cache).toString();
+        } catch(Exception e){
+            // a compiled template is always a valid element
+            throw new IllegalStateException("Wrong template: "+e);
+        }
+    }
+
+    /** @param s Some subscriptions of the local cache
+     * @return The templates of their queries, without repetitions */
+    private HashSet templates(Object[] s){
+        HashSet t=new HashSet();
+        for(int i=0;i<s.length;i++){
+            t.add(template((CacheSubscription)s[i]));
+        }
+        return t;
+    }
+
+    /** Subscribes to a template in the main MSD of a network, or cancels
+     * the subscription. A subscription not forwarded is forwarded again in
+     * the next anti-entropy.
+     * @param template The template
+     * @param net The network
+     * @param subscribe False to cancel the subscription */
+    private void forward(String template,NetworkManager net,
+                         boolean subscribe){
+        try{
+            Connection con=msd.getConnection(Connection.GET,net.getMSDMain());
+            Message m=con.createMessage(template.getBytes());
+            m.setAttribute(SUBSCRIBE,""+subscribe);
+            m.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+            con.send(m);
+            if(subscribe){
+                Cache c=validateCache(con.receive());
+                transformInCache(c,net);
+                joinMatches(c,template,net);
+            }
+            con.close();
+        } catch(Exception e){
+            logger.warn("Subscription not forwarded to "+ //@@l
+                        net.getMSDMain()+": "+e); //@@l
+        }
+    }
+
+    /** Joins the elements matching a template as answered by the main MSD
+     * of a network. The elements from the main matching the template but
+     * not in the answer were removed while the main did not push them.
+     * @param answer The answer of the main
+     * @param template The template
+     * @param net The network of the main
+     * @throws Exception If the template is not valid */
+    private void joinMatches(Cache answer,String template,
+                             NetworkManager net) throws Exception{
+        dropOwn(answer);
+        HashSet in=new HashSet();
+        Object o[]=answer.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            in.add(e.getIDCache()+"\n"+e.getID());
+        }
+        o=cache.getElements(cache.createElementFromXML(template)).toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(fromMain(e,net)&&!in.contains(e.getIDCache()+"\n"+e.getID())){
+                answer.addRemoved(e.getIDCache(),e.getID());
+            }
+        }
+        answer.setMode("update");
+        if(answer.getChilds().size()>0||answer.getRemoved().size()>0){
+            cache.join(answer);
+        }
+    }
+
+    /** @param e An element of the local cache
+     * @param net A network where this MSD is a client
+     * @return If the element came from the main MSD of the network: a
+     * remote service in the network, or through the main */
+    private boolean fromMain(Element e,NetworkManager net){
+        if(e.getType()!=Element.SERVICE||e.getIDCache().equals(msd.getID())){
+            return false;
+        }
+        Service s=(Service)e;
+        if(net.getMSDMain().equals(s.getGateway())){
+            return true;
+        }
+        Object o[]=s.getNetworks().toArray();
+        for(int i=0;i<o.length;i++){
+            if(((Element)o[i]).getName().equals(net.getGenericName())){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Removes the elements of this MSD from a cache received: the local
+     * cache already has them.
+     * @param c The cache received */
+    private void dropOwn(Cache c){
+        Object o[]=c.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(msd.getID().equals(e.getIDCache())){
+                c.deleteElement(e);
+            }
+        }
+    }
+
+    /** Pushes the changes of the elements matching a template to a client.
+     * Does nothing if the client is already subscribed to it.
+     * @param client The identifier of the client
+     * @param template The template
+     * @param net The network of the client
+     * @throws Exception If the template is not valid */
+    private void push(String client,String template,NetworkManager net) throws
+            Exception{
+        String key=client+"\n"+template;
+        synchronized(pushers){
+            if(pushers.get(key)!=null){
+                return;
+            }
+            if(pushers.size()>=MAX_SUBSCRIPTIONS){
+                logger.warn("Too many subscriptions: ignoring "+client); //@@l
+                return;
+            }
+            Pusher p=new Pusher(client,key,net);
+            p.subscription=cache.subscribe(new CacheQuery(
+                    getTemplate(template).matcher),p);
+            pushers.put(key,p);
+            logger.debug("Pushing "+template+" to "+client); //@@l
+        }
+    }
+
+    /** Stops pushing the changes of a template to a client.
+     * @param key idclient+"\n"+template */
+    private void cancel(String key){
+        Pusher p=(Pusher)pushers.remove(key);
+        if(p!=null){
+            cache.unsubscribe(p.subscription);
+        }
+    }
+
+    /** An MSD has left a network: stops pushing to it.
+     * @param id Identifier of the leaving MSD
+     * @param net NetworkManager the MSD has left. */
+    public void left(String id,NetworkManager net){
+        super.left(id,net);
+        Object o[]=pushers.keySet().toArray();
+        for(int i=0;i<o.length;i++){
+            if(((String)o[i]).startsWith(id+"\n")){
+                cancel((String)o[i]);
+            }
+        }
+    }
+
+    /** A subscription of a client. The changes of each write of the cache
+     * are pushed together by the dispatcher of the router, in order. If
+     * the client can not be reached, the subscription is cancelled: the
+     * client forwards it again in its next anti-entropy. */
+    private class Pusher implements SubscriptionListener,Runnable{
+        private final String client,key;
+        private final NetworkManager net;
+        /** The subscription to the local cache */
+        CacheSubscription subscription;
+        /** Events not pushed yet */
+        private Vector pending=new Vector();
+        /** If the push of the pending events is queued */
+        private boolean queued=false;
+
+        Pusher(String client,String key,NetworkManager net){
+            this.client=client;
+            this.key=key;
+            this.net=net;
+        }
+
+        public void elementMatched(CacheSubscription s,CacheEvent e){
+            synchronized(this){
+                pending.add(e);
+                if(queued){
+                    return;
+                }
+                queued=true;
+            }
+            if(!msd.getRouter().getDispatcher().execute(this,this)){
+                // pushed after the next change
+                synchronized(this){
+                    queued=false;
+                }
+            }
+        }
+
+        public void run(){
+            Vector v;
+            synchronized(this){
+                v=pending;
+                pending=new Vector();
+                queued=false;
+            }
+            // the last event of each element
+            HashMap last=new HashMap();
+            for(int i=0;i<v.size();i++){
+                Element e=((CacheEvent)v.elementAt(i)).getElement();
+                last.put(e.getIDCache()+"\n"+e.getID(),v.elementAt(i));
+            }
+            Vector elements=new Vector();
+            Vector removed=new Vector();
+            Object o[]=last.values().toArray();
+            for(int i=0;i<o.length;i++){
+                CacheEvent e=(CacheEvent)o[i];
+                if(e.getCode()==CacheListener.REMOVED){
+                    removed.add(e.getElement());
+                } else if(!client.equals(e.getElement().getIDCache())){
+                    elements.add(e.getElement());
+                }
+            }
+            try{
+                Cache c=new Cache(msd.getID());
+                c.setElements(elements);
+                transformOutCache(c,net,client);
+                c.setMode("update");
+                for(int i=0;i<removed.size();i++){
+                    Element e=(Element)removed.elementAt(i);
+                    c.addRemoved(e.getIDCache(),e.getID());
+                }
+                Connection con=net.getConnection(Connection.UPDATE,
+                                                 msd.getID(),client,client);
+                Message id=con.receive();
+                sendCache(con,c,id);
+                con.close();
+            } catch(Exception e){
+                logger.info("Not pushing to "+client+": "+e); //@@l
+                cancel(key);
+            }
+        }
+    }
+
+    /** Manages an UPDATE connection. If this MSD is a client and the main
+     * opens it, the main is pushing the changes of the subscriptions
+     * forwarded: they are joined whatever the level of the network.
+     * @param con The connection
+     * @param net The network this connection comes from */
+    protected void manageUpdate(Connection con,NetworkManager net){
+        if(net==null||net.isMain()||!con.getIDFrom().equals(net.getMSDMain())){
+            super.manageUpdate(con,net);
+            return;
+        }
+        String updateID=msd.getUniqueID(net.getGenericName());
+        try{
+            Message id=con.createMessage(updateID.getBytes());
+            id.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+            con.send(id);
+            Cache c=validateCache(con.receive());
+            con.close();
+            transformInCache(c,net);
+            dropOwn(c);
+            if(c.getChilds().size()>0||c.getRemoved().size()>0){
+                cache.join(c);
+            }
+        } catch(Exception e){
+            logger.warn("Error while receiving a push: "+e); //@@l
+            try{
+                con.close();
+            } catch(Exception e2){
+            }
+        }
+        // update the networks bridged
+        msd.triggerCacheUpdated(net,updateID);
+    }
+
     /** Manages an UPDATE message. When an MSD receives this message must send a
      *  GET message, because the transmitter's cache has been changed.
      * @param m The received message.
@@ -49,6 +49,10 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
      * object: An LKHEntity (internal class of this class)
      */
     private Hashtable lkhs=null;
+    /** Number of batches open: see beginBatch() */
+    private int batches=0;
+    /** If the local cache changed during the open batches */
+    private boolean batchChanged=false;
 
     /** Empty Constructor.
      * This class needs an empty constructor if it is loaded from
@@ -110,10 +114,41 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
         emp.setIDCache("");
         emp.setName("MSD");
         msd=(Service)cache.getElements(emp,cache.getChilds()).iterator().next();
+        cache.setPinned(msd.getIDCache(),msd.getID(),true);
 
         // Read some properties from the conf file.
         res=ResourceBundle.getBundle(resource);
 
+        // limit the size of the cache, if configured
+        try{
+            cache.setCapacity(Integer.parseInt(res.getString(
+                    "MSD.CacheCapacity")),
+                              Long.parseLong(res.getString("MSD.CacheMemory")));
+        } catch(Exception e){
+            // optional properties: no limit
+            logger.debug("The cache has no limit: "+e); //@@l
+        }
+
+        // threads running the messages, connections and events received
+        try{
+            router.setDispatcher(RouterManager.createDispatcher(
+                    Integer.parseInt(res.getString("MSD.RouterThreads")),
+                    Integer.parseInt(res.getString("MSD.RouterQueue")),
+                    Integer.parseInt(res.getString("MSD.RouterSpare"))));
+        } catch(Exception e){
+            // optional properties: the defaults
+            logger.debug("Default threads for the router: "+e); //@@l
+        }
+        try{
+            Connection.setEventDispatcher(new EventDispatcher(
+                    "ConnectionEvent",
+                    Integer.parseInt(res.getString("MSD.EventThreads")),
+                    Integer.parseInt(res.getString("MSD.EventQueue"))));
+        } catch(Exception e){
+            // optional properties: the defaults
+            logger.debug("Default threads for the events: "+e); //@@l
+        }
+
         String msdAlgorithm=res.getString("MSD.Algorithm");
         if(msdAlgorithm.equals("shared")){
             mess=new MessageManager(this);
@@ -144,6 +179,9 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
 
         logger.info("MSD Started"); //@@l
         working=true;
+
+        // remove the services expired periodically
+        TimeManager.getTimeManager().register(new CacheExpiration(),1);
     }
 
     /** Starts a network from its description.
@@ -207,6 +245,29 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
                         ".MulticastPort")).intValue();
                 Address local=new Address(url,port,network);
                 Address multicast=new Address(urlM,portM,network);
+                try{
+                    nm.setMTU(Integer.parseInt(res.getString("MSD."+network+
+                            ".MTU")));
+                } catch(Exception e){
+                    // optional property: the default size
+                    logger.debug("Default MTU in "+network+": "+e); //@@l
+                }
+                try{
+                    nm.setServerLimits(Integer.parseInt(res.getString(
+                            "MSD.ServerThreads")),
+                                       Integer.parseInt(res.getString(
+                            "MSD.ServerQueue")));
+                } catch(Exception e){
+                    // optional properties: the defaults
+                    logger.debug("Default threads for the server: "+e); //@@l
+                }
+                try{
+                    nm.setMultiplex(Boolean.valueOf(res.getString("MSD."+
+                            network+".Multiplex")).booleanValue());
+                } catch(Exception e){
+                    // optional property: a socket for each connection
+                    logger.debug("No multiplexing in "+network+": "+e); //@@l
+                }
                 nm.init(network,local,multicast,this,comm);
                 nm.setMain(net.isMain());
                 nets.put(network,nm);
@@ -261,6 +322,18 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
             factor=3;
         }
         new IAmHere(time,factor,net2);
+
+        // reconcile the cache with the main periodically
+        int antiEntropy;
+        try{
+            antiEntropy=Integer.valueOf(res.getString("MSD.AntiEntropyTime")).
+                        intValue();
+        } catch(Exception e){
+            antiEntropy=300;
+        }
+        if(antiEntropy>0){
+            new AntiEntropy(antiEntropy,net2);
+        }
     }
 
     /** Looks for the leader of a given netork and joins to it.
@@ -319,6 +392,40 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
         init(net,cache,null);
     }
 
+    /** Removes from the cache the services whose lifetime has expired.
+     * Stops when the MSD stops working. */
+    class CacheExpiration implements TimeListener{
+        public boolean signal(int type,Object data){
+            if(!working){
+                return false;
+            }
+            cache.expire();
+            return true;
+        }
+    }
+
+    /** Reconciles periodically the cache with the cache of the main of a
+     * network. Stops when the MSD stops working or leaves the network. */
+    class AntiEntropy implements TimeListener{
+        private NetworkManager net;
+        /** @param time Time in seconds between reconciliations.
+         * @param net The network */
+        public AntiEntropy(int time,NetworkManager net){
+            this.net=net;
+            TimeManager.getTimeManager().register(this,time);
+            logger.debug("Anti-entropy every "+time+" seconds for "+ //@@l
+                         net.getGenericName()); //@@l
+        }
+
+        public boolean signal(int type,Object data){
+            if(!working||nets.get(net.getGenericName())!=net){
+                return false;
+            }
+            mess.doAntiEntropy(net);
+            return true;
+        }
+    }
+
     /** This thread sends an I_AM_HERE message periodically multicasted
      * in a network. Besides, tests if any neighbor has left the network.
      */
@@ -397,12 +504,20 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
                 String managerres=res.getString("MSD.proxy."+managername+".res");
                 int time=Integer.valueOf(res.getString("MSD.proxy."+managername+
                         ".time")).intValue();
+                int lifetime=0;
+                try{
+                    lifetime=Integer.valueOf(res.getString("MSD.proxy."+
+                            managername+".lifetime")).intValue();
+                } catch(MissingResourceException e){
+                    // the services of this manager never expire
+                }
                 try{
                     Class c=cl.loadClass(managerclass);
                     sd=(SDManager)c.newInstance();
                     sd.init(((NetworkManager)getNetworks().get(network)).
                             getNetwork(),cache,managerres);
                     sd.addListener(this);
+                    sd.setLifetime(lifetime);
                     if(time>0){
                         TimeManager.getTimeManager().register(sd,time);
                     }
@@ -1022,6 +1137,66 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
         }
     }
 
+    /** Searches for a compiled template in the manager.
+     *
+     * Use this method instead of searchService(Service,boolean) if the same
+     * template is searched several times.
+     * @param m Compiled template of the services to search.
+     * @param cached Look up the local cache or start a new searching.
+     * @return A collection of services matching the template, or null if
+     * an error ocurred while browsing. */
+    public Collection searchService(ElementMatcher m,boolean cached){
+        if(cached){
+            return cache.getElements(m,cache.getChilds());
+        } else{
+            try{
+                return mess.doBrowse(m.toElement(cache),
+                                     (NetworkManager)nets.values().iterator().
+                                     next());
+            } catch(Exception e){
+                logger.error("Error while searching: "+e); //@@l
+                return null;
+            }
+        }
+    }
+
+    /** Searches for services in the local cache with a query.
+     *
+     * Use this method to look for services with prefixes, ranges or
+     * existing fields, or to get just the best services by hops or
+     * confidence.
+     * @param q The query.
+     * @return A collection of services matching the query, in its order.
+     * @see CacheQuery */
+    public Collection searchService(CacheQuery q){
+        return cache.query(q);
+    }
+
+    /** Subscribes to the services of the local cache matching a query.
+     *
+     * The listener is informed every time a service matching the query is
+     * added, changed or removed, including the changes received from other
+     * MSDs. Use this method instead of searching again after every
+     * MSDEvent.UPDATED. With the hierarchical algorithm, the template of
+     * the query is forwarded to the main MSDs of the networks where this
+     * MSD is a client, and they push the changes of its services: do not
+     * browse them again.
+     * @param q The query. Its order, offset and limit are ignored.
+     * @param l The listener.
+     * @return The subscription, with the services matching now.
+     * @see CacheSubscription */
+    public CacheSubscription subscribe(CacheQuery q,SubscriptionListener l){
+        CacheSubscription s=cache.subscribe(q,l);
+        mess.subscribe(s);
+        return s;
+    }
+
+    /** @param s A subscription returned by subscribe() to cancel */
+    public void unsubscribe(CacheSubscription s){
+        cache.unsubscribe(s);
+        mess.unsubscribe(s);
+    }
+
     /** Registers a service in the MSD using its own language
      * @param s The service to register.
      * @param l An implementation of MSDLocalServiceListener receiving the
@@ -1042,9 +1217,10 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
         }
         s.appendChild(proxy);
         cache.addElement(s);
+        cache.setPinned(s.getIDCache(),s.getID(),true);
         elements.add(s);
         msdlocalservices.put(s.getID(),l);
-        this.triggerCacheUpdated(null,null);
+        localCacheChanged();
     }
 
     /** Deregisters a service registered with register() method.
@@ -1060,8 +1236,60 @@ public class MSDManager extends SDManager implements LKHListener,SDListener{
             throw new Exception("The service was not created with register()");
         }
         deleteElement(s);
+        cache.setPinned(s.getIDCache(),s.getID(),false);
         msdlocalservices.remove(id);
-        this.triggerCacheUpdated(null,null);
+        localCacheChanged();
+    }
+
+    /** Starts a batch of registrations and deregistrations.
+     *
+     * Every registerService() or deregisterService() updates the networks
+     * of the MSD. Inside a batch, the networks are updated just once, when
+     * commitBatch() closes the batch: registering many services sends one
+     * UPDATE to each network with every change, not one for each service.
+     * Batches can be nested: the update is sent when the outermost is
+     * committed. Call commitBatch() even if a registration fails.
+     * <pre>
+     * msd.beginBatch();
+     * try{
+     *     for(int i=0;i&lt;services.length;i++){
+     *         msd.registerService(services[i],listener);
+     *     }
+     * } finally{
+     *     msd.commitBatch();
+     * }
+     * </pre>
+     * @see Cache#batch */
+    public synchronized void beginBatch(){
+        batches++;
+    }
+
+    /** Closes a batch started with beginBatch(). If this was the outermost
+     * batch and the local cache changed, update the networks. */
+    public void commitBatch(){
+        synchronized(this){
+            if(batches==0){
+                throw new IllegalStateException("No batch to commit");
+            }
+            batches--;
+            if(batches>0||!batchChanged){
+                return;
+            }
+            batchChanged=false;
+        }
+        triggerCacheUpdated(null,null);
+    }
+
+    /** The local services changed: update the networks, or wait to the end
+     * of the batch if there is one open */
+    private void localCacheChanged(){
+        synchronized(this){
+            if(batches>0){
+                batchChanged=true;
+                return;
+            }
+        }
+        triggerCacheUpdated(null,null);
     }
 
     /** @return An MSDLocalServiceListener to a service registered with the
@@ -37,6 +37,57 @@ public class MessageManager{
      */
     private Hashtable updateIDs=new Hashtable();
 
+    /** Name of the attribute of GET and UPDATE messages with the version of
+     * the remote cache already known. If present, the remote MSD can send
+     * just the changes since this version. */
+    public static final String SINCE="since";
+
+    /** Name of the attribute of GET and UPDATE messages with the encodings
+     * of caches the sender understands, separated with commas. If not
+     * present, only XML. */
+    public static final String ACCEPT="accept";
+
+    /** Name of the attribute of a message with the encoding of the cache
+     * it carries. If not present, XML. */
+    public static final String ENCODING="encoding";
+    /** Attribute of GET messages asking for a cache in a mode. Only
+     * "summary" and "tree" are understood: the answer is the digest or the
+     * hash tree of the cache */
+    public static final String MODE="mode";
+    /** Attribute of GET messages asking for the summary of the cache of the
+     * other side after the answer, in the same connection. See sendDigest()
+     */
+    public static final String DIGEST="digest";
+    /** Attributes of GET messages in tree mode: the cache whose leaves are
+     * asked, and the leaves whose elements are asked, separated with commas.
+     * See manageTree() */
+    public static final String IDCACHE="idcache",LEAVES="leaves";
+    /** Attribute of GET messages with a template: "true" to receive the
+     * changes of the elements matching it, "false" to stop receiving them.
+     * Only for the hierarchical algorithm */
+    public static final String SUBSCRIBE="subscribe";
+    /** The last summary of the local cache sent, or null */
+    private Cache summary=null;
+
+    /** A hashtable with the versions of the remote caches joined.
+     * The key is the generic name of a network+"/"+the identifier of the
+     * remote MSD, and the object a String with the version of its cache.
+     */
+    private Hashtable versions=new Hashtable();
+
+    /** The views of the local cache sent through each network. The key is
+     * the generic name of a network, and the object a CacheView */
+    private Hashtable views=new Hashtable();
+
+    /** Maximum number of answers remembered for a version of the cache */
+    public static final int ANSWERS_SIZE=64;
+    /** Encoded answers to GET and MAIN_REQUEST messages for the version
+     * answersVersion of the local cache. The key describes the request, see
+     * manageGet(). The object is a byte[] */
+    private Hashtable answers=new Hashtable();
+    /** The version of the local cache of the answers remembered */
+    private String answersVersion=null;
+
 
     /** A hashtable with levels of execution.
      * Key: the generic name of a network
@@ -141,17 +192,24 @@ public class MessageManager{
             throw new Exception("Couldn't read client properties: "+e);
         }
 
-        // Create a new cache with the relevant information
+        // Create a new cache with the relevant information, if it was not
+        // sent since the last change of the local cache
         String idmain=net.getMSDMain();
-        Cache clientCache=new Cache(idmain);
-        if(idmain!=null){
-            clientCache.addElement((Element)msd.getMSD(idmain).clone(
-                    clientCache));
+        String version=cache.getVersion();
+        String key="MAIN=/"+net.getGenericName()+"/"+idmain;
+        byte[] b=getAnswer(version,key);
+        if(b==null){
+            Cache clientCache=new Cache(idmain);
+            if(idmain!=null){
+                clientCache.addElement((Element)msd.getMSD(idmain).clone(
+                        clientCache));
+            }
+            transformOutCache(clientCache,net,m.getIDFrom());
+            b=clientCache.toString().getBytes();
+            putAnswer(version,key,b);
         }
-        transformOutCache(clientCache,net,m.getIDFrom());
         // send the information
-        m=new Message(clientCache.toString().getBytes(),msd.getID(),
-                      m.getIDFrom(),Message.MAIN_REPLY);
+        m=new Message(b,msd.getID(),m.getIDFrom(),Message.MAIN_REPLY);
         m.setEncode(false);
         net.sendU(m,new Address(url,port,net.getGenericName()));
         logger.debug("Message MAIN= sent to "+url+":"+port); //@@l
@@ -204,7 +262,7 @@ public class MessageManager{
             // set the main of the network as the one sending this message
             net.setMSDMain(idmain);
             // and join the information to the local cache
-            cache.join(c.getDocument());
+            cache.join(c);
 
             //send a JOIN message to the known main
             setLevel(JOINING,net);
@@ -254,10 +312,27 @@ public class MessageManager{
 
         Message m=con.receive();
         logger.info("GET message from "+m.getIDFrom()); //@@l
+        if(manageSummary(con,m)||manageTree(con,m,net)){
+            return;
+        }
         Cache c=new Cache(msd.getID());
         if(m.getData()==null||m.getData().length==0){
             // the message was empty: default behaviour
             logger.debug("Empty content"); //@@l
+            // if the other MSD knows a version of our cache, send just
+            // the changes since this version.
+            String version=cache.getVersion();
+            Collection changes=cache.getChanges(m.getAttribute(SINCE));
+            Collection removed=new java.util.Vector();
+            Collection col=cache.getChilds();
+            if(changes!=null){
+                logger.debug("Sending changes since "+m.getAttribute(SINCE)); //@@l
+                col=splitChanges(cache,changes,removed);
+            }
+            // the answer depends on the inquirer, unless the filters
+            // below do not remove anything because of it
+            String who=m.getIDFrom();
+            Collection out;
             // do a work-around:
             if(net.isMain()){
                 logger.debug("Remote host is a client"); //@@l
@@ -266,7 +341,10 @@ public class MessageManager{
                 Service s=new Service(cache,false);
                 s.setIDCache("");
                 s.setGateway(m.getIDFrom());
-                c.setElements(cache.getElementsNot(s,cache.getChilds()));
+                out=cache.getElementsNot(s,col);
+                if(out.size()==col.size()&&!describes(out,who)){
+                    who="";
+                }
             } else if(net.getMSDMain().equals(m.getIDFrom())){
                 logger.debug("Remote host is a main MSD"); //@@l
                 // we are not a main cache but the inquirier is: it wants to
@@ -275,7 +353,7 @@ public class MessageManager{
                 Service s=new Service(cache,false);
                 s.setIDCache("");
                 s.setGateway(m.getIDFrom());
-                Collection c1=cache.getElementsNot(s,cache.getChilds());
+                Collection c1=cache.getElementsNot(s,col);
                 // remove every service discovered by 'main'
                 s.setGateway("");
                 s.setIDCache(m.getIDFrom());
@@ -287,26 +365,44 @@ public class MessageManager{
                 n.setName(net.getGenericName());
                 s.setIDCache("");
                 s.appendChild(n);
-                c.setElements(cache.getElementsNot(s,c1));
+                out=new java.util.Vector(cache.getElementsNot(s,c1));
                 // add its own msd
-                c.addElement(msd.getMSD());
+                out.add(msd.getMSD());
             } else{
                 logger.debug("Remote host is unknown"); //@@l
                 // other case: get every service in the cache
                 Service s=new Service(cache,false);
                 s.setIDCache("");
-                c.setElements(cache.getElements(s,cache.getChilds()));
+                out=cache.getElements(s,col);
+            }
+            // construct the response, if it was not sent since the last
+            // change of the local cache
+            String encoding=accepts(m,Cache.ENCODING_BINARY)?
+                            Cache.ENCODING_BINARY:Cache.ENCODING_XML;
+            String key="GET/"+net.getGenericName()+"/"+who+"/"+
+                       (changes!=null?m.getAttribute(SINCE):"")+"/"+encoding;
+            byte[] b=getAnswer(version,key);
+            if(b==null){
+                c.setElements(out);
+                transformOutCache(c,net,con.getIDFrom());
+                if(changes!=null){
+                    setUpdateMode(c,removed);
+                }
+                c.setVersion(version);
+                b=encode(c,encoding);
+                putAnswer(version,key,b);
+            } else{
+                logger.debug("Sending the answer of a previous GET"); //@@l
             }
-            transformOutCache(c,net,con.getIDFrom());
+            sendBytes(con,b,encoding);
         } else{
             // the message was not empty: use it as template
             String pattern=new String(m.getData());
             logger.debug("Pattern: "+pattern); //@@l
             c.setElements(cache.getElements(c.createElementFromXML(pattern)));
+            // construct the response
+            sendCache(con,c,m);
         }
-
-        // construct the response
-        con.sendBytes(c.toString().getBytes());
         con.close();
 
         logger.debug("GET finished"); //@@l
@@ -492,8 +588,8 @@ public class MessageManager{
      * @param m The received message.
      * @param net The network this message comes from.
      * @throws java.lang.Exception If something goes wrong.
-     * @todo Test of the safest way of managing an exception in this method
-     * is removing every service offered by the remote MSD sending the UPDATE */
+     * If the cache can not be got, the services of the remote MSD are kept:
+     * the remote MSD has left the network only if I_AM_HERE says so. */
     protected void manageUpdate(Message m,NetworkManager net) throws Exception{
         int level=getLevel(net);
         if(level!=WAIT_EVENT&&level!=INITIAL_UPDATE){
@@ -529,8 +625,11 @@ public class MessageManager{
             // Create a GET connection to the other MSD
             Connection con=net.getConnection(Connection.GET,msd.getID(),
                                              m.getIDFrom(),m.getIDFrom());
-            // Send an empty message
-            con.sendBytes(null);
+            // Send an empty message, with the version we know
+            Message get=con.createMessage(null);
+            get.setAttribute(SINCE,getRemoteVersion(net,m.getIDFrom()));
+            get.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+            con.send(get);
             // Get the remote cache
             Message mess=con.receive();
             // close the connection
@@ -540,18 +639,18 @@ public class MessageManager{
             // filter the incoming cache
             transformInCache(cache2,net);
             // join the incoming cache to the local one
-            if(cache2.getChilds().size()>0){
+            if(cache2.getChilds().size()>0||cache2.getRemoved().size()>0){
                 cache.join(cache2);
             }
+            setRemoteVersion(net,m.getIDFrom(),cache2.getVersion());
             // update the networks
             msd.triggerCacheUpdated(net,idUpdate);
         } catch(Exception e){
-            // after a fail getting the cache, the safest behaviour is
-            // assuming the remote MSD has left the network.
+            // keep the services of the remote MSD: if it has left the
+            // network, I_AM_HERE will notice. Else, the next UPDATE or
+            // anti-entropy will repair the cache.
             logger.error("Error whil updating: "+e);
             e.printStackTrace();
-            cache.deleteElementsFromCache(m.getIDFrom());
-            msd.triggerEvent(MSDEvent.UPDATED,net.getGenericName());
 
             throw e;
         } finally{
@@ -581,9 +680,13 @@ public class MessageManager{
 
         String updateID=null;
         try{
-            // Send a message with the identifier of the UPDATE
+            // Send a message with the identifier of the UPDATE and the
+            // version we know
             updateID=msd.getUniqueID(net.getGenericName());
-            con.sendBytes(updateID.getBytes());
+            Message id=con.createMessage(updateID.getBytes());
+            id.setAttribute(SINCE,getRemoteVersion(net,con.getIDFrom()));
+            id.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+            con.send(id);
             // Get the remote cache
             Message mess=con.receive();
             // close the connection
@@ -593,14 +696,13 @@ public class MessageManager{
             // filter the incoming cache
             transformInCache(cache2,net);
             // join the incoming cache to the local one
-            if(cache2.getChilds().size()>0){
+            if(cache2.getChilds().size()>0||cache2.getRemoved().size()>0){
                 cache.join(cache2);
             }
+            setRemoteVersion(net,con.getIDFrom(),cache2.getVersion());
         } catch(Exception e){
-            // after a fail getting the cache, the safest behaviour is
-            // assuming the remote MSD has left the network.
-            cache.deleteElementsFromCache(con.getIDFrom());
-            msd.triggerEvent(MSDEvent.UPDATED,net.getGenericName());
+            // keep the services of the remote MSD, as in the UPDATE message
+            logger.warn("Error while updating: "+e); //@@l
         }
 
         if(getLevel(net)==UPDATE){
@@ -653,48 +755,60 @@ public class MessageManager{
         Object[] o=c.getChilds().toArray();
         for(int i=0;i<o.length;i++){
             Element e=(Element)o[i];
-            // if it is a temporal element, remove
-            if(e.getIDCache()==null||e.getIDCache().equals("tmp")){
+            if(!transformOut(e,net,to)){
                 c.deleteElement(e);
-                continue;
             }
-            if(e.getType()==Element.SERVICE){
-                // remove the receptor of the message
-                if(e.getName().equals("MSD")&&e.getIDCache().equals(to)){
-                    c.deleteElement(e);
-                }
-                // remove special MSDBTServer services
-                if(e.getName().equals("MSDBTServer")){
-                    c.deleteElement(e);
-                    o[i]=null;
-                    continue;
-                }
-                // remove not used networks from service
-                Object[] o2=((Service)e).getNetworks().toArray();
-                boolean hasMoreNets=false;
-                for(int j=0;j<o2.length;j++){
-                    Element e2=(Element)o2[j];
-                    if(e2.getName().equals(net.getGenericName())){
-                        hasMoreNets=true;
-                    } else{
-                        try{
-                            o2[j]=null;
-                            e.deleteChild(e2);
-                        } catch(Exception ex){
-                            logger.error("Error while deleting child: "+ex); //@@l
-                        }
-                    }
-                }
-                // if the service has not more networks, set this MSD as the
-                // gateway
-                if(!hasMoreNets){
-                    Service s=(Service)e;
-                    s.setGateway(msd.getID());
-                    // and add a new hop to use the service
-                    s.setHops(s.getHops()+1);
+        }
+    }
+
+    /** Transforms an element of a cache to be sent through a network, as
+     * in transformOutCache().
+     * @param e The element to transform
+     * @param net Network to send the element through
+     * @param to Identifier from the receiver, or null if the element is
+     * sent to every MSD in the network
+     * @return False if the element must not be sent */
+    protected boolean transformOut(Element e,NetworkManager net,String to){
+        // if it is a temporal element, remove
+        if(e.getIDCache()==null||e.getIDCache().equals("tmp")){
+            return false;
+        }
+        if(e.getType()!=Element.SERVICE){
+            return true;
+        }
+        // remove the receptor of the message
+        if(e.getName().equals("MSD")&&e.getIDCache().equals(to)){
+            return false;
+        }
+        // remove special MSDBTServer services
+        if(e.getName().equals("MSDBTServer")){
+            return false;
+        }
+        // remove not used networks from service
+        Object[] o2=((Service)e).getNetworks().toArray();
+        boolean hasMoreNets=false;
+        for(int j=0;j<o2.length;j++){
+            Element e2=(Element)o2[j];
+            if(e2.getName().equals(net.getGenericName())){
+                hasMoreNets=true;
+            } else{
+                try{
+                    o2[j]=null;
+                    e.deleteChild(e2);
+                } catch(Exception ex){
+                    logger.error("Error while deleting child: "+ex); //@@l
                 }
             }
         }
+        // if the service has not more networks, set this MSD as the
+        // gateway
+        if(!hasMoreNets){
+            Service s=(Service)e;
+            s.setGateway(msd.getID());
+            // and add a new hop to use the service
+            s.setHops(s.getHops()+1);
+        }
+        return true;
     }
 
     /** An MSD has left a network. Removes its services.
@@ -707,6 +821,7 @@ public class MessageManager{
      * the services will be unavailable for a period of time.
      */
     public void left(String id,NetworkManager net){
+        forgetRemoteVersion(id);
         cache.deleteElementsFromCache(id);
 
         // UPDATE to networks bridged
@@ -750,12 +865,17 @@ public class MessageManager{
                                                  net.getMSDMain(),
                                                  net.getMSDMain());
                 // save the ID of this UPDATE
-                updateIDs.put(net.getGenericName(),new String(con.receiveBytes()));
-                // send the cache
-                Cache cache2=(Cache)cache.clone();
-                transformOutCache(cache2,net,net.getMSDMain());
-                con.sendBytes(cache2.toString().getBytes());
-                con.closeConnection();
+                Message id=con.receive();
+                updateIDs.put(net.getGenericName(),new String(id.getData()));
+                // send the cache, or its changes
+                if(cache==this.cache){
+                    sendView(con,id,net,net.getMSDMain());
+                } else{
+                    Cache cache2=getCacheToSend(cache,id.getAttribute(SINCE),
+                                                net,net.getMSDMain());
+                    sendCache(con,cache2,id);
+                }
+                con.close();
             }
         } catch(Exception e){
             logger.error("Error while updating: "+e); //@@l
@@ -793,6 +913,7 @@ public class MessageManager{
                 Connection con=msd.getConnection(Connection.GET,net.getMSDMain());
                 Message m=new Message(template.toString().getBytes(),msd.getID(),
                                       net.getMSDMain(),Connection.GET);
+                m.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
                 con.send(m);
                 m=con.receive();
                 con.close();
@@ -847,23 +968,24 @@ public class MessageManager{
                                            net.getMSDMain());
             Message m=new Message(null,idmsd,net.getMSDMain(),
                                   Connection.GET);
+            m.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
             c.send(m);
             m=c.receive();
             c.close();
 
             Cache cache2=validateCache(m);
-            cache.join(cache2.getDocument());
+            cache.join(cache2);
+            setRemoteVersion(net,net.getMSDMain(),cache2.getVersion());
 
             // sends an UPDATE connection to the main of the network
             c=net.getConnection(Connection.UPDATE,idmsd,net.getMSDMain(),
                                 net.getMSDMain());
             // save the UPDATe identifier
-            String updateID=new String(c.receiveBytes());
+            m=c.receive();
+            String updateID=new String(m.getData());
             updateIDs.put(net.getGenericName(),updateID);
-            cache2=(Cache)cache.clone();
-            this.transformOutCache(cache2,net,net.getMSDMain());
             // send the local cache
-            c.sendBytes(cache2.toString().getBytes());
+            sendView(c,m,net,net.getMSDMain());
 
             msd.triggerCacheUpdated(net,updateID);
         } catch(Exception e){
@@ -942,6 +1064,515 @@ public class MessageManager{
         election.startElection();
     }
 
+    /** Creates the cache to send to other MSD in an UPDATE. If the other
+     * MSD knows a version of the cache, the cache includes just the changes
+     * since that version. Else, the whole cache.
+     * @param source The cache to send
+     * @param since The version of source the other MSD knows, or null
+     * @param net The network to send the cache through
+     * @param to The identifier of the other MSD
+     * @return A new cache, transformed to be sent through net
+     * @throws Exception If the cache can not be created */
+    protected Cache getCacheToSend(Cache source,String since,
+                                   NetworkManager net,String to) throws
+            Exception{
+        String version=source.getVersion();
+        Collection changes=source.getChanges(since);
+        Cache c;
+        if(changes==null){
+            c=(Cache)source.clone();
+            transformOutCache(c,net,to);
+        } else{
+            logger.debug("Sending changes since "+since); //@@l
+            Collection removed=new java.util.Vector();
+            c=new Cache(source.getID());
+            c.setElements(splitChanges(source,changes,removed));
+            transformOutCache(c,net,to);
+            setUpdateMode(c,removed);
+        }
+        c.setVersion(version);
+        return c;
+    }
+
+    /** If a GET message asks for the summary of the local cache, sends it.
+     * @param con The GET connection
+     * @param m The first message of the connection
+     * @return Wether the message asked for the summary. If true, the
+     * summary has been sent and the connection closed.
+     * @throws Exception If the summary can not be sent */
+    protected boolean manageSummary(Connection con,Message m) throws
+            Exception{
+        if(!"summary".equals(m.getAttribute(MODE))){
+            return false;
+        }
+        logger.debug("Sending summary to "+m.getIDFrom()); //@@l
+        sendCache(con,getSummary(),m);
+        con.close();
+        return true;
+    }
+
+    /** If a GET message asks for the hash tree of the local cache, sends
+     * it. The tree includes the elements the other MSD may receive, as
+     * returned by getTreeView(). The answer depends on the attributes of
+     * the message:
+     * <ul><li>none: a line "idcache hash" for each cache in the tree.</li>
+     * <li>IDCACHE: the hashes of the leaves of this cache, separated with
+     * spaces.</li>
+     * <li>IDCACHE and LEAVES: a cache in update mode with the elements of
+     * these leaves.</li></ul>
+     * Hashes are in hexadecimal.
+     * @param con The GET connection
+     * @param m The first message of the connection
+     * @param net The network of the connection
+     * @return Wether the message asked for the tree. If true, the answer
+     * has been sent and the connection closed.
+     * @throws Exception If the answer can not be sent
+     * @see CacheTree */
+    protected boolean manageTree(Connection con,Message m,NetworkManager net) throws
+            Exception{
+        if(!"tree".equals(m.getAttribute(MODE))){
+            return false;
+        }
+        String idcache=m.getAttribute(IDCACHE);
+        String leaves=m.getAttribute(LEAVES);
+        logger.debug("Sending tree to "+m.getIDFrom()+": "+idcache+" "+ //@@l
+                     leaves); //@@l
+        Collection view=getTreeView(m.getIDFrom());
+        if(idcache==null){
+            CacheTree t=new CacheTree(view);
+            StringBuffer b=new StringBuffer();
+            Object o[]=t.getIDCaches().toArray();
+            for(int i=0;i<o.length;i++){
+                b.append(o[i]).append(' ').
+                        append(Long.toHexString(t.getBucket((String)o[i]))).
+                        append('\n');
+            }
+            con.sendBytes(b.toString().getBytes());
+        } else if(leaves==null){
+            long[] l=new CacheTree(view).getLeaves(idcache);
+            StringBuffer b=new StringBuffer();
+            for(int i=0;i<l.length;i++){
+                b.append(Long.toHexString(l[i])).append(' ');
+            }
+            con.sendBytes(b.toString().trim().getBytes());
+        } else{
+            Cache c=new Cache(msd.getID());
+            c.setElements(getLeaves(view,idcache,parseLeaves(leaves)));
+            transformOutCache(c,net,m.getIDFrom());
+            c.setMode("update");
+            sendCache(con,c,m);
+        }
+        con.close();
+        return true;
+    }
+
+    /** Forwards a subscription of the local cache to other MSDs, if they do
+     * not send every change already. Nothing in this algorithm: the clients
+     * receive an UPDATE after every change of the main.
+     * @param s The subscription */
+    public void subscribe(CacheSubscription s){
+    }
+
+    /** Cancels a subscription forwarded with subscribe().
+     * @param s The subscription */
+    public void unsubscribe(CacheSubscription s){
+    }
+
+    /** Reconciles the local cache with the cache of the main MSD of a
+     * network. Compares the hash trees of both caches, and asks the main
+     * only for the elements in the leaves that differ: the elements the
+     * main has are joined, and the elements the main has not are removed.
+     * Does nothing if we are the main of the network or not waiting for
+     * events.
+     * @param net The network */
+    public void doAntiEntropy(NetworkManager net){
+        String main=net.getMSDMain();
+        if(net.isMain()||main==null||main.equals(msd.getID())||
+           getLevel(net)!=WAIT_EVENT){
+            return;
+        }
+        try{
+            Collection view=getTreeView(msd.getID());
+            CacheTree local=new CacheTree(view);
+            // the hashes of the caches in the main
+            Hashtable remote=new Hashtable();
+            java.util.StringTokenizer st=new java.util.StringTokenizer(
+                    new String(askTree(net,null,null).getData()),"\n");
+            while(st.hasMoreTokens()){
+                String l=st.nextToken();
+                int p=l.indexOf(' ');
+                if(p>0){
+                    remote.put(l.substring(0,p),l.substring(p+1).trim());
+                }
+            }
+            java.util.HashSet idcaches=new java.util.HashSet(remote.keySet());
+            idcaches.addAll(local.getIDCaches());
+            boolean repaired=false;
+            Object o[]=idcaches.toArray();
+            for(int i=0;i<o.length;i++){
+                String idcache=(String)o[i];
+                if(Long.toHexString(local.getBucket(idcache)).equals(remote.
+                        get(idcache))){
+                    continue;
+                }
+                // look for the leaves that differ
+                long[] l=local.getLeaves(idcache);
+                String r[]=new String[l.length];
+                if(remote.get(idcache)!=null){
+                    r=new String(askTree(net,idcache,null).getData()).
+                      split(" ");
+                }
+                StringBuffer leaves=new StringBuffer();
+                for(int j=0;j<l.length;j++){
+                    String h=j<r.length&&r[j]!=null?r[j]:"0";
+                    if(!Long.toHexString(l[j]).equals(h)){
+                        leaves.append(leaves.length()>0?",":"").append(j);
+                    }
+                }
+                if(leaves.length()==0){
+                    continue;
+                }
+                logger.info("Repairing cache "+idcache+" leaves "+leaves); //@@l
+                Cache cache2=validateCache(askTree(net,idcache,
+                        leaves.toString()));
+                // the answer has only some leaves: never a complete cache
+                cache2.setMode("update");
+                // remove the local elements the main has not
+                java.util.HashSet ids=new java.util.HashSet();
+                Object o2[]=cache2.getChilds().toArray();
+                for(int j=0;j<o2.length;j++){
+                    ids.add(((Element)o2[j]).getID());
+                }
+                o2=getLeaves(view,idcache,parseLeaves(leaves.toString())).
+                   toArray();
+                for(int j=0;j<o2.length;j++){
+                    Element e=(Element)o2[j];
+                    if(!ids.contains(e.getID())){
+                        cache2.addRemoved(idcache,e.getID());
+                    }
+                }
+                transformInCache(cache2,net);
+                cache.join(cache2);
+                repaired=true;
+            }
+            if(repaired){
+                msd.triggerCacheUpdated(net,null);
+            }
+        } catch(Exception e){
+            logger.warn("Error while reconciling with "+main+": "+e); //@@l
+        }
+    }
+
+    /** Asks the main MSD of a network for its hash tree.
+     * @param net The network
+     * @param idcache The cache whose leaves are asked, or null
+     * @param leaves The leaves whose elements are asked, or null
+     * @return The answer of the main, as in manageTree()
+     * @throws Exception If the main can not be asked */
+    private Message askTree(NetworkManager net,String idcache,String leaves) throws
+            Exception{
+        Connection con=net.getConnection(Connection.GET,msd.getID(),
+                                         net.getMSDMain(),net.getMSDMain());
+        Message m=con.createMessage(null);
+        m.setAttribute(MODE,"tree");
+        if(idcache!=null){
+            m.setAttribute(IDCACHE,idcache);
+        }
+        if(leaves!=null){
+            m.setAttribute(LEAVES,leaves);
+            m.setAttribute(ACCEPT,Cache.ENCODING_BINARY);
+        }
+        con.send(m);
+        m=con.receive();
+        con.close();
+        return m;
+    }
+
+    /** Returns the elements of the local cache in the hash trees exchanged
+     * with other MSD: every element but the temporal ones, the ones from or
+     * gatewayed by the other MSD, and the MSDBTServer services.
+     * Both sides of a reconciliation get the same elements.
+     * @param to The identifier of the other MSD
+     * @return The elements */
+    protected Collection getTreeView(String to){
+        java.util.Vector v=new java.util.Vector();
+        Object o[]=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            String idcache=e.getIDCache();
+            if(idcache==null||idcache.equals("tmp")||idcache.equals(to)){
+                continue;
+            }
+            if(e.getType()==Element.SERVICE){
+                Service s=(Service)e;
+                if(to.equals(s.getGateway())||
+                   "MSDBTServer".equals(s.getName())){
+                    continue;
+                }
+            }
+            v.add(e);
+        }
+        return v;
+    }
+
+    /** @param elements Some elements
+     * @param idcache The identifier of a cache
+     * @param leaves The leaves to look for
+     * @return The elements from idcache in these leaves of a CacheTree */
+    private static Collection getLeaves(Collection elements,String idcache,
+                                        boolean[] leaves){
+        java.util.Vector v=new java.util.Vector();
+        Object o[]=elements.toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(idcache.equals(e.getIDCache())&&e.getID()!=null&&
+               leaves[CacheTree.leafOf(e.getID())]){
+                v.add(e);
+            }
+        }
+        return v;
+    }
+
+    /** @param leaves Leaves separated with commas
+     * @return An array with true in the leaves listed
+     * @throws NumberFormatException If the list is not well formed */
+    private static boolean[] parseLeaves(String leaves){
+        boolean[] l=new boolean[CacheTree.LEAVES];
+        java.util.StringTokenizer st=new java.util.StringTokenizer(leaves,",");
+        while(st.hasMoreTokens()){
+            int n=Integer.parseInt(st.nextToken().trim());
+            if(n>=0&&n<l.length){
+                l[n]=true;
+            }
+        }
+        return l;
+    }
+
+    /** If a GET message asks for the summary of the local cache along with
+     * the answer, sends it after the answer. The other side does not need
+     * other connection to ask for it.
+     * @param con The GET connection, with the answer already sent
+     * @param m The first message of the connection
+     * @throws Exception If the summary can not be sent */
+    protected void sendDigest(Connection con,Message m) throws Exception{
+        if(m.getAttribute(DIGEST)!=null){
+            logger.debug("Sending summary to "+m.getIDFrom()); //@@l
+            sendCache(con,getSummary(),m);
+        }
+    }
+
+    /** @return A cache in summary mode with the digest of the local cache.
+     * The digest is created again only if the local cache changed.
+     * @throws Exception If the summary can not be created */
+    protected synchronized Cache getSummary() throws Exception{
+        String version=cache.getVersion();
+        if(summary==null||!summary.getVersion().equals(version)){
+            Cache s=new Cache(msd.getID());
+            s.setMode("summary");
+            s.setDigest(CacheDigest.create(cache));
+            s.setVersion(version);
+            summary=s;
+        }
+        return summary;
+    }
+
+    /** Sends a cache through a connection, in the best encoding the other
+     * side accepts.
+     * @param con The connection to send the cache through
+     * @param c The cache to send
+     * @param request The message of the other side asking for the cache
+     * @throws Exception If the cache can not be sent */
+    protected void sendCache(Connection con,Cache c,Message request) throws
+            Exception{
+        String encoding=accepts(request,Cache.ENCODING_BINARY)?
+                        Cache.ENCODING_BINARY:Cache.ENCODING_XML;
+        sendBytes(con,encode(c,encoding),encoding);
+    }
+
+    /** @param c A cache
+     * @param encoding ENCODING_BINARY or ENCODING_XML
+     * @return The cache in this encoding, as sent to other MSDs
+     * @throws Exception If the cache can not be encoded */
+    private static byte[] encode(Cache c,String encoding) throws Exception{
+        if(Cache.ENCODING_BINARY.equals(encoding)){
+            return c.toBytes(Cache.ENCODING_BINARY);
+        }
+        return c.toString().getBytes();
+    }
+
+    /** @param version A version of the local cache
+     * @param key The description of a request
+     * @return The answer to the request sent for this version, or null */
+    protected synchronized byte[] getAnswer(String version,String key){
+        if(!version.equals(answersVersion)){
+            return null;
+        }
+        return(byte[])answers.get(key);
+    }
+
+    /** Remembers the answer to a request. The answers of previous versions
+     * are forgotten.
+     * @param version The version of the local cache the answer was created
+     * from. If the cache changed while creating the answer, the version
+     * before the change.
+     * @param key The description of the request
+     * @param answer The answer */
+    protected synchronized void putAnswer(String version,String key,
+                                          byte[] answer){
+        if(!version.equals(answersVersion)||answers.size()>=ANSWERS_SIZE){
+            answers.clear();
+            answersVersion=version;
+        }
+        answers.put(key,answer);
+    }
+
+    /** @param elements Some elements
+     * @param id The identifier of an MSD
+     * @return If the elements include the description of the MSD */
+    private static boolean describes(Collection elements,String id){
+        Object o[]=elements.toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(id.equals(e.getIDCache())&&"MSD".equals(e.getName())){
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Sends the local cache to other MSD through a connection, in the best
+     * encoding the other side accepts. If the other MSD knows a version of
+     * the cache, sends just the changes since this version. The cache is
+     * taken from the view of the network, so it is not cloned, transformed
+     * nor encoded again if it has not changed. The own MSD of the other
+     * side and the services it gateways are not sent.
+     * @param con The connection to send the cache through
+     * @param request The message of the other side asking for the cache
+     * @param net The network of the connection
+     * @param to The identifier of the other MSD
+     * @throws Exception If the cache can not be sent */
+    protected void sendView(Connection con,Message request,NetworkManager net,
+                            String to) throws Exception{
+        CacheView v=getView(net);
+        Cache c=v.getChanges(request.getAttribute(SINCE),to);
+        if(c!=null){
+            logger.debug("Sending changes since "+request.getAttribute(SINCE)); //@@l
+            sendCache(con,c,request);
+        } else if(accepts(request,Cache.ENCODING_BINARY)){
+            sendBytes(con,v.getBytes(Cache.ENCODING_BINARY,to),
+                      Cache.ENCODING_BINARY);
+        } else{
+            sendBytes(con,v.getBytes(Cache.ENCODING_XML,to),
+                      Cache.ENCODING_XML);
+        }
+    }
+
+    /** @param net A network
+     * @return The view of the local cache sent through net. Created if it
+     * did not exist. */
+    protected CacheView getView(NetworkManager net){
+        synchronized(views){
+            CacheView v=(CacheView)views.get(net.getGenericName());
+            if(v==null){
+                v=new CacheView(this,cache,net);
+                views.put(net.getGenericName(),v);
+            }
+            return v;
+        }
+    }
+
+    /** Sends an encoded cache through a connection.
+     * @param con The connection
+     * @param b The encoded cache
+     * @param encoding The encoding of the cache
+     * @throws Exception If the cache can not be sent */
+    private void sendBytes(Connection con,byte[] b,String encoding) throws
+            Exception{
+        if(Cache.ENCODING_XML.equals(encoding)){
+            con.sendBytes(b);
+        } else{
+            Message m=con.createMessage(b);
+            m.setAttribute(ENCODING,encoding);
+            con.send(m);
+        }
+    }
+
+    /** @param m A message asking for a cache
+     * @param encoding The name of an encoding
+     * @return If the sender of m understands caches in this encoding */
+    protected static boolean accepts(Message m,String encoding){
+        String a=m.getAttribute(ACCEPT);
+        if(a==null){
+            return false;
+        }
+        return(","+a+",").indexOf(","+encoding+",")>-1;
+    }
+
+    /** Splits the changes of a cache into the elements still in the cache
+     * and the elements removed.
+     * @param source The cache
+     * @param changes The changes as returned by source.getChanges()
+     * @param removed The identifiers {idcache,id} of the elements removed
+     * are added to this collection.
+     * @return The elements added or changed */
+    private Collection splitChanges(Cache source,Collection changes,
+                                    Collection removed){
+        java.util.Vector v=new java.util.Vector();
+        Object o[]=changes.toArray();
+        for(int i=0;i<o.length;i++){
+            String[] ids=(String[])o[i];
+            Element e=source.getElement(ids[0],ids[1]);
+            if(e==null){
+                removed.add(ids);
+            } else{
+                v.add(e);
+            }
+        }
+        return v;
+    }
+
+    /** Sets a cache in update mode, in order the receiver joins its elements
+     * without removing the previous ones from the same MSD.
+     * @param c The cache to send
+     * @param removed Identifiers {idcache,id} of the elements removed */
+    private void setUpdateMode(Cache c,Collection removed){
+        c.setMode("update");
+        Object o[]=removed.toArray();
+        for(int i=0;i<o.length;i++){
+            String[] ids=(String[])o[i];
+            c.addRemoved(ids[0],ids[1]);
+        }
+    }
+
+    /** @param net A network
+     * @param id The identifier of a remote MSD
+     * @return The version of the cache of the remote MSD joined through net,
+     * or null if unknown. */
+    protected String getRemoteVersion(NetworkManager net,String id){
+        return(String)versions.get(net.getGenericName()+"/"+id);
+    }
+
+    /** @param net A network
+     * @param id The identifier of a remote MSD
+     * @param version The version of the cache of the remote MSD joined
+     * through net. */
+    protected void setRemoteVersion(NetworkManager net,String id,
+                                    String version){
+        versions.put(net.getGenericName()+"/"+id,version);
+    }
+
+    /** Forgets the versions of the cache of a remote MSD, after its
+     * services have been removed from the local cache.
+     * @param id The identifier of a remote MSD */
+    protected void forgetRemoteVersion(String id){
+        Object o[]=versions.keySet().toArray();
+        for(int i=0;i<o.length;i++){
+            if(((String)o[i]).endsWith("/"+id)){
+                versions.remove(o[i]);
+            }
+        }
+    }
+
     /** Reads a message and returns a Cache object with the
      * contents of the message.
      * @param m The Message
@@ -18,7 +18,7 @@ import org.msd.cache.*;
  * You can always look for a service template inmediatly.
  * @version $Revision: 1.16 $
  */
-public abstract class SDManager implements TimeListener{
+public abstract class SDManager implements TimeListener,CacheListener{
     /** Class' logger */
     private static Logger logger=Logger.getLogger(SDManager.class); //@@l
     /**
@@ -48,6 +48,9 @@ public abstract class SDManager implements TimeListener{
     protected Object searching=new Object();
     /** Network to join to the services this manager discovers */
     protected Network network;
+    /** Default lifetime in seconds of the services this manager discovers.
+     * If zero, they never expire. */
+    protected int lifetime=0;
 
     /** Empty Constructor.
      * This class needs an empty constructor if it is loaded from
@@ -82,6 +85,9 @@ public abstract class SDManager implements TimeListener{
 //        elements=new Vector<Element>();           //@@1.5
         elements=new Vector(); //@@1.4
         name=getName(); //@@l
+        // forget the services expired
+        cache.removeCacheListener(this);
+        cache.addCacheListener(this);
     }
 
     /** Init again the SDManager for the given network.
@@ -288,6 +294,35 @@ public abstract class SDManager implements TimeListener{
         }
     }
 
+    /**
+     * Searchs for a compiled template in the msd manager.
+     *
+     * This method blocks until the searching is complete.
+     * it can be a rather long time of cached=false.
+     * @param m Compiled template of the services to search. Only the
+     * services found by this proxy are returned.
+     * @param cached Look up the cache or start a new searching.
+     * @return A collection with the found services matching the template. It
+     * could be empty if no service is found.
+     */
+    public Collection searchService(ElementMatcher m,boolean cached){
+        if(cached){
+            return cache.getElements(m.withChild(ElementMatcher.compile(proxy)),
+                                     cache.getChilds());
+        } else{
+            try{
+                search();
+                synchronized(searching){
+                    searching.wait();
+                }
+                return searchService(m,true);
+            } catch(Exception e){
+                logger.warn("Error in searching: "+e); //@@l
+                return new Vector();
+            }
+        }
+    }
+
     /** Finish the manager.
      * Other callings after this method are unexpected.
      * Recalling finish is harmless. */
@@ -324,4 +359,38 @@ public abstract class SDManager implements TimeListener{
     public Collection getElements(){
         return elements;
     }
+
+    /** @param seconds Default lifetime of the services this manager
+     * discovers. If zero, they never expire. */
+    public void setLifetime(int seconds){
+        lifetime=seconds;
+    }
+
+    /** @return Default lifetime of the services this manager discovers,
+     * in seconds. If zero, they never expire. */
+    public int getLifetime(){
+        return lifetime;
+    }
+
+    /** Sets the lifetime of a service this manager discovered.
+     * @param e The service, joined to the cache.
+     * @param seconds The lifetime the protocol announces for the service.
+     * If not positive, use the default lifetime of the manager. */
+    protected void setLifetime(Element e,int seconds){
+        if(seconds<=0){
+            seconds=lifetime;
+        }
+        if(seconds>0){
+            cache.setLifetime(e,seconds);
+        }
+    }
+
+    /** When a service of this manager expires or is evicted, forget it.
+     * @param e The event from the cache */
+    public void elementRemoved(CacheEvent e){
+        if(e.getCode()==CacheListener.EXPIRED||
+           e.getCode()==CacheListener.EVICTED){
+            elements.remove(e.getElement());
+        }
+    }
 }
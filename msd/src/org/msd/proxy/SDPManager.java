@@ -295,6 +295,7 @@ public class SDPManager extends SDManager{
                 // Give form to the service for cache
                 Service serv=new Service(cache,true);
                 elements.add(serv);
+                setLifetime(serv,0);
 
                 // SERVICE CLASSES
 
@@ -190,6 +190,10 @@ public class SLPManager extends SDManager {
                     logger.warn("Error while setting attributes: "+e.toString()); //@@l
                 }
                 serv.addClass(t.classes);
+                // the service expires with its SLP registration
+                if(url.getLifetime()!=ServiceURL.LIFETIME_PERMANENT){
+                    setLifetime(serv,url.getLifetime());
+                }
                 // start the attribute searching thread
                 threads.add(new AttributeThread(url,t.scopes,t.locator,serv));
                 // append this proxy to the service
@@ -0,0 +1,199 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import junit.framework.TestCase;
+
+/** Tests of the binary encoding of caches.
+ * @version $Revision: 1.1 $ */
+public class CacheCodecTest extends TestCase{
+    private static final String XML="<cache idcache=\"1000\">"+
+            "<service id=\"1\" idcache=\"1000\" name=\"MSD\">"+
+            "<network name=\"internet\" main=\"\"><attr name=\"url\">"+
+            "10.0.0.1</attr><attr name=\"port\">15150</attr></network>"+
+            "<network name=\"bluetooth\"><attr name=\"url\">"+
+            "btspp://0010DC</attr></network></service>"+
+            "<service id=\"2\" idcache=\"2000\" name=\"printer\" gw=\"1000\""+
+            " hops=\"2\"><attr name=\"room\">007</attr>"+
+            "<attr name=\"descr\">Impresora de la sal\u00f3n \u20ac</attr>"+
+            "<attr name=\"empty\"></attr>"+
+            "<attr name=\"big\">123456789012345678901234567890</attr>"+
+            "<network name=\"internet\"/></service></cache>";
+
+    /** @return A cache read from XML */
+    private static Cache cache(String xml) throws Exception{
+        Cache c=new Cache("1000");
+        c.load(new ByteArrayInputStream(xml.getBytes("UTF-8")));
+        return c;
+    }
+
+    /** @return A cache encoded and decoded again */
+    private static Cache roundTrip(Cache c) throws Exception{
+        Cache d=new Cache("3000");
+        d.load(new ByteArrayInputStream(c.toBytes(Cache.ENCODING_BINARY)));
+        return d;
+    }
+
+    public void testRoundTrip() throws Exception{
+        Cache c=cache(XML);
+        Cache d=roundTrip(c);
+        assertEquals(c.getID(),d.getID());
+        assertEquals(c.getChilds().size(),d.getChilds().size());
+        assertEquals(c.toString(),d.toString());
+    }
+
+    public void testValues() throws Exception{
+        Cache d=roundTrip(cache(XML));
+        Element p=d.getElement("2000","2");
+        assertNotNull(p);
+        // numbers with leading zeros or too long are literals
+        assertEquals("007",p.getAttrStr("room"));
+        assertEquals("123456789012345678901234567890",p.getAttrStr("big"));
+        assertEquals("Impresora de la sal\u00f3n \u20ac",
+                     p.getAttrStr("descr"));
+        assertEquals("",p.getAttrStr("empty"));
+        assertEquals("2",p.getProperty("hops"));
+        assertNull(p.getAttrStr("none"));
+    }
+
+    public void testEmptyCache() throws Exception{
+        Cache c=new Cache("1000");
+        Cache d=roundTrip(c);
+        assertEquals("1000",d.getID());
+        assertEquals(0,d.getChilds().size());
+    }
+
+    public void testRemoved() throws Exception{
+        Cache c=cache(XML);
+        c.addRemoved("2000","5");
+        Cache d=roundTrip(c);
+        assertEquals(1,d.getRemoved().size());
+        String[] ids=(String[])d.getRemoved().iterator().next();
+        assertEquals("2000",ids[0]);
+        assertEquals("5",ids[1]);
+    }
+
+    public void testTableFull() throws Exception{
+        Cache c=new Cache("1000");
+        for(int i=0;i<CacheCodec.MAX_STRINGS+100;i++){
+            Service s=new Service(c,true);
+            s.setName("name-"+i);
+            s.setAttrStr("attr-"+(i%10),"value-"+i);
+        }
+        Cache d=roundTrip(c);
+        assertEquals(c.getChilds().size(),d.getChilds().size());
+        assertEquals(c.toString(),d.toString());
+    }
+
+    public void testSmallerThanXML() throws Exception{
+        Cache c=cache(XML);
+        assertTrue(c.toBytes(Cache.ENCODING_BINARY).length<
+                   c.toBytes(Cache.ENCODING_XML).length);
+    }
+
+    public void testTruncated() throws Exception{
+        byte[] b=cache(XML).toBytes(Cache.ENCODING_BINARY);
+        for(int l=0;l<b.length;l++){
+            Cache d=new Cache("3000");
+            try{
+                CacheCodec.decode(d,new ByteArrayInputStream(b,0,l),
+                                  CacheParser.LOAD);
+                fail("Truncated at "+l+" of "+b.length);
+            } catch(Exception e){
+                // expected
+            }
+        }
+    }
+
+    public void testWrongHeader() throws Exception{
+        byte[] b=cache(XML).toBytes(Cache.ENCODING_BINARY);
+        b[1]=(byte)(CacheCodec.VERSION+1);
+        try{
+            CacheCodec.decode(new Cache("3000"),new ByteArrayInputStream(b),
+                              CacheParser.LOAD);
+            fail("Unknown version read");
+        } catch(Exception e){
+            // expected
+        }
+        b[0]='<';
+        try{
+            CacheCodec.decode(new Cache("3000"),new ByteArrayInputStream(b),
+                              CacheParser.LOAD);
+            fail("XML read as binary");
+        } catch(Exception e){
+            // expected
+        }
+    }
+
+    public void testStrings() throws Exception{
+        String[] s={null,"","0","1","42","007","-1","9223372036854775807",
+                   "abc","abc","\u00f1\u20ac",Cache.CACHE_NAME};
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream o=new DataOutputStream(buf);
+        CacheCodec w=new CacheCodec();
+        for(int i=0;i<s.length;i++){
+            w.writeString(o,s[i]);
+        }
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(
+                buf.toByteArray()));
+        CacheCodec r=new CacheCodec();
+        for(int i=0;i<s.length;i++){
+            assertEquals(s[i],r.readString(in));
+        }
+        assertEquals(-1,in.read());
+    }
+
+    public void testStringNotInTable() throws Exception{
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        CacheCodec.writeVarint(new DataOutputStream(buf),
+                               (CacheCodec.MAX_STRINGS+2L)<<1);
+        try{
+            new CacheCodec().readString(new DataInputStream(
+                    new ByteArrayInputStream(buf.toByteArray())));
+            fail("String out of the table read");
+        } catch(IOException e){
+            // expected
+        }
+    }
+
+    public void testVarints() throws Exception{
+        long[] v={0,1,127,128,16383,16384,Integer.MAX_VALUE,1L<<35,
+                 Long.MAX_VALUE};
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        DataOutputStream o=new DataOutputStream(buf);
+        for(int i=0;i<v.length;i++){
+            CacheCodec.writeVarint(o,v[i]);
+        }
+        assertEquals(1+1+1+2+2+3+5+6+9,buf.size());
+        DataInputStream in=new DataInputStream(new ByteArrayInputStream(
+                buf.toByteArray()));
+        for(int i=0;i<v.length;i++){
+            assertEquals(v[i],CacheCodec.readVarint(in));
+        }
+    }
+
+    public void testWrongVarints() throws Exception{
+        byte[] b=new byte[11];
+        java.util.Arrays.fill(b,(byte)0xFF);
+        try{
+            CacheCodec.readVarint(new DataInputStream(
+                    new ByteArrayInputStream(b)));
+            fail("Varint of 11 bytes read");
+        } catch(IOException e){
+            // expected
+        }
+        ByteArrayOutputStream buf=new ByteArrayOutputStream();
+        CacheCodec.writeVarint(new DataOutputStream(buf),
+                               Integer.MAX_VALUE+1L);
+        try{
+            CacheCodec.readCount(new DataInputStream(
+                    new ByteArrayInputStream(buf.toByteArray())));
+            fail("Count too big read");
+        } catch(IOException e){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,100 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import junit.framework.TestCase;
+
+/** Tests of the Bloom digests of caches.
+ * @version $Revision: 1.1 $ */
+public class CacheDigestTest extends TestCase{
+    public void testNoFalseNegatives(){
+        CacheDigest d=new CacheDigest(1000*CacheDigest.BITS_PER_NAME,
+                                      CacheDigest.HASHES);
+        for(int i=0;i<1000;i++){
+            d.addService("service"+i);
+            d.addClass("class"+i);
+        }
+        for(int i=0;i<1000;i++){
+            assertTrue(d.mayContainService("service"+i));
+            assertTrue(d.mayContainClass("class"+i));
+        }
+    }
+
+    public void testFalsePositives(){
+        CacheDigest d=new CacheDigest(1000*CacheDigest.BITS_PER_NAME,
+                                      CacheDigest.HASHES);
+        for(int i=0;i<1000;i++){
+            d.addService("service"+i);
+        }
+        int positives=0;
+        for(int i=0;i<10000;i++){
+            if(d.mayContainService("other"+i)){
+                positives++;
+            }
+        }
+        // about 1%
+        assertTrue("False positives: "+positives,positives<300);
+        // services and classes do not mix
+        assertFalse(d.mayContainClass("service1"));
+    }
+
+    public void testParse(){
+        CacheDigest d=new CacheDigest(200,3);
+        d.addService("printer");
+        d.addClass("fax");
+        String s=d.toString();
+        assertTrue(s.startsWith("3."));
+        assertEquals(-1,s.indexOf(':'));
+        CacheDigest e=CacheDigest.parse(s);
+        assertEquals(s,e.toString());
+        assertTrue(e.mayContainService("printer"));
+        assertTrue(e.mayContainClass("fax"));
+        // 64 bits with the highest one set
+        CacheDigest f=CacheDigest.parse("1.8000000000000001");
+        assertEquals("1.8000000000000001",f.toString());
+    }
+
+    public void testWrongDigests(){
+        String[] wrong={null,"","12","1.123","x.0000000000000000",
+                       "0.0000000000000000","1.000000000000000g"};
+        for(int i=0;i<wrong.length;i++){
+            try{
+                CacheDigest.parse(wrong[i]);
+                fail("Wrong digest parsed: "+wrong[i]);
+            } catch(IllegalArgumentException e){
+                // expected
+            }
+        }
+    }
+
+    public void testCreate() throws Exception{
+        Cache c=new Cache("1000");
+        c.load(new ByteArrayInputStream(("<cache idcache=\"1000\">"+
+                "<service id=\"1\" idcache=\"1000\" name=\"printer\">"+
+                "<classtype name=\"laser\"/></service>"+
+                "<service id=\"2\" idcache=\"1000\" name=\"fax\"/>"+
+                "</cache>").getBytes()));
+        CacheDigest d=CacheDigest.create(c);
+        assertTrue(d.mayContainService("printer"));
+        assertTrue(d.mayContainService("fax"));
+        assertTrue(d.mayContainClass("laser"));
+        assertTrue(d.mayMatch(compile(c,"<service name=\"printer\">"+
+                "<classtype name=\"laser\"/></service>")));
+        assertTrue(d.mayMatch(compile(c,"<service/>")));
+        assertTrue(d.mayMatch(compile(c,"<network name=\"scanner\"/>")));
+        assertFalse(d.mayMatch(compile(c,"<service name=\"scanner\"/>")));
+        assertFalse(d.mayMatch(compile(c,"<service><classtype name=\"ink\"/>"+
+                                          "</service>")));
+    }
+
+    public void testEmptyCache() throws Exception{
+        CacheDigest d=CacheDigest.create(new Cache("1000"));
+        assertFalse(d.mayContainService("printer"));
+        assertEquals(d.toString(),CacheDigest.parse(d.toString()).toString());
+    }
+
+    /** @return The matcher of a template */
+    private static ElementMatcher compile(Cache c,String xml) throws
+            Exception{
+        return ElementMatcher.compile(c.createElementFromXML(xml));
+    }
+}
@@ -0,0 +1,76 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import junit.framework.TestCase;
+
+/** Tests of the caches received from other MSD and joined to the local one.
+ * @version $Revision: 1.1 $ */
+public class CacheJoinTest extends TestCase{
+    private static final String PEER="<cache idcache=\"2000\">"+
+            "<service id=\"1\" idcache=\"2000\" name=\"printer\"/>"+
+            "<service id=\"2\" idcache=\"2000\" name=\"fax\"/>"+
+            "<service id=\"3\" idcache=\"2000\" name=\"scanner\"/>"+
+            "</cache>";
+    private static final String[] ENCODINGS={Cache.ENCODING_XML,
+            Cache.ENCODING_BINARY};
+    private Cache local;
+    private Element msd;
+
+    protected void setUp() throws Exception{
+        local=new Cache("1000");
+        msd=new Service(local,true);
+        msd.setName("MSD");
+        local.join(received(PEER.getBytes()));
+    }
+
+    /** @return A cache read from a message, as the MessageManager does */
+    private static Cache received(byte[] data) throws Exception{
+        Cache c=new Cache();
+        c.load(new ByteArrayInputStream(data));
+        return c;
+    }
+
+    /** @return A delta of the peer: a service changed and other removed */
+    private static Cache delta() throws Exception{
+        Cache d=new Cache("2000");
+        d.setMode("update");
+        Element e=d.createElementFromXML(
+                "<service id=\"1\" idcache=\"2000\" name=\"laser\"/>");
+        d.addElement(e);
+        d.addRemoved("2000","2");
+        return d;
+    }
+
+    public void testModeLoaded() throws Exception{
+        for(int i=0;i<ENCODINGS.length;i++){
+            Cache c=received(delta().toBytes(ENCODINGS[i]));
+            assertEquals(ENCODINGS[i],"update",c.getMode());
+            c=received(PEER.getBytes());
+            assertEquals(ENCODINGS[i],"complete",c.getMode());
+        }
+    }
+
+    public void testJoinDelta() throws Exception{
+        assertEquals(4,local.getChilds().size());
+        for(int i=0;i<ENCODINGS.length;i++){
+            setUp();
+            local.join(received(delta().toBytes(ENCODINGS[i])));
+            // the services not in the delta are kept
+            assertEquals(ENCODINGS[i],3,local.getChilds().size());
+            assertEquals("laser",local.getElement("2000","1").getName());
+            assertNull(local.getElement("2000","2"));
+            assertNotNull(local.getElement("2000","3"));
+            assertNotNull(local.getElement("1000",msd.getID()));
+        }
+    }
+
+    public void testJoinComplete() throws Exception{
+        local.join(received(("<cache idcache=\"2000\">"+
+                "<service id=\"4\" idcache=\"2000\" name=\"projector\"/>"+
+                "</cache>").getBytes()));
+        // a complete cache replaces every service of the peer
+        assertEquals(2,local.getChilds().size());
+        assertNotNull(local.getElement("2000","4"));
+        assertNotNull(local.getElement("1000",msd.getID()));
+    }
+}
@@ -0,0 +1,221 @@
+package org.msd.cache;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/** Tests of the journal of caches, and of its replay after crashes.
+ * @version $Revision: 1.1 $ */
+public class CacheJournalTest extends TestCase{
+    /** Path of the journal, without extension */
+    private String path;
+    private File snap,log;
+    /** The services written by write() */
+    private Service[] services;
+
+    protected void setUp() throws Exception{
+        File f=File.createTempFile("journal",".test");
+        f.delete();
+        path=f.getPath();
+        snap=new File(path+".snap");
+        log=new File(path+".log");
+    }
+
+    protected void tearDown() throws Exception{
+        snap.delete();
+        log.delete();
+    }
+
+    /** Opens a journal and adds services to the cache, a record each,
+     * leaving the journal open as after a crash.
+     * @param n Number of services
+     * @return The cache */
+    private Cache write(int n) throws Exception{
+        final Cache c=new Cache("1000");
+        assertFalse(new CacheJournal(path).open(c));
+        services=new Service[n];
+        for(int i=0;i<n;i++){
+            final int k=i;
+            c.batch(new Runnable(){
+                public void run(){
+                    try{
+                        services[k]=new Service(c,true);
+                        services[k].setName("s"+k);
+                        services[k].setAttrStr("url","http://host/"+k);
+                    } catch(Exception e){
+                        throw new RuntimeException(e.toString());
+                    }
+                }
+            });
+        }
+        return c;
+    }
+
+    /** @return A new cache restored from the journal */
+    private Cache restore(boolean restored) throws Exception{
+        Cache c=new Cache("1000");
+        assertEquals(restored,new CacheJournal(path).open(c));
+        return c;
+    }
+
+    /** @return The positions where the records of the log begin, and the
+     * length of the log at the end */
+    private long[] records() throws IOException{
+        DataInputStream in=new DataInputStream(new FileInputStream(log));
+        try{
+            Vector v=new Vector();
+            in.read();
+            in.read();
+            long pos=4+in.readUTF().getBytes("UTF-8").length;
+            while(pos<log.length()){
+                v.add(new Long(pos));
+                int length=in.readInt();
+                in.skipBytes(4+length);
+                pos+=8+length;
+            }
+            long[] r=new long[v.size()+1];
+            for(int i=0;i<v.size();i++){
+                r[i]=((Long)v.get(i)).longValue();
+            }
+            r[v.size()]=pos;
+            return r;
+        } finally{
+            in.close();
+        }
+    }
+
+    public void testRestore() throws Exception{
+        Cache c=write(10);
+        c.deleteElement(services[3]);
+        c.setLifetime(services[4],600);
+        Cache d=restore(true);
+        assertEquals(9,d.getChilds().size());
+        assertNull(d.getElement("1000",services[3].getID()));
+        assertEquals(c.getVersion(),d.getVersion());
+        assertEquals(c.toString(),d.toString());
+        int life=d.getLifetime(d.getElement("1000",services[4].getID()));
+        assertTrue(life>590&&life<=600);
+        // new identifiers do not repeat the old ones
+        Service s=new Service(d,true);
+        assertNull(c.getElement("1000",s.getID()));
+    }
+
+    public void testClose() throws Exception{
+        Cache c=new Cache("1000");
+        CacheJournal j=new CacheJournal(path);
+        j.open(c);
+        for(int i=0;i<5;i++){
+            new Service(c,true).setName("s"+i);
+        }
+        j.close();
+        assertEquals(0,records().length-1);
+        Cache d=restore(true);
+        assertEquals(5,d.getChilds().size());
+        assertEquals(c.getVersion(),d.getVersion());
+    }
+
+    public void testTruncatedLog() throws Exception{
+        write(10);
+        long[] r=records();
+        assertEquals(11,r.length);
+        // the last record is partially written
+        RandomAccessFile f=new RandomAccessFile(log,"rw");
+        f.setLength(r[9]+5);
+        f.close();
+        Cache d=restore(true);
+        assertEquals(9,d.getChilds().size());
+        // the log goes on after the last good record
+        new Service(d,true).setName("after");
+        assertEquals(r[9],records()[9]);
+        Cache e=restore(true);
+        assertEquals(10,e.getChilds().size());
+        assertEquals(d.getVersion(),e.getVersion());
+    }
+
+    public void testTruncatedHeader() throws Exception{
+        write(3);
+        RandomAccessFile f=new RandomAccessFile(log,"rw");
+        f.setLength(3);
+        f.close();
+        // the snapshot is still good
+        Cache d=restore(true);
+        assertEquals(0,d.getChilds().size());
+        new Service(d,true).setName("after");
+        assertEquals(1,restore(true).getChilds().size());
+    }
+
+    public void testCorruptedRecord() throws Exception{
+        write(10);
+        long[] r=records();
+        RandomAccessFile f=new RandomAccessFile(log,"rw");
+        f.seek(r[5]+12);
+        int b=f.read();
+        f.seek(r[5]+12);
+        f.write(b^0xFF);
+        f.close();
+        // the checksum fails: the log ends before the record
+        assertEquals(5,restore(true).getChilds().size());
+    }
+
+    public void testWrongLength() throws Exception{
+        write(10);
+        long[] r=records();
+        RandomAccessFile f=new RandomAccessFile(log,"rw");
+        f.seek(r[2]);
+        f.writeInt(-1);
+        f.close();
+        assertEquals(2,restore(true).getChilds().size());
+    }
+
+    public void testLogOfOtherSnapshot() throws Exception{
+        write(3);
+        File copy=new File(path+".old");
+        copy(log,copy);
+        Cache c=new Cache("1000");
+        CacheJournal j=new CacheJournal(path);
+        j.open(c);
+        new Service(c,true).setName("more");
+        j.close();
+        copy(copy,log);
+        copy.delete();
+        // the log does not follow the new snapshot: ignored
+        Cache d=restore(true);
+        assertEquals(4,d.getChilds().size());
+        assertEquals(c.getVersion(),d.getVersion());
+        new Service(d,true).setName("after");
+        assertEquals(5,restore(true).getChilds().size());
+    }
+
+    public void testCorruptedSnapshot() throws Exception{
+        write(3);
+        RandomAccessFile f=new RandomAccessFile(snap,"rw");
+        f.setLength(f.length()/2);
+        f.close();
+        Cache d=restore(false);
+        assertEquals(0,d.getChilds().size());
+        // the journal starts again
+        new Service(d,true).setName("after");
+        assertEquals(1,restore(true).getChilds().size());
+    }
+
+    /** Copies a file */
+    private static void copy(File from,File to) throws IOException{
+        FileInputStream in=new FileInputStream(from);
+        FileOutputStream out=new FileOutputStream(to);
+        try{
+            byte[] b=new byte[4096];
+            int l;
+            while((l=in.read(b))>0){
+                out.write(b,0,l);
+            }
+        } finally{
+            in.close();
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,209 @@
+package org.msd.cache;
+
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Random;
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/** Tests of the queries over caches: the indexes give the same results
+ * as testing every element.
+ * @version $Revision: 1.1 $ */
+public class CacheQueryTest extends TestCase{
+    /** Services in the cache: more than CacheQuery.SORT_LIMIT */
+    private static final int SIZE=1000;
+    private static final String[] NAMES={"printer","print-server","fax",
+            "scanner","projector"};
+    private Cache cache;
+    private Element service;
+
+    protected void setUp() throws Exception{
+        cache=new Cache("1000");
+        Random r=new Random(1);
+        for(int i=0;i<SIZE;i++){
+            Service s=new Service(cache,true);
+            s.setName(NAMES[r.nextInt(NAMES.length)]);
+            s.setHops(r.nextInt(10));
+            s.setConfidence(r.nextInt(100));
+            if(i%3==0){
+                s.setAttrStr("room",""+r.nextInt(50));
+            }
+        }
+        service=cache.createElement(Element.SERVICE);
+    }
+
+    /** @return The elements of the cache matching a query, testing each */
+    private Vector scan(CacheQuery q){
+        Vector v=new Vector();
+        Object[] o=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            if(q.matches((Element)o[i])){
+                v.add(o[i]);
+            }
+        }
+        return v;
+    }
+
+    /** Tests the results of a query: the elements of scan() in the order
+     * of the query */
+    private void check(CacheQuery q){
+        Vector all=scan(q);
+        Collection r=q.execute(cache);
+        assertEquals(all.size(),r.size());
+        assertEquals(new HashSet(all),new HashSet(r));
+        checkOrder(q,r);
+    }
+
+    /** Tests the order of some results */
+    private static void checkOrder(CacheQuery q,Collection r){
+        if(q.getOrder()==CacheQuery.NONE){
+            return;
+        }
+        Service last=null;
+        for(Iterator i=r.iterator();i.hasNext();){
+            Service s=(Service)i.next();
+            if(last!=null){
+                if(q.getOrder()==CacheQuery.BY_HOPS){
+                    assertTrue(last.getHops()<=s.getHops());
+                } else{
+                    assertTrue(last.getConfidence()>=s.getConfidence());
+                }
+            }
+            last=s;
+        }
+    }
+
+    public void testTemplate() throws Exception{
+        check(new CacheQuery(service));
+        Element t=cache.createElement(Element.SERVICE);
+        t.setName("fax");
+        check(new CacheQuery(t));
+    }
+
+    public void testPrefix(){
+        CacheQuery q=new CacheQuery(service);
+        q.addPrefix(Cache.NAME_NAME,"print");
+        check(q);
+        assertTrue(q.execute(cache).size()>0);
+        q=new CacheQuery(service);
+        q.addPrefix("room","1");
+        check(q);
+        q=new CacheQuery(service);
+        q.addPrefix(Cache.NAME_NAME,"none");
+        assertEquals(0,q.execute(cache).size());
+    }
+
+    public void testRanges(){
+        String[] fields={"hops","confidence","room"};
+        for(int i=0;i<fields.length;i++){
+            CacheQuery q=new CacheQuery(service);
+            q.addRange(fields[i],3,5);
+            check(q);
+            assertTrue(q.execute(cache).size()>0);
+        }
+        CacheQuery q=new CacheQuery(service);
+        q.addRange("hops",2,1);
+        assertEquals(0,q.execute(cache).size());
+    }
+
+    public void testExists(){
+        CacheQuery q=new CacheQuery(service);
+        q.addExists("room");
+        check(q);
+        assertEquals((SIZE+2)/3,q.execute(cache).size());
+    }
+
+    public void testOrders(){
+        int[] orders={CacheQuery.BY_HOPS,CacheQuery.BY_CONFIDENCE};
+        for(int i=0;i<orders.length;i++){
+            CacheQuery q=new CacheQuery(service);
+            q.setOrder(orders[i]);
+            check(q);
+            q.addPrefix(Cache.NAME_NAME,"p");
+            check(q);
+            q.addRange("hops",1,8);
+            check(q);
+        }
+    }
+
+    public void testPages(){
+        int[] orders={CacheQuery.NONE,CacheQuery.BY_HOPS,
+                     CacheQuery.BY_CONFIDENCE};
+        for(int i=0;i<orders.length;i++){
+            CacheQuery q=new CacheQuery(service);
+            q.setOrder(orders[i]);
+            q.addPrefix(Cache.NAME_NAME,"p");
+            int total=q.execute(cache).size();
+            HashSet seen=new HashSet();
+            Vector all=new Vector();
+            q.setLimit(7);
+            for(int offset=0;offset<total;offset+=7){
+                q.setOffset(offset);
+                Collection page=q.execute(cache);
+                assertEquals(Math.min(7,total-offset),page.size());
+                seen.addAll(page);
+                all.addAll(page);
+            }
+            assertEquals(total,seen.size());
+            checkOrder(q,all);
+        }
+    }
+
+    public void testBest(){
+        CacheQuery q=new CacheQuery(service);
+        q.setOrder(CacheQuery.BY_HOPS);
+        q.setLimit(5);
+        Collection best=q.execute(cache);
+        assertEquals(5,best.size());
+        for(Iterator i=best.iterator();i.hasNext();){
+            assertEquals(0,((Service)i.next()).getHops());
+        }
+    }
+
+    public void testFewCandidates() throws Exception{
+        // the index of names leaves a few candidates: they are not sorted
+        Element t=cache.createElement(Element.SERVICE);
+        t.setName("fax");
+        CacheQuery q=new CacheQuery(t);
+        q.addRange("hops",3,5);
+        q.addPrefix(Cache.NAME_NAME,"f");
+        check(q);
+        CacheSnapshot s=cache.getSnapshot();
+        assertFalse(s.isOrdered(CacheQuery.BY_HOPS));
+        assertFalse(s.isOrdered(CacheQuery.BY_NAME));
+        // without a template, the range is found in order
+        q=new CacheQuery(service);
+        q.addRange("hops",3,5);
+        check(q);
+        assertTrue(s.isOrdered(CacheQuery.BY_HOPS));
+    }
+
+    public void testSnapshot() throws Exception{
+        CacheQuery q=new CacheQuery(service);
+        Iterator i=q.iterator(cache);
+        new Service(cache,true).setName("late");
+        int n=0;
+        while(i.hasNext()){
+            i.next();
+            n++;
+        }
+        assertEquals(SIZE,n);
+        assertEquals(SIZE+1,q.execute(cache).size());
+    }
+
+    public void testWrongArguments(){
+        try{
+            new CacheQuery(service).setOrder(7);
+            fail("Unknown order set");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try{
+            new CacheQuery((ElementMatcher)null);
+            fail("Query without template");
+        } catch(NullPointerException e){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,74 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import junit.framework.TestCase;
+
+/** Tests of the snapshots of the caches read while writing.
+ * @version $Revision: 1.1 $ */
+public class CacheTest extends TestCase{
+    private Cache cache;
+
+    protected void setUp() throws Exception{
+        cache=new Cache("1000");
+        cache.load(new ByteArrayInputStream(("<cache idcache=\"1000\">"+
+                "<service id=\"1\" idcache=\"2000\" name=\"printer\"/>"+
+                "<service id=\"2\" idcache=\"2000\" name=\"fax\"/>"+
+                "</cache>").getBytes()));
+    }
+
+    public void testReadsInBatch(){
+        final int[] sizes=new int[3];
+        final Element[] found=new Element[2];
+        cache.batch(new Runnable(){
+            public void run(){
+                try{
+                    cache.addElement(cache.createElementFromXML(
+                            "<service id=\"3\" idcache=\"2000\""+
+                            " name=\"scanner\"/>"));
+                    sizes[0]=cache.getChilds().size();
+                    found[0]=cache.getElement("2000","3");
+                    cache.deleteElement(cache.getElement("2000","1"));
+                    sizes[1]=cache.getChilds().size();
+                    found[1]=cache.getElement("2000","1");
+                    Element t=cache.createElementFromXML(
+                            "<service name=\"scanner\"/>");
+                    sizes[2]=cache.getElements(t,cache.getChilds()).size();
+                } catch(Exception e){
+                    fail(e.toString());
+                }
+            }
+        });
+        // the batch reads its own changes
+        assertEquals(3,sizes[0]);
+        assertNotNull(found[0]);
+        assertEquals(2,sizes[1]);
+        assertNull(found[1]);
+        assertEquals(1,sizes[2]);
+        assertEquals(2,cache.getChilds().size());
+    }
+
+    public void testOtherThreadsInBatch() throws Exception{
+        final int[] size=new int[1];
+        // publish the snapshot: else, the reader waits for the batch
+        assertEquals(2,cache.getChilds().size());
+        cache.batch(new Runnable(){
+            public void run(){
+                new Service(cache,true).setName("late");
+                Thread t=new Thread(){
+                    public void run(){
+                        // the last snapshot published, without waiting
+                        size[0]=cache.getChilds().size();
+                    }
+                };
+                t.start();
+                try{
+                    t.join();
+                } catch(InterruptedException e){
+                    fail(e.toString());
+                }
+            }
+        });
+        assertEquals(2,size[0]);
+        assertEquals(3,cache.getChilds().size());
+    }
+}
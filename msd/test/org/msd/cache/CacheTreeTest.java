@@ -0,0 +1,161 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/** Tests of the hash trees comparing caches.
+ * @version $Revision: 1.1 $ */
+public class CacheTreeTest extends TestCase{
+    private static final String XML="<cache idcache=\"1000\">"+
+            "<service id=\"1\" idcache=\"2000\" name=\"printer\">"+
+            "<attr name=\"room\">12</attr><attr name=\"floor\">1</attr>"+
+            "<classtype name=\"laser\"/><classtype name=\"color\"/>"+
+            "<network name=\"internet\"><attr name=\"url\">10.0.0.2</attr>"+
+            "</network></service>"+
+            "<service id=\"2\" idcache=\"2000\" name=\"fax\"/>"+
+            "<service id=\"3\" idcache=\"3000\" name=\"scanner\"/>"+
+            "</cache>";
+
+    /** @return A cache read from XML */
+    private static Cache cache(String xml) throws Exception{
+        Cache c=new Cache("1000");
+        c.load(new ByteArrayInputStream(xml.getBytes()));
+        return c;
+    }
+
+    public void testSameCaches() throws Exception{
+        CacheTree a=new CacheTree(cache(XML).getChilds());
+        CacheTree b=new CacheTree(cache(XML).getChilds());
+        assertEquals(2,a.getIDCaches().size());
+        assertEquals(a.getBucket("2000"),b.getBucket("2000"));
+        assertEquals(a.getBucket("3000"),b.getBucket("3000"));
+        assertTrue(a.getBucket("2000")!=0);
+        assertEquals(0,a.getBucket("4000"));
+        assertTrue(Arrays.equals(new long[CacheTree.LEAVES],
+                                 a.getLeaves("4000")));
+    }
+
+    public void testIgnored() throws Exception{
+        // other order, gateway, hops, confidence and networks
+        String xml="<cache idcache=\"5000\">"+
+                "<service id=\"1\" idcache=\"2000\" name=\"printer\""+
+                " gw=\"5000\" hops=\"3\" confidence=\"50\">"+
+                "<classtype name=\"color\"/><classtype name=\"laser\"/>"+
+                "<attr name=\"floor\">1</attr><attr name=\"room\">12</attr>"+
+                "<network name=\"bluetooth\"/></service>"+
+                "<service id=\"2\" idcache=\"2000\" name=\"fax\"/>"+
+                "</cache>";
+        Cache a=cache(XML),b=cache(xml);
+        assertEquals(CacheTree.hash(a.getElement("2000","1")),
+                     CacheTree.hash(b.getElement("2000","1")));
+        assertEquals(new CacheTree(a.getChilds()).getBucket("2000"),
+                     new CacheTree(b.getChilds()).getBucket("2000"));
+    }
+
+    public void testDifferentLeaf() throws Exception{
+        Cache a=cache(XML),b=cache(XML);
+        b.getElement("2000","1").setAttrStr("room","13");
+        CacheTree ta=new CacheTree(a.getChilds());
+        CacheTree tb=new CacheTree(b.getChilds());
+        assertTrue(ta.getBucket("2000")!=tb.getBucket("2000"));
+        assertEquals(ta.getBucket("3000"),tb.getBucket("3000"));
+        long[] la=ta.getLeaves("2000"),lb=tb.getLeaves("2000");
+        for(int i=0;i<CacheTree.LEAVES;i++){
+            // only the leaf of the element changed differs
+            assertEquals(i!=CacheTree.leafOf("1"),la[i]==lb[i]);
+        }
+    }
+
+    public void testChanges() throws Exception{
+        Cache c=cache(XML);
+        Element e=c.getElement("2000","2");
+        long h=CacheTree.hash(e);
+        e.setName("telefax");
+        assertTrue(h!=CacheTree.hash(e));
+        e=c.getElement("2000","1");
+        h=CacheTree.hash(e);
+        ((Element)e.getChilds().toArray()[0]).setName("inkjet");
+        assertTrue(h!=CacheTree.hash(e));
+    }
+
+    public void testPicture() throws Exception{
+        Cache c=cache(XML);
+        CacheTree t=new CacheTree(c.getChilds());
+        long h=t.getBucket("2000");
+        long[] l=t.getLeaves("2000");
+        l[0]++;
+        c.deleteElement(c.getElement("2000","2"));
+        assertEquals(h,t.getBucket("2000"));
+        assertTrue(h!=new CacheTree(c.getChilds()).getBucket("2000"));
+    }
+
+    /** Tests a repair of the anti-entropy: the client asks the main for
+     * the elements in the leaves that differ, as MessageManager does. */
+    public void testRepair() throws Exception{
+        StringBuffer b=new StringBuffer("<cache idcache=\"1000\">");
+        for(int i=1;i<=40;i++){
+            b.append("<service id=\"").append(i).append("\" idcache=\"2000\"").
+                    append(" gw=\"1000\" name=\"s").append(i).append("\"/>");
+        }
+        b.append("</cache>");
+        Cache main=cache(b.toString());
+        Cache client=new Cache("3000");
+        client.join(main);
+        // the main changes a service, removes other and adds a new one
+        main.getElement("2000","5").setName("changed");
+        main.deleteElement(main.getElement("2000","7"));
+        main.addElement(main.createElementFromXML("<service id=\"41\""+
+                " idcache=\"2000\" gw=\"1000\" name=\"s41\"/>"));
+        long[] lm=new CacheTree(main.getChilds()).getLeaves("2000");
+        long[] lc=new CacheTree(client.getChilds()).getLeaves("2000");
+        boolean[] leaves=new boolean[CacheTree.LEAVES];
+        int differ=0;
+        for(int i=0;i<CacheTree.LEAVES;i++){
+            leaves[i]=lm[i]!=lc[i];
+            differ+=leaves[i]?1:0;
+        }
+        assertTrue(differ>0&&differ<=3);
+        // the answer of the main: an update with the elements in the leaves
+        Cache answer=new Cache("1000");
+        answer.setElements(inLeaves(main,leaves));
+        answer.setMode("update");
+        Cache repair=new Cache();
+        repair.load(new ByteArrayInputStream(answer.toBytes(
+                Cache.ENCODING_BINARY)));
+        HashSet ids=new HashSet();
+        Object[] o=repair.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            ids.add(((Element)o[i]).getID());
+        }
+        o=inLeaves(client,leaves).toArray();
+        for(int i=0;i<o.length;i++){
+            String id=((Element)o[i]).getID();
+            if(!ids.contains(id)){
+                repair.addRemoved("2000",id);
+            }
+        }
+        client.join(repair);
+        // the elements in the other leaves are kept
+        assertEquals(40,client.getChilds().size());
+        assertEquals(new CacheTree(main.getChilds()).getBucket("2000"),
+                     new CacheTree(client.getChilds()).getBucket("2000"));
+        assertEquals("changed",client.getElement("2000","5").getName());
+        assertNull(client.getElement("2000","7"));
+    }
+
+    /** @return The elements of a cache in some leaves */
+    private static Vector inLeaves(Cache c,boolean[] leaves){
+        Vector v=new Vector();
+        Object[] o=c.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            Element e=(Element)o[i];
+            if(leaves[CacheTree.leafOf(e.getID())]){
+                v.add(e);
+            }
+        }
+        return v;
+    }
+}
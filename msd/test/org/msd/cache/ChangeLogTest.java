@@ -0,0 +1,104 @@
+package org.msd.cache;
+
+import java.util.Collection;
+import java.util.Iterator;
+import junit.framework.TestCase;
+
+/** Tests of the versions and the log of changes of caches.
+ * @version $Revision: 1.1 $ */
+public class ChangeLogTest extends TestCase{
+    /** @return The identifiers in a collection of String[]{idcache,id},
+     * as "idcache/id" separated by spaces */
+    private static String ids(Collection c){
+        StringBuffer b=new StringBuffer();
+        for(Iterator i=c.iterator();i.hasNext();){
+            String[] ids=(String[])i.next();
+            if(b.length()>0){
+                b.append(' ');
+            }
+            b.append(ids[0]+"/"+ids[1]);
+        }
+        return b.toString();
+    }
+
+    public void testSince(){
+        ChangeLog l=new ChangeLog(10);
+        String v0=l.getVersion();
+        l.add("A","1");
+        l.add("A","2");
+        String v2=l.getVersion();
+        l.add("B","1");
+        l.add("A","1");
+        assertEquals("A/1 A/2 B/1",ids(l.since(v0)));
+        assertEquals("B/1 A/1",ids(l.since(v2)));
+        assertEquals("",ids(l.since(l.getVersion())));
+    }
+
+    public void testTooOld(){
+        ChangeLog l=new ChangeLog(3);
+        String v0=l.getVersion();
+        l.add("A","1");
+        String v1=l.getVersion();
+        l.add("A","2");
+        l.add("A","3");
+        assertNotNull(l.since(v0));
+        l.add("A","4");
+        // the change after v0 was forgotten
+        assertNull(l.since(v0));
+        assertEquals("A/2 A/3 A/4",ids(l.since(v1)));
+    }
+
+    public void testNoCapacity(){
+        ChangeLog l=new ChangeLog(0);
+        String v0=l.getVersion();
+        assertEquals("",ids(l.since(v0)));
+        l.add("A","1");
+        assertNull(l.since(v0));
+        assertEquals("",ids(l.since(l.getVersion())));
+    }
+
+    public void testWrongVersions(){
+        ChangeLog l=new ChangeLog(10);
+        l.add("A","1");
+        String v=l.getVersion();
+        String epoch=v.substring(0,v.indexOf('/'));
+        assertNull(l.since(null));
+        assertNull(l.since("1"));
+        assertNull(l.since("a/b"));
+        // from the future
+        assertNull(l.since(epoch+"/2"));
+        // from other epoch
+        assertNull(l.since((Long.parseLong(epoch)+1)+"/0"));
+    }
+
+    public void testClear(){
+        ChangeLog l=new ChangeLog(10);
+        l.add("A","1");
+        String v=l.getVersion();
+        l.clear();
+        assertNull(l.since(v));
+        assertTrue(l.getVersion().endsWith("/0"));
+    }
+
+    public void testSetVersion(){
+        ChangeLog l=new ChangeLog(10);
+        ChangeLog m=new ChangeLog(10);
+        l.add("A","1");
+        l.add("A","2");
+        String v=l.getVersion();
+        m.setVersion(v);
+        assertEquals(v,m.getVersion());
+        assertEquals("",ids(m.since(v)));
+        m.add("A","3");
+        assertEquals("A/3",ids(m.since(v)));
+        // the changes before the version are unknown
+        String epoch=v.substring(0,v.indexOf('/'));
+        assertNull(m.since(epoch+"/1"));
+        try{
+            m.setVersion("12");
+            fail("Wrong version set");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+}
@@ -0,0 +1,131 @@
+package org.msd.cache;
+
+import java.io.ByteArrayInputStream;
+import junit.framework.TestCase;
+
+/** Tests of the compiled templates: they match as Element.match() does.
+ * @version $Revision: 1.1 $ */
+public class ElementMatcherTest extends TestCase{
+    private static final String XML="<cache idcache=\"1000\">"+
+            "<service id=\"1\" idcache=\"1000\" name=\"MSD\">"+
+            "<network name=\"internet\" main=\"\"><attr name=\"url\">"+
+            "10.0.0.1</attr></network>"+
+            "<network name=\"bluetooth\"/></service>"+
+            "<service id=\"2\" idcache=\"2000\" name=\"printer\" gw=\"1000\">"+
+            "<attr name=\"room\">12</attr><classtype name=\"printer\"/>"+
+            "<network name=\"internet\"/></service>"+
+            "<service id=\"3\" idcache=\"2000\" name=\"printer\" gw=\"1000\">"+
+            "<attr name=\"room\">14</attr><network name=\"bluetooth\"/>"+
+            "</service></cache>";
+    /** Templates to test */
+    private static final String[] TEMPLATES={"<service/>",
+            "<service name=\"printer\"/>","<service name=\"fax\"/>",
+            "<service idcache=\"2000\"/>","<service id=\"3\"/>",
+            "<service gw=\"1000\"/>",
+            "<service><attr name=\"room\">14</attr></service>",
+            "<service><attr name=\"floor\">1</attr></service>",
+            "<service><network name=\"internet\"/></service>",
+            "<service><network main=\"\"/></service>",
+            "<service name=\"MSD\"><network name=\"internet\">"+
+            "<attr name=\"url\">10.0.0.1</attr></network></service>",
+            "<service><network name=\"internet\"/>"+
+            "<network name=\"bluetooth\"/></service>",
+            "<service><classtype name=\"printer\"/></service>",
+            "<network name=\"internet\"/>"};
+    private Cache cache;
+
+    protected void setUp() throws Exception{
+        cache=new Cache("1000");
+        cache.load(new ByteArrayInputStream(XML.getBytes()));
+    }
+
+    /** @return The identifiers of the childs of the cache matching */
+    private String matching(ElementMatcher m){
+        StringBuffer b=new StringBuffer();
+        Object[] o=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            if(m.matches((Element)o[i])){
+                b.append(((Element)o[i]).getID()).append(' ');
+            }
+        }
+        return b.toString();
+    }
+
+    /** @return The identifiers of the childs of the cache matching */
+    private String matching(Element t){
+        StringBuffer b=new StringBuffer();
+        Object[] o=cache.getChilds().toArray();
+        for(int i=0;i<o.length;i++){
+            if(((Element)o[i]).match(t)){
+                b.append(((Element)o[i]).getID()).append(' ');
+            }
+        }
+        return b.toString();
+    }
+
+    public void testAsMatch() throws Exception{
+        for(int i=0;i<TEMPLATES.length;i++){
+            Element t=cache.createElementFromXML(TEMPLATES[i]);
+            assertEquals(TEMPLATES[i],matching(t),
+                         matching(ElementMatcher.compile(t)));
+        }
+    }
+
+    public void testMatches() throws Exception{
+        assertEquals("1 2 3 ",matching(compile(TEMPLATES[0])));
+        assertEquals("2 3 ",matching(compile(TEMPLATES[1])));
+        assertEquals("",matching(compile(TEMPLATES[2])));
+        assertEquals("3 ",matching(compile(TEMPLATES[6])));
+        assertEquals("1 2 ",matching(compile(TEMPLATES[8])));
+        assertEquals("1 ",matching(compile(TEMPLATES[11])));
+        assertEquals("2 ",matching(compile(TEMPLATES[12])));
+        assertEquals("2 3 ",matching(compile(TEMPLATES[5])));
+    }
+
+    public void testImmutable() throws Exception{
+        Element t=cache.createElementFromXML("<service name=\"printer\"/>");
+        ElementMatcher m=ElementMatcher.compile(t);
+        t.setName("MSD");
+        t.setAttrStr("room","12");
+        assertEquals("2 3 ",matching(m));
+    }
+
+    public void testKeys() throws Exception{
+        ElementMatcher m=compile("<service id=\"2\" idcache=\"2000\""+
+                                 " name=\"printer\" gw=\"1000\"/>");
+        assertEquals(Element.SERVICE,m.getType());
+        assertEquals("2",m.getID());
+        assertEquals("2000",m.getIDCache());
+        assertEquals("printer",m.getName());
+        assertEquals("1000",m.getGateway());
+        m=compile("<service/>");
+        assertNull(m.getID());
+        assertNull(m.getName());
+        assertNull(m.getGateway());
+    }
+
+    public void testWithChild() throws Exception{
+        ElementMatcher m=compile(TEMPLATES[0]);
+        ElementMatcher n=m.withChild(compile(
+                "<network name=\"bluetooth\"/>"));
+        assertEquals(0,m.countChilds());
+        assertEquals(1,n.countChilds());
+        assertEquals("1 2 3 ",matching(m));
+        assertEquals("1 3 ",matching(n));
+    }
+
+    public void testToElement() throws Exception{
+        for(int i=0;i<TEMPLATES.length;i++){
+            ElementMatcher m=compile(TEMPLATES[i]);
+            Element t=m.toElement(cache);
+            assertEquals(TEMPLATES[i],matching(m),matching(t));
+            assertEquals(TEMPLATES[i],matching(m),
+                         matching(ElementMatcher.compile(t)));
+        }
+    }
+
+    /** @return The matcher of a template */
+    private ElementMatcher compile(String xml) throws Exception{
+        return ElementMatcher.compile(cache.createElementFromXML(xml));
+    }
+}
@@ -0,0 +1,119 @@
+package org.msd.cache;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/** Tests of the timing wheel expiring the elements of caches.
+ * @version $Revision: 1.1 $ */
+public class ExpirationWheelTest extends TestCase{
+    private Cache cache;
+
+    protected void setUp() throws Exception{
+        cache=new Cache("1000");
+    }
+
+    /** @return A new element */
+    private Element element() throws Exception{
+        return cache.createElement(Element.SERVICE);
+    }
+
+    public void testExpire() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,0);
+        Element a=element(),b=element();
+        w.schedule(a,250,0);
+        w.schedule(b,500,0);
+        assertEquals(250,w.getExpiration(a));
+        assertEquals(0,w.advance(200).size());
+        Vector v=w.advance(300);
+        assertEquals(1,v.size());
+        assertSame(a,v.get(0));
+        assertEquals(-1,w.getExpiration(a));
+        v=w.advance(500);
+        assertEquals(1,v.size());
+        assertSame(b,v.get(0));
+        assertTrue(w.isEmpty());
+    }
+
+    public void testNeverEarly() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(4,100,0);
+        Element[] e=new Element[50];
+        for(int i=0;i<e.length;i++){
+            e[i]=element();
+            w.schedule(e[i],i*37,0);
+        }
+        int expired=0;
+        for(long now=0;now<=2000;now+=10){
+            Vector v=w.advance(now);
+            for(int i=0;i<v.size();i++){
+                Element x=(Element)v.get(i);
+                int k=0;
+                while(e[k]!=x){
+                    k++;
+                }
+                // never before its time, and at most a slot after it
+                assertTrue(now>=k*37);
+                assertTrue(now<k*37+200);
+                expired++;
+            }
+        }
+        assertEquals(e.length,expired);
+        assertTrue(w.isEmpty());
+    }
+
+    public void testRounds() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(4,100,0);
+        Element a=element();
+        // several turns of the wheel
+        w.schedule(a,1050,0);
+        assertEquals(0,w.advance(1000).size());
+        assertEquals(1,w.advance(1100).size());
+    }
+
+    public void testCancel() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,0);
+        Element a=element(),b=element();
+        w.schedule(a,200,0);
+        w.schedule(b,200,0);
+        w.cancel(a);
+        w.cancel(element());
+        assertEquals(-1,w.getExpiration(a));
+        Vector v=w.advance(300);
+        assertEquals(1,v.size());
+        assertSame(b,v.get(0));
+    }
+
+    public void testReschedule() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,0);
+        Element a=element();
+        w.schedule(a,200,0);
+        w.schedule(a,600,0);
+        assertEquals(600,w.getExpiration(a));
+        assertEquals(0,w.advance(500).size());
+        assertEquals(1,w.advance(600).size());
+    }
+
+    public void testPast() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,1000);
+        Element a=element();
+        // expired yet: in the next slot
+        w.schedule(a,10,1000);
+        assertEquals(1,w.advance(1100).size());
+    }
+
+    public void testIdle() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,0);
+        Element a=element();
+        // an empty wheel jumps to the current time
+        w.schedule(a,100000250,100000000);
+        assertEquals(0,w.advance(100000200).size());
+        assertEquals(1,w.advance(100000300).size());
+    }
+
+    public void testClear() throws Exception{
+        ExpirationWheel w=new ExpirationWheel(8,100,0);
+        w.schedule(element(),200,0);
+        w.clear();
+        assertTrue(w.isEmpty());
+        assertEquals(0,w.advance(1000).size());
+    }
+}
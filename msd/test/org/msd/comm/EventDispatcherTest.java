@@ -0,0 +1,295 @@
+package org.msd.comm;
+
+import java.util.Vector;
+import junit.framework.TestCase;
+
+/** Tests of the dispatcher running events and received entities.
+ * @version $Revision: 1.1 $ */
+public class EventDispatcherTest extends TestCase{
+    /** Milliseconds to wait for the tasks */
+    private static final long WAIT=5000;
+
+    /** A task blocking until it is opened */
+    private static class Gate implements Runnable{
+        private boolean open=false;
+        private int running=0;
+
+        public synchronized void run(){
+            running++;
+            notifyAll();
+            long end=System.currentTimeMillis()+WAIT;
+            while(!open&&System.currentTimeMillis()<end){
+                try{
+                    wait(end-System.currentTimeMillis());
+                } catch(InterruptedException e){
+                    return;
+                }
+            }
+        }
+
+        synchronized void open(){
+            open=true;
+            notifyAll();
+        }
+
+        /** Waits until n tasks are running this gate */
+        synchronized void waitRunning(int n) throws InterruptedException{
+            long end=System.currentTimeMillis()+WAIT;
+            while(running<n&&System.currentTimeMillis()<end){
+                wait(end-System.currentTimeMillis());
+            }
+            assertEquals(n,running);
+        }
+    }
+
+    /** A task adding a number to a vector */
+    private static Runnable add(final Vector v,final int n){
+        return new Runnable(){
+            public void run(){
+                v.add(new Integer(n));
+            }
+        };
+    }
+
+    /** Waits until a dispatcher runs n tasks */
+    private static void waitExecuted(EventDispatcher d,long n) throws
+            InterruptedException{
+        long end=System.currentTimeMillis()+WAIT;
+        while(d.getExecuted()<n&&System.currentTimeMillis()<end){
+            Thread.sleep(10);
+        }
+        assertEquals(n,d.getExecuted());
+    }
+
+    public void testOrderOfKey() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",4,1000);
+        Vector v=new Vector();
+        Object key=new Object();
+        for(int i=0;i<500;i++){
+            d.dispatch(key,add(v,i));
+        }
+        waitExecuted(d,500);
+        for(int i=0;i<500;i++){
+            assertEquals(new Integer(i),v.get(i));
+        }
+    }
+
+    public void testMaxThreads() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",2,100);
+        Gate g=new Gate();
+        // a key each: the tasks of the same key would run in order
+        for(int i=0;i<5;i++){
+            d.execute(new Object(),g);
+        }
+        g.waitRunning(2);
+        Thread.sleep(100);
+        assertEquals(2,d.getThreads());
+        assertEquals(3,d.getQueued());
+        g.open();
+        waitExecuted(d,5);
+        assertTrue(d.getPeak()>=3);
+    }
+
+    public void testNoLimit() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",0,100);
+        Gate g=new Gate();
+        for(int i=0;i<20;i++){
+            d.execute(new Object(),g);
+        }
+        // a thread for each task: no task waits for other
+        g.waitRunning(20);
+        g.open();
+        waitExecuted(d,20);
+    }
+
+    public void testWaitForOther() throws Exception{
+        final EventDispatcher d=new EventDispatcher("test",0,100);
+        final Vector v=new Vector();
+        d.execute(null,add(v,0));
+        waitExecuted(d,1);
+        // the thread of the first task is waiting for tasks
+        final Gate b=new Gate();
+        Runnable c=new Runnable(){
+            public void run(){
+                v.add(new Integer(1));
+                b.open();
+            }
+        };
+        // the thread waiting can not take a task while both are queued
+        synchronized(d){
+            d.execute(null,b);
+            d.execute(null,c);
+        }
+        b.waitRunning(1);
+        long end=System.currentTimeMillis()+WAIT/5;
+        while(v.size()<2&&System.currentTimeMillis()<end){
+            Thread.sleep(10);
+        }
+        // c does not wait for b, which waits for c
+        assertEquals(2,v.size());
+        waitExecuted(d,3);
+    }
+
+    public void testBlocked() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",1,100);
+        d.setSpareThreads(1);
+        Gate g=new Gate();
+        final Vector v=new Vector();
+        // a task waiting for other: not blocked, the other waits
+        d.execute(null,g);
+        g.waitRunning(1);
+        d.execute(null,add(v,1));
+        Thread.sleep(100);
+        assertEquals(0,v.size());
+        g.open();
+        waitExecuted(d,2);
+        // a task blocked waiting for other starts a spare thread
+        final Gate h=new Gate();
+        d.execute(null,blocking(h));
+        h.waitRunning(1);
+        assertEquals(1,d.getBlocked());
+        d.execute(null,new Runnable(){
+            public void run(){
+                v.add(new Integer(2));
+                h.open();
+            }
+        });
+        waitExecuted(d,4);
+        assertEquals(2,v.size());
+        assertEquals(0,d.getBlocked());
+    }
+
+    public void testSpareLimit() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",1,100);
+        d.setSpareThreads(1);
+        Gate g=new Gate();
+        for(int i=0;i<3;i++){
+            d.execute(new Object(),blocking(g));
+        }
+        // one thread and a spare one: the third task waits
+        g.waitRunning(2);
+        Thread.sleep(100);
+        assertEquals(2,d.getThreads());
+        assertEquals(1,d.getQueued());
+        g.open();
+        waitExecuted(d,3);
+    }
+
+    /** @return A task running r while blocked */
+    private static Runnable blocking(final Runnable r){
+        return new Runnable(){
+            public void run(){
+                EventDispatcher.beginBlocking();
+                try{
+                    r.run();
+                } finally{
+                    EventDispatcher.endBlocking();
+                }
+            }
+        };
+    }
+
+    public void testKeysTakeTurns() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",1,1000);
+        Gate g=new Gate();
+        d.execute(null,g);
+        g.waitRunning(1);
+        Vector v=new Vector();
+        Object busy=new Object();
+        for(int i=0;i<10;i++){
+            d.execute(busy,add(v,i));
+        }
+        d.execute(null,add(v,100));
+        g.open();
+        waitExecuted(d,12);
+        // the other key does not wait for every task of the busy one
+        assertTrue(v.indexOf(new Integer(100))<2);
+    }
+
+    public void testReject() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",1,2);
+        Gate g=new Gate();
+        assertTrue(d.execute(null,g));
+        g.waitRunning(1);
+        Vector v=new Vector();
+        assertTrue(d.execute(null,add(v,1)));
+        assertTrue(d.execute(null,add(v,2)));
+        assertFalse(d.execute(null,add(v,3)));
+        assertEquals(1,d.getRejected());
+        g.open();
+        waitExecuted(d,3);
+        assertEquals(2,v.size());
+    }
+
+    public void testDispatchWaits() throws Exception{
+        final EventDispatcher d=new EventDispatcher("test",1,1);
+        Gate g=new Gate();
+        d.execute(null,g);
+        g.waitRunning(1);
+        final Vector v=new Vector();
+        d.dispatch(null,add(v,1));
+        Thread t=new Thread(){
+            public void run(){
+                d.dispatch(null,add(v,2));
+            }
+        };
+        t.start();
+        t.join(200);
+        // the queue is full: the thread waits
+        assertTrue(t.isAlive());
+        g.open();
+        t.join(WAIT);
+        assertFalse(t.isAlive());
+        waitExecuted(d,3);
+        assertEquals(0,d.getRejected());
+    }
+
+    public void testDispatchFromItself() throws Exception{
+        final EventDispatcher d=new EventDispatcher("test",1,1);
+        final Vector v=new Vector();
+        d.dispatch(null,new Runnable(){
+            public void run(){
+                // a thread of the dispatcher never waits for itself
+                for(int i=0;i<5;i++){
+                    d.dispatch(null,add(v,i));
+                }
+            }
+        });
+        waitExecuted(d,6);
+        assertEquals(5,v.size());
+    }
+
+    public void testErrors() throws Exception{
+        EventDispatcher d=new EventDispatcher("test",1,10);
+        Vector v=new Vector();
+        d.execute(null,new Runnable(){
+            public void run(){
+                throw new RuntimeException("test");
+            }
+        });
+        d.execute(null,add(v,1));
+        waitExecuted(d,2);
+        assertEquals(1,v.size());
+    }
+
+    public void testWrongSizes(){
+        try{
+            new EventDispatcher("test",-1,10);
+            fail("Negative threads");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try{
+            new EventDispatcher("test",1,0);
+            fail("No room for tasks");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+        try{
+            new EventDispatcher("test",1,10).setSpareThreads(-1);
+            fail("Negative spare threads");
+        } catch(IllegalArgumentException e){
+            // expected
+        }
+    }
+}
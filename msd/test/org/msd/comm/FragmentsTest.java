@@ -0,0 +1,147 @@
+package org.msd.comm;
+
+import java.util.Arrays;
+import java.util.Random;
+import junit.framework.TestCase;
+
+/** Tests of the reassembly of fragmented messages.
+ * @version $Revision: 1.1 $ */
+public class FragmentsTest extends TestCase{
+    private Fragments f;
+
+    protected void setUp(){
+        f=new Fragments();
+    }
+
+    /** @return A fragment of a message, as InternetNetworkManager sends it */
+    private static byte[] fragment(String id,int index,int count,byte[] m,
+                                   int chunk){
+        byte[] h=Fragments.header(id,index,count);
+        int from=index*chunk;
+        int l=Math.min(chunk,m.length-from);
+        byte[] b=new byte[h.length+l];
+        System.arraycopy(h,0,b,0,h.length);
+        System.arraycopy(m,from,b,h.length,l);
+        return b;
+    }
+
+    /** @return A message of random bytes */
+    private static byte[] message(int length){
+        byte[] m=new byte[length];
+        new Random(length).nextBytes(m);
+        return m;
+    }
+
+    /** Adds a fragment to f */
+    private byte[] add(Object from,byte[] b) throws Exception{
+        return f.add(from,b,b.length);
+    }
+
+    public void testIsFragment(){
+        byte[] b=fragment("1",0,2,message(10),5);
+        assertTrue(Fragments.isFragment(b,b.length));
+        assertFalse(Fragments.isFragment(b,3));
+        byte[] m="MSD 1 2".getBytes();
+        assertFalse(Fragments.isFragment(m,m.length));
+    }
+
+    public void testInOrder() throws Exception{
+        byte[] m=message(1000);
+        for(int i=0;i<3;i++){
+            assertNull(add("a",fragment("7",i,4,m,300)));
+        }
+        assertTrue(Arrays.equals(m,add("a",fragment("7",3,4,m,300))));
+    }
+
+    public void testAnyOrder() throws Exception{
+        byte[] m=message(1000);
+        int[] order={3,0,2,1};
+        for(int i=0;i<3;i++){
+            assertNull(add("a",fragment("7",order[i],4,m,300)));
+        }
+        assertTrue(Arrays.equals(m,add("a",fragment("7",order[3],4,m,300))));
+    }
+
+    public void testSingleFragment() throws Exception{
+        byte[] m=message(100);
+        assertTrue(Arrays.equals(m,add("a",fragment("1",0,1,m,100))));
+    }
+
+    public void testDuplicated() throws Exception{
+        byte[] m=message(100);
+        assertNull(add("a",fragment("1",0,2,m,50)));
+        assertNull(add("a",fragment("1",0,2,m,50)));
+        assertTrue(Arrays.equals(m,add("a",fragment("1",1,2,m,50))));
+        // a message is delivered once: a late fragment starts a new one
+        assertNull(add("a",fragment("1",1,2,m,50)));
+    }
+
+    public void testSendersAndIds() throws Exception{
+        byte[] m1=message(100),m2=message(101),m3=message(102);
+        assertNull(add("a",fragment("1",0,2,m1,60)));
+        assertNull(add("b",fragment("1",0,2,m2,60)));
+        assertNull(add("a",fragment("2",1,2,m3,60)));
+        assertTrue(Arrays.equals(m2,add("b",fragment("1",1,2,m2,60))));
+        assertTrue(Arrays.equals(m3,add("a",fragment("2",0,2,m3,60))));
+        assertTrue(Arrays.equals(m1,add("a",fragment("1",1,2,m1,60))));
+    }
+
+    public void testLength() throws Exception{
+        byte[] m=message(100);
+        byte[] b=fragment("1",1,2,m,50);
+        byte[] big=new byte[b.length+20];
+        System.arraycopy(b,0,big,0,b.length);
+        // only length bytes of the datagram are used, and they are copied
+        assertNull(add("a",fragment("1",0,2,m,50)));
+        byte[] r=f.add("a",big,b.length);
+        Arrays.fill(big,(byte)0);
+        assertTrue(Arrays.equals(m,r));
+    }
+
+    public void testWrongFragments() throws Exception{
+        String[] wrong={"MSDF 1 0\r\nxx","MSDF 1 2 2\r\nxx","MSDF 1 -1 2\r\nxx",
+                       "MSDF 1 0 0\r\nxx","MSDF 1 0 "+
+                       (Fragments.MAX_FRAGMENTS+1)+"\r\nxx","MSDF 1 0 2 xx",
+                       "MSDF 1 a 2\r\nxx"};
+        for(int i=0;i<wrong.length;i++){
+            try{
+                add("a",wrong[i].getBytes());
+                fail("Wrong fragment accepted: "+wrong[i]);
+            } catch(Exception e){
+                // expected
+            }
+        }
+        // a fragment of another count than the first one
+        assertNull(add("a",fragment("1",0,3,message(90),30)));
+        try{
+            add("a",fragment("1",1,2,message(60),30));
+            fail("Wrong count accepted");
+        } catch(Exception e){
+            // expected
+        }
+    }
+
+    public void testMaxMessages() throws Exception{
+        byte[] m=message(100);
+        for(int i=0;i<=Fragments.MAX_MESSAGES;i++){
+            assertNull(add("a",fragment(""+i,0,2,m,50)));
+        }
+        // the oldest incomplete message was forgotten
+        assertNull(add("a",fragment("0",1,2,m,50)));
+        assertTrue(Arrays.equals(m,add("a",fragment(""+Fragments.MAX_MESSAGES,
+                1,2,m,50))));
+    }
+
+    public void testMaxBytes() throws Exception{
+        int chunk=60000;
+        int n=Fragments.MAX_BYTES/chunk+1;
+        byte[] m=message(chunk*n+1);
+        // a message bigger than MAX_BYTES never completes
+        for(int i=0;i<=n;i++){
+            assertNull(add("a",fragment("1",i,n+1,m,chunk)));
+        }
+        byte[] small=message(100);
+        assertNull(add("a",fragment("2",0,2,small,50)));
+        assertTrue(Arrays.equals(small,add("a",fragment("2",1,2,small,50))));
+    }
+}